@@ -0,0 +1,120 @@
+package is.ru.cadia.ggp.propnet;
+
+import java.util.Arrays;
+
+/**
+ * immutable snapshot of the base propositions of a state, e.g., for states that are stored in a search tree
+ *
+ * Only the base propositions define the state of the game, so this needs much less memory than
+ * an internal state with values for all components. The base propositions are stored as a bitset
+ * (one bit per base proposition) or, if fewer than 1/32 of them are true, as the sorted list of IDs of the true ones.
+ *
+ * Use PropNetStateMachine.compress and PropNetStateMachine.decompress to convert between internal and compact states.
+ */
+public final class CompactState {
+
+	/**
+	 * the base propositions if stored as a bitset or null
+	 */
+	private final long[] bits;
+	/**
+	 * IDs of the true base propositions if stored as a list or null
+	 */
+	private final int[] trueBases;
+	private final long zobristHash;
+
+	/**
+	 * @param state
+	 * @param nbBases the number of base propositions (base propositions have IDs 0 ... nbBases-1)
+	 * @param zobristHash
+	 */
+	public CompactState(InternalStateInterface state, int nbBases, long zobristHash) {
+		this.zobristHash = zobristHash;
+		int nbTrue = 0;
+		for (int id = 0; id < nbBases; id++) {
+			if (state.get(id)) {
+				nbTrue++;
+			}
+		}
+		if (nbTrue * 32 < nbBases) {
+			bits = null;
+			trueBases = new int[nbTrue];
+			int i = 0;
+			for (int id = 0; id < nbBases; id++) {
+				if (state.get(id)) {
+					trueBases[i++] = id;
+				}
+			}
+		} else {
+			trueBases = null;
+			bits = new long[(nbBases + 63) >>> 6];
+			for (int id = 0; id < nbBases; id++) {
+				if (state.get(id)) {
+					bits[id >>> 6] |= 1L << id;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param id the ID of a base proposition
+	 * @return the value of the base proposition in this state
+	 */
+	public boolean get(int id) {
+		if (bits != null) {
+			return (id >>> 6) < bits.length && (bits[id >>> 6] & (1L << id)) != 0;
+		}
+		return Arrays.binarySearch(trueBases, id) >= 0;
+	}
+
+	/**
+	 * @return the IDs of all true base propositions in increasing order
+	 */
+	public int[] getTrueBases() {
+		if (trueBases != null) {
+			return trueBases.clone();
+		}
+		int nbTrue = 0;
+		for (long word : bits) {
+			nbTrue += Long.bitCount(word);
+		}
+		int[] result = new int[nbTrue];
+		int i = 0;
+		for (int w = 0; w < bits.length; w++) {
+			for (long word = bits[w]; word != 0; word &= word - 1) {
+				result[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+		}
+		return result;
+	}
+
+	public long getZobristHash() {
+		return zobristHash;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int)(zobristHash ^ (zobristHash >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CompactState)) {
+			return false;
+		}
+		CompactState other = (CompactState)obj;
+		if (zobristHash != other.zobristHash) {
+			return false;
+		}
+		if (bits != null && other.bits != null) {
+			return Arrays.equals(bits, other.bits);
+		}
+		if (trueBases != null && other.trueBases != null) {
+			return Arrays.equals(trueBases, other.trueBases);
+		}
+		return Arrays.equals(getTrueBases(), other.getTrueBases());
+	}
+}
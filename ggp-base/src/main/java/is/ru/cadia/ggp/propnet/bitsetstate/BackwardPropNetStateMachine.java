@@ -64,6 +64,13 @@ public class BackwardPropNetStateMachine extends PropNetBitSetStateMachine {
 		return nextState;
 	}
 
+	@Override
+	public InternalBitSetState resetTo(InternalBitSetState start) {
+		InternalBitSetState state = super.resetTo(start);
+		state.resetComputed(getBaseStateComputed());
+		return state;
+	}
+
 	private boolean compute(int cId, InternalBitSetState state) {
 		if (propNetStructure.isCylic()) {
 			BitSet visiting = new BitSet(propNetStructure.getNbComponents());
@@ -200,6 +207,7 @@ public class BackwardPropNetStateMachine extends PropNetBitSetStateMachine {
 
 	@Override
 	protected void changeBaseOrInputValue(StaticComponent c, InternalBitSetState state, boolean newValue) {
+		updateZobristHash(c, state, newValue);
 		state.set(c.id, newValue);
 	}
 
@@ -0,0 +1,47 @@
+package is.ru.cadia.ggp.propnet.bitsetstate;
+
+/**
+ * an InternalBitSetState that additionally stores the number of true inputs of each component
+ *
+ * used by CountingForwardChangePropNetStateMachine
+ */
+public class CountingBitSetState extends InternalBitSetState {
+
+	private static final long serialVersionUID = -2046640862307931137L;
+
+	/**
+	 * the number of true inputs of each component by ID
+	 */
+	protected int[] nbTrueInputs;
+
+	/**
+	 * the number of true inputs that are not part of a cycle, only for cyclic components (null if the propnet is acyclic)
+	 */
+	protected int[] nbTrueAcyclicInputs;
+
+	public CountingBitSetState(int nbComponents, boolean isCyclic) {
+		super();
+		nbTrueInputs = new int[nbComponents];
+		nbTrueAcyclicInputs = isCyclic ? new int[nbComponents] : null;
+	}
+
+	@Override
+	public CountingBitSetState clone() {
+		CountingBitSetState s = (CountingBitSetState)super.clone();
+		s.nbTrueInputs = nbTrueInputs.clone();
+		if (nbTrueAcyclicInputs != null) {
+			s.nbTrueAcyclicInputs = nbTrueAcyclicInputs.clone();
+		}
+		return s;
+	}
+
+	@Override
+	public void copyFrom(InternalBitSetState s) {
+		super.copyFrom(s);
+		CountingBitSetState c = (CountingBitSetState)s;
+		System.arraycopy(c.nbTrueInputs, 0, nbTrueInputs, 0, nbTrueInputs.length);
+		if (nbTrueAcyclicInputs != null) {
+			System.arraycopy(c.nbTrueAcyclicInputs, 0, nbTrueAcyclicInputs, 0, nbTrueAcyclicInputs.length);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package is.ru.cadia.ggp.propnet.bitsetstate;
+
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * propagate changes of components' values forward through the network (recursively) like
+ * RecursiveForwardChangePropNetStateMachine, but keep the number of true inputs of every component in the state
+ *
+ * This way, finding out whether an AND or OR changes its value when one of its inputs changes takes constant time
+ * instead of looking at all the other inputs, which pays off for wide gates (e.g., goal or terminal conditions
+ * over many cells). The price is a larger state (an int per component).
+ */
+public class CountingForwardChangePropNetStateMachine extends PropNetBitSetStateMachine {
+
+	// the flat representation of the propnet structure (see PropNetStructure.getComponentTypes() and the like)
+	private byte[] types;
+	private int[] inputOffsets;
+	private int[] inputSources;
+	private int[] outputOffsets;
+	private int[] outputTargets;
+	private BitSet cyclicComponents;
+
+	/**
+	 * true while the values of cyclic ORs are being retracted (see retract)
+	 */
+	private boolean retracting = false;
+	/**
+	 * stack of cyclic ORs that were set to false or kept false while retracting and have to be rederived
+	 */
+	private int[] retracted;
+	private int nbRetracted;
+	private BitSet retractedSet;
+
+	public CountingForwardChangePropNetStateMachine(PropNetStructureFactory factory) {
+		super(factory);
+	}
+
+	public CountingForwardChangePropNetStateMachine(PropNetStructure propnetStructure) {
+		super(propnetStructure);
+	}
+
+	@Override
+	public void initialize(PropNetStructure propNetStructure) {
+		// the arrays are needed before super.initialize computes the initial state
+		types = propNetStructure.getComponentTypes();
+		inputOffsets = propNetStructure.getInputOffsets();
+		inputSources = propNetStructure.getInputSources();
+		outputOffsets = propNetStructure.getOutputOffsets();
+		outputTargets = propNetStructure.getOutputTargets();
+		cyclicComponents = propNetStructure.getCyclicComponents();
+		retracting = false;
+		retracted = new int[types.length];
+		nbRetracted = 0;
+		retractedSet = new BitSet(types.length);
+		super.initialize(propNetStructure);
+	}
+
+	@Override
+	protected InternalBitSetState createState() {
+		return new CountingBitSetState(propNetStructure.getNbComponents(), propNetStructure.isCylic());
+	}
+
+	@Override
+	protected InternalBitSetState makeBaseState() {
+		CountingBitSetState state = (CountingBitSetState)super.makeBaseState();
+		Stopwatch stopWatch = new Stopwatch().start();
+		// ensure consistency of all components' values with the values of their inputs
+		new ForwardPropagationStrategy(propNetStructure).propagateChanges(state);
+		// and count the true inputs of every component
+		for (int id = 0; id < types.length; id++) {
+			for (int i = inputOffsets[id], end = inputOffsets[id + 1]; i < end; i++) {
+				int input = inputSources[i];
+				if (state.get(input)) {
+					state.nbTrueInputs[id]++;
+					if (state.nbTrueAcyclicInputs != null && !cyclicComponents.get(input)) {
+						state.nbTrueAcyclicInputs[id]++;
+					}
+				}
+			}
+		}
+		System.out.println("ensuring consistency of initial state took: " + stopWatch.elapsed(TimeUnit.MILLISECONDS)/1000.0 + "s");
+		return state;
+	}
+
+	/**
+	 * sets the value of component id in state and propagates that change to all outputs of the component
+	 *
+	 * assumes that the previous value of the component was different from value
+	 */
+	private void setComponentValue(int id, CountingBitSetState state, boolean value) {
+		state.set(id, value);
+		int start = outputOffsets[id];
+		int end = outputOffsets[id + 1];
+		int delta = value ? 1 : -1;
+		// update all counters before propagating, such that they are correct even if the propagation
+		// comes back to this component through a cycle
+		int[] nbTrueInputs = state.nbTrueInputs;
+		for (int i = start; i < end; i++) {
+			nbTrueInputs[outputTargets[i]] += delta;
+		}
+		if (state.nbTrueAcyclicInputs != null && !cyclicComponents.get(id)) {
+			for (int i = start; i < end; i++) {
+				int output = outputTargets[i];
+				if (cyclicComponents.get(output)) {
+					state.nbTrueAcyclicInputs[output] += delta;
+				}
+			}
+		}
+		for (int i = start; i < end; i++) {
+			setComponentFromInput(outputTargets[i], state, value);
+		}
+	}
+
+	private void setComponentFromInput(int id, CountingBitSetState state, boolean newInputValue) {
+		boolean value = state.get(id);
+		int nbTrueInputs = state.nbTrueInputs[id];
+		switch (types[id]) {
+		case PropNetStructure.TYPE_PIPE:
+		case PropNetStructure.TYPE_AND:
+			if (value != (nbTrueInputs == inputOffsets[id + 1] - inputOffsets[id])) {
+				setComponentValue(id, state, !value);
+			}
+			break;
+		case PropNetStructure.TYPE_OR:
+			if (!value) {
+				if (nbTrueInputs > 0) {
+					if (retracting && cyclicComponents.get(id)) {
+						// the true input might be left over from the cycle that is being retracted
+						addRetracted(id);
+					} else {
+						setComponentValue(id, state, true);
+					}
+				}
+			} else if (cyclicComponents.get(id)) {
+				// If only inputs in the cycle are still true, they might just be true because this component is true.
+				if (!newInputValue && state.nbTrueAcyclicInputs[id] == 0) {
+					if (retracting) {
+						addRetracted(id);
+						setComponentValue(id, state, false);
+					} else {
+						retract(id, state);
+					}
+				}
+			} else if (nbTrueInputs == 0) {
+				setComponentValue(id, state, false);
+			}
+			break;
+		case PropNetStructure.TYPE_NOT:
+			if (value != (nbTrueInputs == 0)) {
+				setComponentValue(id, state, !value);
+			}
+			break;
+		default:
+			assert false;
+			break;
+		}
+	}
+
+	/**
+	 * sets the cyclic OR id to false, together with every cyclic OR that might have been true only because of it,
+	 * and afterwards sets those ORs back to true that still have a true input
+	 *
+	 * Propagating false through a cycle one component at a time does not work, because the other components
+	 * of the cycle are still true when they are reached and would make the first component true again.
+	 */
+	private void retract(int id, CountingBitSetState state) {
+		int start = nbRetracted;
+		retracting = true;
+		addRetracted(id);
+		setComponentValue(id, state, false);
+		retracting = false;
+		// retracting again while rederiving only uses the stack above nbRetracted and restores it afterwards
+		for (int i = start; i < nbRetracted; i++) {
+			int c = retracted[i];
+			retractedSet.clear(c);
+			if (!state.get(c) && state.nbTrueInputs[c] > 0) {
+				setComponentValue(c, state, true);
+			}
+		}
+		nbRetracted = start;
+	}
+
+	private void addRetracted(int id) {
+		if (!retractedSet.get(id)) {
+			retractedSet.set(id);
+			retracted[nbRetracted++] = id;
+		}
+	}
+
+	@Override
+	public boolean isTerminal(InternalBitSetState state) {
+		return state.get(propNetStructure.getTerminalProposition().id);
+	}
+
+	@Override
+	protected void computeTransitions(InternalBitSetState state) {
+		// nothing to do here
+	}
+
+	@Override
+	protected void computeLegals(InternalBitSetState state, int roleId) {
+		// nothing to do here
+	}
+
+	@Override
+	protected void computeGoal(InternalBitSetState state, int roleId) {
+		// nothing to do here
+	}
+
+	@Override
+	protected void changeBaseOrInputValue(StaticComponent c, InternalBitSetState state, boolean newValue) {
+		updateZobristHash(c, state, newValue);
+		setComponentValue(c.id, (CountingBitSetState)state, newValue);
+	}
+
+}
@@ -145,6 +145,7 @@ public class ForwardChangePropNetStateMachine extends PropNetBitSetStateMachine
 	}
 	@Override
 	protected void changeBaseOrInputValue(StaticComponent c, InternalBitSetState state, boolean newValue) {
+		updateZobristHash(c, state, newValue);
 		propagationStrategy.setComponentValue(c, state, newValue);
 	}
 
@@ -7,40 +7,56 @@ import java.util.BitSet;
 
 public class ForwardPropagationStrategy {
 
-	private PropNetStructure propNetStructure;
+	private final int nbComponents;
+
+	// the flat representation of the propnet structure (see PropNetStructure.getComponentTypes() and the like)
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputSources;
+	private final int[] outputOffsets;
+	private final int[] outputTargets;
+	private final BitSet cyclicComponents;
 
 	public ForwardPropagationStrategy(PropNetStructure propNetStructure) {
-		this.propNetStructure = propNetStructure;
+		nbComponents = propNetStructure.getNbComponents();
+		types = propNetStructure.getComponentTypes();
+		inputOffsets = propNetStructure.getInputOffsets();
+		inputSources = propNetStructure.getInputSources();
+		outputOffsets = propNetStructure.getOutputOffsets();
+		outputTargets = propNetStructure.getOutputTargets();
+		cyclicComponents = propNetStructure.getCyclicComponents();
 	}
 
-	private int computeValueAndPropagateChange(StaticComponent c, int nextComponentToCheck, InternalBitSetState state) {
+	private int computeValueAndPropagateChange(int id, int nextComponentToCheck, InternalBitSetState state) {
 		boolean value;
-		switch (c.type) {
-			case AND:
+		int start = inputOffsets[id];
+		int end = inputOffsets[id + 1];
+		switch (types[id]) {
+			case PropNetStructure.TYPE_AND:
 				value = true;
-				for(int input:c.inputs) {
-					value = value && state.get(input);
+				for (int i = start; i < end; i++) {
+					value = value && state.get(inputSources[i]);
 					if (!value) break;
 				}
 				break;
-			case OR:
+			case PropNetStructure.TYPE_OR:
 				value = false;
-				for(int input:c.inputs) {
-					value = value || state.get(input);
+				for (int i = start; i < end; i++) {
+					value = value || state.get(inputSources[i]);
 					if (value) break;
 				}
 				break;
-			case NOT:
-				value = !state.get(c.inputs[0]);
+			case PropNetStructure.TYPE_NOT:
+				value = !state.get(inputSources[start]);
 				break;
-			case PIPE:
-				value = state.get(c.inputs[0]);
+			case PropNetStructure.TYPE_PIPE:
+				value = state.get(inputSources[start]);
 				break;
 			default:
 				throw new RuntimeException("INIT, TRUE, FALSE, BASE and INPUT components should always have their computed bits sets");
 		}
-		state.setComputed(c.id);
-		return setComponentValue(c, state, value, nextComponentToCheck);
+		state.setComputed(id);
+		return setComponentValue(id, state, value, nextComponentToCheck);
 	}
 
 	/**
@@ -61,15 +77,15 @@ public class ForwardPropagationStrategy {
 				} while (nextId != -1 && nextId != previousId);
 				// compute value of the component with id nextId and mark its outputs as tainted, if necessary
 				if (nextId != -1) {
-					nextId = computeValueAndPropagateChange(propNetStructure.getComponent(nextId), nextId+1, state);
+					nextId = computeValueAndPropagateChange(nextId, nextId+1, state);
 				}
 			}
 		}
 
 		public void propagateChanges(InternalBitSetState state) {
 			int nextId = state.computed.nextClearBit(0);
-			while (nextId < propNetStructure.getNbComponents()) {
-				nextId = computeValueAndPropagateChange(propNetStructure.getComponent(nextId), nextId+1, state);
+			while (nextId < nbComponents) {
+				nextId = computeValueAndPropagateChange(nextId, nextId+1, state);
 				nextId = state.computed.nextClearBit(nextId);
 			}
 		}
@@ -82,64 +98,69 @@ public class ForwardPropagationStrategy {
 	 * @return smallest ID of any component that has been tainted
 	 */
 	public int setComponentValue(StaticComponent c, InternalBitSetState state, boolean value) {
-		return setComponentValue(c, state, value, propNetStructure.getNbComponents());
+		return setComponentValue(c.id, state, value, nbComponents);
 	}
 
 	public int setComponentValue(StaticComponent c, InternalBitSetState state, boolean value, int nextComponentToCheck) {
-		if (value != state.get(c.id)) {
+		return setComponentValue(c.id, state, value, nextComponentToCheck);
+	}
+
+	private int setComponentValue(int id, InternalBitSetState state, boolean value, int nextComponentToCheck) {
+		if (value != state.get(id)) {
 			if (value) {
-				return setTrue(state, c, nextComponentToCheck);
+				return setTrue(state, id, nextComponentToCheck);
 			} else {
-				return setFalse(state, c, nextComponentToCheck);
+				return setFalse(state, id, nextComponentToCheck);
 			}
 		}
 		return nextComponentToCheck;
 	}
 
 	/**
-	 * sets component c in state to false
+	 * sets component id in state to false
 	 *
-	 * Assumes c was true before, also clears computed bits of all directly affected outputs of c.
-	 * Resets value and computed bits of cyclic outputs of c if necessary to ensure minimal models
+	 * Assumes the component was true before, also clears computed bits of all directly affected outputs of it.
+	 * Resets value and computed bits of cyclic outputs of the component if necessary to ensure minimal models
 	 * in cyclic propnets.
 	 * @param state
-	 * @param c
+	 * @param id
 	 */
-	private int setFalse(InternalBitSetState state, StaticComponent c, int nextComponentToCheck) {
-		state.clear(c.id);
-		for (int output : c.outputs) {
-			StaticComponent cout = propNetStructure.getComponent(output);
-			switch (cout.type) {
-			case PIPE:
-			case AND:
+	private int setFalse(InternalBitSetState state, int id, int nextComponentToCheck) {
+		state.clear(id);
+		for (int i = outputOffsets[id], end = outputOffsets[id + 1]; i < end; i++) {
+			int output = outputTargets[i];
+			switch (types[output]) {
+			case PropNetStructure.TYPE_PIPE:
+			case PropNetStructure.TYPE_AND:
 				if (state.get(output)) {
 					state.clearComputed(output);
 					nextComponentToCheck = Math.min(nextComponentToCheck, output);
 					// to deal with cyclic propnets
-					if (cout.isCyclic) {
-						nextComponentToCheck = setFalse(state, cout, nextComponentToCheck);
+					if (cyclicComponents.get(output)) {
+						nextComponentToCheck = setFalse(state, output, nextComponentToCheck);
 					}
 				}
 				break;
-			case OR:
+			case PropNetStructure.TYPE_OR:
 				if (state.get(output)) {
 					state.clearComputed(output);
 					nextComponentToCheck = Math.min(nextComponentToCheck, output);
 					// to deal with cyclic propnets
-					if (cout.isCyclic) {
+					if (cyclicComponents.get(output)) {
 						boolean outValue = false;
-						for (int inId : cout.inputs) {
-							if (!propNetStructure.getComponent(inId).isCyclic) {
+						for (int j = inputOffsets[output], inEnd = inputOffsets[output + 1]; j < inEnd; j++) {
+							int inId = inputSources[j];
+							if (!cyclicComponents.get(inId)) {
 								outValue = outValue || state.get(inId);
 							}
 						}
 						if (!outValue) {
-							nextComponentToCheck = setFalse(state, cout, nextComponentToCheck);
+							nextComponentToCheck = setFalse(state, output, nextComponentToCheck);
 						}
 					}
 				}
 				break;
-			case NOT:
+			case PropNetStructure.TYPE_NOT:
 				if (!state.get(output)) {
 					state.clearComputed(output);
 				}
@@ -153,31 +174,26 @@ public class ForwardPropagationStrategy {
 	}
 
 	/**
-	 * sets component c in state to true
+	 * sets component id in state to true
 	 *
-	 * assumes c was false before, also clears computed bits of all directly affected outputs of c
+	 * assumes the component was false before, also clears computed bits of all directly affected outputs of it
 	 * @param state
-	 * @param c
+	 * @param id
 	 */
-	private int setTrue(InternalBitSetState state, StaticComponent c, int nextComponentToCheck) {
-		state.set(c.id);
-		for (int output : c.outputs) {
-			StaticComponent cout = propNetStructure.getComponent(output);
-			switch (cout.type) {
-			case PIPE:
-			case AND:
-				if (!state.get(output)) {
-					state.clearComputed(output);
-					nextComponentToCheck = Math.min(nextComponentToCheck, output);
-				}
-				break;
-			case OR:
+	private int setTrue(InternalBitSetState state, int id, int nextComponentToCheck) {
+		state.set(id);
+		for (int i = outputOffsets[id], end = outputOffsets[id + 1]; i < end; i++) {
+			int output = outputTargets[i];
+			switch (types[output]) {
+			case PropNetStructure.TYPE_PIPE:
+			case PropNetStructure.TYPE_AND:
+			case PropNetStructure.TYPE_OR:
 				if (!state.get(output)) {
 					state.clearComputed(output);
 					nextComponentToCheck = Math.min(nextComponentToCheck, output);
 				}
 				break;
-			case NOT:
+			case PropNetStructure.TYPE_NOT:
 				if (state.get(output)) {
 					state.clearComputed(output);
 					nextComponentToCheck = Math.min(nextComponentToCheck, output);
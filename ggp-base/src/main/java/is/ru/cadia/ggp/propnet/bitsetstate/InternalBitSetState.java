@@ -11,6 +11,12 @@ public class InternalBitSetState extends BitSet implements InternalStateInterfac
 	 */
 	protected BitSet computed;
 
+	/**
+	 * Zobrist hash of the base propositions that are true in this state
+	 * (xor of the Zobrist keys of these base propositions), maintained by the PropNetBitSetStateMachine
+	 */
+	protected long zobristHash;
+
 	/**
 	 * New states should always be created by the PropnetStateMachine
 	 * to ensure that the state is consistent and the right computed bits are set.
@@ -52,6 +58,27 @@ public class InternalBitSetState extends BitSet implements InternalStateInterfac
 		return s;
 	}
 
+	/**
+	 * makes this state equal to s, like s.clone() but without allocating anything
+	 * @param s
+	 */
+	public void copyFrom(InternalBitSetState s) {
+		clear();
+		or(s);
+		computed.clear();
+		computed.or(s.computed);
+		zobristHash = s.zobristHash;
+	}
+
+	/**
+	 * @return a 64 bit hash of the base propositions that are true in this state
+	 *
+	 * Unlike hashCode(), this is not computed from the bits of the state, but kept up-to-date when base propositions change.
+	 */
+	public long getZobristHash() {
+		return zobristHash;
+	}
+
 	public void setComputed(int startId, int endId) {
 		computed.set(startId, endId);
 	}
@@ -4,12 +4,24 @@ import is.ru.cadia.ggp.propnet.PropNetMove;
 import is.ru.cadia.ggp.propnet.statemachine.PropNetStateMachine;
 import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
 import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
 import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
 
 import java.util.BitSet;
 
 public abstract class PropNetBitSetStateMachine extends PropNetStateMachine<InternalBitSetState> {
 
+	/**
+	 * Zobrist keys of the base propositions (indexed by their id)
+	 */
+	private long[] zobristKeys;
+
+	/**
+	 * the state that is reused for all playouts if differential playouts are enabled (see resetTo)
+	 */
+	private InternalBitSetState workState = null;
+	private boolean differentialPlayouts = false;
+
 	public PropNetBitSetStateMachine(PropNetStructureFactory factory) {
 		super(factory);
 	}
@@ -18,6 +30,91 @@ public abstract class PropNetBitSetStateMachine extends PropNetStateMachine<Inte
 		super(propNetStructure);
 	}
 
+	@Override
+	public void initialize(PropNetStructure propNetStructure) {
+		workState = null;
+		// the keys are needed before super.initialize computes the initial state
+		zobristKeys = new long[propNetStructure.getNbBasePropositions()];
+		for (int id = 0; id < zobristKeys.length; id++) {
+			zobristKeys[id] = getZobristKey(id);
+		}
+		super.initialize(propNetStructure);
+	}
+
+	/**
+	 * sets whether playout(start, ...) should use resetTo(start) instead of copying start
+	 *
+	 * This is faster if consecutive playouts start from similar states, e.g., nearby leaves of a search tree.
+	 */
+	public void setDifferentialPlayouts(boolean differentialPlayouts) {
+		this.differentialPlayouts = differentialPlayouts;
+	}
+
+	/**
+	 * makes the state that is owned by this state machine equal to start by changing only the base propositions
+	 * and inputs that differ between the two states (and propagating these changes)
+	 *
+	 * The returned state may be changed destructively, e.g. by getNextState(state, jointMove, false),
+	 * but it is changed again by the next call to resetTo. Thus, a state machine that is used this way
+	 * must not be shared between threads.
+	 * @param start the state to copy, remains unchanged
+	 * @return the state owned by this state machine, now equal to start
+	 */
+	public InternalBitSetState resetTo(InternalBitSetState start) {
+		if (workState == null) {
+			workState = start.clone();
+			return workState;
+		}
+		BaseProposition[] bases = propNetStructure.getBasePropositions();
+		for (int id = 0; id < bases.length; id++) {
+			boolean value = start.get(id);
+			if (workState.get(id) != value) {
+				changeBaseOrInputValue(bases[id], workState, value);
+			}
+		}
+		for (int id = inputComponentSet.nextSetBit(0); id != -1; id = inputComponentSet.nextSetBit(id+1)) {
+			boolean value = start.get(id);
+			if (workState.get(id) != value) {
+				changeBaseOrInputValue(propNetStructure.getComponent(id), workState, value);
+			}
+		}
+		// bits after the components are used by some state machines to remember what was computed for the old state
+		workState.computed.clear(propNetStructure.getNbComponents(), Math.max(propNetStructure.getNbComponents(), workState.computed.length()));
+		return workState;
+	}
+
+	@Override
+	public void copyState(InternalBitSetState source, InternalBitSetState target) {
+		target.copyFrom(source);
+	}
+
+	@Override
+	protected InternalBitSetState getPlayoutState(InternalBitSetState start) {
+		if (differentialPlayouts) {
+			return resetTo(start);
+		}
+		return super.getPlayoutState(start);
+	}
+
+	@Override
+	public long getZobristHash(InternalBitSetState state) {
+		return state.getZobristHash();
+	}
+
+	/**
+	 * updates the Zobrist hash of state, if c is a base proposition whose value changes to newValue
+	 *
+	 * Must be called by changeBaseOrInputValue before the value of c in state is changed.
+	 * @param c
+	 * @param state
+	 * @param newValue
+	 */
+	protected final void updateZobristHash(StaticComponent c, InternalBitSetState state, boolean newValue) {
+		if (c.id < zobristKeys.length && state.get(c.id) != newValue) {
+			state.zobristHash ^= zobristKeys[c.id];
+		}
+	}
+
     /**
      *  returns a state with:
      *  - the computed bits for all components that have fixed values
@@ -27,7 +124,7 @@ public abstract class PropNetBitSetStateMachine extends PropNetStateMachine<Inte
      */
 	@Override
 	protected InternalBitSetState makeBaseState() {
-		InternalBitSetState baseState = new InternalBitSetState();
+		InternalBitSetState baseState = createState();
 		baseState.computed.set(0, propNetStructure.getNbBasePropositions());
 		for (StaticComponent c : propNetStructure.getComponents()) {
 			switch (c.type) {
@@ -52,13 +149,22 @@ public abstract class PropNetBitSetStateMachine extends PropNetStateMachine<Inte
 		return baseState;
 	}
 
+	/**
+	 * @return a new state object with all bits cleared, subclasses may return subclasses of InternalBitSetState
+	 */
+	protected InternalBitSetState createState() {
+		return new InternalBitSetState();
+	}
+
 	protected BitSet getBaseStateComputed() {
 		return getAnEmptyState().computed;
 	}
 
 	@Override
 	protected void setInputs(InternalBitSetState state, PropNetMove[] jointMove) {
-		BitSet bitsToUnSet = (BitSet)inputComponentSet.clone();
+		BitSet bitsToUnSet = inputsToUnset;
+		bitsToUnSet.clear();
+		bitsToUnSet.or(inputComponentSet);
 		bitsToUnSet.and(state);
 		for (PropNetMove move : jointMove) {
 			int inputId = move.getInputComponent().id;
@@ -4,6 +4,7 @@ import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
 import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
 import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
 
+import java.util.BitSet;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Stopwatch;
@@ -21,6 +22,14 @@ import com.google.common.base.Stopwatch;
  */
 public class RecursiveForwardChangePropNetStateMachine extends PropNetBitSetStateMachine {
 
+	// the flat representation of the propnet structure, such that propagating values needs no
+	// StaticComponent objects (see PropNetStructure.getComponentTypes() and the like)
+	private byte[] types;
+	private int[] inputOffsets;
+	private int[] inputSources;
+	private int[] outputOffsets;
+	private int[] outputTargets;
+	private BitSet cyclicComponents;
 
 	public RecursiveForwardChangePropNetStateMachine(PropNetStructureFactory factory) {
 		super(factory);
@@ -30,6 +39,18 @@ public class RecursiveForwardChangePropNetStateMachine extends PropNetBitSetStat
 		super(propnetStructure);
 	}
 
+	@Override
+	public void initialize(PropNetStructure propNetStructure) {
+		// the arrays are needed before super.initialize computes the initial state
+		types = propNetStructure.getComponentTypes();
+		inputOffsets = propNetStructure.getInputOffsets();
+		inputSources = propNetStructure.getInputSources();
+		outputOffsets = propNetStructure.getOutputOffsets();
+		outputTargets = propNetStructure.getOutputTargets();
+		cyclicComponents = propNetStructure.getCyclicComponents();
+		super.initialize(propNetStructure);
+	}
+
 	@Override
 	protected InternalBitSetState makeBaseState() {
 		InternalBitSetState state = super.makeBaseState();
@@ -51,72 +72,71 @@ public class RecursiveForwardChangePropNetStateMachine extends PropNetBitSetStat
 	}
 
 	/**
-	 * sets the value of component c in state and propagates that change to all outputs of c
+	 * sets the value of component id in state and propagates that change to all outputs of the component
 	 *
-	 * assumes that the previous value of c was different from value
-	 * @param c
+	 * assumes that the previous value of the component was different from value
+	 * @param id
 	 * @param state
 	 * @param value
-	 * @return smallest ID of any component that has been tainted
 	 */
-	private void setComponentValue(StaticComponent c, InternalBitSetState state, boolean value) {
-		state.set(c.id, value);
-		for (int output : c.outputs) {
-			StaticComponent cout = propNetStructure.getComponent(output);
-			setComponentFromInput(cout, state, value);
+	private void setComponentValue(int id, InternalBitSetState state, boolean value) {
+		state.set(id, value);
+		for (int i = outputOffsets[id], end = outputOffsets[id + 1]; i < end; i++) {
+			setComponentFromInput(outputTargets[i], state, value);
 		}
 	}
 
-	private void setComponentFromInput(StaticComponent c, InternalBitSetState state, boolean newInputValue) {
-		boolean value = state.get(c.id);
-		switch (c.type) {
-		case PIPE:
-			if (newInputValue!=value) setComponentValue(c, state, newInputValue);
+	private void setComponentFromInput(int id, InternalBitSetState state, boolean newInputValue) {
+		boolean value = state.get(id);
+		switch (types[id]) {
+		case PropNetStructure.TYPE_PIPE:
+			if (newInputValue!=value) setComponentValue(id, state, newInputValue);
 			break;
-		case AND:
+		case PropNetStructure.TYPE_AND:
 			if (!value && newInputValue) {
 				// check with the remaining inputs if they are all true now
 				value = true;
-				for(int input:c.inputs) {
-					if (!state.get(input)) {
+				for (int i = inputOffsets[id], end = inputOffsets[id + 1]; i < end; i++) {
+					if (!state.get(inputSources[i])) {
 						value = false;
 						break;
 					}
 				}
 				if (value) {
-					setComponentValue(c, state, true);
+					setComponentValue(id, state, true);
 				}
 			} else if (value && !newInputValue) {
-				setComponentValue(c, state, false);
+				setComponentValue(id, state, false);
 			}
 			break;
-		case OR:
+		case PropNetStructure.TYPE_OR:
 			if (!value && newInputValue) {
-				setComponentValue(c, state, true);
+				setComponentValue(id, state, true);
 			} else if (value && !newInputValue) {
-				if (c.isCyclic) {
+				if (cyclicComponents.get(id)) {
 					// We first propagate the value within this cycle as if the cyclic inputs don't exist.
 					// This might leave some of the cyclic components inconsistent.
 					// (their value is false in the state, but they have a true input that is in the cycle).
 					// If we get to a component in the cycle whose value stays true, we need to still check
 					// whether any of the components outputs are inconsistent and change+propagate their value.
 					value = false;
-					for (int inId : c.inputs) {
-						if (!propNetStructure.getComponent(inId).isCyclic && state.get(inId)) {
+					for (int i = inputOffsets[id], end = inputOffsets[id + 1]; i < end; i++) {
+						int inId = inputSources[i];
+						if (!cyclicComponents.get(inId) && state.get(inId)) {
 							value = true;
 							break;
 						}
 					}
 					if (!value) {
-						setComponentValue(c, state, false);
+						setComponentValue(id, state, false);
 						// Now that we have propagated the value without the cyclic inputs
 						// in mind, we need to check again, if the value of this component
 						// should really be false. Maybe there is another reason for the whole
 						// cycle to be true.
-						if (!state.get(c.id)) {
-							for (int inId : c.inputs) {
-								if (state.get(inId)) {
-									setComponentValue(c, state, true);
+						if (!state.get(id)) {
+							for (int i = inputOffsets[id], end = inputOffsets[id + 1]; i < end; i++) {
+								if (state.get(inputSources[i])) {
+									setComponentValue(id, state, true);
 									break;
 								}
 							}
@@ -127,21 +147,21 @@ public class RecursiveForwardChangePropNetStateMachine extends PropNetBitSetStat
 				} else {
 					// check with the remaining inputs if they are all false now
 					value = false;
-					for(int input:c.inputs) {
-						if (state.get(input)) {
+					for (int i = inputOffsets[id], end = inputOffsets[id + 1]; i < end; i++) {
+						if (state.get(inputSources[i])) {
 							value = true;
 							break;
 						}
 					}
 					if (!value) {
-						setComponentValue(c, state, false);
+						setComponentValue(id, state, false);
 					}
 				}
 			}
 			break;
-		case NOT:
+		case PropNetStructure.TYPE_NOT:
 			if (value == newInputValue) {
-				setComponentValue(c, state, !newInputValue);
+				setComponentValue(id, state, !newInputValue);
 			}
 			break;
 		default:
@@ -172,7 +192,8 @@ public class RecursiveForwardChangePropNetStateMachine extends PropNetBitSetStat
 
 	@Override
 	protected void changeBaseOrInputValue(StaticComponent c, InternalBitSetState state, boolean newValue) {
-		setComponentValue(c, state, newValue);
+		updateZobristHash(c, state, newValue);
+		setComponentValue(c.id, state, newValue);
 	}
 
 }
@@ -0,0 +1,24 @@
+package is.ru.cadia.ggp.propnet.compiled;
+
+/**
+ * propagation code for one PropNetStructure, generated by PropNetCompiler
+ *
+ * The values of all components are stored as bits in a long[] (component with ID i is bit i%64 of word i/64).
+ */
+public interface CompiledPropNet {
+
+	/**
+	 * computes the values of all components from the values of the base, input and constant components
+	 * @param values
+	 */
+	public void propagateAll(long[] values);
+
+	/**
+	 * computes the values of all components that depend on input components
+	 *
+	 * Must only be used if the values of all other components are up-to-date.
+	 * @param values
+	 */
+	public void propagateInputs(long[] values);
+
+}
@@ -0,0 +1,83 @@
+package is.ru.cadia.ggp.propnet.compiled;
+
+import java.util.Arrays;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+
+/**
+ * state of a CompiledPropNetStateMachine: the values of all components as bits in a long[]
+ *
+ * Changes to base and input components are only propagated through the network when
+ * a value that depends on them is needed.
+ */
+public class CompiledPropNetState implements InternalStateInterface, Cloneable {
+
+	protected long[] values;
+
+	/**
+	 * true if some base component was changed since the last propagation
+	 */
+	protected boolean basesChanged;
+
+	/**
+	 * true if some input component was changed since the last propagation
+	 */
+	protected boolean inputsChanged;
+
+	/**
+	 * New states should always be created by the CompiledPropNetStateMachine
+	 * to ensure that the state is consistent.
+	 */
+	protected CompiledPropNetState(int nbComponents) {
+		values = new long[(nbComponents + 63) >>> 6];
+	}
+
+	@Override
+	public boolean get(int id) {
+		return (values[id >>> 6] & (1L << id)) != 0;
+	}
+
+	protected void set(int id, boolean value) {
+		if (value) {
+			values[id >>> 6] |= 1L << id;
+		} else {
+			values[id >>> 6] &= ~(1L << id);
+		}
+	}
+
+	@Override
+	public CompiledPropNetState clone() {
+		try {
+			CompiledPropNetState s = (CompiledPropNetState)super.clone();
+			s.values = values.clone();
+			return s;
+		} catch (CloneNotSupportedException e) {
+			throw new InternalError(e.toString());
+		}
+	}
+
+	/**
+	 * makes this state equal to s, like s.clone() but without allocating anything
+	 * @param s
+	 */
+	protected void copyFrom(CompiledPropNetState s) {
+		System.arraycopy(s.values, 0, values, 0, values.length);
+		basesChanged = s.basesChanged;
+		inputsChanged = s.inputsChanged;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof CompiledPropNetState))
+			return false;
+		return Arrays.equals(values, ((CompiledPropNetState)obj).values);
+	}
+
+}
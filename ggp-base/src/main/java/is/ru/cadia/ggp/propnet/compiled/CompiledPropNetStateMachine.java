@@ -0,0 +1,156 @@
+package is.ru.cadia.ggp.propnet.compiled;
+
+import is.ru.cadia.ggp.propnet.statemachine.PropNetStateMachine;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent.Type;
+import is.ru.cadia.ggp.utils.IOUtils;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javassist.CannotCompileException;
+
+/**
+ * state machine that uses code generated by PropNetCompiler for a PropNetStructure to compute
+ * the values of components
+ *
+ * Changes of base or input components are only recorded in the state. Once legal moves, goals,
+ * terminal or the next state are needed, either all components are recomputed (if some base changed)
+ * or only those depending on input components (if only inputs changed).
+ */
+public class CompiledPropNetStateMachine extends PropNetStateMachine<CompiledPropNetState> {
+
+	private CompiledPropNet compiledPropNet;
+
+	/**
+	 * creates a state machine that compiles the PropNetStructure made by the factory on initialization
+	 * @param factory
+	 */
+	public CompiledPropNetStateMachine(PropNetStructureFactory factory) {
+		super(factory);
+	}
+
+	/**
+	 * creates a state machine using code that was already compiled for propNetStructure
+	 * @param propNetStructure
+	 * @param compiledPropNet
+	 */
+	public CompiledPropNetStateMachine(PropNetStructure propNetStructure, CompiledPropNet compiledPropNet) {
+		super((PropNetStructureFactory)null);
+		this.compiledPropNet = compiledPropNet;
+		initialize(propNetStructure);
+	}
+
+	/**
+	 * compiles propNetStructure, unless that takes longer than until the deadline
+	 * @param propNetStructure
+	 * @param deadline
+	 * @return a CompiledPropNetStateMachine for propNetStructure or null, if compilation failed or was not finished before the deadline
+	 */
+	public static CompiledPropNetStateMachine create(final PropNetStructure propNetStructure, long deadline) {
+		final AtomicReference<CompiledPropNet> result = new AtomicReference<>();
+		boolean finished = false;
+		try {
+			finished = IOUtils.runWithDeadline(deadline, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						result.set(PropNetCompiler.compile(propNetStructure));
+					} catch (InterruptedException e) {
+						System.out.println("compiling propnet was interrupted");
+					} catch (CannotCompileException e) {
+						System.out.println("propnet can not be compiled: " + e.getMessage());
+					}
+				}
+			});
+			if (!finished) {
+				System.out.println("compiling propnet did not finish in time");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// the compiler thread is only interrupted, not joined, if it did not finish in time,
+		// so a result it sets afterwards is ignored
+		CompiledPropNet compiledPropNet = finished ? result.get() : null;
+		if (compiledPropNet == null) {
+			return null;
+		}
+		return new CompiledPropNetStateMachine(propNetStructure, compiledPropNet);
+	}
+
+	@Override
+	public void initialize(PropNetStructure propNetStructure) {
+		if (compiledPropNet == null) {
+			try {
+				compiledPropNet = PropNetCompiler.compile(propNetStructure);
+			} catch (InterruptedException | CannotCompileException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		super.initialize(propNetStructure);
+	}
+
+	@Override
+	protected CompiledPropNetState makeBaseState() {
+		CompiledPropNetState state = new CompiledPropNetState(propNetStructure.getNbComponents());
+		for (StaticComponent c : propNetStructure.getComponents()) {
+			if (c.type == Type.TRUE) {
+				state.set(c.id, true);
+			}
+		}
+		compiledPropNet.propagateAll(state.values);
+		return state;
+	}
+
+	/**
+	 * propagates changes of base and input components recorded in state
+	 * @param state
+	 */
+	private void propagate(CompiledPropNetState state) {
+		if (state.basesChanged) {
+			compiledPropNet.propagateAll(state.values);
+		} else if (state.inputsChanged) {
+			compiledPropNet.propagateInputs(state.values);
+		}
+		state.basesChanged = false;
+		state.inputsChanged = false;
+	}
+
+	@Override
+	protected void computeGoal(CompiledPropNetState state, int roleId) {
+		propagate(state);
+	}
+
+	@Override
+	public boolean isTerminal(CompiledPropNetState state) {
+		propagate(state);
+		return state.get(propNetStructure.getTerminalProposition().id);
+	}
+
+	@Override
+	protected void computeLegals(CompiledPropNetState state, int roleId) {
+		propagate(state);
+	}
+
+	@Override
+	protected void computeTransitions(CompiledPropNetState state) {
+		propagate(state);
+	}
+
+	@Override
+	public void copyState(CompiledPropNetState source, CompiledPropNetState target) {
+		target.copyFrom(source);
+	}
+
+	@Override
+	protected void changeBaseOrInputValue(StaticComponent c, CompiledPropNetState state, boolean newValue) {
+		state.set(c.id, newValue);
+		if (c.type == Type.INPUT) {
+			state.inputsChanged = true;
+		} else {
+			state.basesChanged = true;
+		}
+	}
+
+}
@@ -0,0 +1,339 @@
+package is.ru.cadia.ggp.propnet.compiled;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggp.base.util.concurrency.ConcurrencyUtils;
+
+import com.google.common.base.Stopwatch;
+
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent.Type;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.ClassFile;
+
+/**
+ * generates a CompiledPropNet class for a PropNetStructure with javassist
+ *
+ * Each component becomes a few lines of straight-line code computing its value from the values of its
+ * inputs (in topological order, so a single pass over all components is enough). Components that are
+ * part of cycles are evaluated in a loop until their values do not change anymore, starting from false.
+ * This gives the same (minimal) model as the other state machines, as long as there is no negation in a cycle.
+ *
+ * The compiler relies on the numbering of components in PropNetStructure: component IDs must be a topological
+ * order of the propnet (inputs of a component have smaller IDs) except within cycles, and the components of each
+ * strongly connected component must have consecutive IDs and be marked as isCyclic. Structures made by the
+ * factories (also after renumbering for locality) fulfill this, compile() refuses structures that don't.
+ *
+ * The code is split into methods of limited size, because the JIT compiler does not compile huge methods
+ * (more than 8000 bytes of bytecode).
+ */
+public class PropNetCompiler {
+
+	/**
+	 * estimated maximal number of bytes of bytecode per generated method
+	 */
+	private static final int MAX_METHOD_SIZE = 3000;
+
+	/**
+	 * maximal number of calls in one of the methods that call the generated chunks
+	 */
+	private static final int MAX_CALLS_PER_METHOD = 256;
+
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	private final PropNetStructure structure;
+	private final CtClass ctClass;
+	private int methodCounter = 0;
+
+	private PropNetCompiler(PropNetStructure structure, CtClass ctClass) {
+		this.structure = structure;
+		this.ctClass = ctClass;
+	}
+
+	/**
+	 * @param structure
+	 * @return a new instance of a class that was generated for the given structure
+	 * @throws InterruptedException if the current thread gets interrupted before compilation is finished
+	 * @throws CannotCompileException if the propnet cannot be compiled (e.g., because of a negation in a cycle)
+	 */
+	public static CompiledPropNet compile(PropNetStructure structure) throws InterruptedException, CannotCompileException {
+		Stopwatch stopWatch = new Stopwatch().start();
+		ClassPool pool = new ClassPool(true);
+		pool.insertClassPath(new ClassClassPath(CompiledPropNet.class));
+		String className = CompiledPropNet.class.getPackage().getName() + ".GeneratedPropNet" + classCounter.incrementAndGet();
+		CtClass ctClass = pool.makeClass(className);
+		try {
+			ctClass.addInterface(pool.get(CompiledPropNet.class.getName()));
+		} catch (NotFoundException e) {
+			throw new CannotCompileException(e);
+		}
+		// class files of version 50 or higher need stack map frames, which javassist does not always get right
+		ctClass.getClassFile().setMajorVersion(ClassFile.JAVA_5);
+		ctClass.addConstructor(CtNewConstructor.defaultConstructor(ctClass));
+
+		PropNetCompiler compiler = new PropNetCompiler(structure, ctClass);
+		List<int[]> units = compiler.getUnits();
+		BitSet inputCone = compiler.getInputCone();
+		List<int[]> inputUnits = new ArrayList<>();
+		for (int[] unit : units) {
+			for (int id : unit) {
+				if (inputCone.get(id)) {
+					inputUnits.add(unit);
+					break;
+				}
+			}
+		}
+		compiler.addEntryMethod("propagateAll", units);
+		compiler.addEntryMethod("propagateInputs", inputUnits);
+
+		byte[] bytecode;
+		try {
+			bytecode = ctClass.toBytecode();
+		} catch (Exception e) {
+			throw new CannotCompileException(e);
+		}
+		ctClass.detach();
+		CompiledPropNet compiledPropNet;
+		try {
+			Class<?> cls = new GeneratedClassLoader(CompiledPropNet.class.getClassLoader()).define(className, bytecode);
+			compiledPropNet = (CompiledPropNet)cls.newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			throw new CannotCompileException(e);
+		}
+		System.out.println("compiling propnet (" + compiler.methodCounter + " methods, " + bytecode.length + " bytes) took: " + stopWatch.elapsed(TimeUnit.MILLISECONDS)/1000.0 + "s");
+		return compiledPropNet;
+	}
+
+	/**
+	 * @return the components whose values need to be computed in topological order,
+	 * grouped into units that are evaluated together (single components or runs of cyclic components)
+	 * @throws CannotCompileException
+	 */
+	private List<int[]> getUnits() throws CannotCompileException {
+		List<int[]> units = new ArrayList<>();
+		StaticComponent[] components = structure.getComponents();
+		int id = 0;
+		while (id < components.length) {
+			StaticComponent c = components[id];
+			if (!needsComputation(c)) {
+				id++;
+			} else if (!c.isCyclic) {
+				checkInputsBefore(c, id);
+				units.add(new int[]{id});
+				id++;
+			} else {
+				// Components of a strongly connected component have consecutive IDs. Several of them
+				// next to each other can be evaluated together, because (without negation) the minimal
+				// model of the union is the same as evaluating them one after the other.
+				int end = id;
+				while (end < components.length && components[end].isCyclic && needsComputation(components[end])) {
+					if (components[end].type == Type.NOT) {
+						throw new CannotCompileException("negation in a cycle: " + components[end]);
+					}
+					end++;
+				}
+				int[] unit = new int[end - id];
+				for (int i = 0; i < unit.length; i++) {
+					unit[i] = id + i;
+					checkInputsBefore(components[id + i], end);
+				}
+				units.add(unit);
+				id = end;
+			}
+		}
+		return units;
+	}
+
+	/**
+	 * @throws CannotCompileException if some input of c does not have an ID smaller than end
+	 */
+	private static void checkInputsBefore(StaticComponent c, int end) throws CannotCompileException {
+		for (int input : c.inputs) {
+			if (input >= end) {
+				throw new CannotCompileException("component IDs are not in topological order: input " + input + " of " + c);
+			}
+		}
+	}
+
+	private static boolean needsComputation(StaticComponent c) {
+		switch (c.type) {
+		case AND:
+		case OR:
+		case NOT:
+		case PIPE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return all components whose value depends on some input component
+	 */
+	private BitSet getInputCone() {
+		BitSet cone = new BitSet(structure.getNbComponents());
+		List<Integer> queue = new ArrayList<>();
+		for (StaticComponent c : structure.getComponents()) {
+			if (c.type == Type.INPUT) {
+				cone.set(c.id);
+				queue.add(c.id);
+			}
+		}
+		while (!queue.isEmpty()) {
+			StaticComponent c = structure.getComponent(queue.remove(queue.size() - 1));
+			for (int output : c.outputs) {
+				if (!cone.get(output) && needsComputation(structure.getComponent(output))) {
+					cone.set(output);
+					queue.add(output);
+				}
+			}
+		}
+		return cone;
+	}
+
+	/**
+	 * adds the public method with the given name that evaluates all the given units in order
+	 */
+	private void addEntryMethod(String name, List<int[]> units) throws InterruptedException, CannotCompileException {
+		List<String> chunks = new ArrayList<>();
+		StringBuilder body = new StringBuilder();
+		int size = 0;
+		for (int[] unit : units) {
+			ConcurrencyUtils.checkForInterruption();
+			if (unit.length > 1 || structure.getComponent(unit[0]).isCyclic) {
+				if (size > 0) {
+					chunks.add(addMethod(body));
+					body.setLength(0);
+					size = 0;
+				}
+				chunks.add(addCycleMethod(unit));
+			} else {
+				StaticComponent c = structure.getComponent(unit[0]);
+				if (size > 0 && size + estimateSize(c) > MAX_METHOD_SIZE) {
+					chunks.add(addMethod(body));
+					body.setLength(0);
+					size = 0;
+				}
+				appendComputation(body, c);
+				body.append("v[").append(word(c.id)).append("] = v[").append(word(c.id)).append("] & ").append(~bit(c.id))
+					.append("L | (t & 1L) << ").append(shift(c.id)).append(";\n");
+				size += estimateSize(c);
+			}
+		}
+		if (size > 0) {
+			chunks.add(addMethod(body));
+		}
+		addCallingMethod("public", name, chunks);
+	}
+
+	/**
+	 * adds methods calling all the given methods in order (in a tree of methods, if there are too many calls for one)
+	 */
+	private void addCallingMethod(String modifier, String name, List<String> methods) throws CannotCompileException {
+		while (methods.size() > MAX_CALLS_PER_METHOD) {
+			List<String> callers = new ArrayList<>();
+			for (int i = 0; i < methods.size(); i += MAX_CALLS_PER_METHOD) {
+				StringBuilder body = new StringBuilder();
+				for (String method : methods.subList(i, Math.min(methods.size(), i + MAX_CALLS_PER_METHOD))) {
+					body.append(method).append("(v);\n");
+				}
+				String caller = "m" + (methodCounter++);
+				make("private void " + caller + "(long[] v) {\n" + body + "}");
+				callers.add(caller);
+			}
+			methods = callers;
+		}
+		StringBuilder body = new StringBuilder();
+		for (String method : methods) {
+			body.append(method).append("(v);\n");
+		}
+		make(modifier + " void " + name + "(long[] v) {\n" + body + "}");
+	}
+
+	private String addMethod(StringBuilder body) throws CannotCompileException {
+		String name = "m" + (methodCounter++);
+		make("private void " + name + "(long[] v) {\nlong t;\n" + body + "}");
+		return name;
+	}
+
+	/**
+	 * adds a method computing the minimal model of the given cyclic components
+	 */
+	private String addCycleMethod(int[] unit) throws CannotCompileException {
+		StringBuilder body = new StringBuilder();
+		body.append("long t;\nlong o;\nboolean changed;\n");
+		for (int id : unit) {
+			body.append("v[").append(word(id)).append("] &= ").append(~bit(id)).append("L;\n");
+		}
+		body.append("do {\nchanged = false;\n");
+		for (int id : unit) {
+			appendComputation(body, structure.getComponent(id));
+			body.append("o = v[").append(word(id)).append("];\n");
+			body.append("v[").append(word(id)).append("] = o & ").append(~bit(id))
+				.append("L | (t & 1L) << ").append(shift(id)).append(";\n");
+			body.append("if (o != v[").append(word(id)).append("]) changed = true;\n");
+		}
+		body.append("} while (changed);\n");
+		String name = "c" + (methodCounter++);
+		make("private void " + name + "(long[] v) {\n" + body + "}");
+		return name;
+	}
+
+	/**
+	 * appends code that computes the value of c into the lowest bit of t
+	 */
+	private void appendComputation(StringBuilder body, StaticComponent c) {
+		int[] inputs = c.inputs;
+		if (inputs.length == 0) {
+			body.append(c.type == Type.AND ? "t = 1L;\n" : "t = 0L;\n");
+			return;
+		}
+		body.append(c.type == Type.NOT ? "t = ~v[" : "t = v[").append(word(inputs[0])).append("] >>> ").append(shift(inputs[0])).append(";\n");
+		String op = (c.type == Type.OR ? "t |= v[" : "t &= v[");
+		for (int i = 1; i < inputs.length; i++) {
+			body.append(op).append(word(inputs[i])).append("] >>> ").append(shift(inputs[i])).append(";\n");
+		}
+	}
+
+	private static int estimateSize(StaticComponent c) {
+		return 24 + 12 * c.inputs.length;
+	}
+
+	private static int word(int id) {
+		return id >>> 6;
+	}
+
+	private static int shift(int id) {
+		return id & 63;
+	}
+
+	private static long bit(int id) {
+		return 1L << id;
+	}
+
+	private void make(String source) throws CannotCompileException {
+		ctClass.addMethod(CtNewMethod.make(source, ctClass));
+	}
+
+	private static class GeneratedClassLoader extends ClassLoader {
+		public GeneratedClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		public Class<?> define(String name, byte[] bytecode) {
+			return defineClass(name, bytecode, 0, bytecode.length);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package is.ru.cadia.ggp.propnet.heuristic;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+
+/**
+ * estimates the goal value of a role in a non-terminal state, e.g., at the depth limit of a search
+ *
+ * Evaluators are called in the inner loop of searches, so they must not allocate any memory.
+ * They are not thread-safe, each thread needs its own evaluator.
+ */
+public interface Evaluator<StateType extends InternalStateInterface> {
+
+	/**
+	 * the range of evaluations, 0 and 100 are left for terminal states, so an evaluation never looks like
+	 * a proven loss or win
+	 */
+	public static final int MIN_VALUE = 1;
+	public static final int MAX_VALUE = 99;
+
+	/**
+	 * @return the estimated goal value of role roleId in state (in MIN_VALUE..MAX_VALUE)
+	 */
+	public int evaluate(StateType state, int roleId);
+
+}
@@ -0,0 +1,27 @@
+package is.ru.cadia.ggp.propnet.heuristic;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+
+/**
+ * a feature of states for a LinearEvaluator
+ *
+ * Like evaluators, features must not allocate memory when they are computed.
+ */
+public abstract class Feature<StateType extends InternalStateInterface> {
+
+	/**
+	 * @return the value of the feature in state from the point of view of role roleId (in [0,1])
+	 */
+	public abstract double getValue(StateType state, int roleId);
+
+	/**
+	 * @param renaming renaming of the symbols of the game (e.g., to the canonical ones, see CanonicalRules)
+	 * @return a name of the feature that identifies it in the weights file
+	 */
+	public abstract String getName(Map<GdlConstant, GdlConstant> renaming);
+
+}
@@ -0,0 +1,127 @@
+package is.ru.cadia.ggp.propnet.heuristic;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+
+/**
+ * how close the state is to the goals of the role, weighted by the goal values
+ *
+ * Each goal proposition is read as a disjunction (OR) of conjunctions (AND) of literals. Literals that are
+ * (negated) base propositions can be checked directly in the state, other ones are ignored. The proximity
+ * of a conjunction is the fraction of its literals that are true (0.5 if there are none that can be checked)
+ * and the proximity of a goal is the maximal proximity of its conjunctions. The value of the feature is
+ * the average of the goal values (divided by 100) weighted by their proximity.
+ */
+public class GoalProximityFeature<StateType extends InternalStateInterface> extends Feature<StateType> {
+
+	// literals[roleId][goal][conjunction] = ids of base propositions, -id-1 for negated ones
+	private final int[][][][] literals;
+	private final double[][] goalValues;
+
+	public GoalProximityFeature(PropNetStructure structure) {
+		int nbRoles = structure.getRoles().length;
+		literals = new int[nbRoles][][][];
+		goalValues = new double[nbRoles][];
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			StaticComponent[] goals = structure.getGoalPropositions(roleId);
+			int[] values = structure.getGoalValues(roleId);
+			literals[roleId] = new int[goals.length][][];
+			goalValues[roleId] = new double[goals.length];
+			for (int i = 0; i < goals.length; i++) {
+				literals[roleId][i] = getConjunctions(structure, goals[i]);
+				goalValues[roleId][i] = values[i] / 100.0;
+			}
+		}
+	}
+
+	@Override
+	public double getValue(StateType state, int roleId) {
+		int[][][] goals = literals[roleId];
+		double sum = 0;
+		double weightedSum = 0;
+		for (int i = 0; i < goals.length; i++) {
+			double proximity = 0;
+			for (int[] conjunction : goals[i]) {
+				proximity = Math.max(proximity, getProximity(state, conjunction));
+			}
+			sum += proximity;
+			weightedSum += proximity * goalValues[roleId][i];
+		}
+		return (sum == 0 ? 0.5 : weightedSum / sum);
+	}
+
+	private double getProximity(StateType state, int[] conjunction) {
+		if (conjunction.length == 0) {
+			return 0.5;
+		}
+		int nbTrue = 0;
+		for (int literal : conjunction) {
+			if (literal >= 0 ? state.get(literal) : !state.get(-literal - 1)) {
+				nbTrue++;
+			}
+		}
+		return (double)nbTrue / conjunction.length;
+	}
+
+	@Override
+	public String getName(Map<GdlConstant, GdlConstant> renaming) {
+		return "goal";
+	}
+
+	private static int[][] getConjunctions(PropNetStructure structure, StaticComponent goal) {
+		StaticComponent c = skipPipes(structure, goal);
+		List<int[]> conjunctions = new ArrayList<>();
+		if (c.type == Type.OR) {
+			for (int input : c.inputs) {
+				conjunctions.add(getLiterals(structure, structure.getComponent(input)));
+			}
+		} else if (c.type != Type.FALSE) {
+			conjunctions.add(getLiterals(structure, c));
+		}
+		return conjunctions.toArray(new int[conjunctions.size()][]);
+	}
+
+	private static int[] getLiterals(PropNetStructure structure, StaticComponent conjunction) {
+		StaticComponent c = skipPipes(structure, conjunction);
+		List<Integer> literals = new ArrayList<>();
+		if (c.type == Type.AND) {
+			for (int input : c.inputs) {
+				addLiteral(structure, structure.getComponent(input), literals);
+			}
+		} else {
+			addLiteral(structure, c, literals);
+		}
+		int[] result = new int[literals.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = literals.get(i);
+		}
+		return result;
+	}
+
+	private static void addLiteral(PropNetStructure structure, StaticComponent literal, List<Integer> literals) {
+		StaticComponent c = skipPipes(structure, literal);
+		if (c.type == Type.BASE) {
+			literals.add(c.id);
+		} else if (c.type == Type.NOT) {
+			StaticComponent input = skipPipes(structure, structure.getComponent(c.inputs[0]));
+			if (input.type == Type.BASE) {
+				literals.add(-input.id - 1);
+			}
+		}
+	}
+
+	private static StaticComponent skipPipes(PropNetStructure structure, StaticComponent c) {
+		while (c.type == Type.PIPE) {
+			c = structure.getComponent(c.inputs[0]);
+		}
+		return c;
+	}
+}
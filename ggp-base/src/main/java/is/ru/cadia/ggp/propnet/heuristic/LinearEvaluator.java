@@ -0,0 +1,181 @@
+package is.ru.cadia.ggp.propnet.heuristic;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+import is.ru.cadia.ggp.propnet.statemachine.PropNetStateMachine;
+import is.ru.cadia.ggp.propnet.structure.CanonicalRules;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+
+/**
+ * evaluates states by a weighted sum of features (mobility, goal proximity and piece counts)
+ * with separate weights for each role
+ *
+ * Without tuned weights the evaluation is the goal proximity alone. Weights are tuned offline by
+ * self-play (see EvaluatorTuner) and stored in the PropNetCache, with the features identified by their
+ * names in the canonical symbols of the game, so the weights also work for scrambled versions of it.
+ * Evaluations are kept within [MIN_VALUE, MAX_VALUE] (see Evaluator).
+ */
+public class LinearEvaluator<StateType extends InternalStateInterface> implements Evaluator<StateType> {
+
+	private final List<Feature<StateType>> features;
+	private final int nbRoles;
+	// weights[roleId][feature]
+	private final double[][] weights;
+	private final double[] bias;
+
+	/**
+	 * creates an evaluator with all features of the game and the default weights
+	 */
+	public LinearEvaluator(PropNetStateMachine<StateType> machine) {
+		features = new ArrayList<>();
+		features.add(new GoalProximityFeature<StateType>(machine.getPropNetStructure()));
+		features.add(new MobilityFeature<StateType>(machine));
+		features.addAll(PieceCountFeature.<StateType>createAll(machine.getPropNetStructure()));
+		nbRoles = machine.getRoles().size();
+		weights = new double[nbRoles][features.size()];
+		bias = new double[nbRoles];
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			// the goal proximity feature
+			weights[roleId][0] = 100;
+		}
+	}
+
+	/**
+	 * creates an evaluator for the given machine with the features and weights of other
+	 */
+	private LinearEvaluator(PropNetStateMachine<StateType> machine, LinearEvaluator<StateType> other) {
+		this(machine);
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			System.arraycopy(other.weights[roleId], 0, weights[roleId], 0, features.size());
+			bias[roleId] = other.bias[roleId];
+		}
+	}
+
+	/**
+	 * @return an evaluator with the default weights or the tuned ones if the cache has weights for the game
+	 */
+	public static <StateType extends InternalStateInterface> LinearEvaluator<StateType> create(
+			PropNetStateMachine<StateType> machine, List<Gdl> description, PropNetCache cache) {
+		LinearEvaluator<StateType> evaluator = new LinearEvaluator<StateType>(machine);
+		CanonicalRules canonicalRules = CanonicalRules.compute(description);
+		File file = cache.getEvaluatorWeightsFile(canonicalRules);
+		if (evaluator.loadWeights(file, canonicalRules.getToCanonical())) {
+			// remember that this file was used recently, so the cache keeps it
+			file.setLastModified(System.currentTimeMillis());
+			System.out.println("evaluator weights loaded from '" + file + "'");
+		}
+		return evaluator;
+	}
+
+	/**
+	 * @return a copy of this evaluator (with the same weights) for another state machine of the same game,
+	 *   e.g., for another thread
+	 */
+	public LinearEvaluator<StateType> copyFor(PropNetStateMachine<StateType> machine) {
+		return new LinearEvaluator<StateType>(machine, this);
+	}
+
+	@Override
+	public int evaluate(StateType state, int roleId) {
+		double[] w = weights[roleId];
+		double value = bias[roleId];
+		for (int i = 0; i < w.length; i++) {
+			if (w[i] != 0) {
+				value += w[i] * features.get(i).getValue(state, roleId);
+			}
+		}
+		return (int)Math.max(MIN_VALUE, Math.min(MAX_VALUE, Math.round(value)));
+	}
+
+	public int getNbFeatures() {
+		return features.size();
+	}
+
+	public String getFeatureName(int i, Map<GdlConstant, GdlConstant> renaming) {
+		return features.get(i).getName(renaming);
+	}
+
+	/**
+	 * stores the values of all features in state from the point of view of role roleId in values
+	 */
+	public void getFeatureValues(StateType state, int roleId, double[] values) {
+		for (int i = 0; i < features.size(); i++) {
+			values[i] = features.get(i).getValue(state, roleId);
+		}
+	}
+
+	public double getBias(int roleId) {
+		return bias[roleId];
+	}
+
+	public double getWeight(int roleId, int i) {
+		return weights[roleId][i];
+	}
+
+	public void setWeights(int roleId, double bias, double[] weights) {
+		this.bias[roleId] = bias;
+		System.arraycopy(weights, 0, this.weights[roleId], 0, features.size());
+	}
+
+	/**
+	 * reads weights from a file written by saveWeights(), features without a weight in the file get weight 0
+	 * @param renaming the renaming of symbols that was used for saving the weights
+	 * @return false if the file does not exist or can't be read (the weights are unchanged then)
+	 */
+	public boolean loadWeights(File file, Map<GdlConstant, GdlConstant> renaming) {
+		if (!file.exists()) {
+			return false;
+		}
+		Properties properties = new Properties();
+		double[][] newWeights = new double[nbRoles][features.size()];
+		double[] newBias = new double[nbRoles];
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				newBias[roleId] = Double.parseDouble(properties.getProperty("role" + roleId + ".bias", "0"));
+				for (int i = 0; i < features.size(); i++) {
+					newWeights[roleId][i] = Double.parseDouble(properties.getProperty("role" + roleId + "." + getFeatureName(i, renaming), "0"));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			System.out.println("could not read evaluator weights from '" + file + "': " + e);
+			return false;
+		}
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			setWeights(roleId, newBias[roleId], newWeights[roleId]);
+		}
+		return true;
+	}
+
+	/**
+	 * @param renaming renaming of the symbols in the feature names (e.g., to the canonical ones)
+	 */
+	public void saveWeights(File file, Map<GdlConstant, GdlConstant> renaming) throws IOException {
+		Properties properties = new Properties();
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			properties.setProperty("role" + roleId + ".bias", Double.toString(bias[roleId]));
+			for (int i = 0; i < features.size(); i++) {
+				if (weights[roleId][i] != 0) {
+					properties.setProperty("role" + roleId + "." + getFeatureName(i, renaming), Double.toString(weights[roleId][i]));
+				}
+			}
+		}
+		file.getParentFile().mkdirs();
+		try (OutputStream out = new FileOutputStream(file)) {
+			properties.store(out, "evaluator weights");
+		}
+	}
+}
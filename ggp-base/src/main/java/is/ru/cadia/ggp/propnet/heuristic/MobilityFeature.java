@@ -0,0 +1,53 @@
+package is.ru.cadia.ggp.propnet.heuristic;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+import is.ru.cadia.ggp.propnet.statemachine.PropNetStateMachine;
+
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+
+/**
+ * the number of legal moves of the role relative to the average number of legal moves of the other roles:
+ * ours / (ours + average of the others)
+ */
+public class MobilityFeature<StateType extends InternalStateInterface> extends Feature<StateType> {
+
+	private final PropNetStateMachine<StateType> machine;
+	private final int nbRoles;
+	private final int[] ordinals;
+
+	public MobilityFeature(PropNetStateMachine<StateType> machine) {
+		this.machine = machine;
+		nbRoles = machine.getRoles().size();
+		int maxMoves = 0;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			maxMoves = Math.max(maxMoves, machine.getPropNetStructure().getPossibleMoves(roleId).length);
+		}
+		ordinals = new int[maxMoves];
+	}
+
+	@Override
+	public double getValue(StateType state, int roleId) {
+		if (nbRoles == 1) {
+			return 0.5;
+		}
+		double ours = 0;
+		double others = 0;
+		for (int r = 0; r < nbRoles; r++) {
+			int nbLegals = machine.getLegalMoveOrdinals(state, r, ordinals);
+			if (r == roleId) {
+				ours = nbLegals;
+			} else {
+				others += nbLegals;
+			}
+		}
+		others /= nbRoles - 1;
+		return (ours + others == 0 ? 0.5 : ours / (ours + others));
+	}
+
+	@Override
+	public String getName(Map<GdlConstant, GdlConstant> renaming) {
+		return "mobility";
+	}
+}
@@ -0,0 +1,112 @@
+package is.ru.cadia.ggp.propnet.heuristic;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+
+/**
+ * the fraction of the base propositions of a group that are true, where a group consists of the base
+ * propositions true(F(..., P)) with the same name F, arity and constant P as last argument,
+ * e.g., the number of white pieces on a board (cell ?x ?y white)
+ */
+public class PieceCountFeature<StateType extends InternalStateInterface> extends Feature<StateType> {
+
+	// a form is only used for piece counts if its last argument takes at most that many values
+	private static final int MAX_PIECE_TYPES = 8;
+
+	private final GdlConstant form;
+	private final int arity;
+	private final GdlConstant piece;
+	private final int[] bases;
+
+	public PieceCountFeature(GdlConstant form, int arity, GdlConstant piece, int[] bases) {
+		this.form = form;
+		this.arity = arity;
+		this.piece = piece;
+		this.bases = bases;
+	}
+
+	@Override
+	public double getValue(StateType state, int roleId) {
+		int count = 0;
+		for (int id : bases) {
+			if (state.get(id)) {
+				count++;
+			}
+		}
+		return (double)count / bases.length;
+	}
+
+	@Override
+	public String getName(Map<GdlConstant, GdlConstant> renaming) {
+		return "pieces." + rename(form, renaming) + "/" + arity + "." + rename(piece, renaming);
+	}
+
+	private static GdlConstant rename(GdlConstant c, Map<GdlConstant, GdlConstant> renaming) {
+		GdlConstant renamed = (renaming == null ? null : renaming.get(c));
+		return (renamed == null ? c : renamed);
+	}
+
+	/**
+	 * @return piece count features for all groups of at least two base propositions of forms with arity >= 2
+	 *   whose last argument takes at most MAX_PIECE_TYPES values
+	 */
+	public static <StateType extends InternalStateInterface> List<PieceCountFeature<StateType>> createAll(PropNetStructure structure) {
+		// form -> piece -> base propositions
+		Map<String, Map<GdlConstant, List<Integer>>> groups = new LinkedHashMap<>();
+		Map<String, GdlConstant> formNames = new LinkedHashMap<>();
+		Map<String, Integer> arities = new LinkedHashMap<>();
+		for (BaseProposition p : structure.getBasePropositions()) {
+			for (GdlSentence sentence : p.sentences) {
+				// sentence is true(X)
+				GdlSentence fluent = sentence.get(0).toSentence();
+				if (fluent.arity() < 2) {
+					continue;
+				}
+				GdlTerm last = fluent.get(fluent.arity() - 1);
+				if (!(last instanceof GdlConstant)) {
+					continue;
+				}
+				String key = fluent.getName() + "/" + fluent.arity();
+				formNames.put(key, fluent.getName());
+				arities.put(key, fluent.arity());
+				Map<GdlConstant, List<Integer>> pieces = groups.get(key);
+				if (pieces == null) {
+					pieces = new LinkedHashMap<>();
+					groups.put(key, pieces);
+				}
+				List<Integer> bases = pieces.get(last);
+				if (bases == null) {
+					bases = new ArrayList<>();
+					pieces.put((GdlConstant)last, bases);
+				}
+				bases.add(p.id);
+			}
+		}
+		List<PieceCountFeature<StateType>> features = new ArrayList<>();
+		for (Map.Entry<String, Map<GdlConstant, List<Integer>>> entry : groups.entrySet()) {
+			if (entry.getValue().size() > MAX_PIECE_TYPES) {
+				continue;
+			}
+			for (Map.Entry<GdlConstant, List<Integer>> group : entry.getValue().entrySet()) {
+				if (group.getValue().size() >= 2) {
+					int[] bases = new int[group.getValue().size()];
+					for (int i = 0; i < bases.length; i++) {
+						bases[i] = group.getValue().get(i);
+					}
+					features.add(new PieceCountFeature<StateType>(formNames.get(entry.getKey()), arities.get(entry.getKey()), group.getKey(), bases));
+				}
+			}
+		}
+		return features;
+	}
+}
@@ -18,9 +18,11 @@ import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import is.ru.cadia.ggp.propnet.CompactState;
 import is.ru.cadia.ggp.propnet.InternalStateInterface;
 import is.ru.cadia.ggp.propnet.PropNetMove;
 import is.ru.cadia.ggp.propnet.PropNetState;
+import is.ru.cadia.ggp.propnet.structure.LatchAnalysis;
 import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
 import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
 import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
@@ -57,6 +59,19 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 
 	private Random random = new Random();
 
+	/**
+	 * buffers for getNextState and playout, so that they don't need to allocate anything
+	 */
+	private boolean[] newBaseValues;
+	protected BitSet inputsToUnset;
+	private PropNetMove[] playoutJointMove;
+
+	/**
+	 * if true, playouts stop as soon as the goals are decided by latches (see setEarlyPlayoutCutoff)
+	 */
+	private boolean earlyPlayoutCutoff = false;
+	private LatchAnalysis.GoalChecker goalChecker = null;
+
 	private static <X> void crossProduct(List<List<X>> listOfLists, List<X[]> crossProduct,	ArrayList<X> partial, X[] pattern) {
 	    if (partial.size() == listOfLists.size()) {
 	        crossProduct.add(partial.toArray(pattern));
@@ -92,6 +107,14 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 			}
 		}
 
+		newBaseValues = new boolean[propNetStructure.getNbBasePropositions()];
+		inputsToUnset = new BitSet();
+		playoutJointMove = new PropNetMove[nbRoles];
+		goalChecker = null;
+		if (earlyPlayoutCutoff) {
+			makeGoalChecker();
+		}
+
 	    baseState = makeBaseState();
 	    initialState = makeInitialState();
 		System.out.println("initial state: " + internalStateToMachineState(initialState));
@@ -122,7 +145,7 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 	public final void initialize(List<Gdl> description) {
 	    try {
 	    	if (factory != null) {
-		    	initialize(factory.create(description));
+		    	initialize(factory.createOrLoad(description));
 		    	factory.cleanup();
 		    } else {
 		    	throw new RuntimeException("not possible to initialize this PropNetStateMachine from game rules without a factory for a PropNetStructure");
@@ -165,7 +188,7 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 	 * @return the internal propnet state for the given MachineState
 	 */
 	@SuppressWarnings("unchecked")
-	protected final StateType machineStateToInternalState(MachineState state) {
+	public final StateType machineStateToInternalState(MachineState state) {
 		if (state instanceof PropNetState && ((PropNetState<?>)state).stateMachine == this) {
 			return ((PropNetState<StateType>)state).internalState;
 		}
@@ -200,6 +223,52 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 		return state;
 	}
 
+	/**
+	 * The keys only depend on the id, so all state machines for the same PropNetStructure
+	 * compute the same hashes for the same states.
+	 * @param componentId
+	 * @return a pseudo-random 64 bit key for the component
+	 */
+	public static long getZobristKey(int componentId) {
+		// finalizer of the SplitMix64 generator
+		long z = (componentId + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * this default implementation computes the hash from all base propositions,
+	 * state machines whose states maintain the hash should override it
+	 * @param state
+	 * @return the Zobrist hash of the base propositions of state (xor of the keys of the true ones)
+	 */
+	public long getZobristHash(StateType state) {
+		long hash = 0;
+		for (int id = 0; id < propNetStructure.getNbBasePropositions(); id++) {
+			if (state.get(id)) {
+				hash ^= getZobristKey(id);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @param state
+	 * @return a snapshot of the base propositions of state that needs less memory than state
+	 */
+	public final CompactState compress(StateType state) {
+		return new CompactState(state, propNetStructure.getNbBasePropositions(), getZobristHash(state));
+	}
+
+	/**
+	 * @param compactState a state returned by compress
+	 * @return a new internal state with the base propositions of compactState
+	 */
+	public final StateType decompress(CompactState compactState) {
+		return getStateForBases(compactState.getTrueBases());
+	}
+
 	@Override
 	public final boolean isTerminal(MachineState state) {
 		return isTerminal(machineStateToInternalState(state));
@@ -262,6 +331,44 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 		return moves;
 	}
 
+	/**
+	 * writes the ordinals (indices into propNetStructure.getPossibleMoves(roleId)) of all legal moves
+	 * of the role into the given array in increasing order
+	 *
+	 * This does not allocate anything, ordinals must be large enough to hold all possible moves of the role.
+	 * @param state
+	 * @param roleId
+	 * @param ordinals
+	 * @return the number of legal moves
+	 */
+	public final int getLegalMoveOrdinals(StateType state, int roleId, int[] ordinals) {
+		computeLegals(state, roleId);
+		PropNetMove[] possibleMoves = propNetStructure.getPossibleMoves(roleId);
+		int nbLegals = 0;
+		for (int i = 0; i < possibleMoves.length; i++) {
+			if (state.get(possibleMoves[i].getLegalComponent().id)) {
+				ordinals[nbLegals] = i;
+				nbLegals++;
+			}
+		}
+		return nbLegals;
+	}
+
+	/**
+	 * @param roleId
+	 * @param move
+	 * @return the index of move in propNetStructure.getPossibleMoves(roleId) or -1 if it is not a possible move of the role
+	 */
+	public final int getMoveOrdinal(int roleId, Move move) {
+		PropNetMove[] possibleMoves = propNetStructure.getPossibleMoves(roleId);
+		for (int i = 0; i < possibleMoves.length; i++) {
+			if (possibleMoves[i].equals(move)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * makes sure that all the legal(R,M) components for role R (with id roleId) are computed/up-to-date in state
 	 * @param state
@@ -269,14 +376,141 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 	 */
 	protected abstract void computeLegals(StateType state, int roleId);
 
+	/**
+	 * seeds the random number generator used for random moves and playouts, e.g., to make playouts reproducible in tests
+	 * @param seed
+	 */
+	public void setRandomSeed(long seed) {
+		random.setSeed(seed);
+	}
+
 	public final PropNetMove[] getRandomJointMove(StateType state) throws MoveDefinitionException {
-		PropNetMove[] jointMove = new PropNetMove[nbRoles];
+		return getRandomJointMove(state, new PropNetMove[nbRoles]);
+	}
+
+	/**
+	 * selects a random legal move for each role
+	 * @param state
+	 * @param jointMove buffer for the joint move (one move per role)
+	 * @return jointMove
+	 * @throws MoveDefinitionException
+	 */
+	public final PropNetMove[] getRandomJointMove(StateType state, PropNetMove[] jointMove) throws MoveDefinitionException {
 		for (int roleId = 0; roleId < nbRoles; roleId++) {
 			jointMove[roleId] = getRandomMove(state, roleId);
 		}
 		return jointMove;
 	}
 
+	/**
+	 * plays random joint moves from start until a terminal state is reached
+	 *
+	 * start is copied once (see getPlayoutState) and the copy is advanced destructively, so (apart from the copy)
+	 * nothing is allocated.
+	 * @param start the state to start from, remains unchanged
+	 * @param goalsOut receives the goal values of all roles in the terminal state
+	 * @param depthOut if not null, depthOut[0] receives the number of joint moves played
+	 * @throws MoveDefinitionException
+	 * @throws GoalDefinitionException
+	 */
+	public final void playout(StateType start, int[] goalsOut, int[] depthOut) throws MoveDefinitionException, GoalDefinitionException {
+		StateType state = getPlayoutState(start);
+		int depth = 0;
+		if (goalChecker == null) {
+			depth = playToTerminal(state);
+		} else {
+			while (!isTerminal(state)) {
+				if (goalChecker.getFixedGoals(state, goalsOut)) {
+					if (depthOut != null) {
+						depthOut[0] = depth;
+					}
+					return;
+				}
+				getNextState(state, getRandomJointMove(state, playoutJointMove), false);
+				depth++;
+			}
+		}
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			goalsOut[roleId] = getGoal(state, roleId);
+		}
+		if (depthOut != null) {
+			depthOut[0] = depth;
+		}
+	}
+
+	/**
+	 * enables or disables stopping playouts early, when the goal values of all roles are already decided
+	 * by latches (base propositions that can't change anymore, see LatchAnalysis)
+	 *
+	 * The latches are computed the first time this is enabled for a PropNetStructure. When enabled,
+	 * playout returns the same goal values as without it, but depthOut only counts the moves played
+	 * until the cutoff. Calls after initialize are fine, but not while a playout is running.
+	 * @param enable
+	 */
+	public void setEarlyPlayoutCutoff(boolean enable) {
+		earlyPlayoutCutoff = enable;
+		goalChecker = null;
+		if (enable && propNetStructure != null) {
+			makeGoalChecker();
+		}
+	}
+
+	private void makeGoalChecker() {
+		LatchAnalysis latchAnalysis = propNetStructure.getLatchAnalysis();
+		if (latchAnalysis != null && latchAnalysis.canDecideGoals()) {
+			goalChecker = latchAnalysis.newGoalChecker();
+		}
+	}
+
+	/**
+	 * checks whether the goal values of the state are already decided by latches, that is,
+	 * whether every terminal state reachable from state has the same goal values
+	 *
+	 * This always returns false, unless the early playout cutoff is enabled (see setEarlyPlayoutCutoff).
+	 * @param state
+	 * @param goalsOut receives the goal values of all roles, if they are decided
+	 * @return true if the goal values are decided
+	 */
+	public boolean getFixedGoals(StateType state, int[] goalsOut) {
+		return goalChecker != null && goalChecker.getFixedGoals(state, goalsOut);
+	}
+
+	/**
+	 * @param start
+	 * @return a state equal to start that playout(start, ...) may change destructively,
+	 * this implementation returns a copy of start
+	 */
+	@SuppressWarnings("unchecked")
+	protected StateType getPlayoutState(StateType start) {
+		return (StateType)start.clone();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
+		StateType internalState = (StateType)machineStateToInternalState(state).clone();
+		int depth = playToTerminal(internalState);
+		if (theDepth != null) {
+			theDepth[0] = depth;
+		}
+		return internalStateToMachineState(internalState);
+	}
+
+	/**
+	 * changes state by playing random joint moves until it is terminal
+	 * @param state
+	 * @return the number of joint moves played
+	 * @throws MoveDefinitionException
+	 */
+	private int playToTerminal(StateType state) throws MoveDefinitionException {
+		int depth = 0;
+		while (!isTerminal(state)) {
+			getNextState(state, getRandomJointMove(state, playoutJointMove), false);
+			depth++;
+		}
+		return depth;
+	}
+
 	public PropNetMove getRandomMove(StateType state, int roleId) throws MoveDefinitionException {
 //		List<Move> moves = getLegalMoves(state, roleId);
 //		return (PropNetMove)moves.get(random.nextInt(moves.size()));
@@ -329,7 +563,6 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 			nextState = state;
 
 		BaseProposition[] baseProps = propNetStructure.getBasePropositions();
-		boolean[] newBaseValues = new boolean[baseProps.length];
 		// do this in two steps here, in case a base proposition is also a next component somewhere else
 		for (int i = 0; i < baseProps.length; i++) {
 			newBaseValues[i] = state.get(baseProps[i].nextComponent.id);
@@ -343,8 +576,19 @@ public abstract class PropNetStateMachine<StateType extends InternalStateInterfa
 		return nextState;
 	}
 
+	/**
+	 * makes target equal to source, like source.clone() but without allocating anything
+	 *
+	 * Together with getNextState(target, jointMove, false), this computes successor states into preallocated states.
+	 * @param source the state to copy, remains unchanged
+	 * @param target a state of this state machine, changed to be equal to source
+	 */
+	public abstract void copyState(StateType source, StateType target);
+
 	protected void setInputs(StateType state, PropNetMove[] jointMove) {
-		BitSet bitsToUnSet = (BitSet)inputComponentSet.clone();
+		BitSet bitsToUnSet = inputsToUnset;
+		bitsToUnSet.clear();
+		bitsToUnSet.or(inputComponentSet);
 		for (PropNetMove move : jointMove) {
 			int inputId = move.getInputComponent().id;
 			bitsToUnSet.clear(inputId);
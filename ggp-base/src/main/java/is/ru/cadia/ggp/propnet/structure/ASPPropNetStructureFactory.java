@@ -386,6 +386,11 @@ public class ASPPropNetStructureFactory extends PropNetStructureFactory {
 		return c;
 	}
 
+	@Override
+	public String getIdentifier() {
+		return "asp";
+	}
+
 	@Override
 	public void cleanup() {
 		super.cleanup();
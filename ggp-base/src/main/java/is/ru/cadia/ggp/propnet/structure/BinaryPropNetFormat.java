@@ -0,0 +1,358 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent.Type;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * a compact binary file format for PropNetStructures
+ *
+ * Layout (all numbers are big-endian ints, unless stated otherwise):
+ * <pre>
+ * MAGIC VERSION flags nbComponents nbBases nbRoles nbStrings
+ * string table: (length, UTF-8 bytes) for each string
+ * component types: one byte per component (type ordinal, highest bit set for cyclic components), padded to a multiple of 4 bytes
+ * inputs in CSR format: offsets[nbComponents+1], ids[offsets[nbComponents]]
+ * outputs in CSR format: offsets[nbComponents+1], ids[offsets[nbComponents]]
+ * for each base proposition: next component, initial value, nbSentences, sentences
+ * for each role: name
+ * for each role: nbMoves, (input, legal, move term) for each move, nbGoals, (goal proposition, goal value) for each goal
+ * terminal proposition
+ * </pre>
+ * Sentences are encoded as (name, arity, arguments), terms are either a constant (a non-negative index into
+ * the string table) or a function (-(arity+1), name, arguments).
+ *
+ * Files are read through a memory mapped buffer. The component types and the CSR arrays have the layout of the
+ * flat representation of PropNetStructure, so they are read with one bulk copy each and used as they are.
+ * Only the (mutable) input and output arrays of the StaticComponents are copied from them.
+ *
+ * @author stephan
+ *
+ */
+public class BinaryPropNetFormat {
+
+	private static final int MAGIC = 0x504e5342; // "PNSB"
+	// bump this whenever the layout changes
+	private static final int VERSION = 1;
+
+	private static final int FLAG_CYCLIC = 1;
+	private static final int CYCLIC_BIT = 0x80;
+
+	/**
+	 * @return true if the file starts with the magic number of this format
+	 */
+	public static boolean isBinaryPropNetFile(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return raf.length() >= 4 && raf.readInt() == MAGIC;
+		}
+	}
+
+	public static void write(PropNetStructure structure, File file) throws IOException {
+		int nbComponents = structure.getNbComponents();
+		BaseProposition[] bases = structure.getBasePropositions();
+		Role[] roles = structure.getRoles();
+
+		// collect the sentences and moves as int arrays first to build the string table
+		StringTable strings = new StringTable();
+		int[][][] baseSentences = new int[bases.length][][];
+		for (int id = 0; id < bases.length; id++) {
+			baseSentences[id] = new int[bases[id].sentences.length][];
+			for (int i = 0; i < bases[id].sentences.length; i++) {
+				baseSentences[id][i] = strings.encode(bases[id].sentences[i]);
+			}
+		}
+		int[] roleNames = new int[roles.length];
+		int[][][] moveTerms = new int[roles.length][][];
+		for (int rid = 0; rid < roles.length; rid++) {
+			roleNames[rid] = strings.getIndex(roles[rid].getName());
+			PropNetMove[] moves = structure.getPossibleMoves(rid);
+			moveTerms[rid] = new int[moves.length][];
+			for (int i = 0; i < moves.length; i++) {
+				moveTerms[rid][i] = strings.encode(moves[i].getContents());
+			}
+		}
+
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			os.writeInt(structure.isCylic() ? FLAG_CYCLIC : 0);
+			os.writeInt(nbComponents);
+			os.writeInt(bases.length);
+			os.writeInt(roles.length);
+			os.writeInt(strings.list.size());
+			for (String s : strings.list) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				os.writeInt(bytes.length);
+				os.write(bytes);
+			}
+			// the flat representation of the structure already has the layout of the file
+			byte[] types = structure.getComponentTypes();
+			BitSet cyclicComponents = structure.getCyclicComponents();
+			for (int id = 0; id < nbComponents; id++) {
+				os.writeByte(types[id] | (cyclicComponents.get(id) ? CYCLIC_BIT : 0));
+			}
+			// align the int arrays that follow
+			while (os.size() % 4 != 0) {
+				os.writeByte(0);
+			}
+			writeInts(os, structure.getInputOffsets());
+			writeInts(os, structure.getInputSources());
+			writeInts(os, structure.getOutputOffsets());
+			writeInts(os, structure.getOutputTargets());
+			for (int id = 0; id < bases.length; id++) {
+				os.writeInt(bases[id].nextComponent.id);
+				os.writeInt(bases[id].initialValue ? 1 : 0);
+				os.writeInt(baseSentences[id].length);
+				for (int[] sentence : baseSentences[id]) {
+					writeInts(os, sentence);
+				}
+			}
+			writeInts(os, roleNames);
+			for (int rid = 0; rid < roles.length; rid++) {
+				PropNetMove[] moves = structure.getPossibleMoves(rid);
+				os.writeInt(moves.length);
+				for (int i = 0; i < moves.length; i++) {
+					os.writeInt(moves[i].getInputComponent().id);
+					os.writeInt(moves[i].getLegalComponent().id);
+					writeInts(os, moveTerms[rid][i]);
+				}
+				StaticComponent[] goals = structure.getGoalPropositions(rid);
+				int[] goalValues = structure.getGoalValues(rid);
+				os.writeInt(goals.length);
+				for (int i = 0; i < goals.length; i++) {
+					os.writeInt(goals[i].id);
+					os.writeInt(goalValues[i]);
+				}
+			}
+			os.writeInt(structure.getTerminalProposition().id);
+		}
+	}
+
+	private static void writeInts(DataOutputStream os, int[] a) throws IOException {
+		for (int x : a) {
+			os.writeInt(x);
+		}
+	}
+
+	public static PropNetStructure read(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer);
+		}
+	}
+
+	private static PropNetStructure read(ByteBuffer buffer) throws IOException {
+		if (buffer.getInt() != MAGIC) {
+			throw new InvalidObjectException("not a binary propnet file");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new InvalidObjectException("unsupported version of binary propnet file: " + version);
+		}
+		int flags = buffer.getInt();
+		int nbComponents = buffer.getInt();
+		int nbBases = buffer.getInt();
+		int nbRoles = buffer.getInt();
+		int nbStrings = buffer.getInt();
+		GdlConstant[] strings = new GdlConstant[nbStrings];
+		for (int i = 0; i < nbStrings; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			strings[i] = GdlPool.getConstant(new String(bytes, StandardCharsets.UTF_8));
+		}
+		byte[] typeCodes = new byte[nbComponents];
+		buffer.get(typeCodes);
+		BitSet cyclicComponents = new BitSet(nbComponents);
+		Type[] typeValues = Type.values();
+		Type[] types = new Type[nbComponents];
+		for (int id = 0; id < nbComponents; id++) {
+			if ((typeCodes[id] & CYCLIC_BIT) != 0) {
+				typeCodes[id] &= ~CYCLIC_BIT;
+				cyclicComponents.set(id);
+			}
+			types[id] = typeValues[typeCodes[id]];
+		}
+		buffer.position((buffer.position() + 3) & ~3);
+		IntBuffer ints = buffer.slice().asIntBuffer();
+
+		int[] inputOffsets = readInts(ints, nbComponents + 1);
+		int[] inputSources = readInts(ints, inputOffsets[nbComponents]);
+		int[] outputOffsets = readInts(ints, nbComponents + 1);
+		int[] outputTargets = readInts(ints, outputOffsets[nbComponents]);
+
+		StaticComponent[] components = new StaticComponent[nbComponents];
+		int[] nextIds = new int[nbBases];
+		Map<GdlSentence, BaseProposition> basePropBySentence = new HashMap<>(2 * nbBases);
+		for (int id = 0; id < nbBases; id++) {
+			nextIds[id] = ints.get();
+			boolean initialValue = ints.get() != 0;
+			GdlSentence[] sentences = new GdlSentence[ints.get()];
+			for (int i = 0; i < sentences.length; i++) {
+				sentences[i] = readSentence(ints, strings);
+			}
+			BaseProposition p = new BaseProposition(id, types[id],
+					Arrays.copyOfRange(inputSources, inputOffsets[id], inputOffsets[id + 1]),
+					Arrays.copyOfRange(outputTargets, outputOffsets[id], outputOffsets[id + 1]), sentences);
+			p.initialValue = initialValue;
+			p.isCyclic = cyclicComponents.get(id);
+			components[id] = p;
+			for (GdlSentence sentence : sentences) {
+				basePropBySentence.put(sentence, p);
+			}
+		}
+		for (int id = nbBases; id < nbComponents; id++) {
+			components[id] = new StaticComponent(id, types[id],
+					Arrays.copyOfRange(inputSources, inputOffsets[id], inputOffsets[id + 1]),
+					Arrays.copyOfRange(outputTargets, outputOffsets[id], outputOffsets[id + 1]), cyclicComponents.get(id));
+		}
+		for (int id = 0; id < nbBases; id++) {
+			((BaseProposition)components[id]).nextComponent = components[nextIds[id]];
+		}
+
+		Role[] roles = new Role[nbRoles];
+		Map<Role, Integer> role2id = new HashMap<>(nbRoles);
+		for (int rid = 0; rid < nbRoles; rid++) {
+			roles[rid] = new Role(strings[ints.get()]);
+			role2id.put(roles[rid], rid);
+		}
+		PropNetMove[][] possibleMoves = new PropNetMove[nbRoles][];
+		StaticComponent[][] goalProps = new StaticComponent[nbRoles][];
+		int[][] goalValues = new int[nbRoles][];
+		for (int rid = 0; rid < nbRoles; rid++) {
+			possibleMoves[rid] = new PropNetMove[ints.get()];
+			for (int i = 0; i < possibleMoves[rid].length; i++) {
+				StaticComponent input = components[ints.get()];
+				StaticComponent legal = components[ints.get()];
+				possibleMoves[rid][i] = new PropNetMove(input, legal, readTerm(ints, strings));
+			}
+			int nbGoals = ints.get();
+			goalProps[rid] = new StaticComponent[nbGoals];
+			goalValues[rid] = new int[nbGoals];
+			for (int i = 0; i < nbGoals; i++) {
+				goalProps[rid][i] = components[ints.get()];
+				goalValues[rid][i] = ints.get();
+			}
+		}
+		StaticComponent terminal = components[ints.get()];
+
+		return new PropNetStructure(components, role2id, roles, basePropBySentence,
+				possibleMoves, goalProps, goalValues, terminal, (flags & FLAG_CYCLIC) != 0,
+				typeCodes, inputOffsets, inputSources, outputOffsets, outputTargets, cyclicComponents);
+	}
+
+	private static int[] readInts(IntBuffer ints, int length) {
+		int[] a = new int[length];
+		ints.get(a);
+		return a;
+	}
+
+	private static GdlSentence readSentence(IntBuffer ints, GdlConstant[] strings) {
+		GdlConstant name = strings[ints.get()];
+		int arity = ints.get();
+		if (arity == 0) {
+			return GdlPool.getProposition(name);
+		}
+		List<GdlTerm> body = new ArrayList<>(arity);
+		for (int i = 0; i < arity; i++) {
+			body.add(readTerm(ints, strings));
+		}
+		return GdlPool.getRelation(name, body);
+	}
+
+	private static GdlTerm readTerm(IntBuffer ints, GdlConstant[] strings) {
+		int token = ints.get();
+		if (token >= 0) {
+			return strings[token];
+		}
+		int arity = -token - 1;
+		GdlConstant name = strings[ints.get()];
+		List<GdlTerm> body = new ArrayList<>(arity);
+		for (int i = 0; i < arity; i++) {
+			body.add(readTerm(ints, strings));
+		}
+		return GdlPool.getFunction(name, body);
+	}
+
+	/**
+	 * interns the names of constants and encodes sentences and terms as int arrays
+	 */
+	private static class StringTable {
+		private final List<String> list = new ArrayList<>();
+		private final Map<String, Integer> indices = new HashMap<>();
+		private final List<Integer> tokens = new ArrayList<>();
+
+		public int getIndex(GdlConstant constant) {
+			Integer index = indices.get(constant.getValue());
+			if (index == null) {
+				index = list.size();
+				list.add(constant.getValue());
+				indices.put(constant.getValue(), index);
+			}
+			return index;
+		}
+
+		public int[] encode(GdlSentence sentence) {
+			tokens.clear();
+			tokens.add(getIndex(sentence.getName()));
+			tokens.add(sentence.arity());
+			for (GdlTerm term : sentence.getBody()) {
+				add(term);
+			}
+			return toArray();
+		}
+
+		public int[] encode(GdlTerm term) {
+			tokens.clear();
+			add(term);
+			return toArray();
+		}
+
+		private void add(GdlTerm term) {
+			if (term instanceof GdlConstant) {
+				tokens.add(getIndex((GdlConstant)term));
+			} else {
+				GdlFunction function = (GdlFunction)term;
+				tokens.add(-function.arity() - 1);
+				tokens.add(getIndex(function.getName()));
+				for (GdlTerm arg : function.getBody()) {
+					add(arg);
+				}
+			}
+		}
+
+		private int[] toArray() {
+			int[] a = new int[tokens.size()];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = tokens.get(i);
+			}
+			return a;
+		}
+	}
+}
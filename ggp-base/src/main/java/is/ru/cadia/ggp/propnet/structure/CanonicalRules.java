@@ -0,0 +1,366 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlOr;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.gdl.scrambler.MappingGdlScrambler;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * a canonical form of a game description that does not depend on the names of the symbols
+ * (other than keywords and numbers) or on the order of the rules
+ *
+ * Symbols are renamed to "s0", "s1", ... according to a colour refinement of the symbols
+ * by the contexts they occur in. Symbols that can not be told apart this way are ordered
+ * by their first occurrence in the rules. Hence, the canonical form is invariant
+ * to scrambling and, unless the game has such symmetric symbols, to reordering the rules.
+ *
+ * The hash of the canonical form can be used as a key for caching anything that is computed
+ * from the rules, e.g., propnets. Stored results have to be renamed with
+ * getFromCanonical() to be used with the original rules.
+ *
+ * @author stephan
+ *
+ */
+public class CanonicalRules {
+
+	// bump this whenever the canonical form changes
+	private static final String VERSION = "1";
+
+	private static final int MAX_ROUNDS = 32;
+
+	// kinds of tokens in the flattened rules
+	private static final long STRUCT = 0, FIXED = 1, VARIABLE = 2, SYMBOL = 3;
+	// values of STRUCT tokens
+	private static final int RULE = 0, RELATION = 1, FUNCTION = 2, NOT = 3, OR = 4, DISTINCT = 5, END = 6;
+	private static final String[] STRUCT_NAMES = {"(<=", "(", "(", "(not", "(or", "(distinct", ")"};
+
+	private final String hash;
+	private final Map<GdlConstant, GdlConstant> toCanonical;
+	private final Map<GdlConstant, GdlConstant> fromCanonical;
+
+	private CanonicalRules(String hash, Map<GdlConstant, GdlConstant> toCanonical, Map<GdlConstant, GdlConstant> fromCanonical) {
+		this.hash = hash;
+		this.toCanonical = toCanonical;
+		this.fromCanonical = fromCanonical;
+	}
+
+	/**
+	 * @return a hex encoded SHA-256 hash of the canonical form of the rules
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return the mapping of the (non-keyword) constants in the rules to their canonical names
+	 */
+	public Map<GdlConstant, GdlConstant> getToCanonical() {
+		return toCanonical;
+	}
+
+	/**
+	 * @return the mapping of canonical names to the constants in the rules
+	 */
+	public Map<GdlConstant, GdlConstant> getFromCanonical() {
+		return fromCanonical;
+	}
+
+	public static CanonicalRules compute(List<Gdl> description) {
+		Flattener flattener = new Flattener();
+		List<long[]> rules = new ArrayList<>(description.size());
+		for (Gdl gdl : description) {
+			rules.add(flattener.flatten(gdl));
+		}
+		int nbSymbols = flattener.symbols.size();
+		// fixed symbols are identified by their name, not by the order they occur in
+		long[] fixedHashes = new long[flattener.fixedSymbols.size()];
+		for (int i = 0; i < fixedHashes.length; i++) {
+			fixedHashes[i] = mix(flattener.fixedSymbols.get(i).getValue().hashCode());
+		}
+		long[] colors = refineColors(rules, nbSymbols, fixedHashes);
+
+		// order symbols by colour, breaking ties by first occurrence
+		Integer[] order = new Integer[nbSymbols];
+		for (int s = 0; s < nbSymbols; s++) {
+			order[s] = s;
+		}
+		final long[] finalColors = colors;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer s1, Integer s2) {
+				int c = Long.compare(finalColors[s1], finalColors[s2]);
+				return c != 0 ? c : Integer.compare(s1, s2);
+			}
+		});
+		int[] canonicalId = new int[nbSymbols];
+		Map<GdlConstant, GdlConstant> toCanonical = new HashMap<>(2 * nbSymbols);
+		Map<GdlConstant, GdlConstant> fromCanonical = new HashMap<>(2 * nbSymbols);
+		for (int i = 0; i < nbSymbols; i++) {
+			int s = order[i];
+			canonicalId[s] = i;
+			GdlConstant symbol = flattener.symbols.get(s);
+			GdlConstant canonicalSymbol = GdlPool.getConstant("s" + i);
+			toCanonical.put(symbol, canonicalSymbol);
+			fromCanonical.put(canonicalSymbol, symbol);
+		}
+
+		// render the rules in canonical form and sort them
+		List<String> canonicalRules = new ArrayList<>(rules.size());
+		for (long[] rule : rules) {
+			canonicalRules.add(render(rule, canonicalId, flattener.fixedSymbols));
+		}
+		Collections.sort(canonicalRules);
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+		// the order of the roles matters for the propnet, but gets lost by sorting the rules
+		for (Role role : Role.computeRoles(description)) {
+			digest.update((" " + rename(role.getName(), toCanonical)).getBytes(StandardCharsets.UTF_8));
+		}
+		for (String rule : canonicalRules) {
+			digest.update((byte)'\n');
+			digest.update(rule.getBytes(StandardCharsets.UTF_8));
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return new CanonicalRules(sb.toString(), toCanonical, fromCanonical);
+	}
+
+	/**
+	 * colour refinement: the new colour of a symbol is a hash of its old colour and
+	 * of all the rules it occurs in (with the current colours) together with the positions
+	 * of the occurrences
+	 *
+	 * stops once the number of different colours does not increase anymore
+	 */
+	private static long[] refineColors(List<long[]> rules, int nbSymbols, long[] fixedHashes) {
+		long[] colors = new long[nbSymbols];
+		long[] sums = new long[nbSymbols];
+		int nbColors = 1;
+		for (int round = 0; round < MAX_ROUNDS && nbColors < nbSymbols; round++) {
+			Arrays.fill(sums, 0);
+			for (long[] rule : rules) {
+				long ruleHash = 0;
+				for (long token : rule) {
+					ruleHash = mix(ruleHash * 31 + tokenHash(token, colors, fixedHashes));
+				}
+				for (int p = 0; p < rule.length; p++) {
+					if (rule[p] >>> 32 == SYMBOL) {
+						// sums are invariant to the order of the rules
+						sums[(int)rule[p]] += mix(ruleHash + p);
+					}
+				}
+			}
+			LongOpenHashSet distinctColors = new LongOpenHashSet(nbSymbols);
+			for (int s = 0; s < nbSymbols; s++) {
+				colors[s] = mix(colors[s] * 31 + sums[s]);
+				distinctColors.add(colors[s]);
+			}
+			if (distinctColors.size() <= nbColors) {
+				break;
+			}
+			nbColors = distinctColors.size();
+		}
+		return colors;
+	}
+
+	private static long tokenHash(long token, long[] colors, long[] fixedHashes) {
+		if (token >>> 32 == SYMBOL) {
+			return colors[(int)token] ^ 0x5bd1e995L;
+		} else if (token >>> 32 == FIXED) {
+			return fixedHashes[(int)token];
+		}
+		return mix(token);
+	}
+
+	// finalizer of SplitMix64
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static String render(long[] rule, int[] canonicalId, List<GdlConstant> fixedSymbols) {
+		StringBuilder sb = new StringBuilder();
+		for (long token : rule) {
+			int value = (int)token;
+			switch ((int)(token >>> 32)) {
+				case (int)STRUCT:
+					sb.append(STRUCT_NAMES[value]); break;
+				case (int)FIXED:
+					sb.append(fixedSymbols.get(value).getValue()); break;
+				case (int)VARIABLE:
+					sb.append("?v").append(value); break;
+				case (int)SYMBOL:
+					sb.append('s').append(canonicalId[value]); break;
+			}
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * turns rules into arrays of tokens, variables are numbered by their first occurrence in each rule
+	 * and symbols by their first occurrence in the whole description
+	 */
+	private static class Flattener {
+		private final List<GdlConstant> symbols = new ArrayList<>();
+		private final Map<GdlConstant, Integer> symbolIds = new HashMap<>();
+		private final List<GdlConstant> fixedSymbols = new ArrayList<>();
+		private final Map<GdlConstant, Integer> fixedSymbolIds = new HashMap<>();
+		private final Map<GdlVariable, Integer> variableIds = new HashMap<>();
+		private LongArrayList tokens;
+
+		public long[] flatten(Gdl gdl) {
+			tokens = new LongArrayList();
+			variableIds.clear();
+			if (gdl instanceof GdlRule) {
+				GdlRule rule = (GdlRule)gdl;
+				add(STRUCT, RULE);
+				flatten(rule.getHead());
+				for (GdlLiteral literal : rule.getBody()) {
+					flatten(literal);
+				}
+				add(STRUCT, END);
+			} else {
+				flatten((GdlLiteral)gdl);
+			}
+			return tokens.toLongArray();
+		}
+
+		private void flatten(GdlLiteral literal) {
+			if (literal instanceof GdlSentence) {
+				GdlSentence sentence = (GdlSentence)literal;
+				if (sentence instanceof GdlProposition) {
+					flatten(sentence.getName());
+				} else {
+					add(STRUCT, RELATION);
+					flatten(sentence.getName());
+					for (GdlTerm term : sentence.getBody()) {
+						flatten(term);
+					}
+					add(STRUCT, END);
+				}
+			} else if (literal instanceof GdlNot) {
+				add(STRUCT, NOT);
+				flatten(((GdlNot)literal).getBody());
+				add(STRUCT, END);
+			} else if (literal instanceof GdlOr) {
+				add(STRUCT, OR);
+				for (GdlLiteral disjunct : ((GdlOr)literal).getDisjuncts()) {
+					flatten(disjunct);
+				}
+				add(STRUCT, END);
+			} else if (literal instanceof GdlDistinct) {
+				add(STRUCT, DISTINCT);
+				flatten(((GdlDistinct)literal).getArg1());
+				flatten(((GdlDistinct)literal).getArg2());
+				add(STRUCT, END);
+			}
+		}
+
+		private void flatten(GdlTerm term) {
+			if (term instanceof GdlConstant) {
+				GdlConstant constant = (GdlConstant)term;
+				if (MappingGdlScrambler.shouldMap(constant.getValue())) {
+					add(SYMBOL, getId(constant, symbols, symbolIds));
+				} else {
+					add(FIXED, getId(constant, fixedSymbols, fixedSymbolIds));
+				}
+			} else if (term instanceof GdlVariable) {
+				GdlVariable variable = (GdlVariable)term;
+				Integer id = variableIds.get(variable);
+				if (id == null) {
+					id = variableIds.size();
+					variableIds.put(variable, id);
+				}
+				add(VARIABLE, id);
+			} else {
+				GdlFunction function = (GdlFunction)term;
+				add(STRUCT, FUNCTION);
+				flatten(function.getName());
+				for (GdlTerm arg : function.getBody()) {
+					flatten(arg);
+				}
+				add(STRUCT, END);
+			}
+		}
+
+		private static int getId(GdlConstant constant, List<GdlConstant> list, Map<GdlConstant, Integer> ids) {
+			Integer id = ids.get(constant);
+			if (id == null) {
+				id = list.size();
+				list.add(constant);
+				ids.put(constant, id);
+			}
+			return id;
+		}
+
+		private void add(long kind, int value) {
+			tokens.add(kind << 32 | value);
+		}
+	}
+
+	////////////////////////////////
+	// renaming of ground terms and sentences
+	////////////////////////////////
+
+	public static GdlTerm rename(GdlTerm term, Map<GdlConstant, GdlConstant> renaming) {
+		if (term instanceof GdlConstant) {
+			GdlConstant newConstant = renaming.get(term);
+			return newConstant == null ? term : newConstant;
+		} else if (term instanceof GdlFunction) {
+			GdlFunction function = (GdlFunction)term;
+			List<GdlTerm> body = new ArrayList<>(function.arity());
+			for (GdlTerm arg : function.getBody()) {
+				body.add(rename(arg, renaming));
+			}
+			return GdlPool.getFunction((GdlConstant)rename(function.getName(), renaming), body);
+		}
+		return term;
+	}
+
+	public static GdlSentence rename(GdlSentence sentence, Map<GdlConstant, GdlConstant> renaming) {
+		GdlConstant name = (GdlConstant)rename(sentence.getName(), renaming);
+		if (sentence instanceof GdlProposition) {
+			return GdlPool.getProposition(name);
+		}
+		List<GdlTerm> body = new ArrayList<>(sentence.arity());
+		for (GdlTerm arg : sentence.getBody()) {
+			body.add(rename(arg, renaming));
+		}
+		return GdlPool.getRelation(name, body);
+	}
+}
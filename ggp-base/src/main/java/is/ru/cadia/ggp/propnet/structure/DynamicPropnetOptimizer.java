@@ -3,8 +3,11 @@ package is.ru.cadia.ggp.propnet.structure;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 import org.ggp.base.util.Pair;
@@ -26,6 +29,17 @@ import it.unimi.dsi.fastutil.ints.IntSet;
 
 public class DynamicPropnetOptimizer {
 
+	/**
+	 * the optimizations that are optional and can be run in any order
+	 */
+	public static enum Pass {CONSTANTS, NOT_OUTPUTS, AND_FACTORS, OR_FACTORS, PUSH_FACTORS}
+
+	// after how many components the order of the passes is updated
+	private static final int REORDER_INTERVAL = 4096;
+
+	// after how many propagated values findAdditionalConstantComponents() checks the deadline
+	private static final int DEADLINE_CHECK_INTERVAL = 4096;
+
 	private static enum OptimizationType {NO_OUTPUT, PIPE_AS_ONLY_OUTPUT,
 	KEEP_NOT_NOT,
 	KEEP_FALSE, KEEP_TRUE,
@@ -39,6 +53,17 @@ public class DynamicPropnetOptimizer {
 	PUSH_FACTOR, FACTOR, DUPLICATE_NOT_OUTPUT, SELF_LOOP, DEMORGAN}
 
 	private int[] optimizationsDone = new int[OptimizationType.values().length];
+	private int nbOptimizationsDone = 0;
+
+	// statistics of previous runs on the same game (or null)
+	private OptimizationStatistics statistics = null;
+	// time (in ns) and number of optimizations per pass in this run
+	private long[] passTimes = new long[Pass.values().length];
+	private long[] passBenefits = new long[Pass.values().length];
+	private boolean[] passesRun = new boolean[Pass.values().length];
+
+	// false if the last run stopped at the deadline
+	private boolean finished = false;
 
 	private DynamicComponentPool componentPool;
 	private BitSet changedComponentIds;
@@ -48,10 +73,30 @@ public class DynamicPropnetOptimizer {
 		this.componentPool = componentPool;
 	}
 
+	/**
+	 * @param statistics statistics of previous runs on the same game, used to order the passes
+	 * and to skip passes that did not pay off before; they are updated with the results of this run
+	 */
+	public void setStatistics(OptimizationStatistics statistics) {
+		this.statistics = statistics;
+	}
+
 	public Set<DynamicComponent> run() throws InterruptedException {
+		return run(Long.MAX_VALUE);
+	}
+
+	/**
+	 * optimizes the propnet until nothing changes anymore or the deadline is reached
+	 *
+	 * Every single optimization leaves the component pool in a consistent state, so if the deadline
+	 * is reached the propnet is just less optimized.
+	 * @param deadline the time (as in System.currentTimeMillis()) at which to stop
+	 */
+	public Set<DynamicComponent> run(long deadline) throws InterruptedException {
 		ConcurrencyUtils.checkForInterruption();
 		resetOptimizationStats();
 		int iterations = 0;
+		boolean deadlineReached = false;
 
 		// first run one fast round without the expensive optimizations
 		// this should cut down on the number of components a lot and make things easier later on
@@ -60,6 +105,10 @@ public class DynamicPropnetOptimizer {
 		changedComponentIterator = new BitSetIterator(changedComponentIds);
 		while (changedComponentIterator.hasNext()) {
 			ConcurrencyUtils.checkForInterruption();
+			if (System.currentTimeMillis() >= deadline) {
+				deadlineReached = true;
+				break;
+			}
 			DynamicComponent c = componentPool.get(changedComponentIterator.nextInt());
 			changedComponentIterator.remove();
 			iterations++;
@@ -71,7 +120,7 @@ public class DynamicPropnetOptimizer {
 				System.out.println("iteration " + iterations + ": " + componentPool.size() + " components left");
 			}
 		}
-		assert changedComponentIds.cardinality() == 0;
+		assert deadlineReached || changedComponentIds.cardinality() == 0;
 		System.out.println("optimization: first round checked on " + iterations + " components");
 
 		PropNetStructureFactory.packComponents(componentPool);
@@ -82,8 +131,16 @@ public class DynamicPropnetOptimizer {
 		// now: check for possible values of components
 		// to find components that can never be true or never be false and
 		// turn those components into constants (that can be removed later)
-		findAdditionalConstantComponents();
-		System.out.println("#components left: " + componentPool.size());
+		if (!deadlineReached && isUseful(Pass.CONSTANTS)) {
+			long startTime = System.nanoTime();
+			int nbConstantsFound = findAdditionalConstantComponents(deadline);
+			if (nbConstantsFound >= 0) {
+				recordPass(Pass.CONSTANTS, System.nanoTime() - startTime, nbConstantsFound);
+			} else {
+				deadlineReached = true;
+			}
+			System.out.println("#components left: " + componentPool.size());
+		}
 
 		// until fixpoint:
 		//  - remove FALSE components
@@ -95,12 +152,24 @@ public class DynamicPropnetOptimizer {
 		//  - remove BASEs if they are always false
 		//  Note: removing can only be done if components are not technically needed (are not base, input or any other recognized proposition)
 
+		// the expensive passes are run in the order of their benefit per time
+		List<Pass> passes = new ArrayList<>();
+		for (Pass pass : Pass.values()) {
+			if (pass != Pass.CONSTANTS && isUseful(pass)) {
+				passes.add(pass);
+			}
+		}
+		sortPasses(passes);
 		iterations = 0;
 		changedComponentIds = new BitSet(componentPool.getHighestId());
 		setBits(changedComponentIds, componentPool);
 		changedComponentIterator = new BitSetIterator(changedComponentIds);
-		while (changedComponentIterator.hasNext()) {
+		while (!deadlineReached && changedComponentIterator.hasNext()) {
 			ConcurrencyUtils.checkForInterruption();
+			if (System.currentTimeMillis() >= deadline) {
+				deadlineReached = true;
+				break;
+			}
 			DynamicComponent c = componentPool.get(changedComponentIterator.nextInt());
 			changedComponentIterator.remove();
 			iterations++;
@@ -110,28 +179,115 @@ public class DynamicPropnetOptimizer {
 //					changedComponents.addAll(c.getInputs());
 //					changedComponents.addAll(c.getOutputs());
 //				}
-				optimizeNotOutputs(c);
-				optimizeCommonFactors(c, Type.AND);
-				optimizeCommonFactors(c, Type.OR);
-				pushFactorToCommonOutputs(c); // TODO: find better name
+				for (Pass pass : passes) {
+					runPass(pass, c);
+				}
 				optimizeComponent(c);
 			}
 			if (iterations % 10000 == 0) {
 				System.out.println("iteration " + iterations + ": " + componentPool.size() + " components left");
 			}
+			if (iterations % REORDER_INTERVAL == 0) {
+				sortPasses(passes);
+			}
 		}
 		System.out.println("optimization: checked on " + iterations + " components");
+		if (deadlineReached) {
+			System.out.println("optimization stopped at the deadline, #components left: " + componentPool.size());
+		}
+		finished = !deadlineReached;
 		printOptimizationStats();
+		if (statistics != null) {
+			for (Pass pass : Pass.values()) {
+				if (passesRun[pass.ordinal()]) {
+					statistics.add(pass, passTimes[pass.ordinal()], passBenefits[pass.ordinal()]);
+				}
+			}
+		}
 		return componentPool;
 	}
 
+	/**
+	 * @return true if the last run optimized the propnet until nothing changed anymore,
+	 * false if it was stopped at the deadline
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	private void runPass(Pass pass, DynamicComponent c) {
+		long startTime = System.nanoTime();
+		int nbOptimizationsBefore = nbOptimizationsDone;
+		switch (pass) {
+		case NOT_OUTPUTS:
+			optimizeNotOutputs(c);
+			break;
+		case AND_FACTORS:
+			optimizeCommonFactors(c, Type.AND);
+			break;
+		case OR_FACTORS:
+			optimizeCommonFactors(c, Type.OR);
+			break;
+		case PUSH_FACTORS:
+			pushFactorToCommonOutputs(c); // TODO: find better name
+			break;
+		case CONSTANTS:
+			assert false;
+			break;
+		}
+		recordPass(pass, System.nanoTime() - startTime, nbOptimizationsDone - nbOptimizationsBefore);
+	}
+
+	private void recordPass(Pass pass, long time, long benefit) {
+		passTimes[pass.ordinal()] += time;
+		passBenefits[pass.ordinal()] += benefit;
+		passesRun[pass.ordinal()] = true;
+	}
+
+	/**
+	 * @return false if the pass was run on this game before without doing anything
+	 */
+	private boolean isUseful(Pass pass) {
+		return statistics == null || !statistics.isUseless(pass);
+	}
+
+	/**
+	 * @return the number of optimizations per ms the pass did so far, including previous runs on the same game
+	 * (passes that were never run come first)
+	 */
+	private double getBenefitPerMs(Pass pass) {
+		long time = passTimes[pass.ordinal()];
+		long benefit = passBenefits[pass.ordinal()];
+		if (statistics != null) {
+			time += statistics.getTime(pass);
+			benefit += statistics.getBenefit(pass);
+		}
+		if (time == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return benefit / (time / 1000000.0);
+	}
+
+	private void sortPasses(List<Pass> passes) {
+		// stable, so passes without measurements keep their default order
+		Collections.sort(passes, new Comparator<Pass>() {
+			@Override
+			public int compare(Pass p1, Pass p2) {
+				return Double.compare(getBenefitPerMs(p2), getBenefitPerMs(p1));
+			}
+		});
+	}
+
 	/**
 	 * runs a fixed-point iteration of possible value propagation to find if
 	 * there are components that can never be true / never be false and
 	 * turns those components into constants disconnecting them from their inputs
+	 *
+	 * If the deadline is reached while propagating values, nothing is changed.
+	 * @return the number of components that were turned into constants or -1 if the deadline was reached
 	 * @throws InterruptedException
 	 */
-	private void findAdditionalConstantComponents() throws InterruptedException {
+	private int findAdditionalConstantComponents(long deadline) throws InterruptedException {
 		BitSet possiblyTrue = new BitSet(componentPool.getHighestId());
 		BitSet possiblyFalse = new BitSet(componentPool.getHighestId());
 		LinkedList<Pair<Integer, Boolean>> queue = new LinkedList<>();
@@ -180,8 +336,14 @@ public class DynamicPropnetOptimizer {
 			}
 		}
 		// now propagate the values
+		int nbPropagated = 0;
 		while (!queue.isEmpty()) {
 			ConcurrencyUtils.checkForInterruption();
+			nbPropagated++;
+			if (nbPropagated % DEADLINE_CHECK_INTERVAL == 0 && System.currentTimeMillis() >= deadline) {
+				System.out.println("no time left for finding constant valued components");
+				return -1;
+			}
 			Pair<Integer, Boolean> p = queue.pop();
 			DynamicComponent c = componentPool.get(p.left);
 			boolean value = p.right;
@@ -305,6 +467,7 @@ public class DynamicPropnetOptimizer {
 			}
 		}
 		System.out.println("found " + nbConstantsFound + " constant valued components");
+		return nbConstantsFound;
 	}
 
 //	private void removeSelfLoops(DynamicComponent c) {
@@ -444,6 +607,7 @@ public class DynamicPropnetOptimizer {
 	private void didOptimize(OptimizationType o) {
 		// System.out.println(o);
 		optimizationsDone[o.ordinal()]++;
+		nbOptimizationsDone++;
 	}
 
 	private void optimizeAnd(DynamicComponent c) {
@@ -723,6 +887,13 @@ public class DynamicPropnetOptimizer {
 		for (OptimizationType o : OptimizationType.values()) {
 			System.out.println(o.name().toLowerCase() + " = " + optimizationsDone[o.ordinal()]);
 		}
+		for (Pass pass : Pass.values()) {
+			if (passesRun[pass.ordinal()]) {
+				System.out.println("pass " + pass.name().toLowerCase() + ": " + passTimes[pass.ordinal()]/1000000 + "ms, " + passBenefits[pass.ordinal()] + " optimizations");
+			} else {
+				System.out.println("pass " + pass.name().toLowerCase() + ": skipped");
+			}
+		}
 	}
 
 	private void propagateFalseValue(DynamicComponent c) {
@@ -1033,6 +1204,10 @@ public class DynamicPropnetOptimizer {
 
 	private void resetOptimizationStats() {
 		optimizationsDone = new int[OptimizationType.values().length];
+		nbOptimizationsDone = 0;
+		passTimes = new long[Pass.values().length];
+		passBenefits = new long[Pass.values().length];
+		passesRun = new boolean[Pass.values().length];
 	}
 
 }
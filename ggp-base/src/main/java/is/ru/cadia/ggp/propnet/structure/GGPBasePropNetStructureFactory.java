@@ -8,17 +8,18 @@ import is.ru.cadia.ggp.propnet.structure.dynamic.DynamicComponentSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.propnet.architecture.Component;
-import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.propnet.architecture.components.And;
 import org.ggp.base.util.propnet.architecture.components.Constant;
 import org.ggp.base.util.propnet.architecture.components.Not;
@@ -33,72 +34,96 @@ public class GGPBasePropNetStructureFactory extends PropNetStructureFactory {
 	@Override
 	public PropNetStructure create(List<Gdl> description) throws InterruptedException {
     	long startTime = System.currentTimeMillis();
-        PropNet propNet = OptimizingPropNetFactory.create(description);
-        System.out.println("original #components: " + propNet.getSize()
-        		+ ", #and: " + propNet.getNumAnds()
-        		+ ", #or: " + propNet.getNumOrs()
-        		+ ", #not: " + propNet.getNumNots()
-        		+ ", #links: " + propNet.getNumLinks()
-        		+ ", #base: " + propNet.getBasePropositions().size()
-        		+ ", #input: " + propNet.getInputPropositions().size()
-        		);
-        // propNet.renderToFile("propnet.dot");
+    	List<Role> roles = Role.computeRoles(description);
+    	// we don't need the PropNet object (and its indices), only its components
+    	Set<Component> components = OptimizingPropNetFactory.createComponents(description, false, Runtime.getRuntime().availableProcessors());
 
         long createPropNetEndTime = System.currentTimeMillis();
         System.out.println("making propnet took " + (createPropNetEndTime-startTime)/1000.0 + "s");
 
         System.out.println("making propnet structure ...");
-        PropNetStructure propNetStructure = createFromPropNet(propNet);
+        PropNetStructure propNetStructure = createFromComponents(roles, components);
 
         long endTime = System.currentTimeMillis();
         System.out.println("making propnet structure took " + (endTime-createPropNetEndTime)/1000.0 + "s");
         return propNetStructure;
 	}
 
-	private PropNetStructure createFromPropNet(PropNet propNet) throws InterruptedException {
-        // setup roles
-        List<Role> roles = propNet.getRoles();
-
+	/**
+	 * turns the components created by the OptimizingPropNetFactory into dynamic components
+	 *
+	 * The old components are removed from the given set and disconnected while
+	 * they are copied, such that they can be garbage collected as soon as possible.
+	 */
+	private PropNetStructure createFromComponents(List<Role> roles, Set<Component> propNetComponents) throws InterruptedException {
 		// turn components of the PropNet into our own objects
-		Set<Component> propNetComponents = propNet.getComponents();
 		int nbComponents = propNetComponents.size();
         DynamicComponentPool componentPool = new DynamicComponentPool(nbComponents);
-		Map<Component, DynamicComponent> componentMapping = new HashMap<>(nbComponents);
+		Map<Component, DynamicComponent> componentMapping = new IdentityHashMap<>(nbComponents);
+		DynamicComponent initProp = null;
+		Map<GdlSentence, DynamicComponent> inputMap = new HashMap<>();
+		int nbAnds = 0, nbOrs = 0, nbNots = 0, nbLinks = 0;
 		for (Component c:propNetComponents) {
 			ConcurrencyUtils.checkForInterruption();
 			DynamicComponent dc = getDynamicComponentForPropNetComponent(c, roles, componentPool);
 			componentMapping.put(c,dc);
+			if (c instanceof Proposition) {
+				GdlSentence sentence = ((Proposition)c).getName();
+				if (sentence instanceof GdlProposition && sentence.getName().getValue().toUpperCase().equals("INIT")) {
+					initProp = dc;
+				} else if (sentence.getName() == GdlPool.DOES) {
+					inputMap.put(sentence, dc);
+				}
+			} else if (c instanceof And) {
+				nbAnds++;
+			} else if (c instanceof Or) {
+				nbOrs++;
+			} else if (c instanceof Not) {
+				nbNots++;
+			}
 		}
 
 		// set inputs and outputs of our components
-		for (Entry<Component, DynamicComponent> e : componentMapping.entrySet()) {
+		for (Iterator<Component> it = propNetComponents.iterator(); it.hasNext(); ) {
 			ConcurrencyUtils.checkForInterruption();
-			DynamicComponent dc = e.getValue();
-			Set<Component> inputs = e.getKey().getInputs();
+			Component c = it.next();
+			DynamicComponent dc = componentMapping.get(c);
+			Set<Component> inputs = c.getInputs();
 			final DynamicComponentSet dcInputs = dc.getInputs();
-			for (Component c:inputs) {
-				dcInputs.add(componentMapping.get(c));
+			for (Component input:inputs) {
+				dcInputs.add(componentMapping.get(input));
 			}
-			Set<Component> outputs = e.getKey().getOutputs();
+			Set<Component> outputs = c.getOutputs();
 			final DynamicComponentSet dcOutputs = dc.getOutputs();
-			for (Component c:outputs) {
-				dcOutputs.add(componentMapping.get(c));
+			for (Component output:outputs) {
+				dcOutputs.add(componentMapping.get(output));
 			}
+			nbLinks += outputs.size();
+			// the old component is not needed anymore
+			c.removeAllInputs();
+			c.removeAllOutputs();
+			it.remove();
 		}
+		componentMapping = null;
+        System.out.println("original #components: " + nbComponents
+        		+ ", #and: " + nbAnds
+        		+ ", #or: " + nbOrs
+        		+ ", #not: " + nbNots
+        		+ ", #links: " + nbLinks
+        		+ ", #input: " + inputMap.size()
+        		);
 
 		// set initial value of base propositions
 		// search forward to next transition and to get the base propositions
 		// that will be true in the initial state
 		Set<GdlSentence> initialState = new HashSet<>();
-		Proposition initProp = propNet.getInitProposition();
 		if (initProp != null) {
-			collectInitialState(initialState, componentMapping.get(initProp));
+			collectInitialState(initialState, initProp);
 		} // else nothing is true initially
 
 		DynamicComponent initComponent = componentPool.create();
 		initComponent.type = Type.INIT;
 
-		Map<GdlSentence, Proposition> inputMap = propNet.getInputPropositions();
 		for (DynamicComponent c : componentPool) {
 			PropType propType = getPropTypeForSymbol(c.getFirstSymbol());
 			if (propType == PropType.TRUE) {
@@ -113,8 +138,7 @@ public class GGPBasePropNetStructureFactory extends PropNetStructureFactory {
 				}
 			} else if (propType == PropType.LEGAL) {
 				// link does(r,m) with legal(r,m) components
-				Proposition oldComponent = inputMap.get(getDoesForLegalSentence(c.getFirstSymbol()));
-				DynamicComponent doesComponent = componentMapping.get(oldComponent);
+				DynamicComponent doesComponent = inputMap.get(getDoesForLegalSentence(c.getFirstSymbol()));
 				if (doesComponent != null) {
 					DynamicComponentPool.connect(c, doesComponent);
 				}
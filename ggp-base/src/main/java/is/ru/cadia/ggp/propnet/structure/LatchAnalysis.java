@@ -0,0 +1,394 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * finds latches, that is, base propositions that keep their value for the rest of the game once they are true
+ * (positive latches) or once they are false (negative latches), and checks whether the goals are already
+ * decided by the latches in a state
+ *
+ * A base proposition p is a positive latch if next(p) is true whenever p is true, no matter what the values of
+ * the other base propositions and the inputs are. This is checked with a three-valued evaluation (true, false, unknown)
+ * of the components next(p) depends on. Negative latches are found the same way. Several latches that only keep
+ * each other true are not found.
+ *
+ * The goals of a state are decided, if every role has a goal proposition that evaluates to true, while only
+ * the latches have known values. Because the latches keep their values, these are the goal values of every
+ * terminal state that can be reached from the state.
+ *
+ * The analysis needs the components in topological order (as created by PropNetStructureFactory), for other structures
+ * compute returns null.
+ *
+ * @author stephan
+ *
+ */
+public class LatchAnalysis {
+
+	// values of the three-valued evaluation
+	private static final byte UNKNOWN = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+
+	// after this many checks in a row that did not find fixed goals, GoalCheckers only do every (SKIP_MASK+1)th check
+	private static final int MAX_FAILURES = 1000;
+	private static final int SKIP_MASK = 63;
+
+	private final PropNetStructure structure;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputSources;
+	private final BitSet cyclicComponents;
+	// used by getCone
+	private final int[] stack;
+
+	private final BitSet positiveLatches = new BitSet();
+	private final BitSet negativeLatches = new BitSet();
+
+	// all components that some goal proposition depends on, in topological order
+	private int[] goalCone;
+	// the latches in goalCone
+	private int[] relevantPositiveLatches;
+	private int[] relevantNegativeLatches;
+
+	private LatchAnalysis(PropNetStructure structure) {
+		this.structure = structure;
+		types = structure.getComponentTypes();
+		inputOffsets = structure.getInputOffsets();
+		inputSources = structure.getInputSources();
+		cyclicComponents = structure.getCyclicComponents();
+		stack = new int[types.length];
+	}
+
+	/**
+	 * @return the analysis of the structure or null if the components of the structure are not in topological order
+	 */
+	public static LatchAnalysis compute(PropNetStructure structure) {
+		if (!isTopologicallyOrdered(structure)) {
+			return null;
+		}
+		LatchAnalysis analysis = new LatchAnalysis(structure);
+		analysis.findLatches();
+		analysis.findGoalCone();
+		return analysis;
+	}
+
+	private static boolean isTopologicallyOrdered(PropNetStructure structure) {
+		int[] inputOffsets = structure.getInputOffsets();
+		int[] inputSources = structure.getInputSources();
+		BitSet cyclicComponents = structure.getCyclicComponents();
+		for (int id = structure.getNbBasePropositions(); id < structure.getNbComponents(); id++) {
+			if (!cyclicComponents.get(id)) {
+				for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+					if (inputSources[i] >= id) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the positive latches (by ID), must not be modified
+	 */
+	public BitSet getPositiveLatches() {
+		return positiveLatches;
+	}
+
+	/**
+	 * @return the negative latches (by ID), must not be modified
+	 */
+	public BitSet getNegativeLatches() {
+		return negativeLatches;
+	}
+
+	/**
+	 * @return true if some goal proposition depends on a latch, otherwise the goals are never decided early
+	 */
+	public boolean canDecideGoals() {
+		return relevantPositiveLatches.length > 0 || relevantNegativeLatches.length > 0;
+	}
+
+	private void findLatches() {
+		byte[] values = new byte[types.length];
+		BitSet coneSet = new BitSet(types.length);
+		for (BaseProposition p : structure.getBasePropositions()) {
+			if (p.nextComponent == null) {
+				// p is false after the first step
+				negativeLatches.set(p.id);
+				continue;
+			}
+			if (p.nextComponent.id == p.id) {
+				// next(p) <= true(p): p never changes
+				positiveLatches.set(p.id);
+				negativeLatches.set(p.id);
+				continue;
+			}
+			int[] cone = getCone(new int[] {p.nextComponent.id}, coneSet);
+			if (Arrays.binarySearch(cone, p.id) < 0) {
+				// next(p) does not depend on p
+				continue;
+			}
+			values[p.id] = TRUE;
+			evaluate(cone, values);
+			if (values[p.nextComponent.id] == TRUE) {
+				positiveLatches.set(p.id);
+			}
+			clear(cone, values);
+			values[p.id] = FALSE;
+			evaluate(cone, values);
+			if (values[p.nextComponent.id] == FALSE) {
+				negativeLatches.set(p.id);
+			}
+			clear(cone, values);
+		}
+		System.out.println("found " + positiveLatches.cardinality() + " positive and " + negativeLatches.cardinality() + " negative latches");
+	}
+
+	private void findGoalCone() {
+		int nbGoals = 0;
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			nbGoals += structure.getGoalPropositions(rid).length;
+		}
+		int[] goals = new int[nbGoals];
+		nbGoals = 0;
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			for (StaticComponent goal : structure.getGoalPropositions(rid)) {
+				goals[nbGoals++] = goal.id;
+			}
+		}
+		goalCone = getCone(goals, new BitSet(types.length));
+		relevantPositiveLatches = getLatchesInCone(positiveLatches);
+		relevantNegativeLatches = getLatchesInCone(negativeLatches);
+	}
+
+	private int[] getLatchesInCone(BitSet latches) {
+		int nbLatches = 0;
+		for (int id : goalCone) {
+			if (latches.get(id)) {
+				nbLatches++;
+			}
+		}
+		int[] result = new int[nbLatches];
+		nbLatches = 0;
+		for (int id : goalCone) {
+			if (latches.get(id)) {
+				result[nbLatches++] = id;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the IDs of the given components and all components they depend on (not going through base propositions)
+	 * in increasing order
+	 */
+	private int[] getCone(int[] roots, BitSet coneSet) {
+		coneSet.clear();
+		int stackSize = 0;
+		for (int root : roots) {
+			if (!coneSet.get(root)) {
+				coneSet.set(root);
+				stack[stackSize++] = root;
+			}
+		}
+		while (stackSize > 0) {
+			int id = stack[--stackSize];
+			for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+				int input = inputSources[i];
+				if (!coneSet.get(input)) {
+					coneSet.set(input);
+					stack[stackSize++] = input;
+				}
+			}
+		}
+		int[] cone = new int[coneSet.cardinality()];
+		int i = 0;
+		for (int id = coneSet.nextSetBit(0); id != -1; id = coneSet.nextSetBit(id + 1)) {
+			cone[i++] = id;
+		}
+		return cone;
+	}
+
+	private static void clear(int[] cone, byte[] values) {
+		for (int id : cone) {
+			values[id] = UNKNOWN;
+		}
+	}
+
+	/**
+	 * computes the three-valued values of the components in the cone in topological order
+	 *
+	 * The values of base propositions are expected to be set already, inputs are unknown. Cyclic components
+	 * are unknown as well, which is not precise, but sound.
+	 */
+	private void evaluate(int[] cone, byte[] values) {
+		for (int id : cone) {
+			byte value;
+			switch (types[id]) {
+			case PropNetStructure.TYPE_BASE:
+				continue;
+			case PropNetStructure.TYPE_TRUE:
+				value = TRUE;
+				break;
+			case PropNetStructure.TYPE_FALSE:
+				value = FALSE;
+				break;
+			case PropNetStructure.TYPE_AND:
+				value = TRUE;
+				for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+					byte inputValue = values[inputSources[i]];
+					if (inputValue == FALSE) {
+						value = FALSE;
+						break;
+					} else if (inputValue == UNKNOWN) {
+						value = UNKNOWN;
+					}
+				}
+				break;
+			case PropNetStructure.TYPE_OR:
+				value = FALSE;
+				for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+					byte inputValue = values[inputSources[i]];
+					if (inputValue == TRUE) {
+						value = TRUE;
+						break;
+					} else if (inputValue == UNKNOWN) {
+						value = UNKNOWN;
+					}
+				}
+				break;
+			case PropNetStructure.TYPE_NOT:
+				value = values[inputSources[inputOffsets[id]]];
+				if (value != UNKNOWN) {
+					value = (value == TRUE ? FALSE : TRUE);
+				}
+				break;
+			case PropNetStructure.TYPE_PIPE:
+				value = values[inputSources[inputOffsets[id]]];
+				break;
+			default:
+				value = UNKNOWN;
+				break;
+			}
+			if (cyclicComponents.get(id)) {
+				value = UNKNOWN;
+			}
+			values[id] = value;
+		}
+	}
+
+	/**
+	 * @return a new GoalChecker for this analysis (GoalCheckers must not be shared between threads)
+	 */
+	public GoalChecker newGoalChecker() {
+		return new GoalChecker();
+	}
+
+	/**
+	 * checks whether the goals of states are decided by the latches
+	 *
+	 * The result for the last set of latches is remembered, so checking all states of a playout
+	 * is cheap as long as no new latches become fixed. In games where the latches change often, but
+	 * hardly ever decide the goals (e.g., every move marks a cell), most checks are skipped once
+	 * MAX_FAILURES checks in a row failed, so the check can miss some states with fixed goals.
+	 */
+	public class GoalChecker {
+
+		private final byte[] values = new byte[types.length];
+
+		// a hash of the latches with fixed values in the state that was checked last and the result for it
+		private long lastHash = 0;
+		private boolean lastResult = false;
+		private final int[] lastGoals;
+
+		// number of computations in a row that did not find fixed goals and number of calls since then
+		private int nbFailures = 0;
+		private int nbSkipped = 0;
+
+		private GoalChecker() {
+			lastGoals = new int[structure.getRoles().length];
+		}
+
+		/**
+		 * @param state
+		 * @param goalsOut receives the goal value of each role, if the goals are decided
+		 * @return true if the goal value of every role is the same in all terminal states that can be reached from state
+		 */
+		public boolean getFixedGoals(InternalStateInterface state, int[] goalsOut) {
+			if (nbFailures >= MAX_FAILURES && (++nbSkipped & SKIP_MASK) != 0) {
+				// the check hardly ever succeeds in this game, so we only do it now and then
+				return false;
+			}
+			long hash = 0;
+			for (int id : relevantPositiveLatches) {
+				if (state.get(id)) {
+					hash ^= getKey(id);
+				}
+			}
+			for (int id : relevantNegativeLatches) {
+				if (!state.get(id)) {
+					hash ^= getKey(types.length + id);
+				}
+			}
+			if (hash == 0) {
+				// no latch has a fixed value
+				return false;
+			}
+			if (hash != lastHash) {
+				lastHash = hash;
+				lastResult = computeFixedGoals(state);
+				nbFailures = (lastResult ? 0 : nbFailures + 1);
+			}
+			if (lastResult) {
+				for (int rid = 0; rid < goalsOut.length; rid++) {
+					goalsOut[rid] = lastGoals[rid];
+				}
+			}
+			return lastResult;
+		}
+
+		private boolean computeFixedGoals(InternalStateInterface state) {
+			clear(goalCone, values);
+			for (int id : relevantPositiveLatches) {
+				if (state.get(id)) {
+					values[id] = TRUE;
+				}
+			}
+			for (int id : relevantNegativeLatches) {
+				if (!state.get(id)) {
+					values[id] = FALSE;
+				}
+			}
+			evaluate(goalCone, values);
+			for (int rid = 0; rid < lastGoals.length; rid++) {
+				StaticComponent[] goals = structure.getGoalPropositions(rid);
+				int[] goalValues = structure.getGoalValues(rid);
+				int i = 0;
+				while (i < goals.length && values[goals[i].id] != TRUE) {
+					i++;
+				}
+				if (i == goals.length) {
+					return false;
+				}
+				lastGoals[rid] = goalValues[i];
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return a pseudo-random 64 bit key for the number (finalizer of the SplitMix64 generator)
+	 */
+	private static long getKey(int n) {
+		long z = (n + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
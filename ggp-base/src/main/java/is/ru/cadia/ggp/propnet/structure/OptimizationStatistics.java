@@ -0,0 +1,107 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import is.ru.cadia.ggp.propnet.structure.DynamicPropnetOptimizer.Pass;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * the time spent in and the benefit (number of optimizations done) of each pass of the
+ * DynamicPropnetOptimizer, summed up over all runs on one game
+ *
+ * A pass that took a noticeable amount of time in several runs without optimizing anything is considered
+ * useless for the game and skipped in future runs. A single run is not enough, because the time of one
+ * run can be dominated by the JIT compiler or garbage collection.
+ *
+ * @author stephan
+ *
+ */
+public class OptimizationStatistics {
+
+	// a pass has to run for at least that long without any benefit (in ns) to be considered useless
+	private static final long MIN_TIME_FOR_USELESS = 50000000L;
+	// and it has to be run at least that many times
+	private static final int MIN_RUNS_FOR_USELESS = 3;
+
+	private final long[] times = new long[Pass.values().length];
+	private final long[] benefits = new long[Pass.values().length];
+	private final int[] runs = new int[Pass.values().length];
+
+	/**
+	 * adds the results of one run of the pass
+	 */
+	public synchronized void add(Pass pass, long time, long benefit) {
+		times[pass.ordinal()] += time;
+		benefits[pass.ordinal()] += benefit;
+		runs[pass.ordinal()]++;
+	}
+
+	/**
+	 * @return the total time spent in the pass in ns
+	 */
+	public synchronized long getTime(Pass pass) {
+		return times[pass.ordinal()];
+	}
+
+	/**
+	 * @return the total number of optimizations done by the pass
+	 */
+	public synchronized long getBenefit(Pass pass) {
+		return benefits[pass.ordinal()];
+	}
+
+	/**
+	 * @return the number of runs of the pass
+	 */
+	public synchronized int getRuns(Pass pass) {
+		return runs[pass.ordinal()];
+	}
+
+	public synchronized boolean isUseless(Pass pass) {
+		return benefits[pass.ordinal()] == 0 && times[pass.ordinal()] >= MIN_TIME_FOR_USELESS
+				&& runs[pass.ordinal()] >= MIN_RUNS_FOR_USELESS;
+	}
+
+	/**
+	 * reads statistics from a file written by save(),
+	 * returns empty statistics if the file does not exist or can't be read
+	 */
+	public static OptimizationStatistics load(File file) {
+		OptimizationStatistics statistics = new OptimizationStatistics();
+		if (!file.exists()) {
+			return statistics;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+			for (Pass pass : Pass.values()) {
+				String name = pass.name().toLowerCase();
+				statistics.times[pass.ordinal()] = Long.parseLong(properties.getProperty(name + ".time", "0"));
+				statistics.benefits[pass.ordinal()] = Long.parseLong(properties.getProperty(name + ".benefit", "0"));
+				statistics.runs[pass.ordinal()] = Integer.parseInt(properties.getProperty(name + ".runs", "0"));
+			}
+		} catch (IOException | NumberFormatException e) {
+			System.out.println("could not read optimization statistics from '" + file + "': " + e);
+			return new OptimizationStatistics();
+		}
+		return statistics;
+	}
+
+	public synchronized void save(File file) throws IOException {
+		Properties properties = new Properties();
+		for (Pass pass : Pass.values()) {
+			String name = pass.name().toLowerCase();
+			properties.setProperty(name + ".time", Long.toString(times[pass.ordinal()]));
+			properties.setProperty(name + ".benefit", Long.toString(benefits[pass.ordinal()]));
+			properties.setProperty(name + ".runs", Integer.toString(runs[pass.ordinal()]));
+		}
+		try (OutputStream out = new FileOutputStream(file)) {
+			properties.store(out, "optimization statistics");
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.statemachine.Role;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * an on-disk cache of propnet structures keyed by a hash of the canonical form of the game rules (see CanonicalRules)
+ *
+ * Propnets are stored with canonical symbol names, so that a propnet can be reused for a scrambled version
+ * of the same game. Files are written atomically (to a temporary file that is then renamed), validated when
+ * they are loaded and the least recently used files are deleted when the cache grows larger than its size limit.
+ * Besides propnets, the cache owns the optimizer statistics and evaluator weights of games, which count towards
+ * the size limit as well. The cache directory should not contain any other files of these types, because they
+ * might get deleted.
+ *
+ * @author stephan
+ *
+ */
+public class PropNetCache {
+
+	/**
+	 * the directory of the default cache, a subdirectory of the one with the propnets that are part of the repository
+	 */
+	public static final String DEFAULT_DIRECTORY = "propnets" + File.separator + "cache";
+	/**
+	 * the system property with the size limit of the default cache in MB,
+	 * everything using the same cache directory should use the same limit
+	 */
+	public static final String MAX_SIZE_PROPERTY = "propnet.cache.size";
+	private static final long DEFAULT_MAX_SIZE_MB = 256;
+
+	private static final String EXTENSION = ".propnet";
+	private static final String TMP_EXTENSION = ".tmp";
+	private static final String STATISTICS_EXTENSION = ".stats";
+	private static final String WEIGHTS_EXTENSION = ".weights";
+
+	private static PropNetCache defaultCache = null;
+
+	private final File directory;
+	private final long maxSize;
+
+	/**
+	 * @param directory the directory to store propnets in
+	 * @param maxSize the maximal size of all propnets in the cache in bytes
+	 */
+	public PropNetCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return a cache in the "propnets/cache" directory with a size limit of getDefaultMaxSize()
+	 */
+	public static synchronized PropNetCache getDefault() {
+		if (defaultCache == null) {
+			defaultCache = new PropNetCache(new File(DEFAULT_DIRECTORY), getDefaultMaxSize());
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * @return the size limit of the default cache in bytes, the value of the system property
+	 * MAX_SIZE_PROPERTY (in MB) or 256MB if it is not set
+	 */
+	public static long getDefaultMaxSize() {
+		return Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE_MB) << 20;
+	}
+
+	/**
+	 * loads the propnet structure for the given rules from the cache, if it exists and is valid,
+	 * otherwise creates it with the factory and stores it in the cache (unless the optimization of
+	 * the propnet was stopped at the deadline of the factory)
+	 * @throws InterruptedException
+	 */
+	public PropNetStructure get(PropNetStructureFactory factory, List<Gdl> description) throws InterruptedException {
+		Stopwatch stopWatch = new Stopwatch().start();
+		CanonicalRules canonicalRules = CanonicalRules.compute(description);
+		String key = canonicalRules.getHash();
+		System.out.println("computing rules hash took: " + stopWatch.elapsed(TimeUnit.MILLISECONDS)/1000.0 + "s");
+		File file = new File(directory, key + "_" + factory.getIdentifier() + EXTENSION);
+
+		if (file.exists()) {
+			stopWatch.reset().start();
+			try {
+				PropNetStructure structure = BinaryPropNetFormat.read(file);
+				structure.renameSymbols(canonicalRules.getFromCanonical());
+				validate(structure, description);
+				// remember that this file was used recently
+				file.setLastModified(System.currentTimeMillis());
+				System.out.println("propnet loaded from '" + file + "' in " + stopWatch.elapsed(TimeUnit.MILLISECONDS)/1000.0 + "s");
+				return structure;
+			} catch (IOException | RuntimeException e) {
+				System.out.println("cached propnet '" + file + "' is not usable (" + e + "), deleting it");
+				file.delete();
+			}
+		}
+
+		// optimizer statistics are small and usually outlive the propnet in the cache, so the next time
+		// the propnet is created the optimizer can skip passes that were useless for this game
+		File statisticsFile = new File(directory, key + "_" + factory.getIdentifier() + STATISTICS_EXTENSION);
+		OptimizationStatistics statistics = OptimizationStatistics.load(statisticsFile);
+		factory.setOptimizationStatistics(statistics);
+		PropNetStructure structure;
+		try {
+			structure = factory.create(description);
+		} finally {
+			factory.setOptimizationStatistics(null);
+		}
+		try {
+			directory.mkdirs();
+			statistics.save(statisticsFile);
+		} catch (IOException e) {
+			System.out.println("could not save optimization statistics to '" + statisticsFile + "': " + e);
+		}
+		if (!factory.isOptimizationFinished()) {
+			// the next player to create this propnet might have more time to optimize it
+			System.out.println("propnet was not optimized completely, not saving it to '" + file + "'");
+			return structure;
+		}
+		stopWatch.reset().start();
+		structure.renameSymbols(canonicalRules.getToCanonical());
+		try {
+			write(structure, file);
+			System.out.println("propnet saved to '" + file + "' in " + stopWatch.elapsed(TimeUnit.MILLISECONDS)/1000.0 + "s");
+			evict(file);
+		} catch (IOException e) {
+			System.out.println("could not save propnet to '" + file + "': " + e);
+		} finally {
+			structure.renameSymbols(canonicalRules.getFromCanonical());
+		}
+		return structure;
+	}
+
+	/**
+	 * @return true if there is a propnet for the given rules and factory in the cache (which might still be unusable)
+	 */
+	public boolean contains(PropNetStructureFactory factory, List<Gdl> description) {
+		String key = CanonicalRules.compute(description).getHash();
+		return new File(directory, key + "_" + factory.getIdentifier() + EXTENSION).exists();
+	}
+
+	/**
+	 * @return the optimizer statistics for the given rules and factory (empty statistics if there are none)
+	 */
+	public OptimizationStatistics getOptimizationStatistics(PropNetStructureFactory factory, List<Gdl> description) {
+		String key = CanonicalRules.compute(description).getHash();
+		return OptimizationStatistics.load(new File(directory, key + "_" + factory.getIdentifier() + STATISTICS_EXTENSION));
+	}
+
+	/**
+	 * @return the file for the evaluator weights of the game (see LinearEvaluator), which might not exist
+	 */
+	public File getEvaluatorWeightsFile(CanonicalRules canonicalRules) {
+		return new File(directory, canonicalRules.getHash() + WEIGHTS_EXTENSION);
+	}
+
+	/**
+	 * writes the structure to a temporary file first and renames it afterwards, such that other players
+	 * using the same cache never see incomplete files
+	 */
+	private void write(PropNetStructure structure, File file) throws IOException {
+		directory.mkdirs();
+		File tmpFile = File.createTempFile(file.getName(), TMP_EXTENSION, directory);
+		try {
+			BinaryPropNetFormat.write(structure, tmpFile);
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * checks that the loaded structure fits the rules and is consistent,
+	 * throws an InvalidObjectException otherwise
+	 */
+	private static void validate(PropNetStructure structure, List<Gdl> description) throws InvalidObjectException {
+		List<Role> roles = Role.computeRoles(description);
+		if (!roles.equals(Arrays.asList(structure.getRoles()))) {
+			throw new InvalidObjectException("roles do not match: " + Arrays.toString(structure.getRoles()));
+		}
+		StaticComponent[] components = structure.getComponents();
+		int nbComponents = components.length;
+		for (int id = 0; id < nbComponents; id++) {
+			StaticComponent c = components[id];
+			if (c == null || c.id != id || c.type == null || c.inputs == null || c.outputs == null) {
+				throw new InvalidObjectException("component " + id + " is broken");
+			}
+			for (int input : c.inputs) {
+				if (input < 0 || input >= nbComponents) {
+					throw new InvalidObjectException("component " + id + " has invalid input " + input);
+				}
+			}
+			for (int output : c.outputs) {
+				if (output < 0 || output >= nbComponents) {
+					throw new InvalidObjectException("component " + id + " has invalid output " + output);
+				}
+			}
+		}
+		BaseProposition[] bases = structure.getBasePropositions();
+		for (int id = 0; id < bases.length; id++) {
+			if (bases[id] == null || bases[id].id != id || components[id] != bases[id] || bases[id].nextComponent == null) {
+				throw new InvalidObjectException("base proposition " + id + " is broken");
+			}
+			for (int i = 0; i < bases[id].sentences.length; i++) {
+				if (bases[id].sentences[i].getName() != GdlPool.TRUE) {
+					throw new InvalidObjectException("base proposition " + id + " has invalid sentence " + bases[id].sentences[i]);
+				}
+			}
+		}
+		for (int rid = 0; rid < roles.size(); rid++) {
+			for (PropNetMove m : structure.getPossibleMoves(rid)) {
+				if (components[m.getInputComponent().id] != m.getInputComponent() || components[m.getLegalComponent().id] != m.getLegalComponent()) {
+					throw new InvalidObjectException("move " + m + " of role " + roles.get(rid) + " is broken");
+				}
+			}
+			if (structure.getGoalPropositions(rid).length != structure.getGoalValues(rid).length) {
+				throw new InvalidObjectException("goals of role " + roles.get(rid) + " are broken");
+			}
+		}
+		if (structure.getTerminalProposition() == null) {
+			throw new InvalidObjectException("terminal proposition is missing");
+		}
+	}
+
+	/**
+	 * deletes the least recently used files of the cache (propnets, optimizer statistics and evaluator weights)
+	 * until the cache fits its size limit again
+	 * @param keep a file that should not be deleted
+	 */
+	public void evict(File keep) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				String name = f.getName();
+				return f.isFile() && (name.endsWith(EXTENSION) || name.endsWith(STATISTICS_EXTENSION) || name.endsWith(WEIGHTS_EXTENSION));
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		long size = 0;
+		final long[] lastModified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			size += files[i].length();
+			lastModified[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Long.compare(lastModified[i1], lastModified[i2]);
+			}
+		});
+		for (int i = 0; i < files.length && size > maxSize; i++) {
+			File f = files[order[i]];
+			if (!f.equals(keep)) {
+				long length = f.length();
+				if (f.delete()) {
+					System.out.println("deleted '" + f + "' from the propnet cache");
+					size -= length;
+				}
+			}
+		}
+	}
+}
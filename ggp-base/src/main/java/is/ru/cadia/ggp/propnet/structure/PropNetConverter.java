@@ -0,0 +1,75 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * converts .propnet files written with Java serialization into the binary format of BinaryPropNetFormat
+ *
+ * Usage: PropNetConverter [file or directory]... (default: propnets)
+ *
+ * Files are converted in place, files that are already in the binary format are skipped.
+ *
+ * @author stephan
+ *
+ */
+public class PropNetConverter {
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			args = new String[] {"propnets"};
+		}
+		for (String arg : args) {
+			File file = new File(arg);
+			if (file.isDirectory()) {
+				File[] files = file.listFiles();
+				if (files != null) {
+					for (File f : files) {
+						if (f.isFile() && f.getName().endsWith(".propnet")) {
+							convert(f);
+						}
+					}
+				}
+			} else {
+				convert(file);
+			}
+		}
+	}
+
+	public static boolean convert(File file) {
+		try {
+			if (BinaryPropNetFormat.isBinaryPropNetFile(file)) {
+				System.out.println(file + ": already converted");
+				return true;
+			}
+			long oldSize = file.length();
+			Stopwatch stopWatch = new Stopwatch().start();
+			PropNetStructure structure = PropNetStructure.readFromSerializedFile(file);
+			long oldTime = stopWatch.elapsed(TimeUnit.MILLISECONDS);
+
+			File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+			try {
+				BinaryPropNetFormat.write(structure, tmpFile);
+				stopWatch.reset().start();
+				PropNetStructure check = BinaryPropNetFormat.read(tmpFile);
+				long newTime = stopWatch.elapsed(TimeUnit.MILLISECONDS);
+				if (check.getNbComponents() != structure.getNbComponents() || check.getNbBasePropositions() != structure.getNbBasePropositions()) {
+					throw new IOException("converted propnet differs from the original");
+				}
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				System.out.println(file + ": " + oldSize + " -> " + file.length() + " bytes, loading took " + oldTime + "ms -> " + newTime + "ms");
+			} finally {
+				tmpFile.delete();
+			}
+			return true;
+		} catch (IOException | ClassNotFoundException | RuntimeException e) {
+			System.out.println(file + ": conversion failed (" + e + ")");
+			return false;
+		}
+	}
+}
@@ -0,0 +1,723 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * splits a propnet into independent subgames (factors), e.g., the boards of double tictactoe
+ *
+ * Base propositions whose values do not depend on any input, not even through other base propositions
+ * (e.g., step counters or a control proposition that alternates every turn), are shared by all factors.
+ * So are inputs that don't influence any base proposition and whose legal components only depend on shared
+ * base propositions (e.g., noop). Other base propositions and inputs are in the same factor, if
+ * - the next component of one base proposition depends on the other base proposition or input,
+ * - the legal component of an input depends on the base proposition or
+ * - both base propositions are part of the same condition of the terminal or a goal proposition, where
+ *   the conditions are what is left after splitting the propositions at disjunctions, conjunctions and negations
+ *   of components that do not directly depend on base propositions (e.g., the lines of a tictactoe board)
+ * ignoring the shared base propositions and inputs. Thus, boards that are linked only by whose turn it is
+ * become factors of their own, as long as the turn does not depend on the moves.
+ *
+ * Exactly one input of each role is true in every step, so a disjunction of inputs of a role is the negation of
+ * the disjunction of the other inputs of the role. Disjunctions of inputs are counted as depending on whichever
+ * of the two sets of inputs is smaller. This way, a frame axiom like "a cell stays blank if a mark is made
+ * somewhere else" only depends on the marks of the cell itself.
+ *
+ * makeSubStructure creates a PropNetStructure for a single factor, which can be used with any PropNetStateMachine.
+ * In that structure, the base propositions of the other factors are frozen and only the moves of the factor
+ * (and the shared ones) are possible, so searching it only branches over the moves of the factor.
+ * Moves of the sub-structure have the same contents as the corresponding ones in the original structure,
+ * so they can be mapped back with PropNetStructure.getPropNetMove(int, Move), except for the additional PASS moves.
+ *
+ * Inputs of other factors are replaced by the PASS move of their role, because playing in another factor
+ * means passing in this one. In games with a shared control proposition, the sub-structure of a factor
+ * assumes that every turn is played in the factor as long as that is possible.
+ * Games where the control depends on the moves (e.g., a player that captures gets another turn) are not factored.
+ *
+ * @author stephan
+ *
+ */
+public class PropNetFactoring {
+
+	/**
+	 * the move of a role in a sub-structure, while it has no legal move in the factor
+	 */
+	public static final GdlTerm PASS = GdlPool.getConstant("factor_pass");
+
+	private final PropNetStructure structure;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputSources;
+
+	// the role of each input component (-1 for other components)
+	private final int[] roleOfInput;
+	// components that are disjunctions of inputs (ORs that only have inputs and other such ORs as inputs)
+	private final BitSet inputDisjunctions;
+	// the inputs each of the disjunctions depends on (see getDisjunctionDependencies)
+	private final Map<Integer, int[]> disjunctionDependencies = new HashMap<>();
+
+	// union-find over base propositions and inputs
+	private final int[] parent;
+	// used by getCone and getDependencies
+	private final int[] stack;
+	private final BitSet visited;
+
+	private final List<Factor> factors = new ArrayList<>();
+	private final BitSet sharedBases = new BitSet();
+	private final BitSet sharedInputs = new BitSet();
+
+	/**
+	 * the base propositions and inputs of one factor
+	 */
+	public static class Factor {
+		private final BitSet bases = new BitSet();
+		private final BitSet inputs = new BitSet();
+		private boolean isRelevant = false;
+
+		/**
+		 * @return the IDs of the base propositions of the factor, must not be modified
+		 */
+		public BitSet getBases() {
+			return bases;
+		}
+
+		/**
+		 * @return the IDs of the input components of the factor, must not be modified
+		 */
+		public BitSet getInputs() {
+			return inputs;
+		}
+
+		/**
+		 * @return false if neither the terminal nor any goal proposition depends on the factor,
+		 * so it does not matter what is played there
+		 */
+		public boolean isRelevant() {
+			return isRelevant;
+		}
+
+		@Override
+		public String toString() {
+			return "Factor {#bases: " + bases.cardinality() + ", #inputs: " + inputs.cardinality() + ", relevant: " + isRelevant + "}";
+		}
+	}
+
+	private PropNetFactoring(PropNetStructure structure) {
+		this.structure = structure;
+		types = structure.getComponentTypes();
+		inputOffsets = structure.getInputOffsets();
+		inputSources = structure.getInputSources();
+		parent = new int[types.length];
+		stack = new int[types.length];
+		visited = new BitSet(types.length);
+		for (int id = 0; id < parent.length; id++) {
+			parent[id] = id;
+		}
+		roleOfInput = new int[types.length];
+		Arrays.fill(roleOfInput, -1);
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			for (PropNetMove move : structure.getPossibleMoves(rid)) {
+				roleOfInput[move.getInputComponent().id] = rid;
+			}
+		}
+		// inputs of a component have smaller IDs, except in cycles, so one pass in the order of IDs is enough
+		inputDisjunctions = new BitSet(types.length);
+		for (int id = 0; id < types.length; id++) {
+			if (types[id] != PropNetStructure.TYPE_OR || inputOffsets[id] == inputOffsets[id + 1]) {
+				continue;
+			}
+			boolean isDisjunction = true;
+			for (int i = inputOffsets[id]; i < inputOffsets[id + 1] && isDisjunction; i++) {
+				int input = inputSources[i];
+				isDisjunction = types[input] == PropNetStructure.TYPE_INPUT || input < id && inputDisjunctions.get(input);
+			}
+			if (isDisjunction) {
+				inputDisjunctions.set(id);
+			}
+		}
+	}
+
+	/**
+	 * @return the factoring of the structure (which might consist of a single factor)
+	 */
+	public static PropNetFactoring compute(PropNetStructure structure) {
+		PropNetFactoring factoring = new PropNetFactoring(structure);
+		BitSet inputsWithEffects = factoring.findSharedBases();
+		factoring.findSharedInputs(inputsWithEffects);
+		factoring.joinDependentComponents();
+		factoring.joinGoalAndTerminalConditions();
+		factoring.makeFactors();
+		return factoring;
+	}
+
+	/**
+	 * @return the factors, there is always at least one
+	 */
+	public List<Factor> getFactors() {
+		return factors;
+	}
+
+	/**
+	 * @return the IDs of the base propositions that do not depend on any input, must not be modified
+	 */
+	public BitSet getSharedBases() {
+		return sharedBases;
+	}
+
+	/**
+	 * @return the IDs of the inputs that are independent of all base propositions, must not be modified
+	 */
+	public BitSet getSharedInputs() {
+		return sharedInputs;
+	}
+
+	/**
+	 * @return true if the game consists of more than one factor
+	 */
+	public boolean isFactored() {
+		return factors.size() > 1;
+	}
+
+	private int find(int id) {
+		while (parent[id] != id) {
+			parent[id] = parent[parent[id]];
+			id = parent[id];
+		}
+		return id;
+	}
+
+	private void union(int id1, int id2) {
+		int root1 = find(id1);
+		int root2 = find(id2);
+		if (root1 != root2) {
+			parent[root1] = root2;
+		}
+	}
+
+	/**
+	 * sets sharedBases to the base propositions whose values do not depend on any input
+	 * @return the inputs that the next component of some base proposition depends on
+	 */
+	private BitSet findSharedBases() {
+		BaseProposition[] bases = structure.getBasePropositions();
+		// dependents[q] are the base propositions whose next components depend on q
+		List<List<Integer>> dependents = new ArrayList<>(bases.length);
+		for (int i = 0; i < bases.length; i++) {
+			dependents.add(new ArrayList<Integer>());
+		}
+		BitSet dependsOnInput = new BitSet(bases.length);
+		BitSet inputsWithEffects = new BitSet(types.length);
+		List<Integer> queue = new ArrayList<>();
+		BitSet cone = new BitSet(types.length);
+		for (BaseProposition p : bases) {
+			getCone(new int[] {p.nextComponent.id}, cone);
+			for (int id = cone.nextSetBit(0); id != -1; id = cone.nextSetBit(id + 1)) {
+				if (types[id] == PropNetStructure.TYPE_BASE) {
+					dependents.get(id).add(p.id);
+				} else if (types[id] == PropNetStructure.TYPE_INPUT) {
+					inputsWithEffects.set(id);
+					if (!dependsOnInput.get(p.id)) {
+						dependsOnInput.set(p.id);
+						queue.add(p.id);
+					}
+				}
+			}
+		}
+		while (!queue.isEmpty()) {
+			int id = queue.remove(queue.size() - 1);
+			for (int dependent : dependents.get(id)) {
+				if (!dependsOnInput.get(dependent)) {
+					dependsOnInput.set(dependent);
+					queue.add(dependent);
+				}
+			}
+		}
+		sharedBases.set(0, bases.length);
+		sharedBases.andNot(dependsOnInput);
+		return inputsWithEffects;
+	}
+
+	/**
+	 * sets sharedInputs to the inputs without effects whose legal components only depend on shared base propositions
+	 */
+	private void findSharedInputs(BitSet inputsWithEffects) {
+		BitSet cone = new BitSet(types.length);
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			for (PropNetMove move : structure.getPossibleMoves(rid)) {
+				int input = move.getInputComponent().id;
+				if (inputsWithEffects.get(input)) {
+					continue;
+				}
+				getCone(new int[] {move.getLegalComponent().id}, cone);
+				boolean isShared = true;
+				for (int id = cone.nextSetBit(0); id != -1 && isShared; id = cone.nextSetBit(id + 1)) {
+					isShared = types[id] != PropNetStructure.TYPE_INPUT && (types[id] != PropNetStructure.TYPE_BASE || sharedBases.get(id));
+				}
+				if (isShared) {
+					sharedInputs.set(input);
+				}
+			}
+		}
+	}
+
+	private void joinDependentComponents() {
+		BitSet dependencies = new BitSet(types.length);
+		for (BaseProposition p : structure.getBasePropositions()) {
+			if (sharedBases.get(p.id)) {
+				continue;
+			}
+			getDependencies(p.nextComponent.id, dependencies);
+			joinAll(p.id, dependencies);
+		}
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			for (PropNetMove move : structure.getPossibleMoves(rid)) {
+				int input = move.getInputComponent().id;
+				if (sharedInputs.get(input)) {
+					continue;
+				}
+				getDependencies(move.getLegalComponent().id, dependencies);
+				joinAll(input, dependencies);
+			}
+		}
+	}
+
+	/**
+	 * joins the base propositions of each condition of the terminal and goal propositions
+	 * (see the class comment)
+	 */
+	private void joinGoalAndTerminalConditions() {
+		List<Integer> queue = new ArrayList<>();
+		queue.add(structure.getTerminalProposition().id);
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			for (StaticComponent goal : structure.getGoalPropositions(rid)) {
+				queue.add(goal.id);
+			}
+		}
+		BitSet seen = new BitSet(types.length);
+		BitSet dependencies = new BitSet(types.length);
+		while (!queue.isEmpty()) {
+			int id = queue.remove(queue.size() - 1);
+			if (seen.get(id)) {
+				continue;
+			}
+			seen.set(id);
+			byte type = types[id];
+			boolean isConnective = type == PropNetStructure.TYPE_AND || type == PropNetStructure.TYPE_OR
+					|| type == PropNetStructure.TYPE_NOT || type == PropNetStructure.TYPE_PIPE;
+			for (int i = inputOffsets[id]; i < inputOffsets[id + 1] && isConnective; i++) {
+				isConnective = types[inputSources[i]] != PropNetStructure.TYPE_BASE;
+			}
+			if (isConnective) {
+				for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+					queue.add(inputSources[i]);
+				}
+			} else {
+				getDependencies(id, dependencies);
+				int first = dependencies.nextSetBit(0);
+				if (first != -1) {
+					joinAll(first, dependencies);
+				}
+			}
+		}
+	}
+
+	/**
+	 * joins id with all components in the given set
+	 */
+	private void joinAll(int id, BitSet components) {
+		for (int other = components.nextSetBit(0); other != -1; other = components.nextSetBit(other + 1)) {
+			union(id, other);
+		}
+	}
+
+	/**
+	 * sets dependencies to the base propositions and inputs (except shared ones) the given component depends on
+	 * in the current state, where disjunctions of inputs are replaced by getDisjunctionDependencies
+	 */
+	private void getDependencies(int root, BitSet dependencies) {
+		dependencies.clear();
+		visited.clear();
+		visited.set(root);
+		stack[0] = root;
+		int stackSize = 1;
+		while (stackSize > 0) {
+			int id = stack[--stackSize];
+			if (types[id] == PropNetStructure.TYPE_BASE) {
+				if (!sharedBases.get(id)) {
+					dependencies.set(id);
+				}
+			} else if (types[id] == PropNetStructure.TYPE_INPUT) {
+				if (!sharedInputs.get(id)) {
+					dependencies.set(id);
+				}
+			} else if (inputDisjunctions.get(id)) {
+				for (int input : getDisjunctionDependencies(id)) {
+					dependencies.set(input);
+				}
+			} else {
+				for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+					int input = inputSources[i];
+					if (!visited.get(input)) {
+						visited.set(input);
+						stack[stackSize++] = input;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the inputs (except shared ones) the disjunction depends on: for every role, either the inputs
+	 * of the role in the disjunction or the other inputs of the role, whichever are fewer
+	 */
+	private int[] getDisjunctionDependencies(int disjunction) {
+		int[] result = disjunctionDependencies.get(disjunction);
+		if (result != null) {
+			return result;
+		}
+		BitSet inputs = new BitSet(types.length);
+		List<Integer> queue = new ArrayList<>();
+		queue.add(disjunction);
+		while (!queue.isEmpty()) {
+			int id = queue.remove(queue.size() - 1);
+			for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+				int input = inputSources[i];
+				if (types[input] == PropNetStructure.TYPE_INPUT) {
+					inputs.set(input);
+				} else {
+					queue.add(input);
+				}
+			}
+		}
+		BitSet dependencies = new BitSet(types.length);
+		for (int id = inputs.nextSetBit(0); id != -1; id = inputs.nextSetBit(id + 1)) {
+			if (roleOfInput[id] == -1) {
+				dependencies.set(id);
+			}
+		}
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			BitSet included = new BitSet(types.length);
+			BitSet excluded = new BitSet(types.length);
+			for (PropNetMove move : structure.getPossibleMoves(rid)) {
+				int input = move.getInputComponent().id;
+				if (inputs.get(input)) {
+					included.set(input);
+				} else {
+					excluded.set(input);
+				}
+			}
+			if (included.isEmpty()) {
+				continue;
+			}
+			included.andNot(sharedInputs);
+			excluded.andNot(sharedInputs);
+			dependencies.or(excluded.cardinality() < included.cardinality() ? excluded : included);
+		}
+		result = new int[dependencies.cardinality()];
+		int i = 0;
+		for (int id = dependencies.nextSetBit(0); id != -1; id = dependencies.nextSetBit(id + 1)) {
+			result[i++] = id;
+		}
+		disjunctionDependencies.put(disjunction, result);
+		return result;
+	}
+
+	private void makeFactors() {
+		Map<Integer, Factor> factorByRoot = new HashMap<>();
+		// bases and inputs in groups without inputs resp. without bases are shared
+		BitSet rootsWithBases = new BitSet();
+		BitSet rootsWithInputs = new BitSet();
+		for (int id = 0; id < types.length; id++) {
+			if (types[id] == PropNetStructure.TYPE_BASE && !sharedBases.get(id)) {
+				rootsWithBases.set(find(id));
+			} else if (types[id] == PropNetStructure.TYPE_INPUT && !sharedInputs.get(id)) {
+				rootsWithInputs.set(find(id));
+			}
+		}
+		for (int id = 0; id < types.length; id++) {
+			if (types[id] != PropNetStructure.TYPE_BASE && types[id] != PropNetStructure.TYPE_INPUT
+					|| sharedBases.get(id) || sharedInputs.get(id)) {
+				continue;
+			}
+			int root = find(id);
+			if (!rootsWithBases.get(root) || !rootsWithInputs.get(root)) {
+				if (types[id] == PropNetStructure.TYPE_BASE) {
+					sharedBases.set(id);
+				} else {
+					sharedInputs.set(id);
+				}
+				continue;
+			}
+			Factor factor = factorByRoot.get(root);
+			if (factor == null) {
+				factor = new Factor();
+				factorByRoot.put(root, factor);
+				factors.add(factor);
+			}
+			if (types[id] == PropNetStructure.TYPE_BASE) {
+				factor.bases.set(id);
+			} else {
+				factor.inputs.set(id);
+			}
+		}
+		if (factors.isEmpty()) {
+			// nothing depends on the moves, so there is only one (trivial) factor
+			factors.add(new Factor());
+		}
+		// find out which factors matter for the outcome of the game
+		int[] roots = new int[1];
+		roots[0] = structure.getTerminalProposition().id;
+		BitSet cone = new BitSet(types.length);
+		getCone(roots, cone);
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			for (StaticComponent goal : structure.getGoalPropositions(rid)) {
+				roots[0] = goal.id;
+				BitSet goalCone = new BitSet(types.length);
+				getCone(roots, goalCone);
+				cone.or(goalCone);
+			}
+		}
+		int nbRelevant = 0;
+		for (Factor factor : factors) {
+			factor.isRelevant = factor.bases.intersects(cone);
+			if (factor.isRelevant) {
+				nbRelevant++;
+			}
+		}
+		System.out.println("propnet factoring: " + factors.size() + " factors (" + nbRelevant + " relevant), shared bases: "
+				+ sharedBases.cardinality() + ", shared inputs: " + sharedInputs.cardinality());
+	}
+
+	/**
+	 * sets cone to the given components and all components they depend on in the current state
+	 * (that is, not going through base propositions)
+	 */
+	private void getCone(int[] roots, BitSet cone) {
+		cone.clear();
+		int stackSize = 0;
+		for (int root : roots) {
+			if (!cone.get(root)) {
+				cone.set(root);
+				stack[stackSize++] = root;
+			}
+		}
+		while (stackSize > 0) {
+			int id = stack[--stackSize];
+			if (types[id] == PropNetStructure.TYPE_BASE) {
+				continue;
+			}
+			for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+				int input = inputSources[i];
+				if (!cone.get(input)) {
+					cone.set(input);
+					stack[stackSize++] = input;
+				}
+			}
+		}
+	}
+
+	/**
+	 * creates a structure for playing only the given factor
+	 *
+	 * The structure contains the base propositions of the factor, the shared ones and (frozen) copies of the base
+	 * propositions of other factors, as far as they are needed. Each role gets an additional move PASS that is
+	 * legal whenever the role has no legal move in the factor. Inputs of other factors are replaced by the PASS
+	 * input of their role.
+	 * @param factor one of getFactors()
+	 * @param state the values of the base propositions in the initial state of the new structure,
+	 * the initial state of the game is used if state is null
+	 * @return the structure
+	 */
+	public PropNetStructure makeSubStructure(Factor factor, InternalStateInterface state) {
+		int nbRoles = structure.getRoles().length;
+		BitSet moveInputs = new BitSet();
+		moveInputs.or(factor.inputs);
+		moveInputs.or(sharedInputs);
+		BitSet bases = new BitSet();
+		bases.or(factor.bases);
+		bases.or(sharedBases);
+
+		// collect all components we need
+		List<Integer> rootList = new ArrayList<>();
+		for (int id = bases.nextSetBit(0); id != -1; id = bases.nextSetBit(id + 1)) {
+			rootList.add(id);
+			rootList.add(((BaseProposition)structure.getComponent(id)).nextComponent.id);
+		}
+		int[] nbMoves = new int[nbRoles];
+		for (int rid = 0; rid < nbRoles; rid++) {
+			for (PropNetMove move : structure.getPossibleMoves(rid)) {
+				if (moveInputs.get(move.getInputComponent().id)) {
+					rootList.add(move.getInputComponent().id);
+					rootList.add(move.getLegalComponent().id);
+					nbMoves[rid]++;
+				}
+			}
+			for (StaticComponent goal : structure.getGoalPropositions(rid)) {
+				rootList.add(goal.id);
+			}
+		}
+		rootList.add(structure.getTerminalProposition().id);
+		int[] roots = new int[rootList.size()];
+		for (int i = 0; i < roots.length; i++) {
+			roots[i] = rootList.get(i);
+		}
+		BitSet kept = new BitSet(types.length);
+		getCone(roots, kept);
+
+		// number the kept components in the old order, this keeps base propositions first and the order topological
+		int[] newIds = new int[types.length];
+		int nbComponents = 0;
+		int nbBases = 0;
+		for (int id = kept.nextSetBit(0); id != -1; id = kept.nextSetBit(id + 1)) {
+			newIds[id] = nbComponents++;
+			if (types[id] == PropNetStructure.TYPE_BASE) {
+				nbBases++;
+			}
+		}
+		StaticComponent[] components = new StaticComponent[nbComponents];
+		Map<GdlSentence, BaseProposition> basePropBySentence = new HashMap<>(2 * nbBases);
+		// the first needed input of another factor of each role becomes the PASS input of the role
+		StaticComponent[] passInputs = new StaticComponent[nbRoles];
+		boolean isCyclic = false;
+		for (int id = kept.nextSetBit(0); id != -1; id = kept.nextSetBit(id + 1)) {
+			StaticComponent c = structure.getComponent(id);
+			int newId = newIds[id];
+			int[] inputs = mapIds(c.inputs, kept, newIds);
+			int[] outputs = mapIds(c.outputs, kept, newIds);
+			isCyclic = isCyclic || c.isCyclic;
+			if (c.type == Type.BASE) {
+				BaseProposition p = new BaseProposition(newId, Type.BASE, inputs, outputs, ((BaseProposition)c).sentences);
+				p.isCyclic = c.isCyclic;
+				p.initialValue = (state == null ? ((BaseProposition)c).initialValue : state.get(id));
+				components[newId] = p;
+				for (GdlSentence sentence : p.sentences) {
+					basePropBySentence.put(sentence, p);
+				}
+			} else if (c.type == Type.INPUT && !moveInputs.get(id)) {
+				int rid = roleOfInput[id];
+				if (rid == -1) {
+					components[newId] = new StaticComponent(newId, Type.FALSE, inputs, outputs, c.isCyclic);
+				} else if (passInputs[rid] == null) {
+					components[newId] = new StaticComponent(newId, Type.INPUT, inputs, outputs, c.isCyclic);
+					passInputs[rid] = components[newId];
+				} else {
+					components[newId] = new StaticComponent(newId, Type.PIPE, new int[] {passInputs[rid].id}, outputs, c.isCyclic);
+					passInputs[rid].outputs = Arrays.copyOf(passInputs[rid].outputs, passInputs[rid].outputs.length + 1);
+					passInputs[rid].outputs[passInputs[rid].outputs.length - 1] = newId;
+				}
+			} else {
+				components[newId] = new StaticComponent(newId, c.type, inputs, outputs, c.isCyclic);
+			}
+		}
+		for (int id = kept.nextSetBit(0); id != -1 && id < structure.getNbBasePropositions(); id = kept.nextSetBit(id + 1)) {
+			BaseProposition p = (BaseProposition)components[newIds[id]];
+			if (bases.get(id)) {
+				p.nextComponent = components[newIds[((BaseProposition)structure.getComponent(id)).nextComponent.id]];
+			} else {
+				// base propositions of other factors keep their value
+				p.nextComponent = p;
+			}
+		}
+
+		Role[] roles = structure.getRoles();
+		Map<Role, Integer> role2id = new HashMap<>(nbRoles);
+		PropNetMove[][] possibleMoves = new PropNetMove[nbRoles][];
+		StaticComponent[][] goalProps = new StaticComponent[nbRoles][];
+		int[][] goalValues = new int[nbRoles][];
+		List<StaticComponent> passComponents = new ArrayList<>();
+		for (int rid = 0; rid < nbRoles; rid++) {
+			role2id.put(roles[rid], rid);
+			possibleMoves[rid] = new PropNetMove[nbMoves[rid] + 1];
+			BitSet legals = new BitSet();
+			int i = 0;
+			for (PropNetMove move : structure.getPossibleMoves(rid)) {
+				if (moveInputs.get(move.getInputComponent().id)) {
+					possibleMoves[rid][i++] = new PropNetMove(components[newIds[move.getInputComponent().id]],
+							components[newIds[move.getLegalComponent().id]], move.getContents());
+					legals.set(newIds[move.getLegalComponent().id]);
+				}
+			}
+			possibleMoves[rid][i] = makePassMove(components, legals, passInputs[rid], nbComponents + passComponents.size(), passComponents);
+			StaticComponent[] oldGoalProps = structure.getGoalPropositions(rid);
+			goalProps[rid] = new StaticComponent[oldGoalProps.length];
+			for (i = 0; i < oldGoalProps.length; i++) {
+				goalProps[rid][i] = components[newIds[oldGoalProps[i].id]];
+			}
+			goalValues[rid] = structure.getGoalValues(rid).clone();
+		}
+		StaticComponent terminal = components[newIds[structure.getTerminalProposition().id]];
+		components = Arrays.copyOf(components, nbComponents + passComponents.size());
+		for (StaticComponent c : passComponents) {
+			components[c.id] = c;
+		}
+		return new PropNetStructure(components, role2id, roles.clone(), basePropBySentence,
+				possibleMoves, goalProps, goalValues, terminal, isCyclic);
+	}
+
+	/**
+	 * creates the components for a pass move that is legal if none of the given legal components is true
+	 * @param components the components, outputs of the legal components are updated
+	 * @param legals IDs of the legal components of the moves of the role in the factor
+	 * @param input the input component for the move or null, if a new one has to be created
+	 * @param firstId the ID for the first new component
+	 * @param newComponents receives the new components
+	 * @return the pass move
+	 */
+	private static PropNetMove makePassMove(StaticComponent[] components, BitSet legals, StaticComponent input, int firstId, List<StaticComponent> newComponents) {
+		StaticComponent legal;
+		if (legals.isEmpty()) {
+			legal = new StaticComponent(firstId, Type.TRUE, new int[0], new int[0], false);
+			newComponents.add(legal);
+		} else {
+			int orId = firstId;
+			int[] inputs = new int[legals.cardinality()];
+			int i = 0;
+			for (int id = legals.nextSetBit(0); id != -1; id = legals.nextSetBit(id + 1)) {
+				inputs[i++] = id;
+				StaticComponent c = components[id];
+				c.outputs = Arrays.copyOf(c.outputs, c.outputs.length + 1);
+				c.outputs[c.outputs.length - 1] = orId;
+			}
+			newComponents.add(new StaticComponent(orId, Type.OR, inputs, new int[] {orId + 1}, false));
+			legal = new StaticComponent(orId + 1, Type.NOT, new int[] {orId}, new int[0], false);
+			newComponents.add(legal);
+		}
+		if (input == null) {
+			input = new StaticComponent(legal.id + 1, Type.INPUT, new int[0], new int[0], false);
+			newComponents.add(input);
+		}
+		return new PropNetMove(input, legal, PASS);
+	}
+
+	private static int[] mapIds(int[] ids, BitSet kept, int[] newIds) {
+		int n = 0;
+		for (int id : ids) {
+			if (kept.get(id)) {
+				n++;
+			}
+		}
+		int[] result = new int[n];
+		n = 0;
+		for (int id : ids) {
+			if (kept.get(id)) {
+				result[n++] = newIds[id];
+			}
+		}
+		return result;
+	}
+}
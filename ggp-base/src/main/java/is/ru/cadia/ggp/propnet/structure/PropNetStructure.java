@@ -3,21 +3,25 @@ package is.ru.cadia.ggp.propnet.structure;
 import is.ru.cadia.ggp.propnet.PropNetMove;
 import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
 import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent.Type;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.statemachine.Move;
@@ -36,6 +40,25 @@ import org.ggp.base.util.statemachine.Role;
 @SuppressWarnings("serial")
 public class PropNetStructure implements Serializable {
 
+	/**
+	 * the codes of component types in getComponentTypes() (the ordinals of StaticComponent.Type)
+	 */
+	public static final byte TYPE_INIT = 0;
+	public static final byte TYPE_TRUE = 1;
+	public static final byte TYPE_FALSE = 2;
+	public static final byte TYPE_BASE = 3;
+	public static final byte TYPE_INPUT = 4;
+	public static final byte TYPE_AND = 5;
+	public static final byte TYPE_NOT = 6;
+	public static final byte TYPE_OR = 7;
+	public static final byte TYPE_PIPE = 8;
+
+	static {
+		assert Type.INIT.ordinal() == TYPE_INIT && Type.TRUE.ordinal() == TYPE_TRUE && Type.FALSE.ordinal() == TYPE_FALSE
+				&& Type.BASE.ordinal() == TYPE_BASE && Type.INPUT.ordinal() == TYPE_INPUT && Type.AND.ordinal() == TYPE_AND
+				&& Type.NOT.ordinal() == TYPE_NOT && Type.OR.ordinal() == TYPE_OR && Type.PIPE.ordinal() == TYPE_PIPE;
+	}
+
 	/**
      * number of components in the propnet
      */
@@ -107,6 +130,24 @@ public class PropNetStructure implements Serializable {
 
 	private boolean isCyclic;
 
+	/**
+	 * flat copy of the components' types, inputs, outputs and cyclic flags in CSR format
+	 *
+	 * the inputs of component id are inputSources[inputOffsets[id]..inputOffsets[id+1]-1], outputs alike
+	 */
+	private transient byte[] types = null;
+	private transient int[] inputOffsets = null;
+	private transient int[] inputSources = null;
+	private transient int[] outputOffsets = null;
+	private transient int[] outputTargets = null;
+	private transient BitSet cyclicComponents = null;
+
+	/**
+	 * the latches of the propnet, computed on first use (see getLatchAnalysis())
+	 */
+	private transient LatchAnalysis latchAnalysis = null;
+	private transient boolean latchAnalysisDone = false;
+
 	/**
 	 * This method is used by PropNetStructureFactory classes to create the PropNetStructure.
 	 * Don't call it directly.
@@ -116,6 +157,21 @@ public class PropNetStructure implements Serializable {
 			Map<GdlSentence, BaseProposition> basePropBySentence,
 			PropNetMove[][] possibleMoves, StaticComponent[][] goalProps, int[][] goalValues,
 			StaticComponent terminalProposition, boolean isCyclic) {
+		this(componentById, role2id, roleById, basePropBySentence, possibleMoves, goalProps, goalValues,
+				terminalProposition, isCyclic, null, null, null, null, null, null);
+	}
+
+	/**
+	 * used by BinaryPropNetFormat, which reads the flat representation of the components from the file,
+	 * if types is null, the flat representation is created from the components
+	 */
+	PropNetStructure(StaticComponent[] componentById,
+			Map<Role, Integer> role2id, Role[] roleById,
+			Map<GdlSentence, BaseProposition> basePropBySentence,
+			PropNetMove[][] possibleMoves, StaticComponent[][] goalProps, int[][] goalValues,
+			StaticComponent terminalProposition, boolean isCyclic,
+			byte[] types, int[] inputOffsets, int[] inputSources, int[] outputOffsets, int[] outputTargets,
+			BitSet cyclicComponents) {
 		super();
 		nbComponents = componentById.length;
 		this.componentById = componentById;
@@ -157,6 +213,52 @@ public class PropNetStructure implements Serializable {
 		this.terminalProposition = terminalProposition;
 
 		this.isCyclic = isCyclic;
+		if (types == null) {
+			makeFlatRepresentation();
+		} else {
+			assert types.length == nbComponents && inputOffsets.length == nbComponents + 1 && outputOffsets.length == nbComponents + 1;
+			this.types = types;
+			this.inputOffsets = inputOffsets;
+			this.inputSources = inputSources;
+			this.outputOffsets = outputOffsets;
+			this.outputTargets = outputTargets;
+			this.cyclicComponents = cyclicComponents;
+		}
+	}
+
+	/**
+	 * (re-)creates the flat representation of the components from the StaticComponents
+	 */
+	private void makeFlatRepresentation() {
+		types = new byte[nbComponents];
+		cyclicComponents = new BitSet(nbComponents);
+		int nbInputs = 0;
+		int nbOutputs = 0;
+		for (StaticComponent c : componentById) {
+			types[c.id] = (byte)c.type.ordinal();
+			if (c.isCyclic) {
+				cyclicComponents.set(c.id);
+			}
+			nbInputs += c.inputs.length;
+			nbOutputs += c.outputs.length;
+		}
+		inputOffsets = new int[nbComponents + 1];
+		inputSources = new int[nbInputs];
+		outputOffsets = new int[nbComponents + 1];
+		outputTargets = new int[nbOutputs];
+		nbInputs = 0;
+		nbOutputs = 0;
+		for (int id = 0; id < nbComponents; id++) {
+			StaticComponent c = componentById[id];
+			inputOffsets[id] = nbInputs;
+			System.arraycopy(c.inputs, 0, inputSources, nbInputs, c.inputs.length);
+			nbInputs += c.inputs.length;
+			outputOffsets[id] = nbOutputs;
+			System.arraycopy(c.outputs, 0, outputTargets, nbOutputs, c.outputs.length);
+			nbOutputs += c.outputs.length;
+		}
+		inputOffsets[nbComponents] = nbInputs;
+		outputOffsets[nbComponents] = nbOutputs;
 	}
 
 //	private void checkInfluencedComponents(BaseProposition p) {
@@ -219,6 +321,48 @@ public class PropNetStructure implements Serializable {
 		return componentById;
 	}
 
+	/**
+	 * @return the type code (one of the TYPE_* constants) of each component by ID, must not be modified
+	 */
+	public byte[] getComponentTypes() {
+		return types;
+	}
+
+	/**
+	 * @return offsets into getInputSources() by component ID (with one additional entry at the end), must not be modified
+	 */
+	public int[] getInputOffsets() {
+		return inputOffsets;
+	}
+
+	/**
+	 * @return the inputs of all components, must not be modified
+	 */
+	public int[] getInputSources() {
+		return inputSources;
+	}
+
+	/**
+	 * @return offsets into getOutputTargets() by component ID (with one additional entry at the end), must not be modified
+	 */
+	public int[] getOutputOffsets() {
+		return outputOffsets;
+	}
+
+	/**
+	 * @return the outputs of all components, must not be modified
+	 */
+	public int[] getOutputTargets() {
+		return outputTargets;
+	}
+
+	/**
+	 * @return the IDs of all components that are part of a cycle, must not be modified
+	 */
+	public BitSet getCyclicComponents() {
+		return cyclicComponents;
+	}
+
 //	/**
 //	 * sets the given input components in the state to true (and all the others to false)
 //	 * also resets the computed bits for anything that might have been influenced by that change
@@ -341,21 +485,137 @@ public class PropNetStructure implements Serializable {
 		return isCyclic;
 	}
 
-	public void writeToFile(File file) throws FileNotFoundException, IOException {
-		file.getParentFile().mkdirs();
-		ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream(file));
-		os.writeObject(this);
-		os.close();
+	/**
+	 * replaces all constants in the roles, base propositions and moves of the propnet according to the given mapping
+	 *
+	 * This is used to store propnets independent of the symbol names in the game description (see PropNetCache).
+	 * Must not be called while the structure is used by a state machine.
+	 * @param renaming maps constants to their new names, constants that are not in the mapping are left untouched
+	 */
+	public void renameSymbols(Map<GdlConstant, GdlConstant> renaming) {
+		role2id = new HashMap<>(nbRoles);
+		for (int rid = 0; rid < nbRoles; rid++) {
+			roleById[rid] = new Role((GdlConstant)CanonicalRules.rename(roleById[rid].getName(), renaming));
+			role2id.put(roleById[rid], rid);
+		}
+		basePropBySentence = new HashMap<>(basePropBySentence.size());
+		for (BaseProposition p : basePropositions) {
+			for (int i = 0; i < p.sentences.length; i++) {
+				p.sentences[i] = CanonicalRules.rename(p.sentences[i], renaming);
+				basePropBySentence.put(p.sentences[i], p);
+			}
+		}
+		for (int rid = 0 ; rid < nbRoles ; rid++) {
+			propNetMovesPerRole[rid].clear();
+			for (int i = 0; i < possibleMoves[rid].length; i++) {
+				PropNetMove m = possibleMoves[rid][i];
+				m = new PropNetMove(m.getInputComponent(), m.getLegalComponent(), CanonicalRules.rename(m.getContents(), renaming));
+				possibleMoves[rid][i] = m;
+				propNetMovesPerRole[rid].put(m, m);
+			}
+		}
+	}
+
+	/**
+	 * gives new IDs to all components, e.g., ones computed by LocalityOrdering
+	 *
+	 * Base propositions must keep IDs below getNbBasePropositions(). Inputs and outputs of each component
+	 * are sorted by their new IDs.
+	 * Must not be called while the structure is used by a state machine.
+	 * @param newIds newIds[id] is the new ID of the component with ID id (a permutation of 0..getNbComponents()-1)
+	 */
+	public void renumberComponents(int[] newIds) {
+		assert newIds.length == nbComponents;
+		StaticComponent[] newComponentById = new StaticComponent[nbComponents];
+		for (StaticComponent c : componentById) {
+			assert newComponentById[newIds[c.id]] == null;
+			for (int i = 0; i < c.inputs.length; i++) {
+				c.inputs[i] = newIds[c.inputs[i]];
+			}
+			Arrays.sort(c.inputs);
+			for (int i = 0; i < c.outputs.length; i++) {
+				c.outputs[i] = newIds[c.outputs[i]];
+			}
+			Arrays.sort(c.outputs);
+			c.id = newIds[c.id];
+			newComponentById[c.id] = c;
+		}
+		componentById = newComponentById;
+		BaseProposition[] newBasePropositions = new BaseProposition[nbBasePropositions];
+		for (BaseProposition p : basePropositions) {
+			assert p.id < nbBasePropositions;
+			newBasePropositions[p.id] = p;
+		}
+		basePropositions = newBasePropositions;
+		makeFlatRepresentation();
+		latchAnalysis = null;
+		latchAnalysisDone = false;
 	}
 
-	public static PropNetStructure readFromFile(File file) throws FileNotFoundException, IOException, ClassNotFoundException {
-		ObjectInputStream is = new ObjectInputStream(new FileInputStream(file));
-		Object o = is.readObject();
-		is.close();
-		if (o instanceof PropNetStructure) {
-			return (PropNetStructure)o;
-		} else {
-			throw new InvalidObjectException("Object is not of type PropNetStructure: " + o.getClass());
+	/**
+	 * finds the latches of the propnet the first time it is called
+	 * @return the analysis or null, if the components are not in topological order
+	 */
+	public synchronized LatchAnalysis getLatchAnalysis() {
+		if (!latchAnalysisDone) {
+			latchAnalysis = LatchAnalysis.compute(this);
+			latchAnalysisDone = true;
+		}
+		return latchAnalysis;
+	}
+
+	/**
+	 * writes the structure to a file in the binary format of BinaryPropNetFormat
+	 */
+	public void writeToFile(File file) throws IOException {
+		BinaryPropNetFormat.write(this, file);
+	}
+
+	/**
+	 * reads a structure from a file in the binary format of BinaryPropNetFormat
+	 */
+	public static PropNetStructure readFromFile(File file) throws IOException {
+		return BinaryPropNetFormat.read(file);
+	}
+
+	/**
+	 * reads a structure from a file that was written with Java serialization (the format of older versions)
+	 *
+	 * The serialVersionUIDs of the classes in the file are ignored: for classes whose serialVersionUID differs from
+	 * the local one, the local class descriptor is used. Hence, files can be read as long as the serialized
+	 * fields of the classes did not change, files with added or removed fields can not be read.
+	 */
+	public static PropNetStructure readFromSerializedFile(File file) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream is = new LenientObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			Object o = is.readObject();
+			if (o instanceof PropNetStructure) {
+				PropNetStructure structure = (PropNetStructure)o;
+				structure.makeFlatRepresentation();
+				return structure;
+			} else {
+				throw new InvalidObjectException("Object is not of type PropNetStructure: " + o.getClass());
+			}
+		}
+	}
+
+	/**
+	 * uses the descriptors of the local classes instead of the ones in the stream for classes with a different
+	 * serialVersionUID, such that files written by older versions of the classes with the same fields can be read
+	 */
+	private static class LenientObjectInputStream extends ObjectInputStream {
+
+		public LenientObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			ObjectStreamClass streamDescriptor = super.readClassDescriptor();
+			ObjectStreamClass localDescriptor = ObjectStreamClass.lookup(Class.forName(streamDescriptor.getName()));
+			if (localDescriptor != null && localDescriptor.getSerialVersionUID() != streamDescriptor.getSerialVersionUID()) {
+				return localDescriptor;
+			}
+			return streamDescriptor;
 		}
 	}
 }
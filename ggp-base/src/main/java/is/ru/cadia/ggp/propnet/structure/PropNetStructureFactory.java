@@ -10,8 +10,6 @@ import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntStack;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
@@ -38,7 +36,16 @@ import com.google.common.base.Stopwatch;
 
 public abstract class PropNetStructureFactory {
 
-	private static final String PROPNETSPATH = "propnets";
+	private PropNetCache cache = null;
+
+	// when to stop optimizing the propnet
+	private long optimizationDeadline = Long.MAX_VALUE;
+	private OptimizationStatistics optimizationStatistics = null;
+	// false if optimizing the last propnet was stopped at the deadline
+	private boolean optimizationFinished = true;
+
+	// whether to renumber the components of created or loaded propnets with LocalityOrdering
+	private boolean renumberForLocality = false;
 
 	private DynamicComponentPool componentPool;
 	private List<Role> roles;
@@ -71,39 +78,74 @@ public abstract class PropNetStructureFactory {
 	public abstract PropNetStructure create(List<Gdl> description) throws InterruptedException;
 
 	/**
-	 * tries to load an existing propnet structure for the given game, assuming that the game name uniquely identifies the game
+	 * sets a cache that is used by createOrLoad(description)
+	 * @param cache the cache or null for not caching propnets
+	 */
+	public void setCache(PropNetCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * sets the time at which optimizing the propnet should stop, such that the propnet is ready in time
+	 * @param deadline a time as in System.currentTimeMillis() or Long.MAX_VALUE for no deadline
+	 */
+	public void setOptimizationDeadline(long deadline) {
+		this.optimizationDeadline = deadline;
+	}
+
+	/**
+	 * @return false if the optimization of the propnet created last was stopped at the optimization deadline,
+	 * so a propnet created without (or with a later) deadline would be smaller
+	 */
+	public boolean isOptimizationFinished() {
+		return optimizationFinished;
+	}
+
+	/**
+	 * sets the statistics of previous optimizer runs for the game that is created next,
+	 * they get updated when the propnet is optimized
+	 * @param statistics the statistics or null
+	 */
+	public void setOptimizationStatistics(OptimizationStatistics statistics) {
+		this.optimizationStatistics = statistics;
+	}
+
+	/**
+	 * sets whether createOrLoad(description) should renumber the components of the propnet such that
+	 * components that are used together are close to each other in memory (see LocalityOrdering)
+	 */
+	public void setRenumberForLocality(boolean renumberForLocality) {
+		this.renumberForLocality = renumberForLocality;
+	}
+
+	/**
+	 * tries to load an existing propnet structure for the game from the cache (if there is one)
 	 *
-	 * if no file exists, creates the propnet and saves it to a file
-	 * @throws IOException
+	 * if there is no propnet for the game in the cache, creates the propnet and adds it to the cache
 	 */
-	public PropNetStructure create(String gameName, List<Gdl> description) throws InterruptedException, IOException {
-		if (gameName == null) {
-			return create(description);
-		}
-		File propNetFile = getPropNetFileForGame(gameName);
-		PropNetStructure propnetStructure = null;
-		try {
-			propnetStructure = PropNetStructure.readFromFile(propNetFile);
-			System.out.println("propnet loaded from '" + propNetFile + "'");
-		} catch (ClassNotFoundException	| IOException e) {
-			System.out.println("File " + propNetFile + " does not exist or is not readable!");
+	public PropNetStructure createOrLoad(List<Gdl> description) throws InterruptedException {
+		PropNetStructure structure;
+		if (cache == null) {
+			structure = create(description);
+		} else {
+			structure = cache.get(this, description);
 		}
-		if (propnetStructure == null) {
-			propnetStructure = create(description);
-			System.out.println("saving propnet to '" + propNetFile + "' ...");
-			propnetStructure.writeToFile(propNetFile);
+		if (renumberForLocality) {
+			Stopwatch stopWatch = new Stopwatch().start();
+			if (LocalityOrdering.renumber(structure)) {
+				System.out.println("renumbering components took: " + stopWatch.elapsed(TimeUnit.MILLISECONDS)/1000.0 + "s");
+			} else {
+				System.out.println("components are not in topological order, not renumbering them");
+			}
 		}
-		return propnetStructure;
+		return structure;
 	}
 
-	private File getPropNetFileForGame(String gameName) {
-		String factoryIdentifier;
-		if (this instanceof ASPPropNetStructureFactory) {
-			factoryIdentifier = "asp";
-		} else {
-			factoryIdentifier = "base";
-		};
-		return new File(PROPNETSPATH, gameName + "_" + factoryIdentifier + ".propnet");
+	/**
+	 * @return a name for the kind of propnets this factory creates, used to distinguish cached propnets of different factories
+	 */
+	public String getIdentifier() {
+		return "base";
 	}
 
 	////////////////////////////////
@@ -191,7 +233,9 @@ public abstract class PropNetStructureFactory {
 //		// optimize the propnet
 		Stopwatch stopWatch = new Stopwatch().start();
 		DynamicPropnetOptimizer optimizer = new DynamicPropnetOptimizer(componentPool);
-		optimizer.run();
+		optimizer.setStatistics(optimizationStatistics);
+		optimizer.run(optimizationDeadline);
+		optimizationFinished = optimizer.isFinished();
 		System.out.println("optimizations took: " + stopWatch.elapsed(TimeUnit.MILLISECONDS)/1000.0 + "s");
 
 		ConcurrencyUtils.checkForInterruption();
@@ -0,0 +1,76 @@
+package org.ggp.base.apps.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.player.gamer.statemachine.AlphaBetaGamer;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * AlphaBetaBenchmark compares the move ordering heuristics of AlphaBetaGamer by the number of nodes
+ * that are expanded to search the initial state of a game to a fixed depth
+ *
+ * The effective branching factor is nodes^(1/depth), i.e., the branching factor of a uniform tree
+ * of the same depth with the same number of nodes. Better move ordering means more cutoffs and thus
+ * a smaller effective branching factor.
+ *
+ * Usage: AlphaBetaBenchmark <game> <depth> [<time limit in seconds>]
+ *   game is either a .kif file or the key of a game in the default game repository
+ *
+ * Example: AlphaBetaBenchmark connectFour 8
+ */
+public class AlphaBetaBenchmark {
+
+	private static final String[] CONFIGURATIONS = {"propnet order", "hash move", "hash move + killers", "hash move + history", "hash move + killers + history"};
+	// useHashMove, useKillers, useHistory of each configuration
+	private static final boolean[][] HEURISTICS = {
+		{false, false, false},
+		{true, false, false},
+		{true, true, false},
+		{true, false, true},
+		{true, true, true}};
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: AlphaBetaBenchmark <game> <depth> [<time limit in seconds>]");
+			System.exit(1);
+		}
+		Game game = MonteCarloBenchmark.loadGame(args[0]);
+		int depth = Integer.parseInt(args[1]);
+		int timeLimit = (args.length > 2 ? Integer.parseInt(args[2]) : 600);
+		List<String> results = new ArrayList<>();
+		for (int i = 0; i < CONFIGURATIONS.length; i++) {
+			AlphaBetaGamer gamer = new AlphaBetaGamer(HEURISTICS[i][0], HEURISTICS[i][1], HEURISTICS[i][2]);
+			gamer.setMaxSearchDepth(depth);
+			long start = System.currentTimeMillis();
+			run(gamer, game, timeLimit);
+			long time = System.currentTimeMillis() - start;
+			long nodes = gamer.getExpandedNodes();
+			if (gamer.getCompletedDepth() < depth) {
+				results.add(String.format("%-30s timed out at depth %d", CONFIGURATIONS[i], gamer.getCompletedDepth()));
+			} else {
+				// the game tree might be smaller than the depth
+				int treeDepth = (gamer.getCompletedDepth() == Integer.MAX_VALUE ? depth : gamer.getCompletedDepth());
+				results.add(String.format("%-30s %12d nodes %8.3f effective branching factor %8.1f s",
+						CONFIGURATIONS[i], nodes, Math.pow(nodes, 1.0 / treeDepth), time / 1000.0));
+			}
+		}
+		System.out.println();
+		System.out.println(args[0] + ", depth " + depth + ":");
+		for (String result : results) {
+			System.out.println(result);
+		}
+		System.exit(0);
+	}
+
+	private static void run(AlphaBetaGamer gamer, Game game, int timeLimit) throws Exception {
+		Match match = new Match("benchmark." + Match.getRandomString(5), -1, timeLimit, 10, game, "");
+		gamer.setMatch(match);
+		gamer.setRoleName(Role.computeRoles(game.getRules()).get(0).getName());
+		// the meta game searches the initial state
+		gamer.metaGame(System.currentTimeMillis() + timeLimit * 1000L);
+		gamer.stop();
+	}
+}
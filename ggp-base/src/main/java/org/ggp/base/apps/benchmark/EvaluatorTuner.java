@@ -0,0 +1,267 @@
+package org.ggp.base.apps.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.Move;
+
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachine;
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.heuristic.LinearEvaluator;
+import is.ru.cadia.ggp.propnet.structure.CanonicalRules;
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
+
+/**
+ * EvaluatorTuner tunes the weights of the LinearEvaluator of a game offline by self-play
+ *
+ * In each iteration a number of games is played where every role picks the move with the best
+ * evaluation of the successor state (with the moves of the other roles chosen at random) or, with
+ * probability epsilon, a random move. Then the weights of each role are fitted to predict the final
+ * goal of the role from the features of the states of these games (ridge regression). The next
+ * iteration plays with the new weights.
+ *
+ * The weights are saved in the default PropNetCache, where the gamers using LinearEvaluator find them.
+ *
+ * Usage: EvaluatorTuner <game> [<games per iteration> [<iterations> [<epsilon>]]]
+ *   game is either a .kif file or the key of a game in the default game repository
+ *
+ * Example: EvaluatorTuner breakthrough 200 5 0.1
+ */
+public class EvaluatorTuner {
+
+	private static final double RIDGE = 1e-3;
+
+	private final PropNetBitSetStateMachine machine;
+	private final LinearEvaluator<InternalBitSetState> evaluator;
+	private final int nbRoles;
+	private final int nbFeatures;
+	private final double epsilon;
+	private final Random random = new Random();
+
+	// samples of the current iteration for each role: feature values and final goals
+	private final List<List<double[]>> features;
+	private final List<List<Integer>> goals;
+
+	public EvaluatorTuner(PropNetBitSetStateMachine machine, LinearEvaluator<InternalBitSetState> evaluator, double epsilon) {
+		this.machine = machine;
+		this.evaluator = evaluator;
+		this.epsilon = epsilon;
+		nbRoles = machine.getRoles().size();
+		nbFeatures = evaluator.getNbFeatures();
+		features = new ArrayList<>(nbRoles);
+		goals = new ArrayList<>(nbRoles);
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			features.add(new ArrayList<double[]>());
+			goals.add(new ArrayList<Integer>());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: EvaluatorTuner <game> [<games per iteration> [<iterations> [<epsilon>]]]");
+			System.exit(1);
+		}
+		Game game = MonteCarloBenchmark.loadGame(args[0]);
+		int nbGames = (args.length > 1 ? Integer.parseInt(args[1]) : 100);
+		int nbIterations = (args.length > 2 ? Integer.parseInt(args[2]) : 5);
+		double epsilon = (args.length > 3 ? Double.parseDouble(args[3]) : 0.1);
+
+		List<Gdl> rules = game.getRules();
+		PropNetCache cache = PropNetCache.getDefault();
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(cache);
+		PropNetBitSetStateMachine machine = new RecursiveForwardChangePropNetStateMachine(factory);
+		machine.initialize(rules);
+		LinearEvaluator<InternalBitSetState> evaluator = LinearEvaluator.create(machine, rules, cache);
+		System.out.println(evaluator.getNbFeatures() + " features");
+
+		EvaluatorTuner tuner = new EvaluatorTuner(machine, evaluator, epsilon);
+		for (int i = 0; i < nbIterations; i++) {
+			double[] averageGoals = tuner.playGames(nbGames);
+			double[] errors = tuner.fitWeights();
+			for (int roleId = 0; roleId < tuner.nbRoles; roleId++) {
+				System.out.printf("iteration %d, role %d: average goal %.1f, rms error %.2f%n", i, roleId, averageGoals[roleId], Math.sqrt(errors[roleId]));
+			}
+		}
+
+		CanonicalRules canonicalRules = CanonicalRules.compute(rules);
+		File file = cache.getEvaluatorWeightsFile(canonicalRules);
+		evaluator.saveWeights(file, canonicalRules.getToCanonical());
+		cache.evict(file);
+		for (int roleId = 0; roleId < tuner.nbRoles; roleId++) {
+			System.out.println("role " + roleId + ": bias " + evaluator.getBias(roleId));
+			for (int i = 0; i < evaluator.getNbFeatures(); i++) {
+				System.out.println("  " + evaluator.getFeatureName(i, null) + ": " + evaluator.getWeight(roleId, i));
+			}
+		}
+		System.out.println("weights saved to '" + file + "'");
+		System.exit(0);
+	}
+
+	/**
+	 * plays nbGames games with the current weights and collects the samples
+	 * @return the average goal of each role
+	 */
+	public double[] playGames(int nbGames) throws Exception {
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			features.get(roleId).clear();
+			goals.get(roleId).clear();
+		}
+		double[] goalSums = new double[nbRoles];
+		List<double[]> gameFeatures = new ArrayList<>();
+		for (int n = 0; n < nbGames; n++) {
+			gameFeatures.clear();
+			InternalBitSetState state = machine.getInternalInitialState();
+			while (!machine.isTerminal(state)) {
+				for (int roleId = 0; roleId < nbRoles; roleId++) {
+					double[] values = new double[nbFeatures];
+					evaluator.getFeatureValues(state, roleId, values);
+					gameFeatures.add(values);
+				}
+				state = machine.getNextState(state, selectJointMove(state), true);
+			}
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				int goal = machine.getGoal(state, roleId);
+				goalSums[roleId] += goal;
+				for (int i = roleId; i < gameFeatures.size(); i += nbRoles) {
+					features.get(roleId).add(gameFeatures.get(i));
+					goals.get(roleId).add(goal);
+				}
+			}
+		}
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			goalSums[roleId] /= nbGames;
+		}
+		return goalSums;
+	}
+
+	/**
+	 * each role picks its move greedily by the evaluation of the successor state (against random moves of the
+	 * other roles) or a random move with probability epsilon
+	 */
+	private PropNetMove[] selectJointMove(InternalBitSetState state) throws Exception {
+		PropNetMove[] jointMove = machine.getRandomJointMove(state);
+		PropNetMove[] selected = jointMove.clone();
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			List<Move> legals = machine.getLegalMoves(state, roleId);
+			if (legals.size() == 1 || random.nextDouble() < epsilon) {
+				continue;
+			}
+			int bestValue = -1;
+			int nbBest = 0;
+			for (Move move : legals) {
+				jointMove[roleId] = (PropNetMove)move;
+				InternalBitSetState next = machine.getNextState(state, jointMove, true);
+				int value = (machine.isTerminal(next) ? machine.getGoal(next, roleId) : evaluator.evaluate(next, roleId));
+				// break ties at random
+				if (value > bestValue) {
+					bestValue = value;
+					nbBest = 1;
+					selected[roleId] = (PropNetMove)move;
+				} else if (value == bestValue && random.nextInt(++nbBest) == 0) {
+					selected[roleId] = (PropNetMove)move;
+				}
+			}
+			jointMove[roleId] = selected[roleId];
+		}
+		return selected;
+	}
+
+	/**
+	 * sets the weights of each role to the least squares fit (with a small ridge penalty) of the final goals
+	 * of the current samples
+	 * @return the mean squared error of the new weights on the samples of each role
+	 */
+	public double[] fitWeights() {
+		double[] errors = new double[nbRoles];
+		int n = nbFeatures + 1;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			List<double[]> x = features.get(roleId);
+			List<Integer> y = goals.get(roleId);
+			if (x.isEmpty()) {
+				continue;
+			}
+			// normal equations (X'X + ridge * I) w = X'y with the bias as the last variable
+			double[][] a = new double[n][n + 1];
+			for (int s = 0; s < x.size(); s++) {
+				double[] f = x.get(s);
+				double goal = y.get(s);
+				for (int i = 0; i < n; i++) {
+					double fi = (i < nbFeatures ? f[i] : 1);
+					for (int j = i; j < n; j++) {
+						a[i][j] += fi * (j < nbFeatures ? f[j] : 1);
+					}
+					a[i][n] += fi * goal;
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < i; j++) {
+					a[i][j] = a[j][i];
+				}
+				if (i < nbFeatures) {
+					a[i][i] += RIDGE * x.size();
+				}
+			}
+			double[] w = solve(a, n);
+			evaluator.setWeights(roleId, w[nbFeatures], w);
+
+			double error = 0;
+			for (int s = 0; s < x.size(); s++) {
+				double[] f = x.get(s);
+				double prediction = w[nbFeatures];
+				for (int i = 0; i < nbFeatures; i++) {
+					prediction += w[i] * f[i];
+				}
+				error += (prediction - y.get(s)) * (prediction - y.get(s));
+			}
+			errors[roleId] = error / x.size();
+		}
+		return errors;
+	}
+
+	/**
+	 * solves the linear system given as the augmented n x (n+1) matrix a by Gaussian elimination with
+	 * partial pivoting (a is destroyed), variables with a singular column get 0
+	 */
+	private static double[] solve(double[][] a, int n) {
+		int[] pivotColumn = new int[n];
+		int row = 0;
+		for (int col = 0; col < n && row < n; col++) {
+			int pivot = row;
+			for (int i = row + 1; i < n; i++) {
+				if (Math.abs(a[i][col]) > Math.abs(a[pivot][col])) {
+					pivot = i;
+				}
+			}
+			if (Math.abs(a[pivot][col]) < 1e-12) {
+				continue;
+			}
+			double[] tmp = a[pivot];
+			a[pivot] = a[row];
+			a[row] = tmp;
+			for (int i = 0; i < n; i++) {
+				if (i != row && a[i][col] != 0) {
+					double factor = a[i][col] / a[row][col];
+					for (int j = col; j <= n; j++) {
+						a[i][j] -= factor * a[row][j];
+					}
+				}
+			}
+			pivotColumn[row] = col;
+			row++;
+		}
+		double[] x = new double[n];
+		for (int i = 0; i < row; i++) {
+			x[pivotColumn[i]] = a[i][n] / a[i][pivotColumn[i]];
+		}
+		return x;
+	}
+}
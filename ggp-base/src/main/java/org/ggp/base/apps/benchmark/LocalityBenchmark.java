@@ -0,0 +1,152 @@
+package org.ggp.base.apps.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.structure.BinaryPropNetFormat;
+import is.ru.cadia.ggp.propnet.structure.LocalityOrdering;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+
+/**
+ * compares the speed of random playouts on propnets before and after renumbering their components with LocalityOrdering
+ *
+ * Usage: LocalityBenchmark [seconds per run] [file or directory]... (default: 5 propnets)
+ *
+ * Besides state updates per second, it reports some proxies for cache misses that only depend on the numbering:
+ * - the average distance between the IDs of connected components
+ * - the fraction of links between components whose values are in different cache lines of the state
+ * - the average number of cache lines touched by the outputs of a component
+ *
+ * @author stephan
+ *
+ */
+public class LocalityBenchmark {
+
+	// number of component values in one (64 byte) cache line of a BitSet
+	private static final int BITS_PER_CACHE_LINE = 512;
+
+	public static void main(String[] args) {
+		long runTime = 5000;
+		int firstFile = 0;
+		if (args.length > 0 && args[0].matches("[0-9]+")) {
+			runTime = Long.parseLong(args[0]) * 1000;
+			firstFile = 1;
+		}
+		if (firstFile == args.length) {
+			args = new String[] {"propnets"};
+			firstFile = 0;
+		}
+		for (int i = firstFile; i < args.length; i++) {
+			File file = new File(args[i]);
+			if (file.isDirectory()) {
+				File[] files = file.listFiles();
+				if (files != null) {
+					Arrays.sort(files);
+					for (File f : files) {
+						if (f.isFile() && f.getName().endsWith(".propnet")) {
+							run(f, runTime);
+						}
+					}
+				}
+			} else {
+				run(file, runTime);
+			}
+		}
+	}
+
+	public static void run(File file, long runTime) {
+		PropNetStructure structure;
+		try {
+			if (BinaryPropNetFormat.isBinaryPropNetFile(file)) {
+				structure = BinaryPropNetFormat.read(file);
+			} else {
+				structure = PropNetStructure.readFromSerializedFile(file);
+			}
+		} catch (IOException | ClassNotFoundException | RuntimeException e) {
+			System.out.println(file + ": could not be loaded (" + e + ")");
+			return;
+		}
+		System.out.println(file + ": " + structure.getNbComponents() + " components");
+		try {
+			String before = benchmark(structure, runTime);
+			if (!LocalityOrdering.renumber(structure)) {
+				System.out.println("  components are not in topological order, skipping");
+				return;
+			}
+			String after = benchmark(structure, runTime);
+			System.out.println("  before: " + before);
+			System.out.println("  after:  " + after);
+		} catch (MoveDefinitionException | GoalDefinitionException | RuntimeException e) {
+			System.out.println("  playouts failed (" + e + ")");
+		}
+	}
+
+	private static String benchmark(PropNetStructure structure, long runTime) throws MoveDefinitionException, GoalDefinitionException {
+		StaticComponent[] components = structure.getComponents();
+		long nbLinks = 0;
+		long sumDistance = 0;
+		long nbCrossingLinks = 0;
+		long nbFanOuts = 0;
+		long sumFanOutLines = 0;
+		for (StaticComponent c : components) {
+			int[] lines = new int[c.outputs.length];
+			for (int i = 0; i < c.outputs.length; i++) {
+				int output = c.outputs[i];
+				nbLinks++;
+				sumDistance += Math.abs(output - c.id);
+				if (output / BITS_PER_CACHE_LINE != c.id / BITS_PER_CACHE_LINE) {
+					nbCrossingLinks++;
+				}
+				lines[i] = output / BITS_PER_CACHE_LINE;
+			}
+			if (lines.length > 0) {
+				Arrays.sort(lines);
+				int nbLines = 1;
+				for (int i = 1; i < lines.length; i++) {
+					if (lines[i] != lines[i - 1]) {
+						nbLines++;
+					}
+				}
+				nbFanOuts++;
+				sumFanOutLines += nbLines;
+			}
+		}
+
+		RecursiveForwardChangePropNetStateMachine stateMachine = new RecursiveForwardChangePropNetStateMachine(structure);
+		InternalBitSetState initialState = stateMachine.getInternalInitialState();
+		int[] goals = new int[structure.getRoles().length];
+		int[] depth = new int[1];
+		// warm up first
+		long end = System.currentTimeMillis() + runTime / 5;
+		while (System.currentTimeMillis() < end) {
+			stateMachine.playout(initialState, goals, depth);
+		}
+		long nbPlayouts = 0;
+		long nbUpdates = 0;
+		long start = System.currentTimeMillis();
+		end = start + runTime;
+		long now;
+		do {
+			stateMachine.playout(initialState, goals, depth);
+			nbPlayouts++;
+			nbUpdates += depth[0];
+			now = System.currentTimeMillis();
+		} while (now < end);
+		double seconds = (now - start) / 1000.0;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%.0f updates/s", nbUpdates / seconds));
+		sb.append(String.format(", %.0f playouts/s", nbPlayouts / seconds));
+		sb.append(String.format(", avg. link distance: %.1f", (double)sumDistance / Math.max(1, nbLinks)));
+		sb.append(String.format(", links across cache lines: %.1f%%", 100.0 * nbCrossingLinks / Math.max(1, nbLinks)));
+		sb.append(String.format(", cache lines per fan-out: %.2f", (double)sumFanOutLines / Math.max(1, nbFanOuts)));
+		return sb.toString();
+	}
+}
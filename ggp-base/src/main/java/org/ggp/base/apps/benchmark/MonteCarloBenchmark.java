@@ -0,0 +1,91 @@
+package org.ggp.base.apps.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.player.gamer.statemachine.SimulationCounter;
+import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.GameRepository;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * MonteCarloBenchmark compares the number of simulations per second of Monte Carlo gamers
+ * (anything implementing SimulationCounter), e.g., to see how well the parallel gamers scale
+ * with the number of threads.
+ *
+ * Each gamer plays the first role of the game and selects a move in the initial state a
+ * number of times, continuing with the same tree.
+ *
+ * Usage: MonteCarloBenchmark <game> <playclock in seconds> <number of moves> <gamer class>...
+ *   game is either a .kif file or the key of a game in the default game repository
+ *   gamer classes can be given without the package if they are in org.ggp.base.player.gamer.statemachine
+ *
+ * Example: MonteCarloBenchmark games/games/ticTacToe/ticTacToe.kif 10 3 MonteCarloGamer RootParallelMonteCarloGamer TreeParallelMonteCarloGamer
+ */
+public class MonteCarloBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: MonteCarloBenchmark <game> <playclock in seconds> <number of moves> <gamer class>...");
+			System.exit(1);
+		}
+		Game game = loadGame(args[0]);
+		int playClock = Integer.parseInt(args[1]);
+		int nbMoves = Integer.parseInt(args[2]);
+		List<String> results = new ArrayList<>();
+		for (int i = 3; i < args.length; i++) {
+			String gamerName = args[i];
+			if (!gamerName.contains(".")) {
+				gamerName = "org.ggp.base.player.gamer.statemachine." + gamerName;
+			}
+			StateMachineGamer gamer = (StateMachineGamer)Class.forName(gamerName).newInstance();
+			if (!(gamer instanceof SimulationCounter)) {
+				System.err.println(gamerName + " does not count its simulations, skipping it");
+				continue;
+			}
+			double simsPerSecond = run(gamer, game, playClock, nbMoves);
+			results.add(String.format("%-60s %12.1f simulations/s", gamerName, simsPerSecond));
+		}
+		System.out.println();
+		for (String result : results) {
+			System.out.println(result);
+		}
+		System.exit(0);
+	}
+
+	static Game loadGame(String name) throws IOException {
+		File file = new File(name);
+		if (file.isFile()) {
+			String kif = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			// strips comments, which the GDL parser does not understand
+			return Game.createEphemeralGame(Game.preprocessRulesheet(kif));
+		}
+		Game game = GameRepository.getDefaultRepository().getGame(name);
+		if (game == null) {
+			throw new IOException("game not found: " + name);
+		}
+		return game;
+	}
+
+	private static double run(StateMachineGamer gamer, Game game, int playClock, int nbMoves) throws Exception {
+		Match match = new Match("benchmark." + Match.getRandomString(5), -1, 10, playClock, game, "");
+		gamer.setMatch(match);
+		gamer.setRoleName(Role.computeRoles(game.getRules()).get(0).getName());
+		gamer.metaGame(System.currentTimeMillis() + 10000);
+		long searchTime = 0;
+		for (int i = 0; i < nbMoves; i++) {
+			long start = System.currentTimeMillis();
+			gamer.selectMove(start + playClock * 1000L);
+			searchTime += System.currentTimeMillis() - start;
+		}
+		long simulations = ((SimulationCounter)gamer).getNbSimulations();
+		gamer.stop();
+		return simulations * 1000.0 / searchTime;
+	}
+}
@@ -0,0 +1,368 @@
+package org.ggp.base.apps.benchmark;
+
+import is.ru.cadia.ggp.propnet.structure.DynamicPropnetOptimizer.Pass;
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.OptimizationStatistics;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ggp.base.util.game.CloudGameRepository;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.GameRepository;
+import org.ggp.base.util.game.LocalGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+
+/**
+ * PropNetPrecompiler builds and optimizes the propnets of all games of a game repository and stores them in
+ * a propnet cache, such that players using the same cache directory don't have to build them during the start clock.
+ *
+ * Every game is compiled in a JVM of its own, so the memory of each game can be limited and a game that takes
+ * too long can be killed without affecting the others. A line of statistics per game is written to a CSV file.
+ *
+ * Usage: PropNetPrecompiler [options] <repository>
+ *   repository is "local" (the local game repository), a directory with .kif files (searched recursively)
+ *   or the address of a remote repository (e.g., games.ggp.org/base)
+ * Options:
+ *   -threads <n>         number of games compiled at the same time (default: number of processors)
+ *   -time <seconds>      time limit per game, half of it is used for optimizing the propnet (default: 600)
+ *   -memory <MB>         heap size limit per game (default: 2048)
+ *   -cache <directory>   the propnet cache directory (default: propnets/cache)
+ *   -cachesize <MB>      size limit of the propnet cache (default: the limit players use, see PropNetCache.getDefaultMaxSize())
+ *   -csv <file>          where to write the statistics (default: propnets.csv)
+ *   -games <regex>       only compile games whose key matches the regular expression
+ *
+ * Example: PropNetPrecompiler -threads 4 -time 300 -memory 3000 local
+ *
+ * Players evict files from the cache down to their own size limit, so a larger cache should be
+ * set with -Dpropnet.cache.size=<MB> for the precompiler and the players alike.
+ *
+ * The status of a game in the CSV file is one of: compiled, cached (it was in the cache already),
+ * incomplete (the optimization was stopped at the time limit, so the propnet was not stored in the cache),
+ * timeout, out_of_memory or failed.
+ */
+public class PropNetPrecompiler {
+
+	// marks the line with the statistics in the output of a compiling JVM
+	private static final String RESULT_PREFIX = "PRECOMPILER_RESULT,";
+
+	private int nbThreads = Runtime.getRuntime().availableProcessors();
+	private long timeLimit = 600000;
+	private int memoryLimit = 2048;
+	private File cacheDirectory = new File(PropNetCache.DEFAULT_DIRECTORY);
+	private long cacheSize = PropNetCache.getDefaultMaxSize() >> 20;
+	private File csvFile = new File("propnets.csv");
+	private String gamesRegex = ".*";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 1 && args[0].equals("-compile")) {
+			compileGame(args);
+			System.exit(0);
+		}
+		PropNetPrecompiler precompiler = new PropNetPrecompiler();
+		String repositoryName = precompiler.parseOptions(args);
+		if (repositoryName == null) {
+			System.err.println("Usage: PropNetPrecompiler [-threads <n>] [-time <seconds>] [-memory <MB>] [-cache <directory>] [-cachesize <MB>] [-csv <file>] [-games <regex>] <repository>");
+			System.exit(1);
+		}
+		precompiler.run(repositoryName);
+		System.exit(0);
+	}
+
+	/**
+	 * @return the repository name or null if the arguments are not valid
+	 */
+	private String parseOptions(String[] args) {
+		int i = 0;
+		try {
+			for (; i < args.length - 1; i += 2) {
+				switch (args[i]) {
+				case "-threads":
+					nbThreads = Integer.parseInt(args[i + 1]);
+					break;
+				case "-time":
+					timeLimit = Long.parseLong(args[i + 1]) * 1000;
+					break;
+				case "-memory":
+					memoryLimit = Integer.parseInt(args[i + 1]);
+					break;
+				case "-cache":
+					cacheDirectory = new File(args[i + 1]);
+					break;
+				case "-cachesize":
+					cacheSize = Long.parseLong(args[i + 1]);
+					break;
+				case "-csv":
+					csvFile = new File(args[i + 1]);
+					break;
+				case "-games":
+					gamesRegex = args[i + 1];
+					break;
+				default:
+					return null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (i != args.length - 1) {
+			return null;
+		}
+		return args[i];
+	}
+
+	private void run(String repositoryName) throws IOException, InterruptedException {
+		// the rules of all games are written to files, which the compiling JVMs read
+		File rulesDirectory = Files.createTempDirectory("precompiler").toFile();
+		List<String> keys = new ArrayList<>();
+		List<File> rulesFiles = new ArrayList<>();
+		File directory = new File(repositoryName);
+		if (directory.isDirectory()) {
+			collectKifFiles(directory, "", keys, rulesFiles);
+		} else {
+			GameRepository repository;
+			if (repositoryName.equals("local")) {
+				repository = new LocalGameRepository();
+			} else {
+				repository = new CloudGameRepository(repositoryName);
+			}
+			String[] repositoryKeys = repository.getGameKeys().toArray(new String[0]);
+			Arrays.sort(repositoryKeys);
+			for (String key : repositoryKeys) {
+				if (!key.matches(gamesRegex)) {
+					continue;
+				}
+				Game game = repository.getGame(key);
+				if (game == null || game.getRules() == null) {
+					System.out.println("could not get the rules of " + key + ", skipping it");
+					continue;
+				}
+				File rulesFile = new File(rulesDirectory, rulesFiles.size() + ".kif");
+				writeRules(game.getRules(), rulesFile);
+				keys.add(key);
+				rulesFiles.add(rulesFile);
+			}
+			if (repository instanceof LocalGameRepository) {
+				((LocalGameRepository)repository).cleanUp();
+			}
+		}
+		System.out.println("compiling " + keys.size() + " games with " + nbThreads + " threads");
+		if (cacheSize << 20 != PropNetCache.getDefaultMaxSize()) {
+			System.out.println("warning: players evict the cache down to " + (PropNetCache.getDefaultMaxSize() >> 20)
+					+ "MB, unless they are started with -D" + PropNetCache.MAX_SIZE_PROPERTY + "=" + cacheSize);
+		}
+
+		File logDirectory = new File(cacheDirectory, "logs");
+		logDirectory.mkdirs();
+		ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < keys.size(); i++) {
+			final String key = keys.get(i);
+			final File rulesFile = rulesFiles.get(i);
+			final File logFile = new File(logDirectory, key.replaceAll("[^A-Za-z0-9_.-]", "_") + ".log");
+			results.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return compileInNewJVM(key, rulesFile, logFile);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		try (PrintWriter csv = new PrintWriter(csvFile, "UTF-8")) {
+			csv.println(getCSVHeader());
+			for (int i = 0; i < keys.size(); i++) {
+				String line;
+				try {
+					line = results.get(i).get();
+				} catch (Exception e) {
+					line = csvEscape(keys.get(i)) + ",error";
+				}
+				System.out.println(line);
+				csv.println(line);
+				csv.flush();
+			}
+		}
+		for (File rulesFile : rulesFiles) {
+			if (rulesFile.getParentFile().equals(rulesDirectory)) {
+				rulesFile.delete();
+			}
+		}
+		rulesDirectory.delete();
+		System.out.println("statistics written to " + csvFile);
+	}
+
+	private void collectKifFiles(File directory, String prefix, List<String> keys, List<File> rulesFiles) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) {
+				collectKifFiles(file, prefix + file.getName() + "/", keys, rulesFiles);
+			} else if (file.getName().endsWith(".kif")) {
+				String key = prefix + file.getName().substring(0, file.getName().length() - 4);
+				if (key.matches(gamesRegex)) {
+					keys.add(key);
+					rulesFiles.add(file);
+				}
+			}
+		}
+	}
+
+	private static void writeRules(List<Gdl> rules, File file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Gdl gdl : rules) {
+			sb.append(gdl).append('\n');
+		}
+		Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * compiles one game in a new JVM and waits for it to finish or to run out of time
+	 * @return the line of the CSV file for the game
+	 */
+	private String compileInNewJVM(String key, File rulesFile, File logFile) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-Xmx" + memoryLimit + "m");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(PropNetPrecompiler.class.getName());
+		command.add("-compile");
+		command.add(rulesFile.getPath());
+		command.add(cacheDirectory.getPath());
+		command.add(Long.toString(cacheSize));
+		command.add(Long.toString(timeLimit / 2));
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+		processBuilder.redirectErrorStream(true);
+		processBuilder.redirectOutput(logFile);
+
+		System.out.println("compiling " + key);
+		long start = System.currentTimeMillis();
+		Process process = processBuilder.start();
+		boolean timedOut = false;
+		while (true) {
+			try {
+				process.exitValue();
+				break;
+			} catch (IllegalThreadStateException e) {
+				// still running
+			}
+			if (System.currentTimeMillis() - start > timeLimit) {
+				process.destroy();
+				process.waitFor();
+				timedOut = true;
+				break;
+			}
+			Thread.sleep(100);
+		}
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+
+		List<String> log = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+		String status = "failed";
+		if (timedOut) {
+			status = "timeout";
+		} else {
+			for (String line : log) {
+				if (line.startsWith(RESULT_PREFIX)) {
+					return csvEscape(key) + "," + line.substring(RESULT_PREFIX.length());
+				}
+				if (line.contains("OutOfMemoryError")) {
+					status = "out_of_memory";
+				}
+			}
+		}
+		return csvEscape(key) + "," + status + "," + seconds;
+	}
+
+	private static String getCSVHeader() {
+		StringBuilder sb = new StringBuilder("game,status,seconds,components,bases,moves,and,or,not,cyclic,optimization_seconds,optimization_benefit");
+		for (Pass pass : Pass.values()) {
+			sb.append(',').append(pass.name().toLowerCase()).append("_benefit");
+		}
+		return sb.toString();
+	}
+
+	private static String csvEscape(String s) {
+		if (s.contains(",") || s.contains("\"")) {
+			return "\"" + s.replace("\"", "\"\"") + "\"";
+		}
+		return s;
+	}
+
+	/**
+	 * the part that runs in the compiling JVM:
+	 * builds the propnet for the rules in args[1] and stores it in the cache
+	 *
+	 * args: -compile <rules file> <cache directory> <cache size in MB> <optimization time in ms>
+	 */
+	private static void compileGame(String[] args) throws IOException, InterruptedException {
+		String kif = new String(Files.readAllBytes(new File(args[1]).toPath()), StandardCharsets.UTF_8);
+		List<Gdl> rules = Game.createEphemeralGame(Game.preprocessRulesheet(kif)).getRules();
+		PropNetCache cache = new PropNetCache(new File(args[2]), Long.parseLong(args[3]) << 20);
+		long optimizationTime = Long.parseLong(args[4]);
+
+		long start = System.currentTimeMillis();
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(cache);
+		factory.setOptimizationDeadline(start + optimizationTime);
+		boolean wasCached = cache.contains(factory, rules);
+		OptimizationStatistics statisticsBefore = cache.getOptimizationStatistics(factory, rules);
+		PropNetStructure structure = factory.createOrLoad(rules);
+		factory.cleanup();
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		OptimizationStatistics statisticsAfter = cache.getOptimizationStatistics(factory, rules);
+
+		int[] nbComponentsByType = new int[PropNetStructure.TYPE_PIPE + 1];
+		for (byte type : structure.getComponentTypes()) {
+			nbComponentsByType[type]++;
+		}
+		int nbMoves = 0;
+		for (int rid = 0; rid < structure.getRoles().length; rid++) {
+			nbMoves += structure.getPossibleMoves(rid).length;
+		}
+		long optimizationTimeNs = 0;
+		long optimizationBenefit = 0;
+		StringBuilder passBenefits = new StringBuilder();
+		for (Pass pass : Pass.values()) {
+			long benefit = statisticsAfter.getBenefit(pass) - statisticsBefore.getBenefit(pass);
+			optimizationTimeNs += statisticsAfter.getTime(pass) - statisticsBefore.getTime(pass);
+			optimizationBenefit += benefit;
+			passBenefits.append(',').append(benefit);
+		}
+		String status;
+		if (wasCached) {
+			status = "cached";
+		} else if (factory.isOptimizationFinished()) {
+			status = "compiled";
+		} else {
+			status = "incomplete";
+		}
+		System.out.println(RESULT_PREFIX + status + "," + seconds
+				+ "," + structure.getNbComponents()
+				+ "," + structure.getNbBasePropositions()
+				+ "," + nbMoves
+				+ "," + nbComponentsByType[PropNetStructure.TYPE_AND]
+				+ "," + nbComponentsByType[PropNetStructure.TYPE_OR]
+				+ "," + nbComponentsByType[PropNetStructure.TYPE_NOT]
+				+ "," + structure.isCylic()
+				+ "," + optimizationTimeNs / 1e9
+				+ "," + optimizationBenefit
+				+ passBenefits);
+	}
+}
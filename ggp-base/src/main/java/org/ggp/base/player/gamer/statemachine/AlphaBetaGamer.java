@@ -1,41 +1,36 @@
 package org.ggp.base.player.gamer.statemachine;
 
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
 import org.ggp.base.player.gamer.statemachine.sample.SampleGamer;
-import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachine;
 import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.heuristic.Evaluator;
+import is.ru.cadia.ggp.propnet.heuristic.LinearEvaluator;
 import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
 
 public class AlphaBetaGamer extends SampleGamer {
 
 
-	private HashMap<MachineState, MoveValue> maxMem;
-	private HashMap<MachineStateMove, MoveValue> minMem;
-	private int expandedNodes = 0;
+	private static final int TABLE_SIZE = 1 << 20;
 
-	public class MachineStateMove {
-		private final MachineState state;
-		private final Move move;
-
-		public MachineStateMove(MachineState state, Move move) {
-			this.state = state;
-			this.move = move;
-		}
-
-		@Override
-		public int hashCode() {
-			return state.hashCode() * 31 * move.hashCode();
-		}
-	}
+	// results of max nodes by the Zobrist hash of the state and of min nodes by the Zobrist hash
+	// of the state combined with the key of our move
+	private TranspositionTable<MoveValue> maxMem;
+	private TranspositionTable<MoveValue> minMem;
+	private long expandedNodes = 0;
 
 	public class TimeOutException extends Exception {
 		/**
@@ -54,14 +49,15 @@ public class AlphaBetaGamer extends SampleGamer {
 
 	private class MoveValue implements Comparable<MoveValue> {
 		private final int value;
-		private final Move move;
+		// ordinal of our best move in max nodes, number of the best reply in min nodes (-1 if none)
+		private final int move;
 		private int depthExplored;
 		private Bound bound;
 
 		public int getValue() {
 			return value;
 		}
-		public Move getMove() {
+		public int getMove() {
 			return move;
 		}
 		public int getDepthExplored() {
@@ -80,11 +76,11 @@ public class AlphaBetaGamer extends SampleGamer {
 		public int compareTo(MoveValue other) {
 			return other.value - this.value;
 		}
-		public MoveValue(Move move, int value) {
+		public MoveValue(int move, int value) {
 			this(move, value, 0, Bound.EXACT);
 		}
 
-		public MoveValue(Move move, int value, int depthExplored, Bound bound) {
+		public MoveValue(int move, int value, int depthExplored, Bound bound) {
 			this.move = move;
 			this.value = value;
 			this.depthExplored = depthExplored;
@@ -92,13 +88,73 @@ public class AlphaBetaGamer extends SampleGamer {
 		}
 	}
 
-	private final int risk = 49;
 	private long gameStart;
 
+	private final boolean useHashMove;
+	private final boolean useKillers;
+	private final boolean useHistory;
+	private int maxSearchDepth = Integer.MAX_VALUE;
+	private int completedDepth;
+	private MoveOrdering moveOrdering;
+	private PropNetBitSetStateMachine machine;
+	private int roleId;
+	private int nbRoles;
+	private PropNetMove[][] possibleMoves;
+	private Evaluator<InternalBitSetState> evaluator;
+	// buffers for each ply, so that nodes don't allocate arrays (grown as the iterations get deeper):
+	// our legal moves in max nodes, the legal moves of all roles, the joint move and the moves of the reply in min nodes
+	private int[][] plyMoves;
+	private int[][][] plyLegals;
+	private int[][] plyNbLegals;
+	private PropNetMove[][] plyJointMoves;
+	private int[][] plyReplyOrdinals;
+
+	public AlphaBetaGamer() {
+		// killers did not pay off in the benchmarks (see AlphaBetaBenchmark)
+		this(true, false, true);
+	}
+
+	/**
+	 * @param useHashMove search the best move from the transposition table first
+	 * @param useKillers search killer moves next
+	 * @param useHistory order the remaining moves by the history heuristic
+	 */
+	public AlphaBetaGamer(boolean useHashMove, boolean useKillers, boolean useHistory) {
+		super();
+		this.useHashMove = useHashMove;
+		this.useKillers = useKillers;
+		this.useHistory = useHistory;
+	}
+
+	/**
+	 * limits the iterative deepening to the given depth (for benchmarks)
+	 */
+	public void setMaxSearchDepth(int maxSearchDepth) {
+		this.maxSearchDepth = maxSearchDepth;
+	}
+
+	/**
+	 * @return the number of expanded max nodes since the start of the match
+	 */
+	public long getExpandedNodes() {
+		return expandedNodes;
+	}
+
+	/**
+	 * @return the depth of the last finished iteration of the last search (Integer.MAX_VALUE if the game tree was fully explored)
+	 */
+	public int getCompletedDepth() {
+		return completedDepth;
+	}
 
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new RecursiveForwardChangePropNetStateMachine(new GGPBasePropNetStructureFactory());
+		// propnets are cached by a hash of the rules, so they don't have to be rebuilt for repeated (scrambled) games
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(PropNetCache.getDefault());
+		// leave at least half of the start clock for the rest of the meta game
+		factory.setOptimizationDeadline(System.currentTimeMillis() + getMatch().getStartClock() * 1000L / 2);
+		return new RecursiveForwardChangePropNetStateMachine(factory);
 	}
 
 	@Override
@@ -111,124 +167,196 @@ public class AlphaBetaGamer extends SampleGamer {
 	public Move stateMachineSelectMove(long timeout)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
 		long start = System.currentTimeMillis();
-		StateMachine machine = getStateMachine();
-		MachineState state = getCurrentState();
+		InternalBitSetState state = machine.machineStateToInternalState(getCurrentState());
+		moveOrdering.newSearch();
 		int maxDepth = 1;
-        MoveValue best = null;
-        try {
-			while(true){
-				best = minimax(machine, state, maxDepth, timeout-500, 0, 100);
+		completedDepth = 0;
+		MoveValue best = null;
+		try {
+			while(maxDepth <= maxSearchDepth){
+				best = minimax(state, maxDepth, timeout-500, 0, 100, 0);
+				completedDepth = maxDepth;
 				if(best.getDepthExplored() == Integer.MAX_VALUE) {
+					completedDepth = Integer.MAX_VALUE;
 					break;
 				}
-		        maxDepth++;;
+				maxDepth++;
 			}
-        }
-        catch (TimeOutException e) {
-        }
-        if(best.getMove() == null) {
-        	System.out.println(state.toString());
-        }
-        System.out.println(best.getMove());
-        System.out.println(best.getValue());
-        long stop = System.currentTimeMillis();
-        notifyObservers(new GamerSelectedMoveEvent(machine.getLegalMoves(state, getRole()), best.getMove(), stop - start));
-		return best.getMove();
+		}
+		catch (TimeOutException e) {
+		}
+		Move move;
+		if(best == null || best.getMove() == -1) {
+			System.out.println(getCurrentState().toString());
+			move = machine.getRandomMove(state, roleId);
+		} else {
+			move = possibleMoves[roleId][best.getMove()];
+			System.out.println(best.getValue());
+		}
+		System.out.println(move);
+		long stop = System.currentTimeMillis();
+		notifyObservers(new GamerSelectedMoveEvent(machine.getLegalMoves(state, roleId), move, stop - start));
+		return move;
 	}
 
 
-	private MoveValue minimax(StateMachine machine, MachineState state, int maxDepth, long timeout, int alpha, int beta)
-			throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException,
-					TimeOutException{
+	private MoveValue minimax(InternalBitSetState state, int maxDepth, long timeout, int alpha, int beta, int ply)
+			throws GoalDefinitionException, TimeOutException{
 		if(System.currentTimeMillis() > timeout) {
 			throw new TimeOutException("Minimax timed out");
 		}
-		if(maxMem.containsKey(state)) {
-			MoveValue res = maxMem.get(state);
-			if (res.getDepthExplored() >= maxDepth) {
-				if (res.getBound() == Bound.EXACT) return res;
-				else if(res.getBound() == Bound.LOWER) alpha = Math.max(alpha, res.getValue());
-				else if(res.getBound() == Bound.UPPER) beta = Math.min(beta, res.getValue());
-
-				if(alpha >= beta) return res;
+		long key = state.getZobristHash();
+		MoveValue res = maxMem.get(key);
+		int hashMove = -1;
+		// the window is not narrowed by bounds from the table, so results can be classified
+		// against the window the node was called with
+		int alphaOrig = alpha;
+		int betaOrig = beta;
+		if(res != null) {
+			if (res.getDepthExplored() >= maxDepth && (res.getBound() == Bound.EXACT
+					|| (res.getBound() == Bound.LOWER && res.getValue() >= betaOrig)
+					|| (res.getBound() == Bound.UPPER && res.getValue() <= alphaOrig))) {
+				return res;
 			}
+			hashMove = res.getMove();
 		}
 		if(machine.isTerminal(state)) {
-			return new MoveValue(null, machine.getGoal(state, getRole()), Integer.MAX_VALUE, Bound.EXACT);
+			return new MoveValue(-1, machine.getGoal(state, roleId), Integer.MAX_VALUE, Bound.EXACT);
 		}
 		else if(maxDepth <= 0) {
 			return evaluate(state);
 		}
-		List<Move> moves = machine.getLegalMoves(state, getRole());
-		MoveValue best = new MoveValue(null, -1);
+		ensurePly(ply);
+		int[] moves = plyMoves[ply];
+		int nbMoves = machine.getLegalMoveOrdinals(state, roleId, moves);
+		moveOrdering.sortMoves(roleId, ply, hashMove, moves, nbMoves);
+		MoveValue best = new MoveValue(-1, -1);
 		expandedNodes++;
 		boolean fullyExplored = true;
-		for(Move move : moves) {
-			if(alpha >= beta) {
-				best.setBound(Bound.LOWER);
-				break;
-			}
-			MoveValue curr = minValue(machine, state, maxDepth, timeout, move, alpha, beta);
+		for(int i = 0; i < nbMoves; i++) {
+			MoveValue curr = minValue(state, maxDepth, timeout, moves[i], alpha, beta, ply);
 			if(curr.getDepthExplored() != Integer.MAX_VALUE) {
 				fullyExplored = false;
 			}
 			if(curr.getValue() > best.getValue()) {
-				best = new MoveValue(move, curr.getValue(), maxDepth, Bound.EXACT);
+				best = new MoveValue(moves[i], curr.getValue(), maxDepth, Bound.EXACT);
 				alpha = Math.max(alpha, curr.getValue());
 			}
+			if(alpha >= beta) {
+				moveOrdering.cutoff(roleId, ply, moves[i], maxDepth);
+				break;
+			}
 		}
+		// failing low only gives an upper bound, failing high only a lower bound
+		best.setBound(best.getValue() <= alphaOrig ? Bound.UPPER : best.getValue() >= betaOrig ? Bound.LOWER : Bound.EXACT);
 		if(fullyExplored) {
 			best.setDepthExplored(Integer.MAX_VALUE);
 		}
-		maxMem.put(state, best);
+		maxMem.put(key, best, best.getDepthExplored());
 
 		return best;
 	}
 
-	private MoveValue minValue(StateMachine machine, MachineState state, int maxDepth,
-			long timeout, Move move, int alpha, int beta)
-			throws MoveDefinitionException, GoalDefinitionException,
-			TransitionDefinitionException, TimeOutException {
-		//boolean explored = true;
-		MachineStateMove key = new MachineStateMove(state, move);
-		if(minMem.containsKey(key)) {
-			MoveValue res = minMem.get(key);
-			if (res.getDepthExplored() >= maxDepth) {
-				if (res.getBound() == Bound.EXACT) return res;
-				else if(res.getBound() == Bound.LOWER) alpha = Math.max(alpha, res.getValue());
-				else if(res.getBound() == Bound.UPPER) beta = Math.min(beta, res.getValue());
-
-				if(alpha >= beta) return res;
+	private MoveValue minValue(InternalBitSetState state, int maxDepth, long timeout, int move, int alpha, int beta, int ply)
+			throws GoalDefinitionException, TimeOutException {
+		PropNetMove ourMove = possibleMoves[roleId][move];
+		long key = state.getZobristHash() ^ PropNetBitSetStateMachine.getZobristKey(ourMove.getInputComponent().id);
+		MoveValue res = minMem.get(key);
+		int hashReply = -1;
+		// the window is not narrowed by bounds from the table, so results can be classified
+		// against the window the node was called with
+		int alphaOrig = alpha;
+		int betaOrig = beta;
+		if(res != null) {
+			if (res.getDepthExplored() >= maxDepth && (res.getBound() == Bound.EXACT
+					|| (res.getBound() == Bound.LOWER && res.getValue() >= betaOrig)
+					|| (res.getBound() == Bound.UPPER && res.getValue() <= alphaOrig))) {
+				return res;
 			}
+			hashReply = res.getMove();
 		}
+		// the replies are the joint moves of the other roles
+		int[][] legals = plyLegals[ply];
+		int[] nbLegals = plyNbLegals[ply];
+		int nbReplies = 1;
+		for (int r = 0; r < nbRoles; r++) {
+			if (r != roleId) {
+				nbLegals[r] = machine.getLegalMoveOrdinals(state, r, legals[r]);
+				nbReplies *= nbLegals[r];
+			}
+		}
+		moveOrdering.sortReplies(ply, legals, nbLegals, hashReply);
+		PropNetMove[] jointMove = plyJointMoves[ply];
+		int[] replyOrdinals = plyReplyOrdinals[ply];
+		jointMove[roleId] = ourMove;
 		boolean fullyExplored = true;
-		List<List<Move>> allMoves = machine.getLegalJointMoves(state, getRole(), move);
-		MoveValue worst = new MoveValue(null, 101);
-		for(List<Move> jointMoves : allMoves) {
-			if(alpha >= beta) {
-				worst.setBound(Bound.UPPER);
-				break;
+		MoveValue worst = new MoveValue(-1, 101);
+		for(int i = 0; i < nbReplies; i++) {
+			int reply = moveOrdering.getReply(ply, i);
+			int rest = reply;
+			for (int r = 0; r < nbRoles; r++) {
+				if (r != roleId) {
+					replyOrdinals[r] = legals[r][rest % nbLegals[r]];
+					jointMove[r] = possibleMoves[r][replyOrdinals[r]];
+					rest /= nbLegals[r];
+				}
 			}
-			MoveValue curr = minimax(machine, machine.getNextState(state, jointMoves), maxDepth - 1, timeout, alpha, beta);
+			MoveValue curr = minimax(machine.getNextState(state, jointMove, true), maxDepth - 1, timeout, alpha, beta, ply + 1);
 
 			if(curr.getValue() < worst.getValue()) {
-				worst = new MoveValue(null, curr.getValue(), maxDepth, Bound.EXACT);
+				worst = new MoveValue(reply, curr.getValue(), maxDepth, Bound.EXACT);
 				beta = Math.min(beta, curr.getValue());
 			}
 			if(curr.getDepthExplored() != Integer.MAX_VALUE) {
 				fullyExplored = false;
 			}
+			if(alpha >= beta) {
+				for (int r = 0; r < nbRoles; r++) {
+					if (r != roleId) {
+						moveOrdering.cutoff(r, ply, replyOrdinals[r], maxDepth);
+					}
+				}
+				break;
+			}
 		}
+		worst.setBound(worst.getValue() >= betaOrig ? Bound.LOWER : worst.getValue() <= alphaOrig ? Bound.UPPER : Bound.EXACT);
 		if(fullyExplored) {
 			worst.setDepthExplored(Integer.MAX_VALUE);
 		}
-		minMem.put(key, worst);
+		minMem.put(key, worst, worst.getDepthExplored());
 		return worst;
 	}
 
-	private MoveValue evaluate(MachineState state) {
-		// TODO Auto-generated method stub
-		return new MoveValue(null, risk, 0, Bound.EXACT);
+	/**
+	 * makes sure that the buffers for ply exist
+	 */
+	private void ensurePly(int ply) {
+		if (ply < plyMoves.length) {
+			return;
+		}
+		int oldLength = plyMoves.length;
+		int length = Math.max(ply + 1, 2 * oldLength);
+		plyMoves = Arrays.copyOf(plyMoves, length);
+		plyLegals = Arrays.copyOf(plyLegals, length);
+		plyNbLegals = Arrays.copyOf(plyNbLegals, length);
+		plyJointMoves = Arrays.copyOf(plyJointMoves, length);
+		plyReplyOrdinals = Arrays.copyOf(plyReplyOrdinals, length);
+		for (int i = oldLength; i < length; i++) {
+			plyMoves[i] = new int[possibleMoves[roleId].length];
+			plyLegals[i] = new int[nbRoles][];
+			for (int r = 0; r < nbRoles; r++) {
+				if (r != roleId) {
+					plyLegals[i][r] = new int[possibleMoves[r].length];
+				}
+			}
+			plyNbLegals[i] = new int[nbRoles];
+			plyJointMoves[i] = new PropNetMove[nbRoles];
+			plyReplyOrdinals[i] = new int[nbRoles];
+		}
+	}
+
+	private MoveValue evaluate(InternalBitSetState state) {
+		return new MoveValue(-1, evaluator.evaluate(state, roleId), 0, Bound.EXACT);
 	}
 
 	@Override
@@ -236,8 +364,23 @@ public class AlphaBetaGamer extends SampleGamer {
     {
 		gameStart = System.currentTimeMillis();
 		expandedNodes = 0;
-		maxMem = new HashMap<MachineState, MoveValue>();
-		minMem = new HashMap<MachineStateMove, MoveValue>();
+		machine = (PropNetBitSetStateMachine)getStateMachine();
+		PropNetStructure structure = machine.getPropNetStructure();
+		roleId = structure.getRoleId(getRole());
+		nbRoles = structure.getRoles().length;
+		possibleMoves = new PropNetMove[nbRoles][];
+		for (int r = 0; r < nbRoles; r++) {
+			possibleMoves[r] = structure.getPossibleMoves(r);
+		}
+		moveOrdering = new MoveOrdering(structure, useHashMove, useKillers, useHistory);
+		plyMoves = new int[0][];
+		plyLegals = new int[0][][];
+		plyNbLegals = new int[0][];
+		plyJointMoves = new PropNetMove[0][];
+		plyReplyOrdinals = new int[0][];
+		evaluator = LinearEvaluator.create(machine, getMatch().getGame().getRules(), PropNetCache.getDefault());
+		maxMem = new TranspositionTable<MoveValue>(TABLE_SIZE, TranspositionTable.ReplacementPolicy.TWO_TIER);
+		minMem = new TranspositionTable<MoveValue>(TABLE_SIZE, TranspositionTable.ReplacementPolicy.TWO_TIER);
 		stateMachineSelectMove(timeout);
     }
 }
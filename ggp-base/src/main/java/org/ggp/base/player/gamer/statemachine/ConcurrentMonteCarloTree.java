@@ -0,0 +1,507 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachine;
+
+/**
+ * Monte Carlo search tree that can be searched and expanded by several threads at once.
+ *
+ * The layout is the same as in MonteCarloTree (int node handles, one slice of edges per node,
+ * moves identified by their ordinal), but arrays only change size in makeRoom() and statistics are
+ * updated with atomic operations instead of locks:
+ * - a visit is counted when the edge is selected (virtual loss), the score is only added to
+ *   the edge's score sum when the result of the simulation is backed up. Threads running
+ *   through the same edge in the meantime see a lower Q value and tend to select other moves.
+ * - nodes and their edges are reserved together with a single CAS, so edges are stored in the
+ *   same order as nodes (which compaction relies on).
+ * - children are pushed to the front of the node's link list with a CAS, a thread that loses
+ *   the race for the same joint move gets the existing child back.
+ *
+ * The size of the tree is limited by a memory budget, estimated in the same way as for MonteCarloTree.
+ * Once the arrays are full, addNode() returns NONE and isFull() returns true until makeRoom() grows the
+ * arrays or, if the budget is used up, removes the least visited subtrees.
+ *
+ * Everything except setRoot(), makeRoom() and clear() can be called concurrently. Those must only
+ * be called while no other thread is using the tree.
+ */
+public class ConcurrentMonteCarloTree {
+
+	public static final int NONE = -1;
+
+	private static final int INITIAL_CAPACITY = 1 << 12;
+
+	private final int nbRoles;
+
+	/**
+	 * memory budget of the tree in bytes
+	 */
+	private final long maxMemory;
+	private final int maxNbNodes;
+	private final int maxNbEdges;
+	// estimated memory (in bytes) per node (including its state and the link to it) and edge
+	private final int nodeSize;
+	private final int edgeSize;
+
+	// node arrays, indexed by node
+	private InternalBitSetState[] states;
+	private AtomicIntegerArray firstLink;
+	private AtomicIntegerArray simulations;
+	/**
+	 * edges of role r in node n are edgeOffsets[n*(nbRoles+1)+r] ... edgeOffsets[n*(nbRoles+1)+r+1]-1
+	 */
+	private int[] edgeOffsets;
+
+	// edge arrays, indexed by edge
+	private int[] edgeMove;
+	private AtomicIntegerArray visits;
+	private AtomicLongArray scoreSums;
+
+	// link arrays, indexed by link
+	private int[] linkChild;
+	private int[] linkNext;
+	private int[] linkMove;
+	private final AtomicLong nbLinks;
+
+	/**
+	 * number of nodes (upper 32 bits) and edges (lower 32 bits) in use
+	 */
+	private final AtomicLong allocated;
+
+	/**
+	 * set when a node did not fit into the arrays or the memory budget
+	 */
+	private volatile boolean full;
+
+	private volatile int root;
+
+	/**
+	 * @param machine the state machine, only used to estimate the size of states
+	 * @param maxMemory the memory budget of the tree in bytes
+	 */
+	public ConcurrentMonteCarloTree(PropNetBitSetStateMachine machine, long maxMemory) {
+		this.nbRoles = machine.getRoles().size();
+		this.maxMemory = maxMemory;
+		// reference to the state, firstLink, simulations, edgeOffsets and a link (linkChild, linkNext, linkMove)
+		nodeSize = MonteCarloTree.getStateSize(machine) + 4 + 4 + 4 + 4 * (nbRoles + 1) + 4 + 4 + 4 * nbRoles;
+		// edgeMove, visits, scoreSums
+		edgeSize = 4 + 4 + 8;
+		maxNbNodes = (int)Math.max(1, Math.min(Integer.MAX_VALUE / (nbRoles + 1), maxMemory / nodeSize));
+		maxNbEdges = (int)Math.max(1, Math.min(Integer.MAX_VALUE, maxMemory / edgeSize));
+		int nodeCapacity = Math.min(maxNbNodes, INITIAL_CAPACITY);
+		int edgeCapacity = Math.min(maxNbEdges, 4 * INITIAL_CAPACITY);
+		states = new InternalBitSetState[nodeCapacity];
+		firstLink = new AtomicIntegerArray(nodeCapacity);
+		simulations = new AtomicIntegerArray(nodeCapacity);
+		edgeOffsets = new int[nodeCapacity * (nbRoles + 1)];
+		edgeMove = new int[edgeCapacity];
+		visits = new AtomicIntegerArray(edgeCapacity);
+		scoreSums = new AtomicLongArray(edgeCapacity);
+		linkChild = new int[nodeCapacity];
+		linkNext = new int[nodeCapacity];
+		linkMove = new int[nodeCapacity * nbRoles];
+		nbLinks = new AtomicLong();
+		allocated = new AtomicLong();
+		root = NONE;
+	}
+
+	/**
+	 * removes all nodes from the tree
+	 */
+	public void clear() {
+		Arrays.fill(states, 0, getNbNodes(), null);
+		allocated.set(0);
+		nbLinks.set(0);
+		full = false;
+		root = NONE;
+	}
+
+	public int getNbNodes() {
+		return (int)(allocated.get() >>> 32);
+	}
+
+	/**
+	 * @return the estimated memory used by the nodes and edges of the tree in bytes
+	 */
+	public long getMemoryUsage() {
+		long current = allocated.get();
+		return (current >>> 32) * nodeSize + (int)current * (long)edgeSize;
+	}
+
+	/**
+	 * @return true, if nodes could not be added because the arrays or the memory budget are used up
+	 */
+	public boolean isFull() {
+		return full;
+	}
+
+	public int getRoot() {
+		return root;
+	}
+
+	/**
+	 * adds a new node for the given state with statistics for all legal moves in the state
+	 *
+	 * The first node added to an empty tree becomes the root.
+	 * @param state the state of the node, must not be changed anymore after this call
+	 * @param machine used to compute the legal moves in state
+	 * @param legalOrdinals buffer for the legal moves of one role in state
+	 * @return the new node or NONE if the tree is full
+	 */
+	public int addNode(InternalBitSetState state, PropNetBitSetStateMachine machine, int[] legalOrdinals) {
+		boolean terminal = machine.isTerminal(state);
+		int nbNodeEdges = 0;
+		if (!terminal) {
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				nbNodeEdges += machine.getLegalMoveOrdinals(state, roleId, legalOrdinals);
+			}
+		}
+		long current, next;
+		int node, firstEdge;
+		do {
+			current = allocated.get();
+			node = (int)(current >>> 32);
+			firstEdge = (int)current;
+			if (node >= states.length || firstEdge + nbNodeEdges > edgeMove.length
+					|| (node + 1L) * nodeSize + (long)(firstEdge + nbNodeEdges) * edgeSize > maxMemory) {
+				full = true;
+				return NONE;
+			}
+			next = ((long)(node + 1) << 32) | (firstEdge + nbNodeEdges);
+		} while (!allocated.compareAndSet(current, next));
+
+		states[node] = state;
+		firstLink.set(node, NONE);
+		simulations.set(node, 0);
+		int offsetIdx = node * (nbRoles + 1);
+		int edge = firstEdge;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			edgeOffsets[offsetIdx + roleId] = edge;
+			if (!terminal) {
+				int nbLegals = machine.getLegalMoveOrdinals(state, roleId, legalOrdinals);
+				for (int i = 0; i < nbLegals; i++) {
+					edgeMove[edge] = legalOrdinals[i];
+					visits.set(edge, 0);
+					scoreSums.set(edge, 0);
+					edge++;
+				}
+			}
+		}
+		edgeOffsets[offsetIdx + nbRoles] = edge;
+		if (root == NONE) {
+			root = node;
+		}
+		return node;
+	}
+
+	/**
+	 * links child as the successor of node for the given joint move, unless another thread
+	 * already added a child for the same joint move
+	 * @param node
+	 * @param jointMove ordinals of the moves of all roles
+	 * @param child
+	 * @return the child of node for jointMove, which is not necessarily the given child, or NONE if there is no space left for the link
+	 */
+	public int addChild(int node, int[] jointMove, int child) {
+		long linkIdx = nbLinks.getAndIncrement();
+		if (linkIdx >= linkChild.length) {
+			full = true;
+			return getChild(node, jointMove);
+		}
+		int link = (int)linkIdx;
+		linkChild[link] = child;
+		System.arraycopy(jointMove, 0, linkMove, link * nbRoles, nbRoles);
+		while (true) {
+			int head = firstLink.get(node);
+			int existing = findChild(head, jointMove);
+			if (existing != NONE) {
+				return existing;
+			}
+			linkNext[link] = head;
+			if (firstLink.compareAndSet(node, head, link)) {
+				return child;
+			}
+		}
+	}
+
+	/**
+	 * @param node
+	 * @param jointMove ordinals of the moves of all roles
+	 * @return the child of node for the given joint move or NONE if there is none in the tree
+	 */
+	public int getChild(int node, int[] jointMove) {
+		return findChild(firstLink.get(node), jointMove);
+	}
+
+	private int findChild(int firstLink, int[] jointMove) {
+		for (int link = firstLink; link != NONE; link = linkNext[link]) {
+			int offset = link * nbRoles;
+			int roleId = 0;
+			while (roleId < nbRoles && linkMove[offset + roleId] == jointMove[roleId]) {
+				roleId++;
+			}
+			if (roleId == nbRoles) {
+				return linkChild[link];
+			}
+		}
+		return NONE;
+	}
+
+	public InternalBitSetState getState(int node) {
+		return states[node];
+	}
+
+	public int getSimulations(int node) {
+		return simulations.get(node);
+	}
+
+	public int getFirstEdge(int node, int roleId) {
+		return edgeOffsets[node * (nbRoles + 1) + roleId];
+	}
+
+	public int getEndEdge(int node, int roleId) {
+		return edgeOffsets[node * (nbRoles + 1) + roleId + 1];
+	}
+
+	public int getMove(int edge) {
+		return edgeMove[edge];
+	}
+
+	/**
+	 * @param edge
+	 * @return the average score of the edge, counting simulations that are still running as losses
+	 */
+	public double getQ(int edge) {
+		int n = visits.get(edge);
+		return n == 0 ? 0 : (double)scoreSums.get(edge) / n;
+	}
+
+	public int getN(int edge) {
+		return visits.get(edge);
+	}
+
+	/**
+	 * counts a visit of the node (before the result of the simulation is known)
+	 * @param node
+	 */
+	public void addVirtualLoss(int node) {
+		simulations.incrementAndGet(node);
+	}
+
+	/**
+	 * counts a visit of the edge (before the result of the simulation is known)
+	 * @param edge
+	 */
+	public void addVirtualEdgeLoss(int edge) {
+		visits.incrementAndGet(edge);
+	}
+
+	/**
+	 * adds the score of a simulation to an edge whose visit was already counted with addVirtualEdgeLoss()
+	 * @param edge
+	 * @param score
+	 */
+	public void addScore(int edge, int score) {
+		scoreSums.addAndGet(edge, score);
+	}
+
+	/**
+	 * makes newRoot the root of the tree and reclaims the storage of all nodes that are not reachable from it anymore
+	 *
+	 * Must not be called while other threads use the tree. Node handles change by this operation.
+	 * @param newRoot
+	 * @return the new handle of newRoot
+	 */
+	public int setRoot(int newRoot) {
+		compact(newRoot, Integer.MIN_VALUE, 0);
+		full = false;
+		return root;
+	}
+
+	/**
+	 * makes room for new nodes after the tree got full: grows the arrays (by doubling) if the memory budget
+	 * allows it, otherwise removes the quarter of the nodes with the fewest simulations together with the
+	 * subtrees below them (in the same way as MonteCarloTree.prune())
+	 *
+	 * Must not be called while other threads use the tree. Node handles change by this operation.
+	 * @return false, if no room could be made
+	 */
+	public boolean makeRoom() {
+		full = false;
+		int nbNodes = getNbNodes();
+		if (getMemoryUsage() + nodeSize + 16L * edgeSize <= maxMemory && grow()) {
+			return true;
+		}
+		if (nbNodes <= 1) {
+			return false;
+		}
+		int[] candidates = new int[nbNodes - 1];
+		int nbCandidates = 0;
+		for (int node = 0; node < nbNodes; node++) {
+			if (node != root) {
+				candidates[nbCandidates++] = simulations.get(node);
+			}
+		}
+		Arrays.sort(candidates);
+		int nbRemoved = Math.max(1, nbCandidates / 4);
+		int threshold = candidates[nbRemoved - 1];
+		// remove all nodes with fewer simulations than threshold and the oldest nodes with exactly threshold
+		int nbTiesToRemove = 0;
+		while (nbTiesToRemove < nbRemoved && candidates[nbRemoved - 1 - nbTiesToRemove] == threshold) {
+			nbTiesToRemove++;
+		}
+		int firstKeptTie = 0;
+		for (int node = 0; node < nbNodes && nbTiesToRemove > 0; node++) {
+			if (node != root && simulations.get(node) == threshold) {
+				nbTiesToRemove--;
+				firstKeptTie = node + 1;
+			}
+		}
+		compact(root, threshold, firstKeptTie);
+		return true;
+	}
+
+	/**
+	 * @return false, if the arrays already have their maximal size
+	 */
+	private boolean grow() {
+		long current = allocated.get();
+		int nbNodes = (int)(current >>> 32);
+		int nbEdges = (int)current;
+		int nbOldLinks = (int)Math.min(nbLinks.get(), linkChild.length);
+		// links that did not fit anymore were not added
+		nbLinks.set(nbOldLinks);
+		boolean grown = false;
+		if (states.length < maxNbNodes) {
+			int capacity = (int)Math.min(maxNbNodes, 2L * states.length);
+			states = Arrays.copyOf(states, capacity);
+			firstLink = copyOf(firstLink, nbNodes, capacity);
+			simulations = copyOf(simulations, nbNodes, capacity);
+			edgeOffsets = Arrays.copyOf(edgeOffsets, capacity * (nbRoles + 1));
+			linkChild = Arrays.copyOf(linkChild, capacity);
+			linkNext = Arrays.copyOf(linkNext, capacity);
+			linkMove = Arrays.copyOf(linkMove, capacity * nbRoles);
+			grown = true;
+		}
+		if (edgeMove.length < maxNbEdges) {
+			int capacity = (int)Math.min(maxNbEdges, 2L * edgeMove.length);
+			edgeMove = Arrays.copyOf(edgeMove, capacity);
+			visits = copyOf(visits, nbEdges, capacity);
+			AtomicLongArray newScoreSums = new AtomicLongArray(capacity);
+			for (int i = 0; i < nbEdges; i++) {
+				newScoreSums.set(i, scoreSums.get(i));
+			}
+			scoreSums = newScoreSums;
+			grown = true;
+		}
+		return grown;
+	}
+
+	private static AtomicIntegerArray copyOf(AtomicIntegerArray array, int length, int capacity) {
+		AtomicIntegerArray copy = new AtomicIntegerArray(capacity);
+		for (int i = 0; i < length; i++) {
+			copy.set(i, array.get(i));
+		}
+		return copy;
+	}
+
+	/**
+	 * makes newRoot the root and removes all nodes (except for newRoot) that are not reachable from it anymore,
+	 * that have fewer than maxRemovedSimulations simulations or that have exactly maxRemovedSimulations
+	 * simulations and a handle smaller than firstKeptTie and compacts the arrays
+	 */
+	private void compact(int newRoot, int maxRemovedSimulations, int firstKeptTie) {
+		int nbNodes = getNbNodes();
+		int nbOldLinks = (int)Math.min(nbLinks.get(), linkChild.length);
+		int[] nodeForward = new int[nbNodes];
+		int[] linkForward = new int[nbOldLinks];
+		int[] stack = new int[nbNodes];
+		Arrays.fill(nodeForward, NONE);
+		Arrays.fill(linkForward, NONE);
+		// mark all reachable nodes and links and let the lists of links skip removed links
+		// (links are not necessarily sorted, because they are pushed to the lists in any order)
+		int stackSize = 0;
+		stack[stackSize++] = newRoot;
+		nodeForward[newRoot] = 0;
+		while (stackSize > 0) {
+			int node = stack[--stackSize];
+			int last = NONE;
+			for (int link = firstLink.get(node); link != NONE; link = linkNext[link]) {
+				int child = linkChild[link];
+				if (child == newRoot || simulations.get(child) > maxRemovedSimulations
+						|| simulations.get(child) == maxRemovedSimulations && child >= firstKeptTie) {
+					linkForward[link] = 0;
+					if (last == NONE) {
+						firstLink.set(node, link);
+					} else {
+						linkNext[last] = link;
+					}
+					last = link;
+					if (nodeForward[child] == NONE) {
+						nodeForward[child] = 0;
+						stack[stackSize++] = child;
+					}
+				}
+			}
+			if (last == NONE) {
+				firstLink.set(node, NONE);
+			} else {
+				linkNext[last] = NONE;
+			}
+		}
+		int newNbLinks = 0;
+		for (int link = 0; link < nbOldLinks; link++) {
+			if (linkForward[link] != NONE) {
+				linkForward[link] = newNbLinks++;
+			}
+		}
+		int newNbNodes = 0;
+		for (int node = 0; node < nbNodes; node++) {
+			if (nodeForward[node] != NONE) {
+				nodeForward[node] = newNbNodes++;
+			}
+		}
+		// move links
+		for (int link = 0; link < nbOldLinks; link++) {
+			int newLink = linkForward[link];
+			if (newLink != NONE) {
+				linkChild[newLink] = nodeForward[linkChild[link]];
+				linkNext[newLink] = (linkNext[link] == NONE ? NONE : linkForward[linkNext[link]]);
+				System.arraycopy(linkMove, link * nbRoles, linkMove, newLink * nbRoles, nbRoles);
+			}
+		}
+		// move nodes and their edges (edges of nodes are stored in the same order as the nodes)
+		int newNbEdges = 0;
+		for (int node = 0; node < nbNodes; node++) {
+			int newNode = nodeForward[node];
+			if (newNode != NONE) {
+				int firstEdge = getFirstEdge(node, 0);
+				int nbNodeEdges = getEndEdge(node, nbRoles - 1) - firstEdge;
+				for (int i = 0; i < nbNodeEdges; i++) {
+					edgeMove[newNbEdges + i] = edgeMove[firstEdge + i];
+					visits.set(newNbEdges + i, visits.get(firstEdge + i));
+					scoreSums.set(newNbEdges + i, scoreSums.get(firstEdge + i));
+				}
+				int delta = firstEdge - newNbEdges;
+				int oldOffsetIdx = node * (nbRoles + 1);
+				int newOffsetIdx = newNode * (nbRoles + 1);
+				for (int i = 0; i <= nbRoles; i++) {
+					edgeOffsets[newOffsetIdx + i] = edgeOffsets[oldOffsetIdx + i] - delta;
+				}
+				newNbEdges += nbNodeEdges;
+				states[newNode] = states[node];
+				simulations.set(newNode, simulations.get(node));
+				int link = firstLink.get(node);
+				firstLink.set(newNode, link == NONE ? NONE : linkForward[link]);
+			}
+		}
+		Arrays.fill(states, newNbNodes, nbNodes, null);
+		allocated.set(((long)newNbNodes << 32) | newNbEdges);
+		nbLinks.set(newNbLinks);
+		root = nodeForward[newRoot];
+	}
+}
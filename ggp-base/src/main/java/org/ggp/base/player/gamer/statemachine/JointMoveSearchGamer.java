@@ -0,0 +1,608 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.player.gamer.statemachine.sample.SampleGamer;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachine;
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.heuristic.Evaluator;
+import is.ru.cadia.ggp.propnet.heuristic.LinearEvaluator;
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
+
+/**
+ * iterative deepening search that handles simultaneous moves and any number of roles explicitly
+ *
+ * In each state, the movers are the roles with more than one legal move; roles that can only noop
+ * do not add a level to the tree (unlike in AlphaBetaGamer, where every state has a max and a min level).
+ * How the values of states are computed depends on the mode:
+ * - PARANOID: all other roles form a coalition that minimizes our goal. States where only we move are
+ *   max nodes, states where only the coalition moves are min nodes (with the joint moves of the coalition
+ *   as replies), both searched with alpha-beta. States where we and the coalition move simultaneously are
+ *   matrix games, solved for a mixed equilibrium with the double-oracle method: starting with one move of
+ *   each side, best responses against the equilibrium of the restricted game are added until none of them
+ *   improves the value. Only the children in the restricted game are searched exactly, candidates for best
+ *   responses against a pure strategy only with a null window (as in DO-alpha-beta). If the root is such a state,
+ *   our move is sampled from our equilibrium strategy.
+ * - MAX_N: the value of a state is the vector of the goals of all roles and each mover picks the child with
+ *   its own highest goal. Simultaneous moves are sequentialized (we choose first, then the other movers
+ *   in the order of the roles), which is only an approximation.
+ *
+ * Results are stored in a transposition table by the Zobrist hash of the state. Non-terminal states at the
+ * depth limit are evaluated with a LinearEvaluator (for our role in PARANOID mode, for every role in MAX_N mode).
+ */
+public abstract class JointMoveSearchGamer extends SampleGamer {
+
+	public enum Mode {PARANOID, MAX_N}
+
+	private enum Bound {EXACT, LOWER, UPPER}
+
+	private static final int TABLE_SIZE = 1 << 20;
+	private static final double EPSILON = 1e-6;
+
+	private final Mode mode;
+	private final Random random = new Random();
+	private TranspositionTable<Entry> table;
+	private MoveOrdering moveOrdering;
+	private Evaluator<InternalBitSetState> evaluator;
+	private PropNetBitSetStateMachine machine;
+	private int roleId;
+	private int nbRoles;
+	private PropNetMove[][] possibleMoves;
+	private long deadline;
+	private long expandedNodes;
+	private long gameStart;
+	// set by every call of paranoid/maxN: true if the returned value is proven
+	private boolean solved;
+	// our move in the root of the current iteration, or our mixed strategy if the root is a matrix game
+	private int rootMove;
+	private int[] rootMoves;
+	private double[] rootStrategy;
+
+	private static class TimeOutException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public TimeOutException(String message) {
+			super(message);
+		}
+	}
+
+	private static class Entry {
+		// PARANOID: our value, MAX_N: the values of all roles
+		private final double[] values;
+		private final Bound bound;
+		// Integer.MAX_VALUE if the value is proven
+		private final int depth;
+		// our best move in max nodes and matrix games, the best reply in min nodes, the move of the first mover in MAX_N
+		private final int move;
+
+		public Entry(double[] values, Bound bound, int depth, int move) {
+			this.values = values;
+			this.bound = bound;
+			this.depth = depth;
+			this.move = move;
+		}
+	}
+
+	protected JointMoveSearchGamer(Mode mode) {
+		super();
+		this.mode = mode;
+	}
+
+	@Override
+	public StateMachine getInitialStateMachine() {
+		// propnets are cached by a hash of the rules, so they don't have to be rebuilt for repeated (scrambled) games
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(PropNetCache.getDefault());
+		// leave at least half of the start clock for the rest of the meta game
+		factory.setOptimizationDeadline(System.currentTimeMillis() + getMatch().getStartClock() * 1000L / 2);
+		return new RecursiveForwardChangePropNetStateMachine(factory);
+	}
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		gameStart = System.currentTimeMillis();
+		expandedNodes = 0;
+		machine = (PropNetBitSetStateMachine)getStateMachine();
+		PropNetStructure structure = machine.getPropNetStructure();
+		roleId = structure.getRoleId(getRole());
+		nbRoles = structure.getRoles().length;
+		possibleMoves = new PropNetMove[nbRoles][];
+		for (int r = 0; r < nbRoles; r++) {
+			possibleMoves[r] = structure.getPossibleMoves(r);
+		}
+		moveOrdering = new MoveOrdering(structure, true, false, true);
+		evaluator = LinearEvaluator.create(machine, getMatch().getGame().getRules(), PropNetCache.getDefault());
+		table = new TranspositionTable<Entry>(TABLE_SIZE, TranspositionTable.ReplacementPolicy.TWO_TIER);
+		stateMachineSelectMove(timeout);
+	}
+
+	@Override
+	public Move stateMachineSelectMove(long timeout)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		long start = System.currentTimeMillis();
+		InternalBitSetState state = machine.machineStateToInternalState(getCurrentState());
+		deadline = timeout - 500;
+		moveOrdering.newSearch();
+		int depth = 1;
+		int completedDepth = 0;
+		int move = -1;
+		int[] moves = null;
+		double[] strategy = null;
+		double value = -1;
+		try {
+			while (true) {
+				rootMove = -1;
+				rootStrategy = null;
+				double v = (mode == Mode.PARANOID ? paranoid(state, depth, -1, 101, 0) : maxN(state, depth, 0)[roleId]);
+				completedDepth = depth;
+				move = rootMove;
+				moves = rootMoves;
+				strategy = rootStrategy;
+				value = v;
+				if (solved) {
+					completedDepth = Integer.MAX_VALUE;
+					break;
+				}
+				depth++;
+			}
+		} catch (TimeOutException e) {
+		}
+		if (strategy != null) {
+			// play a mixed strategy in simultaneous games
+			double r = random.nextDouble();
+			move = moves[0];
+			for (int i = 0; i < strategy.length && r >= 0; i++) {
+				move = moves[i];
+				r -= strategy[i];
+			}
+		}
+		Move selection;
+		if (move == -1) {
+			// not even the first iteration finished, play any legal move
+			selection = machine.getRandomMove(state, roleId);
+		} else {
+			selection = possibleMoves[roleId][move];
+			System.out.println(mode + " search depth: " + (completedDepth == Integer.MAX_VALUE ? "solved" : completedDepth)
+					+ ", value: " + value + (strategy != null ? ", strategy: " + Arrays.toString(strategy) : ""));
+		}
+		System.out.println(selection);
+		long stop = System.currentTimeMillis();
+		notifyObservers(new GamerSelectedMoveEvent(machine.getLegalMoves(state, roleId), selection, stop - start));
+		return selection;
+	}
+
+	@Override
+	public void stateMachineStop() {
+		System.out.println("Number of expanded states: " + expandedNodes);
+		System.out.println("Playing game took " + (System.currentTimeMillis() - gameStart) + " ms");
+	}
+
+	@Override
+	public void stateMachineAbort() {
+	}
+
+	private void checkTime() throws TimeOutException {
+		if (System.currentTimeMillis() > deadline) {
+			throw new TimeOutException("Search timed out");
+		}
+	}
+
+	/**
+	 * computes the legal moves of all roles in state
+	 * @return the number of joint moves of the other roles
+	 */
+	private int computeLegals(InternalBitSetState state, int[][] legals, int[] nbLegals) {
+		int nbReplies = 1;
+		for (int r = 0; r < nbRoles; r++) {
+			legals[r] = new int[possibleMoves[r].length];
+			nbLegals[r] = machine.getLegalMoveOrdinals(state, r, legals[r]);
+			if (r != roleId) {
+				nbReplies *= nbLegals[r];
+			}
+		}
+		return nbReplies;
+	}
+
+	/**
+	 * sets the moves of the other roles in jointMove (and their ordinals in replyOrdinals) to the given reply,
+	 * replies are numbered as in MoveOrdering.sortReplies
+	 */
+	private void setReply(int reply, int[][] legals, int[] nbLegals, PropNetMove[] jointMove, int[] replyOrdinals) {
+		for (int r = 0; r < nbRoles; r++) {
+			if (r != roleId) {
+				replyOrdinals[r] = legals[r][reply % nbLegals[r]];
+				jointMove[r] = possibleMoves[r][replyOrdinals[r]];
+				reply /= nbLegals[r];
+			}
+		}
+	}
+
+	private double paranoid(InternalBitSetState state, int depth, double alpha, double beta, int ply)
+			throws TimeOutException, GoalDefinitionException {
+		checkTime();
+		if (machine.isTerminal(state)) {
+			solved = true;
+			return machine.getGoal(state, roleId);
+		}
+		long key = state.getZobristHash();
+		Entry entry = table.get(key);
+		int hashMove = -1;
+		if (entry != null) {
+			double value = entry.values[0];
+			// the root has to be searched to know our move
+			if (ply > 0 && entry.depth >= depth && (entry.bound == Bound.EXACT
+					|| (entry.bound == Bound.LOWER && value >= beta)
+					|| (entry.bound == Bound.UPPER && value <= alpha))) {
+				solved = (entry.depth == Integer.MAX_VALUE);
+				return value;
+			}
+			hashMove = entry.move;
+		}
+		if (depth <= 0) {
+			solved = false;
+			return evaluator.evaluate(state, roleId);
+		}
+		expandedNodes++;
+
+		int[][] legals = new int[nbRoles][];
+		int[] nbLegals = new int[nbRoles];
+		int nbReplies = computeLegals(state, legals, nbLegals);
+		int[] ourMoves = legals[roleId];
+		int nbOurMoves = nbLegals[roleId];
+		legals[roleId] = null;
+		PropNetMove[] jointMove = new PropNetMove[nbRoles];
+		int[] replyOrdinals = new int[nbRoles];
+		double alphaOrig = alpha;
+		double betaOrig = beta;
+		double value;
+		int bestMove = -1;
+		boolean allSolved = true;
+
+		if (nbReplies == 1) {
+			// max node: only we move
+			setReply(0, legals, nbLegals, jointMove, replyOrdinals);
+			moveOrdering.sortMoves(roleId, ply, hashMove, ourMoves, nbOurMoves);
+			value = -1;
+			for (int i = 0; i < nbOurMoves; i++) {
+				jointMove[roleId] = possibleMoves[roleId][ourMoves[i]];
+				double v = paranoid(machine.getNextState(state, jointMove, true), depth - 1, alpha, beta, ply + 1);
+				allSolved &= solved;
+				if (v > value) {
+					value = v;
+					bestMove = ourMoves[i];
+				}
+				alpha = Math.max(alpha, value);
+				if (alpha >= beta) {
+					moveOrdering.cutoff(roleId, ply, ourMoves[i], depth);
+					break;
+				}
+			}
+			if (ply == 0) {
+				rootMove = bestMove;
+			}
+		} else if (nbOurMoves == 1) {
+			// min node: only the coalition moves
+			jointMove[roleId] = possibleMoves[roleId][ourMoves[0]];
+			moveOrdering.sortReplies(ply, legals, nbLegals, hashMove);
+			value = 101;
+			for (int i = 0; i < nbReplies; i++) {
+				int reply = moveOrdering.getReply(ply, i);
+				setReply(reply, legals, nbLegals, jointMove, replyOrdinals);
+				double v = paranoid(machine.getNextState(state, jointMove, true), depth - 1, alpha, beta, ply + 1);
+				allSolved &= solved;
+				if (v < value) {
+					value = v;
+					bestMove = reply;
+				}
+				beta = Math.min(beta, value);
+				if (alpha >= beta) {
+					for (int r = 0; r < nbRoles; r++) {
+						if (r != roleId) {
+							moveOrdering.cutoff(r, ply, replyOrdinals[r], depth);
+						}
+					}
+					break;
+				}
+			}
+			if (ply == 0) {
+				rootMove = ourMoves[0];
+			}
+		} else {
+			// matrix game: we and the coalition move simultaneously
+			moveOrdering.sortMoves(roleId, ply, hashMove, ourMoves, nbOurMoves);
+			moveOrdering.sortReplies(ply, legals, nbLegals, -1);
+			// the matrix node looks up the replies by their column
+			int[] replies = new int[nbReplies];
+			for (int i = 0; i < nbReplies; i++) {
+				replies[i] = moveOrdering.getReply(ply, i);
+			}
+			MatrixNode node = new MatrixNode(state, depth, ply, ourMoves, nbOurMoves, replies, legals, nbLegals);
+			int[] rows = new int[nbOurMoves];
+			int[] cols = new int[nbReplies];
+			int nbRows = 1;
+			int nbCols = 1;
+			double[] x = new double[nbOurMoves];
+			double[] y = new double[nbReplies];
+			double[][] restricted = new double[nbOurMoves][nbReplies];
+			while (true) {
+				for (int i = 0; i < nbRows; i++) {
+					for (int j = 0; j < nbCols; j++) {
+						restricted[i][j] = node.getValue(rows[i], cols[j]);
+					}
+				}
+				value = MatrixGame.solve(restricted, nbRows, nbCols, x, y);
+				// add a move of ours that is a better response to the strategy of the coalition
+				boolean added = false;
+				for (int row = 0; row < nbOurMoves; row++) {
+					if (!contains(rows, nbRows, row) && node.isBetterRow(row, cols, y, nbCols, value + EPSILON)) {
+						rows[nbRows++] = row;
+						added = true;
+						break;
+					}
+				}
+				// add a reply that is a better response to our strategy
+				for (int col = 0; col < nbReplies; col++) {
+					if (!contains(cols, nbCols, col) && node.isBetterCol(col, rows, x, nbRows, value - EPSILON)) {
+						cols[nbCols++] = col;
+						added = true;
+						break;
+					}
+				}
+				if (!added) {
+					break;
+				}
+			}
+			allSolved = node.allSolved;
+			int best = 0;
+			for (int i = 1; i < nbRows; i++) {
+				if (x[i] > x[best]) {
+					best = i;
+				}
+			}
+			bestMove = ourMoves[rows[best]];
+			if (ply == 0) {
+				rootMoves = new int[nbRows];
+				for (int i = 0; i < nbRows; i++) {
+					rootMoves[i] = ourMoves[rows[i]];
+				}
+				rootStrategy = Arrays.copyOf(x, nbRows);
+			}
+			// the equilibrium value is exact
+			alphaOrig = Double.NEGATIVE_INFINITY;
+			betaOrig = Double.POSITIVE_INFINITY;
+		}
+
+		Bound bound = (value <= alphaOrig ? Bound.UPPER : value >= betaOrig ? Bound.LOWER : Bound.EXACT);
+		int entryDepth = (allSolved ? Integer.MAX_VALUE : depth);
+		table.put(key, new Entry(new double[] {value}, bound, entryDepth, bestMove), entryDepth);
+		solved = allSolved;
+		return value;
+	}
+
+	/**
+	 * the children of a state in which we and the coalition move simultaneously, with bounds on their values
+	 *
+	 * Children are only searched as far as needed: the ones in the restricted game exactly, other ones
+	 * with a null window if it is enough to know whether they are better than a threshold.
+	 */
+	private class MatrixNode {
+		private final InternalBitSetState state;
+		private final int depth;
+		private final int ply;
+		private final int[] ourMoves;
+		private final int[] replies;
+		private final int[][] legals;
+		private final int[] nbLegals;
+		private final PropNetMove[] jointMove;
+		private final int[] replyOrdinals;
+		// bounds on the values of the children
+		private final double[][] lower;
+		private final double[][] upper;
+		private boolean allSolved = true;
+
+		public MatrixNode(InternalBitSetState state, int depth, int ply, int[] ourMoves, int nbOurMoves, int[] replies,
+				int[][] legals, int[] nbLegals) {
+			this.state = state;
+			this.depth = depth;
+			this.ply = ply;
+			this.ourMoves = ourMoves;
+			this.replies = replies;
+			this.legals = legals;
+			this.nbLegals = nbLegals;
+			jointMove = new PropNetMove[nbRoles];
+			replyOrdinals = new int[nbRoles];
+			lower = new double[nbOurMoves][replies.length];
+			upper = new double[nbOurMoves][replies.length];
+			for (int i = 0; i < nbOurMoves; i++) {
+				Arrays.fill(lower[i], -1);
+				Arrays.fill(upper[i], 101);
+			}
+		}
+
+		/**
+		 * @return the exact value of the child for our move ourMoves[row] and the reply replies[col]
+		 */
+		public double getValue(int row, int col) throws TimeOutException, GoalDefinitionException {
+			if (lower[row][col] < upper[row][col]) {
+				search(row, col, -1, 101);
+			}
+			return lower[row][col];
+		}
+
+		/**
+		 * @return true if playing row against the strategy y on cols gives us more than threshold
+		 */
+		public boolean isBetterRow(int row, int[] cols, double[] y, int nbCols, double threshold) throws TimeOutException, GoalDefinitionException {
+			int col = getPureStrategy(y, nbCols);
+			if (col != -1) {
+				return isAbove(row, cols[col], threshold);
+			}
+			double v = 0;
+			for (int j = 0; j < nbCols; j++) {
+				if (y[j] > EPSILON) {
+					v += y[j] * getValue(row, cols[j]);
+				}
+			}
+			return v > threshold;
+		}
+
+		/**
+		 * @return true if playing col against the strategy x on rows gives us less than threshold
+		 */
+		public boolean isBetterCol(int col, int[] rows, double[] x, int nbRows, double threshold) throws TimeOutException, GoalDefinitionException {
+			int row = getPureStrategy(x, nbRows);
+			if (row != -1) {
+				return !isAbove(rows[row], col, threshold - EPSILON);
+			}
+			double v = 0;
+			for (int i = 0; i < nbRows; i++) {
+				if (x[i] > EPSILON) {
+					v += x[i] * getValue(rows[i], col);
+				}
+			}
+			return v < threshold;
+		}
+
+		/**
+		 * @return true if the value of the child is greater than threshold, using a null window search if needed
+		 */
+		private boolean isAbove(int row, int col, double threshold) throws TimeOutException, GoalDefinitionException {
+			if (lower[row][col] > threshold) {
+				return true;
+			}
+			if (upper[row][col] <= threshold) {
+				return false;
+			}
+			search(row, col, threshold, threshold + EPSILON);
+			return lower[row][col] > threshold;
+		}
+
+		private int getPureStrategy(double[] strategy, int n) {
+			for (int i = 0; i < n; i++) {
+				if (strategy[i] > 1 - EPSILON) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void search(int row, int col, double alpha, double beta) throws TimeOutException, GoalDefinitionException {
+			jointMove[roleId] = possibleMoves[roleId][ourMoves[row]];
+			setReply(replies[col], legals, nbLegals, jointMove, replyOrdinals);
+			double v = paranoid(machine.getNextState(state, jointMove, true), depth - 1, alpha, beta, ply + 1);
+			allSolved &= solved;
+			// fail-soft: v is an upper bound unless it fails high and a lower bound unless it fails low
+			if (v < beta) {
+				upper[row][col] = Math.min(upper[row][col], v);
+			}
+			if (v > alpha) {
+				lower[row][col] = Math.max(lower[row][col], v);
+			}
+		}
+	}
+
+	private static boolean contains(int[] values, int n, int value) {
+		for (int i = 0; i < n; i++) {
+			if (values[i] == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private double[] maxN(InternalBitSetState state, int depth, int ply) throws TimeOutException, GoalDefinitionException {
+		checkTime();
+		double[] values = new double[nbRoles];
+		if (machine.isTerminal(state)) {
+			for (int r = 0; r < nbRoles; r++) {
+				values[r] = machine.getGoal(state, r);
+			}
+			solved = true;
+			return values;
+		}
+		long key = state.getZobristHash();
+		Entry entry = table.get(key);
+		if (entry != null && ply > 0 && entry.depth >= depth) {
+			solved = (entry.depth == Integer.MAX_VALUE);
+			return entry.values;
+		}
+		if (depth <= 0) {
+			for (int r = 0; r < nbRoles; r++) {
+				values[r] = evaluator.evaluate(state, r);
+			}
+			solved = false;
+			return values;
+		}
+		expandedNodes++;
+
+		int[][] legals = new int[nbRoles][];
+		int[] nbLegals = new int[nbRoles];
+		computeLegals(state, legals, nbLegals);
+		// movers in the order in which they choose, roles without a choice get their only move
+		int[] movers = new int[nbRoles];
+		int nbMovers = 0;
+		PropNetMove[] jointMove = new PropNetMove[nbRoles];
+		if (nbLegals[roleId] > 1) {
+			movers[nbMovers++] = roleId;
+		}
+		for (int r = 0; r < nbRoles; r++) {
+			if (nbLegals[r] > 1) {
+				if (r != roleId) {
+					movers[nbMovers++] = r;
+				}
+			} else {
+				jointMove[r] = possibleMoves[r][legals[r][0]];
+			}
+		}
+		boolean[] allSolved = new boolean[] {true};
+		int[] firstChoice = new int[] {-1};
+		values = choose(state, depth, ply, movers, nbMovers, 0, legals, nbLegals, jointMove, allSolved, firstChoice);
+		if (ply == 0) {
+			rootMove = (nbLegals[roleId] > 1 ? firstChoice[0] : legals[roleId][0]);
+		}
+		int entryDepth = (allSolved[0] ? Integer.MAX_VALUE : depth);
+		table.put(key, new Entry(values, Bound.EXACT, entryDepth, firstChoice[0]), entryDepth);
+		solved = allSolved[0];
+		return values;
+	}
+
+	/**
+	 * lets movers[k] choose its move given the moves of movers[0..k-1] in jointMove
+	 * @return the values of the chosen child
+	 */
+	private double[] choose(InternalBitSetState state, int depth, int ply, int[] movers, int nbMovers, int k,
+			int[][] legals, int[] nbLegals, PropNetMove[] jointMove, boolean[] allSolved, int[] firstChoice)
+			throws TimeOutException, GoalDefinitionException {
+		if (k == nbMovers) {
+			double[] values = maxN(machine.getNextState(state, jointMove, true), depth - 1, ply + 1);
+			allSolved[0] &= solved;
+			return values;
+		}
+		int mover = movers[k];
+		double[] best = null;
+		for (int i = 0; i < nbLegals[mover]; i++) {
+			jointMove[mover] = possibleMoves[mover][legals[mover][i]];
+			double[] values = choose(state, depth, ply, movers, nbMovers, k + 1, legals, nbLegals, jointMove, allSolved, firstChoice);
+			if (best == null || values[mover] > best[mover]) {
+				best = values;
+				if (k == 0) {
+					firstChoice[0] = legals[mover][i];
+				}
+			}
+		}
+		return best;
+	}
+}
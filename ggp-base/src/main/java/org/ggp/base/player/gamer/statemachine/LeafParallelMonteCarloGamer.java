@@ -0,0 +1,12 @@
+package org.ggp.base.player.gamer.statemachine;
+
+/**
+ * leaf parallel UCT: one thread searches the tree, the other threads run the playouts from its leaves
+ */
+public class LeafParallelMonteCarloGamer extends ParallelMonteCarloGamer {
+
+	public LeafParallelMonteCarloGamer() {
+		super(Mode.LEAF_PARALLEL);
+	}
+
+}
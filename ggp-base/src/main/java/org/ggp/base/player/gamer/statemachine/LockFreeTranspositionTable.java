@@ -0,0 +1,145 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * fixed-capacity transposition table for alpha-beta search that can be shared by several threads without locks
+ *
+ * Each entry is packed into one long (value, bound, depth, best move and generation) and stored
+ * in two consecutive array elements as (key ^ data, data). A reader only accepts an entry if
+ * both elements fit together, so entries that were torn by concurrent writes are ignored instead
+ * of being returned for the wrong key (the "lockless hashing" trick).
+ *
+ * Buckets consist of two slots: one keeps the entry with the highest depth (entries from old
+ * searches are replaced first), the other one the most recent entry.
+ */
+public class LockFreeTranspositionTable {
+
+	public static final int BOUND_EXACT = 1;
+	public static final int BOUND_LOWER = 2;
+	public static final int BOUND_UPPER = 3;
+
+	/**
+	 * depth of entries whose value is proven (i.e., the whole subtree was searched)
+	 */
+	public static final int SOLVED_DEPTH = 0xFFFF;
+
+	/**
+	 * largest move that can be stored
+	 */
+	public static final int MAX_MOVE = (1 << 22) - 2;
+
+	private static final int VALUE_SHIFT = 0;
+	private static final int BOUND_SHIFT = 8;
+	private static final int DEPTH_SHIFT = 10;
+	private static final int MOVE_SHIFT = 26;
+	private static final int GENERATION_SHIFT = 48;
+
+	private final AtomicLongArray table;
+	private final int bucketMask;
+	private volatile int generation;
+
+	/**
+	 * @param capacity the minimal number of entries of the table (rounded up to a power of two)
+	 */
+	public LockFreeTranspositionTable(int capacity) {
+		int nbSlots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		bucketMask = (nbSlots - 1) & ~1;
+		table = new AtomicLongArray(2 * nbSlots);
+		generation = 0;
+	}
+
+	/**
+	 * starts a new search, entries of older searches are replaced first from now on
+	 */
+	public void nextGeneration() {
+		generation = (generation + 1) & 0xFF;
+	}
+
+	/**
+	 * @return the packed entry for key or 0 if there is none
+	 */
+	public long get(long key) {
+		int slot = getBucket(key);
+		for (int i = 0; i < 2; i++, slot++) {
+			long data = table.get(2 * slot + 1);
+			if ((table.get(2 * slot) ^ data) == key && data != 0) {
+				return data;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * stores an entry for key
+	 * @param value in 0..255
+	 * @param bound one of BOUND_EXACT, BOUND_LOWER, BOUND_UPPER
+	 * @param depth in 0..SOLVED_DEPTH
+	 * @param move the best move or -1 (larger moves than MAX_MOVE are not stored)
+	 */
+	public void put(long key, int value, int bound, int depth, int move) {
+		if (move > MAX_MOVE) {
+			move = -1;
+		}
+		int currentGeneration = generation;
+		long data = ((long)value << VALUE_SHIFT)
+				| ((long)bound << BOUND_SHIFT)
+				| ((long)depth << DEPTH_SHIFT)
+				| ((long)(move + 1) << MOVE_SHIFT)
+				| ((long)currentGeneration << GENERATION_SHIFT);
+		int slot = getBucket(key);
+		long oldData = table.get(2 * slot + 1);
+		if ((table.get(2 * slot) ^ oldData) == key
+				|| oldData == 0
+				|| getGeneration(oldData) != currentGeneration
+				|| getDepth(oldData) <= depth) {
+			// depth-preferred slot
+			if ((table.get(2 * slot + 2) ^ table.get(2 * slot + 3)) == key) {
+				// don't keep a stale copy of the key in the other slot
+				table.lazySet(2 * slot + 3, 0);
+				table.lazySet(2 * slot + 2, 0);
+			}
+		} else {
+			// always-replace slot
+			slot++;
+		}
+		table.lazySet(2 * slot, key ^ data);
+		table.lazySet(2 * slot + 1, data);
+	}
+
+	/**
+	 * removes all entries
+	 */
+	public void clear() {
+		for (int i = 0; i < table.length(); i++) {
+			table.lazySet(i, 0);
+		}
+	}
+
+	public static int getValue(long data) {
+		return (int)(data >>> VALUE_SHIFT) & 0xFF;
+	}
+
+	public static int getBound(long data) {
+		return (int)(data >>> BOUND_SHIFT) & 0x3;
+	}
+
+	public static int getDepth(long data) {
+		return (int)(data >>> DEPTH_SHIFT) & 0xFFFF;
+	}
+
+	/**
+	 * @return the best move stored with the entry or -1
+	 */
+	public static int getMove(long data) {
+		return ((int)(data >>> MOVE_SHIFT) & 0x3FFFFF) - 1;
+	}
+
+	private static int getGeneration(long data) {
+		return (int)(data >>> GENERATION_SHIFT) & 0xFF;
+	}
+
+	private int getBucket(long key) {
+		return (int)(key ^ (key >>> 32)) & bucketMask;
+	}
+}
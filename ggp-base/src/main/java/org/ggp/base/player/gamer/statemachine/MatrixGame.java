@@ -0,0 +1,118 @@
+package org.ggp.base.player.gamer.statemachine;
+
+/**
+ * solves two-player zero-sum matrix games with the simplex method
+ *
+ * The row player maximizes and the column player minimizes the payoff. The game is turned into the
+ * linear program: maximize sum(y) s.t. A'y <= 1, y >= 0, where A' is the payoff matrix shifted to be positive.
+ * Then the value of the game is 1/sum(y) (minus the shift), the optimal strategy of the column player is
+ * y normalized and the optimal strategy of the row player are the normalized dual values.
+ */
+public final class MatrixGame {
+
+	private static final double EPSILON = 1e-9;
+
+	private MatrixGame() {
+	}
+
+	/**
+	 * @param payoff payoff[i][j] is the payoff for the row player if row i and column j are played
+	 * @param nbRows the number of rows of payoff to use
+	 * @param nbCols the number of columns of payoff to use
+	 * @param rowStrategy if not null, the first nbRows entries are set to the optimal mixed strategy of the row player
+	 * @param colStrategy if not null, the first nbCols entries are set to the optimal mixed strategy of the column player
+	 * @return the value of the game
+	 */
+	public static double solve(double[][] payoff, int nbRows, int nbCols, double[] rowStrategy, double[] colStrategy) {
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < nbRows; i++) {
+			for (int j = 0; j < nbCols; j++) {
+				min = Math.min(min, payoff[i][j]);
+			}
+		}
+		double shift = 1 - min;
+
+		// tableau: one row per constraint plus the objective row,
+		// columns for y, the slack variables and the right hand side
+		int width = nbCols + nbRows + 1;
+		double[][] t = new double[nbRows + 1][width];
+		int[] basis = new int[nbRows];
+		for (int i = 0; i < nbRows; i++) {
+			for (int j = 0; j < nbCols; j++) {
+				t[i][j] = payoff[i][j] + shift;
+			}
+			t[i][nbCols + i] = 1;
+			t[i][width - 1] = 1;
+			basis[i] = nbCols + i;
+		}
+		double[] objective = t[nbRows];
+		for (int j = 0; j < nbCols; j++) {
+			objective[j] = -1;
+		}
+
+		while (true) {
+			// Bland's rule: the first column with a negative reduced cost enters the basis
+			int col = -1;
+			for (int j = 0; j < width - 1; j++) {
+				if (objective[j] < -EPSILON) {
+					col = j;
+					break;
+				}
+			}
+			if (col == -1) {
+				break;
+			}
+			int row = -1;
+			double bestRatio = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < nbRows; i++) {
+				if (t[i][col] > EPSILON) {
+					double ratio = t[i][width - 1] / t[i][col];
+					if (ratio < bestRatio - EPSILON || (ratio < bestRatio + EPSILON && row != -1 && basis[i] < basis[row])) {
+						bestRatio = ratio;
+						row = i;
+					}
+				}
+			}
+			// the LP is bounded because all entries of A' are positive, so row != -1
+			pivot(t, row, col);
+			basis[row] = col;
+		}
+
+		double sum = objective[width - 1];
+		double value = 1 / sum;
+		if (colStrategy != null) {
+			for (int j = 0; j < nbCols; j++) {
+				colStrategy[j] = 0;
+			}
+			for (int i = 0; i < nbRows; i++) {
+				if (basis[i] < nbCols) {
+					colStrategy[basis[i]] = t[i][width - 1] * value;
+				}
+			}
+		}
+		if (rowStrategy != null) {
+			for (int i = 0; i < nbRows; i++) {
+				rowStrategy[i] = objective[nbCols + i] * value;
+			}
+		}
+		return value - shift;
+	}
+
+	private static void pivot(double[][] t, int row, int col) {
+		double[] pivotRow = t[row];
+		double p = pivotRow[col];
+		for (int j = 0; j < pivotRow.length; j++) {
+			pivotRow[j] /= p;
+		}
+		for (int i = 0; i < t.length; i++) {
+			if (i != row) {
+				double factor = t[i][col];
+				if (factor != 0) {
+					for (int j = 0; j < pivotRow.length; j++) {
+						t[i][j] -= factor * pivotRow[j];
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package org.ggp.base.player.gamer.statemachine;
+
+/**
+ * max-n search: every role maximizes its own goal
+ */
+public class MaxNSearchGamer extends JointMoveSearchGamer {
+
+	public MaxNSearchGamer() {
+		super(Mode.MAX_N);
+	}
+
+}
@@ -17,6 +17,7 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
 import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
 import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
 import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
 import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
 
@@ -195,20 +196,13 @@ public class MinimaxGamer extends SampleGamer {
 		gameStart = System.currentTimeMillis();
 		mem = new HashMap<MachineState, MoveValue>();
 		try {
-			// Note: this is an ugly hack that relies on the the match ID
-			// being "something.gamename.timestamp", which happens to be the case
-			// for the Server app and the Kiosk. This will only work while testing if
-			// the game rules are not scrambled.
-			// TODO: take this out for the final version of the player
-			//       (simply using gameName = null, should be safe)
-			String gameName = getMatch().getMatchId().replaceAll("(\\.|-)[0-9]*$", "");
-			System.out.println("match: " + getMatch().getMatchId() + ", game:" + gameName);
 			PropNetStructureFactory propnetFactory = new GGPBasePropNetStructureFactory();
-			PropNetStructure propNet;
-			propNet = propnetFactory.create(gameName, getMatch().getGame().getRules());
+			propnetFactory.setCache(PropNetCache.getDefault());
+			propnetFactory.setOptimizationDeadline(gameStart + (timeout - gameStart) / 2);
+			PropNetStructure propNet = propnetFactory.createOrLoad(getMatch().getGame().getRules());
 			StateMachine m = new RecursiveForwardChangePropNetStateMachine(propNet);
 			switchStateMachine(m);
-		} catch (InterruptedException | IOException e1) {
+		} catch (InterruptedException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
 		}
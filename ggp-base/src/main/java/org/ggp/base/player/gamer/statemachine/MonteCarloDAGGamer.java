@@ -1,34 +1,48 @@
 package org.ggp.base.player.gamer.statemachine;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 
 import org.ggp.base.player.gamer.statemachine.sample.SampleGamer;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
-import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
-import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachine;
 import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
 import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
 
-public class MonteCarloDAGGamer extends SampleGamer {
-	private Random random;
-	private MonteCarloDAGNode root;
+public class MonteCarloDAGGamer extends SampleGamer implements SimulationCounter {
+	private MonteCarloTree<InternalBitSetState> tree;
 
-	private HashMap<MachineState, MonteCarloDAGNode> map;
+	// nodes of the tree by the Zobrist hashes of their states (nodes for different states with the
+	// same hash are not distinguished, with 64 bit hashes that is unlikely enough)
+	private TranspositionTable<Integer> map;
 	private final double C = 50;
-	private final int maxTreeSize = 500000;
+	// memory budget of the search tree in bytes
+	private final long maxTreeMemory = Runtime.getRuntime().maxMemory() / 4;
+	// whether playouts stop and nodes count as terminal once latches decide the outcome (see LatchAnalysis)
+	private final boolean earlyPlayoutCutoff;
 	private int numberOfSelectMove;
 	private int simulations;
 	private int nodeCount;
 
+	// buffers, so that we don't need to allocate anything during search
+	private int nbRoles;
+	private int[] jointMove;
+	private PropNetMove[] propNetJointMove;
+	private int[] scores;
+	// nodes and joint moves on the selected path
+	private int[] parents;
+	private int[] parentMoves;
+
 	public class TimeOutException extends Exception {
 		/**
 		 *
@@ -41,15 +55,30 @@ public class MonteCarloDAGGamer extends SampleGamer {
 	}
 
 	public MonteCarloDAGGamer() {
-		super();
-		this.random = new Random();
-		map = new HashMap<MachineState, MonteCarloDAGNode>();
+		this(false);
 		//System.out.println("THE VALUE OF C IS: " + C);
 	}
 
+	public MonteCarloDAGGamer(boolean earlyPlayoutCutoff) {
+		super();
+		this.earlyPlayoutCutoff = earlyPlayoutCutoff;
+	}
+
+	@Override
+	public long getNbSimulations() {
+		return simulations;
+	}
+
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new RecursiveForwardChangePropNetStateMachine(new GGPBasePropNetStructureFactory());
+		// propnets are cached by a hash of the rules, so they don't have to be rebuilt for repeated (scrambled) games
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(PropNetCache.getDefault());
+		// leave at least half of the start clock for the rest of the meta game
+		factory.setOptimizationDeadline(System.currentTimeMillis() + getMatch().getStartClock() * 1000L / 2);
+		RecursiveForwardChangePropNetStateMachine machine = new RecursiveForwardChangePropNetStateMachine(factory);
+		machine.setEarlyPlayoutCutoff(earlyPlayoutCutoff);
+		return machine;
 	}
 
 	@Override
@@ -57,96 +86,118 @@ public class MonteCarloDAGGamer extends SampleGamer {
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
 		long start = System.currentTimeMillis();
 		long realTimeout = start + (timeout-start)*9/10;
-		StateMachine machine = getStateMachine();
-		MachineState state = getCurrentState();
+		PropNetBitSetStateMachine machine = (PropNetBitSetStateMachine)getStateMachine();
+		InternalBitSetState state = machine.machineStateToInternalState(getCurrentState());
+		if (tree == null) {
+			setupBuffers(machine);
+			tree = new MonteCarloTree<>(machine, maxTreeMemory, false);
+			map = new TranspositionTable<Integer>(Math.min(2 * tree.getMaxNbNodes(), 1 << 21), TranspositionTable.ReplacementPolicy.ALWAYS_REPLACE);
+		}
 		List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
+		int root = tree.getRoot();
 		// We do not always want to start with a new tree after a move has been made
-		if (lastMoves != null) {
-			List<Move> jointMove = new ArrayList<Move>();
-			for (GdlTerm sentence : lastMoves)
-			{
-				jointMove.add(machine.getMoveFromTerm(sentence));
+		if (lastMoves != null && root != MonteCarloTree.NONE) {
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				jointMove[roleId] = machine.getMoveOrdinal(roleId, machine.getMoveFromTerm(lastMoves.get(roleId)));
 			}
-			if(root.children.containsKey(jointMove)) {
-				root = root.children.get(jointMove);
+			int child = tree.getChild(root, jointMove);
+			if(child != MonteCarloTree.NONE) {
+				root = tree.setRoot(child);
+				rebuildMap();
 			}
 			else {
-				root = new MonteCarloDAGNode(state);
-				map.put(state, root);
+				tree.clear();
+				map.clear();
+				root = tree.addNode(state);
+				map.put(state.getZobristHash(), root, 0);
 				nodeCount++;
-				expand(root);
 			}
 		} // else we are still in the initial state of the game
-		else if(root == null) { // If we have no root then we create a new one
-			root = new MonteCarloDAGNode(state);
-			map.put(state, root);
+		else if(root == MonteCarloTree.NONE) { // If we have no root then we create a new one
+			root = tree.addNode(state);
+			map.put(state.getZobristHash(), root, 0);
 			nodeCount++;
-			expand(root);
 		}
 
 
 		numberOfSelectMove++;
-		int sims = root.simulations;
+		int sims = tree.getSimulations(root);
 
-		Role r = getRole();
-		MonteCarloDAGNode currNode = root;
+		int roleId = machine.getPropNetStructure().getRoleId(getRole());
+		int currNode = root;
 		// Run simulations until time is running out leaving enough time to return a move
 		try {
-			List<MonteCarloDAGNode> parents = new ArrayList<MonteCarloDAGNode>();
-			List<List<Move>> parentMoves = new ArrayList<List<Move>>();
+			int pathLength = 0;
 			while(true) {
 				if(System.currentTimeMillis() > realTimeout) {
 					throw new TimeOutException("MonteCarlo timed out");
 				}
+				if(currNode == root && tree.isFull()) {
+					// make room for new nodes by removing the least visited subtrees
+					root = tree.prune();
+					rebuildMap();
+					currNode = root;
+				}
+				InternalBitSetState currState = tree.getState(currNode);
 				// If in the selection phase we find a terminal node we propagate the values and
 				// start the selection phase again
-				if(machine.isTerminal(currNode.state)) {
-					propagate(currNode, machine.getGoals(currNode.state), false, realTimeout, parents, parentMoves);
+				if(machine.isTerminal(currState)) {
+					getGoals(machine, currState, scores);
+					propagate(scores, realTimeout, pathLength);
+					pathLength = 0;
+					currNode = root;
+					continue;
+				}
+				// nodes whose outcome is already decided by latches are treated like terminal ones
+				if(machine.getFixedGoals(currState, scores)) {
+					propagate(scores, realTimeout, pathLength);
+					pathLength = 0;
 					currNode = root;
 					continue;
 				}
 
-				List<Move> jm = selectMoves(currNode);
+				selectMoves(currNode);
+				int child = tree.getChild(currNode, jointMove);
 
 				// We are still inside our tree so we move to the next node
-				if(currNode.children.containsKey(jm))
+				if(child != MonteCarloTree.NONE)
 				{
-					parents.add(currNode);
-					parentMoves.add(jm);
-					currNode = currNode.children.get(jm);
+					pathLength = addToPath(pathLength, currNode);
+					currNode = child;
 				}
 				// We have fallen out of our tree so we add the node to our tree and
 				// run a simulation from there
 				else
 				{
-					// If the tree we have so far is at our limit we will run a simulation from the leaf
-					// and not add anything to our tree
-					MachineState nextState = machine.getNextState(currNode.state, jm);
-					if(map.size() > maxTreeSize && !map.containsKey(nextState)) {
-						List<Integer> scores = runSimulation(currNode.state, realTimeout);
-						currNode.simulations++;
-						propagate(currNode, scores, false, timeout-500, parents, parentMoves);
+					// If the tree we have so far is still at our limit (after pruning) we will run a simulation
+					// from the leaf and not add anything to our tree
+					InternalBitSetState nextState = machine.getNextState(currState, toPropNetMoves(machine, jointMove), true);
+					Integer existingNode = map.get(nextState.getZobristHash());
+					if(tree.isFull() && existingNode == null) {
+						machine.playout(currState, scores, null);
+						tree.incSimulations(currNode);
+						propagate(scores, timeout-500, pathLength);
+						pathLength = 0;
 						currNode = root;
 						continue;
 					}
 					// Otherwise we generate the next state and make a new node with that state
 					// then simulate from that node
-					MonteCarloDAGNode newNode;
-					if(map.containsKey(nextState)) {
-						newNode = map.get(nextState);
+					int newNode;
+					if(existingNode != null) {
+						newNode = existingNode;
 					}
 					else {
-						newNode = new MonteCarloDAGNode(nextState);
-						map.put(nextState, newNode);
-						parents.add(currNode);
-						parentMoves.add(jm);
+						newNode = tree.addNode(nextState);
+						map.put(nextState.getZobristHash(), newNode, 0);
+						pathLength = addToPath(pathLength, currNode);
 						nodeCount++;
-						expand(newNode);
 					}
-					currNode.children.put(jm, newNode);
-					List<Integer> scores = runSimulation(nextState, realTimeout);
-					newNode.simulations++;
-					propagate(newNode, scores, true, timeout-500, parents, parentMoves);
+					tree.addChild(currNode, jointMove, newNode);
+					machine.playout(nextState, scores, null);
+					tree.incSimulations(newNode);
+					propagate(scores, timeout-500, pathLength);
+					pathLength = 0;
 					currNode = root;
 				}
 			}
@@ -155,20 +206,20 @@ public class MonteCarloDAGGamer extends SampleGamer {
 			System.out.println("Caught TimeOutException with " + (timeout-System.currentTimeMillis()) +  " ms remaining");
 		}
 		// We choose the move in the root which has the highest Q value
-		Move best = null;
+		int best = MonteCarloTree.NONE;
 		double bestval = -1;
-		for(Move m : machine.getLegalMoves(state, r)) {
-			if(root.Q.containsKey(m) && bestval < root.Q.get(m)) {
-				best = m;
-				bestval = root.Q.get(m);
+		for(int edge = tree.getFirstEdge(root, roleId); edge < tree.getEndEdge(root, roleId); edge++) {
+			if(bestval < tree.getQ(edge)) {
+				best = edge;
+				bestval = tree.getQ(edge);
 			}
 		}
 		long stop = System.currentTimeMillis();
-		simulations += root.simulations - sims;
+		simulations += tree.getSimulations(root) - sims;
 		//notifyObservers(new GamerSelectedMoveEvent(machine.getLegalMoves(state, getRole()), best, stop - start));
-		System.out.println("DAG Q value: " + root.Q.get(best));
-		System.out.println("DAG N value: " + root.N.get(best));
-		return best;
+		System.out.println("DAG Q value: " + tree.getQ(best));
+		System.out.println("DAG N value: " + tree.getN(best));
+		return machine.getPropNetStructure().getPossibleMoves(roleId)[tree.getMove(best)];
 	}
 
 	@Override
@@ -194,8 +245,8 @@ public class MonteCarloDAGGamer extends SampleGamer {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}*/
-		root = null;
-		map.clear();
+		tree = null;
+		map = null;
 //		System.out.println("Number of expanded states (maxnodes): " + expandedNodes);
 //		System.out.println("Playing game took " + (System.currentTimeMillis() - gameStart) + " ms");
 	}
@@ -206,104 +257,88 @@ public class MonteCarloDAGGamer extends SampleGamer {
 		simulations = 0;
 		numberOfSelectMove = 0;
 		nodeCount = 0;
-		/*try {
-			// Note: this is an ugly hack that relies on the the match ID
-			// being "something.gamename.timestamp", which happens to be the case
-			// for the Server app and the Kiosk. This will only work while testing if
-			// the game rules are not scrambled.
-			// TODO: take this out for the final version of the player
-			//       (simply using gameName = null, should be safe)
-			String gameName = getMatch().getMatchId().replaceAll("(\\.|-)[0-9]*$", "");
-			System.out.println("match: " + getMatch().getMatchId() + ", game:" + gameName);
-			PropNetStructureFactory propnetFactory = new GGPBasePropNetStructureFactory();
-			PropNetStructure propNet;
-			propNet = propnetFactory.create(gameName, getMatch().getGame().getRules());
-			StateMachine m = new RecursiveForwardChangePropNetStateMachine(propNet);
-			switchStateMachine(m);
-		} catch (InterruptedException | IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}*/
+		tree = null;
+		map = null;
 //		gameStart = System.currentTimeMillis();
 //		expandedNodes = 0;
 //		stateMachineSelectMove(timeout);
     }
 
-	private List<Integer> runSimulation(MachineState state, long timeout) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeOutException {
-		if(System.currentTimeMillis() > timeout) {
-			throw new TimeOutException("MonteCarlo timed out");
+	// Rebuilds the map from states to nodes after node handles have changed
+	private void rebuildMap() {
+		map.clear();
+		for (int node = 0; node < tree.getNbNodes(); node++) {
+			map.put(tree.getZobristHash(node), node, 0);
 		}
-		StateMachine machine = getStateMachine();
-		// If we are at a terminal state return the goal values
-		if(machine.isTerminal(state)) {
-			return machine.getGoals(state);
+	}
+
+	private void setupBuffers(PropNetBitSetStateMachine machine) {
+		nbRoles = machine.getRoles().size();
+		jointMove = new int[nbRoles];
+		propNetJointMove = new PropNetMove[nbRoles];
+		scores = new int[nbRoles];
+		parents = new int[64];
+		parentMoves = new int[64 * nbRoles];
+	}
+
+	// Remembers node and the joint move selected in it (currently in jointMove) as part of the selected path
+	private int addToPath(int pathLength, int node) {
+		if (pathLength == parents.length) {
+			parents = Arrays.copyOf(parents, 2 * parents.length);
+			parentMoves = Arrays.copyOf(parentMoves, 2 * parentMoves.length);
 		}
-		// Select a random move independently for each role to create a random joint move
-		List<Move> jm = new ArrayList<Move>();
-		for(Role r : machine.getRoles()) {
-			List<Move> moves = machine.getLegalMoves(state, r);
-			int choice = random.nextInt(moves.size());
-			jm.add(moves.get(choice));
+		parents[pathLength] = node;
+		System.arraycopy(jointMove, 0, parentMoves, pathLength * nbRoles, nbRoles);
+		return pathLength + 1;
+	}
+
+	private PropNetMove[] toPropNetMoves(PropNetBitSetStateMachine machine, int[] ordinals) {
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			propNetJointMove[roleId] = machine.getPropNetStructure().getPossibleMoves(roleId)[ordinals[roleId]];
 		}
-		MachineState nextState = machine.getNextState(state, jm);
-		return runSimulation(nextState, timeout);
+		return propNetJointMove;
 	}
 
-	// Selects the best move for each role from the UCT values
-	public List<Move> selectMoves(MonteCarloDAGNode node) throws MoveDefinitionException {
-		StateMachine machine = getStateMachine();
+	private void getGoals(PropNetBitSetStateMachine machine, InternalBitSetState state, int[] goals) throws GoalDefinitionException {
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			goals[roleId] = machine.getGoal(state, roleId);
+		}
+	}
 
-		ArrayList<Move> res = new ArrayList<Move>();
-		for(Role r : machine.getRoles()) {
-			Move bestMove = null;
+	// Selects the best move for each role from the UCT values and stores it in jointMove
+	public void selectMoves(int node) {
+		int sims = tree.getSimulations(node);
+		for(int roleId = 0; roleId < nbRoles; roleId++) {
+			int bestMove = MonteCarloTree.NONE;
 			double bestVal = -1;
-			for(Move m : machine.getLegalMoves(node.state, r)) {
-				double curr = UCT(node.Q.get(m), node.N.get(m), node.simulations);
+			for(int edge = tree.getFirstEdge(node, roleId); edge < tree.getEndEdge(node, roleId); edge++) {
+				double curr = UCT(tree.getQ(edge), tree.getN(edge), sims);
 				if(bestVal < curr) {
-					bestMove = m;
+					bestMove = tree.getMove(edge);
 					bestVal = curr;
 				}
 			}
-			res.add(bestMove);
+			jointMove[roleId] = bestMove;
 		}
-
-		return res;
 	}
 
 	public double UCT(double q, double n, double sims) {
 		return (sims == 0 || n == 0) ? Double.POSITIVE_INFINITY : q + C * Math.sqrt(Math.log(sims)/n);
 	}
 
-	// Initializes the Q and N values for a node
-	private void expand(MonteCarloDAGNode node) throws MoveDefinitionException {
-		StateMachine machine = getStateMachine();
-		if(machine.isTerminal(node.state)) return;
-		for(Role r : machine.getRoles()) {
-			for(Move m : machine.getLegalMoves(node.state, r)) {
-				node.Q.put(m, 0.0);
-				node.N.put(m, 0);
-			}
-		}
-	}
-
 	// Back propagates the values for the nodes in the tree that were selected in the selection phase
-	private void propagate(MonteCarloDAGNode node, List<Integer> scores, boolean incSize, long timeout,
-			List<MonteCarloDAGNode> parents, List<List<Move>> parentMoves) throws TimeOutException {
-		while(!parents.isEmpty()) {
-			MonteCarloDAGNode parent = parents.remove(parents.size()-1);
-			List<Move> jm = parentMoves.remove(parentMoves.size()-1);
-			for(int i = 0; i < jm.size(); i++) {
-				Move m = jm.get(i);
-				if(parent.Q.containsKey(m)) {
-					parent.N.put(m, parent.N.get(m)+1);
-					parent.Q.put(m, parent.Q.get(m)+(scores.get(i)-parent.Q.get(m))/parent.N.get(m));
-				}
-				else {
-					parent.Q.put(m, (double)scores.get(i));
-					parent.N.put(m, 1);
-				}
+	private void propagate(int[] scores, long timeout, int pathLength) throws TimeOutException {
+		while(pathLength > 0) {
+			if(System.currentTimeMillis() > timeout) {
+				throw new TimeOutException("MonteCarlo timed out");
+			}
+			pathLength--;
+			int parent = parents[pathLength];
+			for(int roleId = 0; roleId < nbRoles; roleId++) {
+				int edge = tree.findEdge(parent, roleId, parentMoves[pathLength * nbRoles + roleId]);
+				tree.update(edge, scores[roleId]);
 			}
-			parent.simulations++;
+			tree.incSimulations(parent);
 		}
 	}
 }
@@ -1,32 +1,71 @@
 package org.ggp.base.player.gamer.statemachine;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 
 import org.ggp.base.player.gamer.statemachine.sample.SampleGamer;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
-import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
-import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+import is.ru.cadia.ggp.propnet.PropNetMove;
 import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.compiled.CompiledPropNetStateMachine;
+import is.ru.cadia.ggp.propnet.statemachine.PropNetStateMachine;
 import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
 
-public class MonteCarloGamer extends SampleGamer {
-	private Random random;
-	private MonteCarloNode root;
+/**
+ * UCT with decoupled move selection for each role
+ *
+ * Terminal nodes are marked as proven in the tree when they are added, so they are only checked once and not simulated.
+ * With the solver enabled (MCTS-Solver), the same holds for nodes whose goals are fixed by latches (see LatchAnalysis),
+ * playouts stop once the goals are fixed and nodes are also proven from their children: nodes where only one role has a choice and
+ * either one move leads to a proven node with the highest goal of that role or all moves lead to proven
+ * nodes (then the best one for the role counts). Nodes with simultaneous moves are proven if all joint moves
+ * lead to proven nodes with the same outcome. Proven nodes are not simulated anymore, selection and the final
+ * move choice use the proven value instead of Q for them and the search stops once the root is proven.
+ * In games that are not constant-sum, the proven values of the roles that don't move assume that the mover
+ * picks the first best move.
+ *
+ * Optionally, newly expanded nodes are probed with a shallow search for outcomes that are forced within a few moves.
+ */
+public class MonteCarloGamer extends SampleGamer implements SimulationCounter {
+	private MonteCarloTree<InternalStateInterface> tree;
 
 	private final double C = 50;
-	private final int maxTreeSize = 500000;
+	private final boolean useSolver;
+	// depth (in joint moves) of the probes of newly expanded nodes, 0 for no probes
+	private final int probeDepth;
+	// memory budget of the search tree in bytes
+	private final long maxTreeMemory = Runtime.getRuntime().maxMemory() / 4;
 	private int numberOfSelectMove;
 	private int simulations;
 	private int nodeCount;
 
+	// buffers, so that we don't need to allocate anything during search
+	private int nbRoles;
+	private int[] jointMove;
+	private PropNetMove[] propNetJointMove;
+	private int[] scores;
+	private PropNetMove[][] possibleMoves;
+	// the highest goal value of each role
+	private int[] maxGoals;
+	// goal values of a newly proven node
+	private int[] provenGoals;
+	// values of the edges of a node for selecting a move
+	private double[] edgeValues;
+	// buffers of the probes for each remaining depth
+	private int[][] probeGoals;
+	private int[][] probeLegals;
+	private PropNetMove[][] probeJointMoves;
+	// the successor states of the probes for each remaining depth, reused with copyState
+	private InternalStateInterface[] probeStates;
+
 	public class TimeOutException extends Exception {
 		/**
 		 *
@@ -39,14 +78,36 @@ public class MonteCarloGamer extends SampleGamer {
 	}
 
 	public MonteCarloGamer() {
-		super();
-		this.random = new Random();
+		this(false, 0);
 		//System.out.println("THE VALUE OF C IS: " + C);
 	}
 
+	/**
+	 * @param useSolver whether to prove nodes from their proven children (MCTS-Solver) and to use latches for fixed goals
+	 * @param probeDepth if > 0 (and useSolver), newly expanded nodes are searched that many joint moves deep for forced outcomes
+	 */
+	public MonteCarloGamer(boolean useSolver, int probeDepth) {
+		super();
+		this.useSolver = useSolver;
+		this.probeDepth = (useSolver ? probeDepth : 0);
+	}
+
+	@Override
+	public long getNbSimulations() {
+		return simulations;
+	}
+
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new RecursiveForwardChangePropNetStateMachine(new GGPBasePropNetStructureFactory());
+		// propnets are cached by a hash of the rules, so they don't have to be rebuilt for repeated (scrambled) games
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(PropNetCache.getDefault());
+		// leave at least half of the start clock for the rest of the meta game
+		factory.setOptimizationDeadline(System.currentTimeMillis() + getMatch().getStartClock() * 1000L / 2);
+		RecursiveForwardChangePropNetStateMachine machine = new RecursiveForwardChangePropNetStateMachine(factory);
+		// with the solver, stop playouts once latches decide the outcome (getFixedGoals is false otherwise)
+		machine.setEarlyPlayoutCutoff(useSolver);
+		return machine;
 	}
 
 	@Override
@@ -54,89 +115,99 @@ public class MonteCarloGamer extends SampleGamer {
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
 		long start = System.currentTimeMillis();
 		long realTimeout = start + (timeout-start)*9/10;
-		StateMachine machine = getStateMachine();
-		MachineState state = getCurrentState();
+		// this is either the interpreted or the compiled state machine (see stateMachineMetaGame),
+		// the search does not depend on the type of states
+		@SuppressWarnings("unchecked")
+		PropNetStateMachine<InternalStateInterface> machine = (PropNetStateMachine<InternalStateInterface>)getStateMachine();
+		InternalStateInterface state = machine.machineStateToInternalState(getCurrentState());
+		if (tree == null) {
+			setupBuffers(machine);
+			tree = new MonteCarloTree<>(machine, maxTreeMemory, false);
+		}
 		List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
+		int root = tree.getRoot();
 		// We do not always want to start with a new tree after a move has been made
-		if (lastMoves != null) {
-			List<Move> jointMove = new ArrayList<Move>();
-			for (GdlTerm sentence : lastMoves)
-			{
-					jointMove.add(machine.getMoveFromTerm(sentence));
+		if (lastMoves != null && root != MonteCarloTree.NONE) {
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				jointMove[roleId] = machine.getMoveOrdinal(roleId, machine.getMoveFromTerm(lastMoves.get(roleId)));
 			}
-			if(root.children.containsKey(jointMove)) {
-				root = root.children.get(jointMove);
-				root.parent = null;
-				root.parentMove = null;
+			int child = tree.getChild(root, jointMove);
+			if(child != MonteCarloTree.NONE) {
+				root = tree.setRoot(child);
 			}
 			else {
-				root = new MonteCarloNode(state);
-				nodeCount++;
-				expand(root);
+				tree.clear();
+				root = addNode(machine, state, 0);
 			}
 		} // else we are still in the initial state of the game
-		else if(root == null) { // If we have no root then we create a new one
-			root = new MonteCarloNode(state);
-			nodeCount++;
-			expand(root);
+		else if(root == MonteCarloTree.NONE) { // If we have no root then we create a new one
+			root = addNode(machine, state, 0);
 		}
 
 
 		numberOfSelectMove++;
-		int sims = root.simulations;
+		int sims = tree.getSimulations(root);
 
-		Role r = getRole();
-		boolean tooBig = false;
-		MonteCarloNode currNode = root;
+		int roleId = machine.getPropNetStructure().getRoleId(getRole());
+		int currNode = root;
 		// Run simulations until time is running out leaving enough time to return a move
 		try {
 			while(true) {
 				if(System.currentTimeMillis() > realTimeout) {
 					throw new TimeOutException("MonteCarlo timed out");
 				}
-				// If in the selection phase we find a terminal node we propagate the values and
-				// start the selection phase again
-				if(machine.isTerminal(currNode.state)) {
-					propagate(currNode, machine.getGoals(currNode.state), false, realTimeout);
-					tooBig = false;
+				// nothing left to search once the outcome is known
+				if(tree.isProven(root)) {
+					System.out.println("Monte Carlo proved the root");
+					break;
+				}
+				if(currNode == root && tree.isFull()) {
+					// make room for new nodes by removing the least visited subtrees
+					root = tree.prune();
 					currNode = root;
-					continue;
 				}
-				if(currNode.size >= maxTreeSize) {
-					tooBig = true;
+				// proven nodes (including terminal ones) are not simulated again, their proven values are propagated instead
+				if(tree.isProven(currNode)) {
+					tree.getProvenGoals(currNode, scores);
+					propagate(currNode, scores, realTimeout);
+					currNode = root;
+					continue;
 				}
-				List<Move> jm = selectMoves(currNode);
+				selectMoves(currNode);
+				int child = tree.getChild(currNode, jointMove);
 
 				// We are still inside our tree so we move to the next node
-				if(currNode.children.containsKey(jm))
+				if(child != MonteCarloTree.NONE)
 				{
-					currNode = currNode.children.get(jm);
+					currNode = child;
 				}
 				// We have fallen out of our tree so we add the node to our tree and
 				// run a simulation from there
 				else
 				{
-					// If the tree we have so far is at our limit we will run a simulation from the leaf
-					// and not add anything to our tree
-					if(tooBig) {
-						List<Integer> scores = runSimulation(currNode.state, realTimeout);
-						currNode.simulations++;
-						propagate(currNode, scores, false, timeout-500);
-						tooBig = false;
+					InternalStateInterface currState = tree.getState(currNode);
+					// If the tree we have so far is still at our limit (after pruning) we will run a simulation
+					// from the leaf and not add anything to our tree
+					if(tree.isFull()) {
+						machine.playout(currState, scores, null);
+						tree.incSimulations(currNode);
+						propagate(currNode, scores, timeout-500);
 						currNode = root;
 						continue;
 					}
 					// Otherwise we generate the next state and make a new node with that state
 					// then simulate from that node
-					MachineState nextState = machine.getNextState(currNode.state, jm);
-					MonteCarloNode newNode = new MonteCarloNode(nextState, currNode, jm);
-					nodeCount++;
-					currNode.children.put(jm, newNode);
-					expand(newNode);
-					List<Integer> scores = runSimulation(nextState, realTimeout);
-					newNode.simulations++;
-					propagate(newNode, scores, true, timeout-500);
-					tooBig = false;
+					InternalStateInterface nextState = machine.getNextState(currState, toPropNetMoves(jointMove), true);
+					int newNode = addNode(machine, nextState, probeDepth);
+					tree.addChild(currNode, jointMove, newNode);
+					if(tree.isProven(newNode)) {
+						tree.getProvenGoals(newNode, scores);
+					}
+					else {
+						machine.playout(nextState, scores, null);
+					}
+					tree.incSimulations(newNode);
+					propagate(newNode, scores, timeout-500);
 					currNode = root;
 				}
 			}
@@ -144,21 +215,34 @@ public class MonteCarloGamer extends SampleGamer {
 		catch(TimeOutException e) {
 			System.out.println("Caught TimeOutException with " + (timeout-System.currentTimeMillis()) +  " ms remaining");
 		}
-		// We choose the move in the root which has the highest Q value
-		Move best = null;
+		// We choose the move in the root which has the highest Q value (or proven value)
+		int firstEdge = tree.getFirstEdge(root, roleId);
+		for(int edge = firstEdge; edge < tree.getEndEdge(root, roleId); edge++) {
+			edgeValues[edge - firstEdge] = tree.getQ(edge);
+		}
+		if(useSolver && getSingleMover(root) == roleId) {
+			setProvenValues(root, roleId, 0);
+		}
+		int best = MonteCarloTree.NONE;
 		double bestval = -1;
-		for(Move m : machine.getLegalMoves(state, r)) {
-			if(root.Q.containsKey(m) && bestval < root.Q.get(m)) {
-				best = m;
-				bestval = root.Q.get(m);
+		for(int edge = firstEdge; edge < tree.getEndEdge(root, roleId); edge++) {
+			if(bestval < edgeValues[edge - firstEdge]) {
+				best = edge;
+				bestval = edgeValues[edge - firstEdge];
 			}
 		}
+		// if the root is proven, play the move that the proof is based on (Q values of other moves might be as high by chance)
+		int provenMove = getProvenMove(root, roleId);
+		if(provenMove != MonteCarloTree.NONE) {
+			best = tree.findEdge(root, roleId, provenMove);
+			bestval = tree.getProvenGoal(root, roleId);
+		}
 		long stop = System.currentTimeMillis();
-		simulations += root.simulations - sims;
+		simulations += tree.getSimulations(root) - sims;
 		//notifyObservers(new GamerSelectedMoveEvent(machine.getLegalMoves(state, getRole()), best, stop - start));
-		System.out.println("Monte Carlo Q value: " + root.Q.get(best));
-		System.out.println("Monte Carlo N value: " + root.N.get(best));
-		return best;
+		System.out.println("Monte Carlo Q value: " + tree.getQ(best) + (bestval != tree.getQ(best) ? ", proven value: " + bestval : ""));
+		System.out.println("Monte Carlo N value: " + tree.getN(best));
+		return machine.getPropNetStructure().getPossibleMoves(roleId)[tree.getMove(best)];
 	}
 
 	@Override
@@ -185,7 +269,7 @@ public class MonteCarloGamer extends SampleGamer {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}*/
-		root = null;
+		tree = null;
 //		System.out.println("Number of expanded states (maxnodes): " + expandedNodes);
 //		System.out.println("Playing game took " + (System.currentTimeMillis() - gameStart) + " ms");
 	}
@@ -196,111 +280,288 @@ public class MonteCarloGamer extends SampleGamer {
 		simulations = 0;
 		numberOfSelectMove = 0;
 		nodeCount = 0;
-		/*try {
-			// Note: this is an ugly hack that relies on the the match ID
-			// being "something.gamename.timestamp", which happens to be the case
-			// for the Server app and the Kiosk. This will only work while testing if
-			// the game rules are not scrambled.
-			// TODO: take this out for the final version of the player
-			//       (simply using gameName = null, should be safe)
-			String gameName = getMatch().getMatchId().replaceAll("(\\.|-)[0-9]*$", "");
-			System.out.println("match: " + getMatch().getMatchId() + ", game:" + gameName);
-			PropNetStructureFactory propnetFactory = new GGPBasePropNetStructureFactory();
-			PropNetStructure propNet;
-			propNet = propnetFactory.create(gameName, getMatch().getGame().getRules());
-			StateMachine m = new RecursiveForwardChangePropNetStateMachine(propNet);
-			switchStateMachine(m);
-		} catch (InterruptedException | IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}*/
+		tree = null;
+		// use a compiled propnet instead of the interpreted one, if it can be compiled in time
+		long start = System.currentTimeMillis();
+		PropNetStateMachine<?> machine = (PropNetStateMachine<?>)getStateMachine();
+		CompiledPropNetStateMachine compiledMachine = CompiledPropNetStateMachine.create(machine.getPropNetStructure(), start + (timeout-start)*3/4);
+		if (compiledMachine != null) {
+			compiledMachine.setEarlyPlayoutCutoff(useSolver);
+			switchStateMachine(compiledMachine);
+		}
 //		gameStart = System.currentTimeMillis();
 //		expandedNodes = 0;
 //		stateMachineSelectMove(timeout);
     }
 
-	private List<Integer> runSimulation(MachineState state, long timeout) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeOutException {
-		if(System.currentTimeMillis() > timeout) {
-			throw new TimeOutException("MonteCarlo timed out");
-		}
-		StateMachine machine = getStateMachine();
-		// If we are at a terminal state return the goal values
-		if(machine.isTerminal(state)) {
-			return machine.getGoals(state);
+	private void setupBuffers(PropNetStateMachine<InternalStateInterface> machine) {
+		nbRoles = machine.getRoles().size();
+		jointMove = new int[nbRoles];
+		propNetJointMove = new PropNetMove[nbRoles];
+		scores = new int[nbRoles];
+		possibleMoves = new PropNetMove[nbRoles][];
+		maxGoals = new int[nbRoles];
+		int maxNbMoves = 1;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			possibleMoves[roleId] = machine.getPropNetStructure().getPossibleMoves(roleId);
+			maxNbMoves = Math.max(maxNbMoves, possibleMoves[roleId].length);
+			maxGoals[roleId] = 0;
+			for (int goal : machine.getPropNetStructure().getGoalValues(roleId)) {
+				maxGoals[roleId] = Math.max(maxGoals[roleId], goal);
+			}
 		}
-		// Select a random move independently for each role to create a random joint move
-		List<Move> jm = new ArrayList<Move>();
-		for(Role r : machine.getRoles()) {
-			List<Move> moves = machine.getLegalMoves(state, r);
-			int choice = random.nextInt(moves.size());
-			jm.add(moves.get(choice));
+		provenGoals = new int[nbRoles];
+		edgeValues = new double[maxNbMoves];
+		probeGoals = new int[probeDepth + 1][nbRoles];
+		probeLegals = new int[probeDepth + 1][maxNbMoves];
+		probeJointMoves = new PropNetMove[probeDepth + 1][nbRoles];
+		probeStates = new InternalStateInterface[probeDepth + 1];
+	}
+
+	private PropNetMove[] toPropNetMoves(int[] ordinals) {
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			propNetJointMove[roleId] = possibleMoves[roleId][ordinals[roleId]];
 		}
-//		List<List<Move>> jointMoves = machine.getLegalJointMoves(state);
-//		int choice = random.nextInt(jointMoves.size());
-//		List<Move> jm = jointMoves.get(choice);
-		MachineState nextState = machine.getNextState(state, jm);
-		return runSimulation(nextState, timeout);
+		return propNetJointMove;
 	}
 
-	// Selects the best move for each role from the UCT values
-	public List<Move> selectMoves(MonteCarloNode node) throws MoveDefinitionException {
-		StateMachine machine = getStateMachine();
+	/**
+	 * adds a node for state to the tree and marks it as proven, if its outcome is known (see probe),
+	 * such that terminal states and fixed goals are checked only once per node
+	 * @param depth the depth of the probe, 0 to only check whether state is terminal or its goals are fixed
+	 * @return the new node
+	 */
+	private int addNode(PropNetStateMachine<InternalStateInterface> machine, InternalStateInterface state, int depth) throws GoalDefinitionException {
+		int node = tree.addNode(state);
+		nodeCount++;
+		if(probe(machine, state, depth, provenGoals)) {
+			tree.setProven(node, provenGoals);
+		}
+		return node;
+	}
 
-		ArrayList<Move> res = new ArrayList<Move>();
-		for(Role r : machine.getRoles()) {
-			Move bestMove = null;
+	// Selects the best move for each role from the UCT values and stores it in jointMove. If only one role
+	// has a choice, the proven values of children replace their Q values (the exploration term is kept,
+	// otherwise a proven draw could keep the search away from unproven siblings forever)
+	public void selectMoves(int node) {
+		int sims = tree.getSimulations(node);
+		int mover = (useSolver ? getSingleMover(node) : MonteCarloTree.NONE);
+		for(int roleId = 0; roleId < nbRoles; roleId++) {
+			int firstEdge = tree.getFirstEdge(node, roleId);
+			int endEdge = tree.getEndEdge(node, roleId);
+			for(int edge = firstEdge; edge < endEdge; edge++) {
+				edgeValues[edge - firstEdge] = UCT(tree.getQ(edge), tree.getN(edge), sims);
+			}
+			if(roleId == mover) {
+				setProvenValues(node, roleId, sims);
+			}
+			int bestMove = MonteCarloTree.NONE;
 			double bestVal = -1;
-			for(Move m : machine.getLegalMoves(node.state, r)) {
-				double curr = UCT(node.Q.get(m), node.N.get(m), node.simulations);
-				if(bestVal < curr) {
-					bestMove = m;
-					bestVal = curr;
+			for(int edge = firstEdge; edge < endEdge; edge++) {
+				if(bestVal < edgeValues[edge - firstEdge]) {
+					bestMove = tree.getMove(edge);
+					bestVal = edgeValues[edge - firstEdge];
 				}
 			}
-			res.add(bestMove);
+			jointMove[roleId] = bestMove;
 		}
+	}
 
-		return res;
+	// Replaces the values in edgeValues of the moves of the mover that lead to proven children with the proven goals
+	// (plus the exploration term, if sims > 0)
+	private void setProvenValues(int node, int mover, int sims) {
+		int firstEdge = tree.getFirstEdge(node, mover);
+		for(int link = tree.getFirstLink(node); link != MonteCarloTree.NONE; link = tree.getNextLink(link)) {
+			int child = tree.getLinkChild(link);
+			if(tree.isProven(child)) {
+				int edge = tree.findEdge(node, mover, tree.getLinkMove(link, mover));
+				int goal = tree.getProvenGoal(child, mover);
+				edgeValues[edge - firstEdge] = (sims == 0 ? goal : UCT(goal, tree.getN(edge), sims));
+			}
+		}
 	}
 
-	public double UCT(double q, double n, double sims) {
-		return (sims == 0 || n == 0) ? Double.POSITIVE_INFINITY : q + C * Math.sqrt(Math.log(sims)/n);
+	/**
+	 * @param node
+	 * @param roleId
+	 * @return the move of the role leading to a proven child with the proven value of node, if node is proven
+	 *   and the role is the only one with a choice in it, otherwise NONE
+	 */
+	private int getProvenMove(int node, int roleId) {
+		if(!useSolver || !tree.isProven(node) || getSingleMover(node) != roleId) {
+			return MonteCarloTree.NONE;
+		}
+		for(int link = tree.getFirstLink(node); link != MonteCarloTree.NONE; link = tree.getNextLink(link)) {
+			int child = tree.getLinkChild(link);
+			if(tree.isProven(child) && tree.getProvenGoal(child, roleId) == tree.getProvenGoal(node, roleId)) {
+				return tree.getLinkMove(link, roleId);
+			}
+		}
+		return MonteCarloTree.NONE;
 	}
 
-	// Initializes the Q and N values for a node
-	private void expand(MonteCarloNode node) throws MoveDefinitionException {
-		StateMachine machine = getStateMachine();
-		if(machine.isTerminal(node.state)) return;
-		for(Role r : machine.getRoles()) {
-			for(Move m : machine.getLegalMoves(node.state, r)) {
-				node.Q.put(m, 0.0);
-				node.N.put(m, 0);
+	/**
+	 * @param node
+	 * @return the only role with more than one legal move in node, role 0 if no role has a choice
+	 *   or NONE if several roles have a choice
+	 */
+	private int getSingleMover(int node) {
+		int mover = MonteCarloTree.NONE;
+		for(int roleId = 0; roleId < nbRoles; roleId++) {
+			if(tree.getEndEdge(node, roleId) - tree.getFirstEdge(node, roleId) > 1) {
+				if(mover != MonteCarloTree.NONE) {
+					return MonteCarloTree.NONE;
+				}
+				mover = roleId;
 			}
 		}
+		return (mover == MonteCarloTree.NONE ? 0 : mover);
 	}
 
-	// Back propagates the values for the nodes in the tree that were selected in the selection phase
-	private void propagate(MonteCarloNode node, List<Integer> scores, boolean incSize, long timeout) throws TimeOutException {
-		while(node.parent != null) {
-			if(System.currentTimeMillis() > timeout) {
-				throw new TimeOutException("MonteCarlo timed out");
+	/**
+	 * marks node as proven if its outcome follows from its proven children (see the class comment)
+	 * @return true if node is proven now
+	 */
+	private boolean trySolve(int node) {
+		int mover = getSingleMover(node);
+		int nbProven = 0;
+		int best = MonteCarloTree.NONE;
+		for(int link = tree.getFirstLink(node); link != MonteCarloTree.NONE; link = tree.getNextLink(link)) {
+			int child = tree.getLinkChild(link);
+			if(!tree.isProven(child)) {
+				if(mover == MonteCarloTree.NONE) {
+					return false;
+				}
+				continue;
 			}
-			for(int i = 0; i < node.parentMove.size(); i++) {
-				Move m = node.parentMove.get(i);
-				if(node.parent.Q.containsKey(m)) {
-					node.parent.Q.put(m, (node.parent.Q.get(m)*node.parent.N.get(m) + scores.get(i))/(node.parent.N.get(m)+1));
-					node.parent.N.put(m, node.parent.N.get(m)+1);
+			nbProven++;
+			if(mover == MonteCarloTree.NONE) {
+				// simultaneous moves: all joint moves have to lead to the same outcome
+				if(best != MonteCarloTree.NONE && !haveSameProvenGoals(best, child)) {
+					return false;
 				}
-				else {
-					node.parent.Q.put(m, (double)scores.get(i));
-					node.parent.N.put(m, 1);
+				best = child;
+			}
+			else if(tree.getProvenGoal(child, mover) == maxGoals[mover]) {
+				// the mover can't do better
+				setProven(node, child);
+				return true;
+			}
+			else if(best == MonteCarloTree.NONE || tree.getProvenGoal(child, mover) > tree.getProvenGoal(best, mover)) {
+				best = child;
+			}
+		}
+		// each joint move has at most one child
+		long nbJointMoves = 1;
+		for(int roleId = 0; roleId < nbRoles; roleId++) {
+			nbJointMoves *= tree.getEndEdge(node, roleId) - tree.getFirstEdge(node, roleId);
+		}
+		if(best == MonteCarloTree.NONE || nbProven < nbJointMoves) {
+			return false;
+		}
+		setProven(node, best);
+		return true;
+	}
+
+	// marks node as proven with the proven goals of child
+	private void setProven(int node, int child) {
+		tree.getProvenGoals(child, provenGoals);
+		tree.setProven(node, provenGoals);
+	}
+
+	private boolean haveSameProvenGoals(int node1, int node2) {
+		for(int roleId = 0; roleId < nbRoles; roleId++) {
+			if(tree.getProvenGoal(node1, roleId) != tree.getProvenGoal(node2, roleId)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * shallow search for the outcome of state with the same rules as for proving nodes in the tree, except that
+	 * states with simultaneous moves are not searched. The search of a state stops at the first move that
+	 * reaches the highest goal of the mover (the cutoff of an alpha-beta search with a window just below that goal).
+	 * @param depth the number of joint moves to search
+	 * @param goalsOut receives the goal values of all roles, if the outcome is proven
+	 * @return true if the outcome of state is proven within depth joint moves
+	 */
+	private boolean probe(PropNetStateMachine<InternalStateInterface> machine, InternalStateInterface state, int depth, int[] goalsOut) throws GoalDefinitionException {
+		if(machine.isTerminal(state)) {
+			for(int roleId = 0; roleId < nbRoles; roleId++) {
+				goalsOut[roleId] = machine.getGoal(state, roleId);
+			}
+			return true;
+		}
+		if(machine.getFixedGoals(state, goalsOut)) {
+			return true;
+		}
+		if(depth == 0) {
+			return false;
+		}
+		int[] legals = probeLegals[depth];
+		PropNetMove[] probeJointMove = probeJointMoves[depth];
+		int mover = MonteCarloTree.NONE;
+		for(int roleId = 0; roleId < nbRoles; roleId++) {
+			if(machine.getLegalMoveOrdinals(state, roleId, legals) > 1) {
+				if(mover != MonteCarloTree.NONE) {
+					return false;
+				}
+				mover = roleId;
+			}
+			probeJointMove[roleId] = possibleMoves[roleId][legals[0]];
+		}
+		if(mover == MonteCarloTree.NONE) {
+			mover = 0;
+		}
+		int nbMoves = machine.getLegalMoveOrdinals(state, mover, legals);
+		int[] childGoals = probeGoals[depth];
+		if(probeStates[depth] == null) {
+			probeStates[depth] = (InternalStateInterface)state.clone();
+		}
+		InternalStateInterface nextState = probeStates[depth];
+		boolean allProven = true;
+		int best = -1;
+		for(int i = 0; i < nbMoves; i++) {
+			probeJointMove[mover] = possibleMoves[mover][legals[i]];
+			machine.copyState(state, nextState);
+			machine.getNextState(nextState, probeJointMove, false);
+			if(!probe(machine, nextState, depth - 1, childGoals)) {
+				allProven = false;
+				continue;
+			}
+			if(childGoals[mover] > best) {
+				best = childGoals[mover];
+				System.arraycopy(childGoals, 0, goalsOut, 0, nbRoles);
+				if(best == maxGoals[mover]) {
+					return true;
 				}
 			}
-			node.parent.simulations++;
-			if(incSize) {
-				node.parent.size++;
+		}
+		return allProven;
+	}
+
+	public double UCT(double q, double n, double sims) {
+		return (sims == 0 || n == 0) ? Double.POSITIVE_INFINITY : q + C * Math.sqrt(Math.log(sims)/n);
+	}
+
+	// Back propagates the values for the nodes in the tree that were selected in the selection phase,
+	// parents of proven nodes might get proven as well
+	private void propagate(int node, int[] scores, long timeout) throws TimeOutException {
+		boolean solving = useSolver && tree.isProven(node);
+		int parent = tree.getParent(node);
+		while(parent != MonteCarloTree.NONE) {
+			if(System.currentTimeMillis() > timeout) {
+				throw new TimeOutException("MonteCarlo timed out");
+			}
+			for(int roleId = 0; roleId < nbRoles; roleId++) {
+				int edge = tree.findEdge(parent, roleId, tree.getParentMove(node, roleId));
+				tree.update(edge, scores[roleId]);
 			}
-			node = node.parent;
+			tree.incSimulations(parent);
+			solving = solving && !tree.isProven(parent) && trySolve(parent);
+			node = parent;
+			parent = tree.getParent(node);
 		}
 	}
 }
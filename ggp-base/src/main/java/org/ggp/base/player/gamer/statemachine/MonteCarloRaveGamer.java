@@ -1,33 +1,44 @@
 package org.ggp.base.player.gamer.statemachine;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
 import org.ggp.base.player.gamer.statemachine.sample.SampleGamer;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
-import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
-import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachine;
 import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
 import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
 
-public class MonteCarloRaveGamer extends SampleGamer {
+public class MonteCarloRaveGamer extends SampleGamer implements SimulationCounter {
 	private Random random;
-	private MonteCarloRaveNode root;
+	private MonteCarloTree<InternalBitSetState> tree;
 
 	private final double C = 50;
 	private final double k = 500.0;
-	private final int maxTreeSize = 500000;
+	// memory budget of the search tree in bytes
+	private final long maxTreeMemory = Runtime.getRuntime().maxMemory() / 4;
 	private int numberOfSelectMove;
 	private int simulations;
 	private int nodeCount;
 
+	// buffers, so that we don't need to allocate anything during search
+	private int nbRoles;
+	private int[] jointMove;
+	private PropNetMove[] propNetJointMove;
+	private SimulationResult result;
+	private int[] legalOrdinals;
+
 
 	public class TimeOutException extends Exception {
 		/**
@@ -40,12 +51,27 @@ public class MonteCarloRaveGamer extends SampleGamer {
 		}
 	}
 
+	/**
+	 * the scores and all joint moves (as ordinals) of a simulation, reused between simulations
+	 */
 	public class SimulationResult {
-		public List<List<Move>> moves;
-		public List<Integer> scores;
-		public SimulationResult() {
-			moves = new ArrayList<List<Move>>();
-			scores = new ArrayList<Integer>();
+		public int[] moves;
+		public int nbMoves;
+		public int[] scores;
+		public SimulationResult(int nbRoles) {
+			moves = new int[64 * nbRoles];
+			nbMoves = 0;
+			scores = new int[nbRoles];
+		}
+		public void clear() {
+			nbMoves = 0;
+		}
+		public void addMove(int[] jointMove) {
+			if ((nbMoves + 1) * nbRoles > moves.length) {
+				moves = Arrays.copyOf(moves, 2 * moves.length);
+			}
+			System.arraycopy(jointMove, 0, moves, nbMoves * nbRoles, nbRoles);
+			nbMoves++;
 		}
 	}
 
@@ -55,9 +81,19 @@ public class MonteCarloRaveGamer extends SampleGamer {
 		//System.out.println("THE VALUE OF C IS: " + C);
 	}
 
+	@Override
+	public long getNbSimulations() {
+		return simulations;
+	}
+
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new RecursiveForwardChangePropNetStateMachine(new GGPBasePropNetStructureFactory());
+		// propnets are cached by a hash of the rules, so they don't have to be rebuilt for repeated (scrambled) games
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(PropNetCache.getDefault());
+		// leave at least half of the start clock for the rest of the meta game
+		factory.setOptimizationDeadline(System.currentTimeMillis() + getMatch().getStartClock() * 1000L / 2);
+		return new RecursiveForwardChangePropNetStateMachine(factory);
 	}
 
 	@Override
@@ -65,90 +101,91 @@ public class MonteCarloRaveGamer extends SampleGamer {
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
 		long start = System.currentTimeMillis();
 		long realTimeout = start + (timeout-start)*9/10;
-		StateMachine machine = getStateMachine();
-		MachineState state = getCurrentState();
+		PropNetBitSetStateMachine machine = (PropNetBitSetStateMachine)getStateMachine();
+		InternalBitSetState state = machine.machineStateToInternalState(getCurrentState());
+		if (tree == null) {
+			setupBuffers(machine);
+			tree = new MonteCarloTree<>(machine, maxTreeMemory, true);
+		}
 		List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
+		int root = tree.getRoot();
 		// We do not always want to start with a new tree after a move has been made
-		if (lastMoves != null) {
-			List<Move> jointMove = new ArrayList<Move>();
-			for (GdlTerm sentence : lastMoves)
-			{
-				jointMove.add(machine.getMoveFromTerm(sentence));
+		if (lastMoves != null && root != MonteCarloTree.NONE) {
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				jointMove[roleId] = machine.getMoveOrdinal(roleId, machine.getMoveFromTerm(lastMoves.get(roleId)));
 			}
-			if(root.children.containsKey(jointMove)) {
-				root = root.children.get(jointMove);
-				root.parent = null;
-				root.parentMove = null;
+			int child = tree.getChild(root, jointMove);
+			if(child != MonteCarloTree.NONE) {
+				root = tree.setRoot(child);
 			}
 			else {
-				root = new MonteCarloRaveNode(state);
+				tree.clear();
+				root = tree.addNode(state);
 				nodeCount++;
-				expand(root);
 			}
 		} // else we are still in the initial state of the game
-		else if(root == null) { // If we have no root then we create a new one
-			root = new MonteCarloRaveNode(state);
+		else if(root == MonteCarloTree.NONE) { // If we have no root then we create a new one
+			root = tree.addNode(state);
 			nodeCount++;
-			expand(root);
 		}
 
 
 		numberOfSelectMove++;
-		int sims = root.simulations;
+		int sims = tree.getSimulations(root);
 
-		Role r = getRole();
-		boolean tooBig = false;
-		MonteCarloRaveNode currNode = root;
+		int roleId = machine.getPropNetStructure().getRoleId(getRole());
+		int currNode = root;
 		// Run simulations until time is running out leaving enough time to return a move
 		try {
 			while(true) {
 				if(System.currentTimeMillis() > realTimeout) {
 					throw new TimeOutException("MonteCarloRave timed out");
 				}
+				if(currNode == root && tree.isFull()) {
+					// make room for new nodes by removing the least visited subtrees
+					root = tree.prune();
+					currNode = root;
+				}
+				InternalBitSetState currState = tree.getState(currNode);
+				result.clear();
 				// If in the selection phase we find a terminal node we propagate the values and
 				// start the selection phase again
-				if(machine.isTerminal(currNode.state)) {
-					propagate(currNode, machine.getGoals(currNode.state), new ArrayList<List<Move>>(), false, realTimeout);
-					tooBig = false;
+				if(machine.isTerminal(currState)) {
+					getGoals(machine, currState, result.scores);
+					propagate(currNode, result, realTimeout);
 					currNode = root;
 					continue;
 				}
-				if(currNode.size >= maxTreeSize) {
-					tooBig = true;
-				}
-				List<Move> jm = selectMoves(currNode);
+				selectMoves(currNode);
+				int child = tree.getChild(currNode, jointMove);
 
 				// We are still inside our tree so we move to the next node
-				if(currNode.children.containsKey(jm))
+				if(child != MonteCarloTree.NONE)
 				{
-					currNode = currNode.children.get(jm);
+					currNode = child;
 				}
 				// We have fallen out of our tree so we add the node to our tree and
 				// run a simulation from there
 				else
 				{
-					// If the tree we have so far is at our limit we will run a simulation from the leaf
-					// and not add anything to our tree
-					SimulationResult result = new SimulationResult();
-					if(tooBig) {
-						runSimulation(currNode.state, result, realTimeout);
-						currNode.simulations++;
-						propagate(currNode, result.scores, result.moves, false, timeout-500);
-						tooBig = false;
+					// If the tree we have so far is still at our limit (after pruning) we will run a simulation
+					// from the leaf and not add anything to our tree
+					if(tree.isFull()) {
+						runSimulation(machine, currState, result, realTimeout);
+						tree.incSimulations(currNode);
+						propagate(currNode, result, timeout-500);
 						currNode = root;
 						continue;
 					}
 					// Otherwise we generate the next state and make a new node with that state
 					// then simulate from that node
-					MachineState nextState = machine.getNextState(currNode.state, jm);
-					MonteCarloRaveNode newNode = new MonteCarloRaveNode(nextState, currNode, jm);
+					InternalBitSetState nextState = machine.getNextState(currState, toPropNetMoves(machine, jointMove), true);
+					int newNode = tree.addNode(nextState);
 					nodeCount++;
-					currNode.children.put(jm, newNode);
-					expand(newNode);
-					runSimulation(nextState, result, realTimeout);
-					newNode.simulations++;
-					propagate(newNode, result.scores, result.moves, true, timeout-500);
-					tooBig = false;
+					tree.addChild(currNode, jointMove, newNode);
+					runSimulation(machine, nextState, result, realTimeout);
+					tree.incSimulations(newNode);
+					propagate(newNode, result, timeout-500);
 					currNode = root;
 				}
 			}
@@ -157,22 +194,23 @@ public class MonteCarloRaveGamer extends SampleGamer {
 			System.out.println("Caught TimeOutException with " + (timeout-System.currentTimeMillis()) +  " ms remaining");
 		}
 		// We choose the move in the root which has the highest Q value
-		Move bestMove = null;
+		int bestMove = MonteCarloTree.NONE;
 		double bestVal = -1;
-		for(Move m : machine.getLegalMoves(root.state, r)) {
-			double curr = RAVE(root.Q.get(m), root.QRAVE.get(m), root.N.get(m), root.simulations);
+		int rootSims = tree.getSimulations(root);
+		for(int edge = tree.getFirstEdge(root, roleId); edge < tree.getEndEdge(root, roleId); edge++) {
+			double curr = RAVE(tree.getQ(edge), tree.getQAmaf(edge), tree.getN(edge), rootSims);
 			if(bestVal < curr) {
-				bestMove = m;
+				bestMove = edge;
 				bestVal = curr;
 			}
 		}
 		long stop = System.currentTimeMillis();
-		simulations += root.simulations - sims;
+		simulations += rootSims - sims;
 		//notifyObservers(new GamerSelectedMoveEvent(machine.getLegalMoves(state, getRole()), best, stop - start));
 		System.out.println("RAVE value: " + bestVal);
-		System.out.println("Monte Carlo RAVE Q value: " + root.Q.get(bestMove));
-		System.out.println("Monte Carlo RAVE N value: " + root.N.get(bestMove));
-		return bestMove;
+		System.out.println("Monte Carlo RAVE Q value: " + tree.getQ(bestMove));
+		System.out.println("Monte Carlo RAVE N value: " + tree.getN(bestMove));
+		return machine.getPropNetStructure().getPossibleMoves(roleId)[tree.getMove(bestMove)];
 	}
 
 	@Override
@@ -199,7 +237,7 @@ public class MonteCarloRaveGamer extends SampleGamer {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}*/
-		root = null;
+		tree = null;
 //		System.out.println("Number of expanded states (maxnodes): " + expandedNodes);
 //		System.out.println("Playing game took " + (System.currentTimeMillis() - gameStart) + " ms");
 	}
@@ -210,75 +248,71 @@ public class MonteCarloRaveGamer extends SampleGamer {
 		simulations = 0;
 		numberOfSelectMove = 0;
 		nodeCount = 0;
-		/*try {
-			// Note: this is an ugly hack that relies on the the match ID
-			// being "something.gamename.timestamp", which happens to be the case
-			// for the Server app and the Kiosk. This will only work while testing if
-			// the game rules are not scrambled.
-			// TODO: take this out for the final version of the player
-			//       (simply using gameName = null, should be safe)
-			String gameName = getMatch().getMatchId().replaceAll("(\\.|-)[0-9]*$", "");
-			System.out.println("match: " + getMatch().getMatchId() + ", game:" + gameName);
-			PropNetStructureFactory propnetFactory = new GGPBasePropNetStructureFactory();
-			PropNetStructure propNet;
-			propNet = propnetFactory.create(gameName, getMatch().getGame().getRules());
-			StateMachine m = new RecursiveForwardChangePropNetStateMachine(propNet);
-			switchStateMachine(m);
-		} catch (InterruptedException | IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}*/
+		tree = null;
 //		gameStart = System.currentTimeMillis();
 //		expandedNodes = 0;
 //		stateMachineSelectMove(timeout);
     }
 
-	private void runSimulation(MachineState state, SimulationResult result, long timeout) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeOutException {
-		if(System.currentTimeMillis() > timeout) {
-			throw new TimeOutException("MonteCarloRave timed out");
+	private void setupBuffers(PropNetBitSetStateMachine machine) {
+		nbRoles = machine.getRoles().size();
+		jointMove = new int[nbRoles];
+		propNetJointMove = new PropNetMove[nbRoles];
+		result = new SimulationResult(nbRoles);
+		int maxNbMoves = 0;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			maxNbMoves = Math.max(maxNbMoves, machine.getPropNetStructure().getPossibleMoves(roleId).length);
 		}
-		StateMachine machine = getStateMachine();
-		// If we are at a terminal state return the goal values
-		if(machine.isTerminal(state)) {
-			for(Integer score : machine.getGoals(state)) {
-				result.scores.add(score);
-			}
-			return;
+		legalOrdinals = new int[maxNbMoves];
+	}
+
+	private PropNetMove[] toPropNetMoves(PropNetBitSetStateMachine machine, int[] ordinals) {
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			propNetJointMove[roleId] = machine.getPropNetStructure().getPossibleMoves(roleId)[ordinals[roleId]];
 		}
-		// Select a random move independently for each role to create a random joint move
-		List<Move> jm = new ArrayList<Move>();
-		for(Role r : machine.getRoles()) {
-			List<Move> moves = machine.getLegalMoves(state, r);
-			int choice = random.nextInt(moves.size());
-			jm.add(moves.get(choice));
+		return propNetJointMove;
+	}
+
+	private void getGoals(PropNetBitSetStateMachine machine, InternalBitSetState state, int[] goals) throws GoalDefinitionException {
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			goals[roleId] = machine.getGoal(state, roleId);
 		}
-//		List<List<Move>> jointMoves = machine.getLegalJointMoves(state);
-//		int choice = random.nextInt(jointMoves.size());
-//		List<Move> jm = jointMoves.get(choice);
-		MachineState nextState = machine.getNextState(state, jm);
-		result.moves.add(jm);
-		runSimulation(nextState, result, timeout);
 	}
 
-	// Selects the best move for each role from the UCT values
-	public List<Move> selectMoves(MonteCarloRaveNode node) throws MoveDefinitionException {
-		StateMachine machine = getStateMachine();
+	// Plays random moves from state (which is not changed) to a terminal state, recording the joint moves in result.
+	// This is the same as PropNetStateMachine.playout, except that we need the moves for the AMAF values.
+	private void runSimulation(PropNetBitSetStateMachine machine, InternalBitSetState state, SimulationResult result, long timeout) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeOutException {
+		state = state.clone();
+		while(!machine.isTerminal(state)) {
+			if(System.currentTimeMillis() > timeout) {
+				throw new TimeOutException("MonteCarloRave timed out");
+			}
+			// Select a random move independently for each role to create a random joint move
+			for(int roleId = 0; roleId < nbRoles; roleId++) {
+				int nbLegals = machine.getLegalMoveOrdinals(state, roleId, legalOrdinals);
+				jointMove[roleId] = legalOrdinals[random.nextInt(nbLegals)];
+			}
+			machine.getNextState(state, toPropNetMoves(machine, jointMove), false);
+			result.addMove(jointMove);
+		}
+		getGoals(machine, state, result.scores);
+	}
 
-		ArrayList<Move> res = new ArrayList<Move>();
-		for(Role r : machine.getRoles()) {
-			Move bestMove = null;
+	// Selects the best move for each role from the RAVE values and stores it in jointMove
+	public void selectMoves(int node) {
+		int sims = tree.getSimulations(node);
+		for(int roleId = 0; roleId < nbRoles; roleId++) {
+			int bestMove = MonteCarloTree.NONE;
 			double bestVal = -1;
-			for(Move m : machine.getLegalMoves(node.state, r)) {
-				double curr = RAVE(node.Q.get(m), node.QRAVE.get(m), node.N.get(m), node.simulations);
+			for(int edge = tree.getFirstEdge(node, roleId); edge < tree.getEndEdge(node, roleId); edge++) {
+				double curr = RAVE(tree.getQ(edge), tree.getQAmaf(edge), tree.getN(edge), sims);
 				if(bestVal < curr) {
-					bestMove = m;
+					bestMove = tree.getMove(edge);
 					bestVal = curr;
 				}
 			}
-			res.add(bestMove);
+			jointMove[roleId] = bestMove;
 		}
-
-		return res;
 	}
 
 	public double RAVE(double q, double qrave, double n, double sims) {
@@ -287,56 +321,31 @@ public class MonteCarloRaveGamer extends SampleGamer {
 		return beta * qrave + (1-beta)*q;
 	}
 
-	// Initializes the Q and N values for a node
-	private void expand(MonteCarloRaveNode newNode) throws MoveDefinitionException {
-		StateMachine machine = getStateMachine();
-		if(machine.isTerminal(newNode.state)) return;
-		for(Role r : machine.getRoles()) {
-			for(Move m : machine.getLegalMoves(newNode.state, r)) {
-				newNode.Q.put(m, 0.0);
-				newNode.N.put(m, 0);
-				newNode.QRAVE.put(m, 0.0);
-				newNode.NRAVE.put(m, 0);
-			}
-		}
-	}
-
 	// Back propagates the values for the nodes in the tree that were selected in the selection phase
-	private void propagate(MonteCarloRaveNode node, List<Integer> scores, List<List<Move>> actionsTaken, boolean incSize, long timeout) throws TimeOutException {
-		while(node.parent != null) {
+	private void propagate(int node, SimulationResult result, long timeout) throws TimeOutException {
+		int[] scores = result.scores;
+		int parent = tree.getParent(node);
+		while(parent != MonteCarloTree.NONE) {
 			if(System.currentTimeMillis() > timeout) {
 				throw new TimeOutException("MonteCarloRave timed out");
 			}
-			for(List<Move> descMove : actionsTaken) {
-				for(int i = 0; i < descMove.size(); i++) {
-					Move m  = descMove.get(i);
-					if(node.parent.QRAVE.containsKey(m)) {
-						node.parent.QRAVE.put(m, (node.parent.QRAVE.get(m)*node.parent.NRAVE.get(m) + scores.get(i))/(node.parent.NRAVE.get(m)+1));
-						node.parent.NRAVE.put(m, node.parent.NRAVE.get(m)+1);
+			// all moves taken after the parent count for its RAVE values
+			for(int i = 0; i < result.nbMoves; i++) {
+				for(int roleId = 0; roleId < nbRoles; roleId++) {
+					int edge = tree.findEdge(parent, roleId, result.moves[i * nbRoles + roleId]);
+					if(edge != MonteCarloTree.NONE) {
+						tree.updateAmaf(edge, scores[roleId]);
 					}
-					else {
-						node.parent.QRAVE.put(m, (double)scores.get(i));
-						node.parent.NRAVE.put(m, 1);
-					}
-				}
-			}
-			actionsTaken.add(node.parentMove);
-			for(int i = 0; i < node.parentMove.size(); i++) {
-				Move m = node.parentMove.get(i);
-				if(node.parent.Q.containsKey(m)) {
-					node.parent.Q.put(m, (node.parent.Q.get(m)*node.parent.N.get(m) + scores.get(i))/(node.parent.N.get(m)+1));
-					node.parent.N.put(m, node.parent.N.get(m)+1);
-				}
-				else {
-					node.parent.Q.put(m, (double)scores.get(i));
-					node.parent.N.put(m, 1);
 				}
 			}
-			node.parent.simulations++;
-			if(incSize) {
-				node.parent.size++;
+			for(int roleId = 0; roleId < nbRoles; roleId++) {
+				jointMove[roleId] = tree.getParentMove(node, roleId);
+				tree.update(tree.findEdge(parent, roleId, jointMove[roleId]), scores[roleId]);
 			}
-			node = node.parent;
+			result.addMove(jointMove);
+			tree.incSimulations(parent);
+			node = parent;
+			parent = tree.getParent(node);
 		}
 	}
 }
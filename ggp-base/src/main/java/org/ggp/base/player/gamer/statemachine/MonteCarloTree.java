@@ -0,0 +1,795 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.Arrays;
+
+import is.ru.cadia.ggp.propnet.CompactState;
+import is.ru.cadia.ggp.propnet.InternalStateInterface;
+import is.ru.cadia.ggp.propnet.statemachine.PropNetStateMachine;
+
+/**
+ * Monte Carlo search tree (or DAG) stored as a structure of primitive arrays.
+ *
+ * Nodes are referred to by int handles. When a node is added, it gets a contiguous slice of the
+ * edge arrays holding the Q and N values of every legal move of every role in that node. Moves are
+ * identified by their ordinal, the index of the move in PropNetStructure.getPossibleMoves(roleId),
+ * and the edges of a role are sorted by ordinal.
+ * Children are stored as links (child node + joint move of ordinals), such that a node can have
+ * several parents when the tree is used as a DAG.
+ *
+ * All arrays are allocated up front (or grown by doubling), so adding nodes and backing up values
+ * does not allocate anything. Storage of nodes that are not reachable from the root anymore is
+ * reclaimed by compacting the arrays in setRoot().
+ *
+ * Nodes can be marked as proven with the goal values of all roles (e.g., by an MCTS-Solver), proven values
+ * survive setRoot() and prune() like the rest of the node.
+ *
+ * The size of the tree is limited by a memory budget. Once the (estimated) memory used by the tree
+ * reaches the budget, isFull() returns true and prune() can be used to remove the least visited subtrees.
+ *
+ * Optionally, states are stored as CompactStates (only the base propositions) and inflated again when needed,
+ * keeping recently used inflated states in a cache with a fixed number of slots (replaced by the CLOCK algorithm).
+ */
+public class MonteCarloTree<StateType extends InternalStateInterface> {
+
+	public static final int NONE = -1;
+
+	private static final int INITIAL_CAPACITY = 1 << 12;
+
+	/**
+	 * number of inflated states that are cached if states are stored compactly by default
+	 */
+	private static final int DEFAULT_INFLATED_CACHE_SIZE = 4096;
+
+	private final PropNetStateMachine<StateType> machine;
+	private final int nbRoles;
+	private final boolean withAmaf;
+
+	/**
+	 * memory budget of the tree (in bytes) minus the memory needed for the cache of inflated states
+	 */
+	private final long maxMemory;
+	private final int maxNbNodes;
+	// estimated memory (in bytes) per node (including its state), edge and link
+	private final int nodeSize;
+	private final int edgeSize;
+	private final int linkSize;
+
+	/**
+	 * whether states are stored as CompactStates
+	 */
+	private final boolean compactStates;
+
+	// cache of inflated states, indexed by slot (only used if states are stored compactly)
+	private final Object[] slotState;
+	/**
+	 * the node whose state is in the slot or NONE
+	 */
+	private final int[] slotNode;
+	/**
+	 * whether the slot was used since the clock hand passed it the last time
+	 */
+	private final boolean[] slotReferenced;
+	private int clockHand;
+
+	/**
+	 * buffer for the ordinals of legal moves
+	 */
+	private final int[] legalOrdinals;
+
+	// node arrays, indexed by node
+	/**
+	 * StateType or CompactState, depending on whether states are stored compactly
+	 */
+	private Object[] states;
+	private int[] parent;
+	private int[] parentLink;
+	private int[] firstLink;
+	private int[] simulations;
+	/**
+	 * the slot of the inflated state of the node in the cache or NONE
+	 */
+	private int[] cacheSlot;
+	/**
+	 * proven goal values of node n are provenGoals[n*nbRoles] ... provenGoals[n*nbRoles+nbRoles-1],
+	 * provenGoals[n*nbRoles] is NONE if the node is not proven
+	 */
+	private int[] provenGoals;
+	/**
+	 * edges of role r in node n are edgeOffsets[n*(nbRoles+1)+r] ... edgeOffsets[n*(nbRoles+1)+r+1]-1
+	 */
+	private int[] edgeOffsets;
+	private int nbNodes;
+
+	// edge arrays, indexed by edge
+	private int[] edgeMove;
+	private double[] q;
+	private int[] n;
+	private double[] qAmaf;
+	private int[] nAmaf;
+	private int nbEdges;
+
+	// link arrays, indexed by link
+	private int[] linkChild;
+	private int[] linkNext;
+	/**
+	 * the joint move of link l is linkMove[l*nbRoles] ... linkMove[l*nbRoles+nbRoles-1]
+	 */
+	private int[] linkMove;
+	private int nbLinks;
+
+	private int root;
+
+	// work arrays for compaction
+	private int[] nodeForward;
+	private int[] linkForward;
+	private int[] stack;
+
+	/**
+	 * States are stored compactly, if a complete state needs more memory than the statistics of a typical node.
+	 * @param machine the state machine used to compute legal moves of new nodes
+	 * @param maxMemory the memory budget of the tree in bytes
+	 * @param withAmaf whether to keep additional (RAVE) statistics for each edge
+	 */
+	public MonteCarloTree(PropNetStateMachine<StateType> machine, long maxMemory, boolean withAmaf) {
+		this(machine, maxMemory, withAmaf, needsCompactStates(machine, withAmaf) ? DEFAULT_INFLATED_CACHE_SIZE : 0);
+	}
+
+	/**
+	 * @param machine the state machine used to compute legal moves of new nodes
+	 * @param maxMemory the memory budget of the tree in bytes
+	 * @param withAmaf whether to keep additional (RAVE) statistics for each edge
+	 * @param inflatedCacheSize if > 0, states are stored as CompactStates and this many inflated states are cached
+	 */
+	public MonteCarloTree(PropNetStateMachine<StateType> machine, long maxMemory, boolean withAmaf, int inflatedCacheSize) {
+		this.machine = machine;
+		this.nbRoles = machine.getRoles().size();
+		this.withAmaf = withAmaf;
+		compactStates = (inflatedCacheSize > 0);
+		// compactly stored nodes also need cacheSlot
+		nodeSize = getNodeSize(nbRoles) + (compactStates ? getCompactStateSize(machine) + 4 : getStateSize(machine));
+		edgeSize = getEdgeSize(withAmaf);
+		linkSize = getLinkSize(nbRoles);
+		// slotState, slotNode, slotReferenced
+		this.maxMemory = maxMemory - (long)inflatedCacheSize * (getStateSize(machine) + 4 + 4 + 1);
+		maxNbNodes = (int)Math.max(1, Math.min(Integer.MAX_VALUE / (nbRoles + 1), this.maxMemory / nodeSize));
+		slotState = new Object[inflatedCacheSize];
+		slotNode = new int[inflatedCacheSize];
+		slotReferenced = new boolean[inflatedCacheSize];
+		Arrays.fill(slotNode, NONE);
+		int maxNbMoves = 0;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			maxNbMoves = Math.max(maxNbMoves, machine.getPropNetStructure().getPossibleMoves(roleId).length);
+		}
+		legalOrdinals = new int[maxNbMoves];
+
+		int nodeCapacity = Math.min(maxNbNodes, INITIAL_CAPACITY);
+		states = new Object[nodeCapacity];
+		parent = new int[nodeCapacity];
+		parentLink = new int[nodeCapacity];
+		firstLink = new int[nodeCapacity];
+		simulations = new int[nodeCapacity];
+		cacheSlot = new int[compactStates ? nodeCapacity : 0];
+		provenGoals = new int[nodeCapacity * nbRoles];
+		edgeOffsets = new int[nodeCapacity * (nbRoles + 1)];
+
+		int edgeCapacity = nodeCapacity * 4;
+		edgeMove = new int[edgeCapacity];
+		q = new double[edgeCapacity];
+		n = new int[edgeCapacity];
+		if (withAmaf) {
+			qAmaf = new double[edgeCapacity];
+			nAmaf = new int[edgeCapacity];
+		}
+
+		linkChild = new int[nodeCapacity];
+		linkNext = new int[nodeCapacity];
+		linkMove = new int[nodeCapacity * nbRoles];
+		clear();
+	}
+
+	private static boolean needsCompactStates(PropNetStateMachine<?> machine, boolean withAmaf) {
+		int nbRoles = machine.getRoles().size();
+		return getStateSize(machine) > getNodeSize(nbRoles) + 16 * getEdgeSize(withAmaf) + getLinkSize(nbRoles);
+	}
+
+	// The following are estimates of the memory needed by parts of the tree in bytes (assuming compressed
+	// references). They do not include unused space in the arrays, which grow by doubling.
+
+	static int getStateSize(PropNetStateMachine<?> machine) {
+		// internal states have (up to) two bits per component, plus some overhead for the objects
+		return machine.getPropNetStructure().getNbComponents() / 4 + 64;
+	}
+
+	private static int getCompactStateSize(PropNetStateMachine<?> machine) {
+		return machine.getPropNetStructure().getNbBasePropositions() / 8 + 48;
+	}
+
+	private static int getNodeSize(int nbRoles) {
+		// reference to the state, parent, parentLink, firstLink, simulations, provenGoals, edgeOffsets
+		return 4 + 4 * 4 + 4 * nbRoles + 4 * (nbRoles + 1);
+	}
+
+	private static int getEdgeSize(boolean withAmaf) {
+		// edgeMove, q, n (qAmaf, nAmaf)
+		return 4 + 8 + 4 + (withAmaf ? 8 + 4 : 0);
+	}
+
+	private static int getLinkSize(int nbRoles) {
+		// linkChild, linkNext, linkMove
+		return 4 + 4 + 4 * nbRoles;
+	}
+
+	/**
+	 * removes all nodes from the tree
+	 */
+	public void clear() {
+		Arrays.fill(states, 0, nbNodes, null);
+		Arrays.fill(slotState, null);
+		Arrays.fill(slotNode, NONE);
+		Arrays.fill(slotReferenced, false);
+		nbNodes = 0;
+		nbEdges = 0;
+		nbLinks = 0;
+		root = NONE;
+	}
+
+	public int getNbNodes() {
+		return nbNodes;
+	}
+
+	/**
+	 * @return the estimated memory used by the nodes, edges and links of the tree in bytes
+	 */
+	public long getMemoryUsage() {
+		return (long)nbNodes * nodeSize + (long)nbEdges * edgeSize + (long)nbLinks * linkSize;
+	}
+
+	/**
+	 * @return true, if the memory budget of the tree is used up
+	 */
+	public boolean isFull() {
+		return nbNodes >= maxNbNodes || getMemoryUsage() >= maxMemory;
+	}
+
+	/**
+	 * @return the maximal number of nodes that can fit into the memory budget
+	 */
+	public int getMaxNbNodes() {
+		return maxNbNodes;
+	}
+
+	public int getRoot() {
+		return root;
+	}
+
+	/**
+	 * adds a new node for the given state with statistics for all legal moves in the state
+	 *
+	 * The node has no parent until it is linked to one with addChild(). Terminal states have no edges.
+	 * @param state
+	 * @return the new node or NONE if the tree is full
+	 */
+	public int addNode(StateType state) {
+		if (isFull()) {
+			return NONE;
+		}
+		ensureNodeCapacity(nbNodes + 1);
+		int node = nbNodes;
+		if (compactStates) {
+			states[node] = machine.compress(state);
+			cacheSlot[node] = NONE;
+			cacheState(node, state);
+		} else {
+			states[node] = state;
+		}
+		parent[node] = NONE;
+		parentLink[node] = NONE;
+		firstLink[node] = NONE;
+		simulations[node] = 0;
+		provenGoals[node * nbRoles] = NONE;
+		boolean terminal = machine.isTerminal(state);
+		int offsetIdx = node * (nbRoles + 1);
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			edgeOffsets[offsetIdx + roleId] = nbEdges;
+			if (!terminal) {
+				int nbLegals = machine.getLegalMoveOrdinals(state, roleId, legalOrdinals);
+				ensureEdgeCapacity(nbEdges + nbLegals);
+				for (int i = 0; i < nbLegals; i++) {
+					edgeMove[nbEdges] = legalOrdinals[i];
+					q[nbEdges] = 0;
+					n[nbEdges] = 0;
+					if (withAmaf) {
+						qAmaf[nbEdges] = 0;
+						nAmaf[nbEdges] = 0;
+					}
+					nbEdges++;
+				}
+			}
+		}
+		edgeOffsets[offsetIdx + nbRoles] = nbEdges;
+		nbNodes++;
+		if (root == NONE) {
+			root = node;
+		}
+		return node;
+	}
+
+	/**
+	 * links child as the successor of node for the given joint move
+	 *
+	 * The first link to a node determines its parent.
+	 * @param node
+	 * @param jointMove ordinals of the moves of all roles
+	 * @param child
+	 */
+	public void addChild(int node, int[] jointMove, int child) {
+		ensureLinkCapacity(nbLinks + 1);
+		int link = nbLinks;
+		linkChild[link] = child;
+		linkNext[link] = firstLink[node];
+		System.arraycopy(jointMove, 0, linkMove, link * nbRoles, nbRoles);
+		firstLink[node] = link;
+		nbLinks++;
+		if (parent[child] == NONE && child != root) {
+			parent[child] = node;
+			parentLink[child] = link;
+		}
+	}
+
+	/**
+	 * @param node
+	 * @param jointMove ordinals of the moves of all roles
+	 * @return the child of node for the given joint move or NONE if there is none in the tree
+	 */
+	public int getChild(int node, int[] jointMove) {
+		for (int link = firstLink[node]; link != NONE; link = linkNext[link]) {
+			int offset = link * nbRoles;
+			int roleId = 0;
+			while (roleId < nbRoles && linkMove[offset + roleId] == jointMove[roleId]) {
+				roleId++;
+			}
+			if (roleId == nbRoles) {
+				return linkChild[link];
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * If states are stored compactly, the returned state is shared with later calls for the same node
+	 * until it is evicted from the cache, so it must not be changed (except for its input propositions).
+	 * @param node
+	 * @return the state of the node
+	 */
+	@SuppressWarnings("unchecked")
+	public StateType getState(int node) {
+		if (!compactStates) {
+			return (StateType)states[node];
+		}
+		int slot = cacheSlot[node];
+		if (slot != NONE) {
+			slotReferenced[slot] = true;
+			return (StateType)slotState[slot];
+		}
+		StateType state = machine.decompress((CompactState)states[node]);
+		cacheState(node, state);
+		return state;
+	}
+
+	/**
+	 * puts the inflated state of node into the cache, replacing the first slot not used since the clock hand
+	 * passed it the last time
+	 */
+	private void cacheState(int node, StateType state) {
+		while (slotReferenced[clockHand]) {
+			slotReferenced[clockHand] = false;
+			clockHand = (clockHand + 1) % slotNode.length;
+		}
+		int slot = clockHand;
+		clockHand = (clockHand + 1) % slotNode.length;
+		if (slotNode[slot] != NONE) {
+			cacheSlot[slotNode[slot]] = NONE;
+		}
+		slotNode[slot] = node;
+		slotState[slot] = state;
+		slotReferenced[slot] = true;
+		cacheSlot[node] = slot;
+	}
+
+	/**
+	 * @param node
+	 * @return the Zobrist hash of the state of the node (without inflating a compactly stored state)
+	 */
+	@SuppressWarnings("unchecked")
+	public long getZobristHash(int node) {
+		if (!compactStates) {
+			return machine.getZobristHash((StateType)states[node]);
+		}
+		return ((CompactState)states[node]).getZobristHash();
+	}
+
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	/**
+	 * @param node
+	 * @param roleId
+	 * @return the ordinal of the move of the role that lead from the parent to node
+	 */
+	public int getParentMove(int node, int roleId) {
+		return linkMove[parentLink[node] * nbRoles + roleId];
+	}
+
+	/**
+	 * @param node
+	 * @return the first link from node to one of its children or NONE if it has no children
+	 */
+	public int getFirstLink(int node) {
+		return firstLink[node];
+	}
+
+	/**
+	 * @param link
+	 * @return the next link from the same node or NONE
+	 */
+	public int getNextLink(int link) {
+		return linkNext[link];
+	}
+
+	public int getLinkChild(int link) {
+		return linkChild[link];
+	}
+
+	/**
+	 * @param link
+	 * @param roleId
+	 * @return the ordinal of the move of the role in the joint move of the link
+	 */
+	public int getLinkMove(int link, int roleId) {
+		return linkMove[link * nbRoles + roleId];
+	}
+
+	public boolean isProven(int node) {
+		return provenGoals[node * nbRoles] != NONE;
+	}
+
+	/**
+	 * @param node a proven node
+	 * @param roleId
+	 * @return the proven goal value of the role in node
+	 */
+	public int getProvenGoal(int node, int roleId) {
+		return provenGoals[node * nbRoles + roleId];
+	}
+
+	/**
+	 * @param node a proven node
+	 * @param goals receives the proven goal values of all roles in node
+	 */
+	public void getProvenGoals(int node, int[] goals) {
+		System.arraycopy(provenGoals, node * nbRoles, goals, 0, nbRoles);
+	}
+
+	/**
+	 * marks node as proven, i.e., the outcome of the game from node on is known
+	 * @param node
+	 * @param goals the goal values of all roles
+	 */
+	public void setProven(int node, int[] goals) {
+		System.arraycopy(goals, 0, provenGoals, node * nbRoles, nbRoles);
+	}
+
+	public int getSimulations(int node) {
+		return simulations[node];
+	}
+
+	public void incSimulations(int node) {
+		simulations[node]++;
+	}
+
+	public int getFirstEdge(int node, int roleId) {
+		return edgeOffsets[node * (nbRoles + 1) + roleId];
+	}
+
+	public int getEndEdge(int node, int roleId) {
+		return edgeOffsets[node * (nbRoles + 1) + roleId + 1];
+	}
+
+	/**
+	 * @param node
+	 * @param roleId
+	 * @param ordinal
+	 * @return the edge for the move with the given ordinal of the role in node or NONE if the move is not legal there
+	 */
+	public int findEdge(int node, int roleId, int ordinal) {
+		int low = getFirstEdge(node, roleId);
+		int high = getEndEdge(node, roleId) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midOrdinal = edgeMove[mid];
+			if (midOrdinal < ordinal) {
+				low = mid + 1;
+			} else if (midOrdinal > ordinal) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return NONE;
+	}
+
+	public int getMove(int edge) {
+		return edgeMove[edge];
+	}
+
+	public double getQ(int edge) {
+		return q[edge];
+	}
+
+	public int getN(int edge) {
+		return n[edge];
+	}
+
+	public double getQAmaf(int edge) {
+		return qAmaf[edge];
+	}
+
+	public int getNAmaf(int edge) {
+		return nAmaf[edge];
+	}
+
+	/**
+	 * adds a score to the running average of the edge
+	 * @param edge
+	 * @param score
+	 */
+	public void update(int edge, double score) {
+		n[edge]++;
+		q[edge] += (score - q[edge]) / n[edge];
+	}
+
+	/**
+	 * counts a visit of the edge with a score of 0 (a virtual loss) for a simulation whose result is not known yet
+	 *
+	 * Call replaceVirtualLoss once the result is known.
+	 * @param edge
+	 */
+	public void addVirtualLoss(int edge) {
+		update(edge, 0);
+	}
+
+	/**
+	 * replaces the score 0 of an earlier addVirtualLoss with the actual score
+	 *
+	 * This gives the same average as if update(edge, score) had been called instead of addVirtualLoss,
+	 * even if the edge was updated in between.
+	 * @param edge
+	 * @param score
+	 */
+	public void replaceVirtualLoss(int edge, double score) {
+		q[edge] += score / n[edge];
+	}
+
+	public void updateAmaf(int edge, double score) {
+		nAmaf[edge]++;
+		qAmaf[edge] += (score - qAmaf[edge]) / nAmaf[edge];
+	}
+
+	/**
+	 * makes newRoot the root of the tree and reclaims the storage of all nodes that are not reachable from it anymore
+	 *
+	 * Node handles change by this operation, the new handle of the root is returned.
+	 * @param newRoot
+	 * @return the new handle of newRoot
+	 */
+	public int setRoot(int newRoot) {
+		return compact(newRoot, Integer.MIN_VALUE, 0);
+	}
+
+	/**
+	 * removes the quarter of the nodes with the fewest simulations together with the subtrees
+	 * below them and reclaims their storage
+	 *
+	 * Among nodes with the same number of simulations the older ones (with smaller handles) are removed first.
+	 * The subtrees below removed nodes can contain some more nodes, but usually those have even fewer simulations.
+	 *
+	 * The statistics of the edges leading to removed nodes are kept, so removed nodes will be expanded again
+	 * once they are selected. Node handles change by this operation, the new handle of the root is returned.
+	 * @return the new handle of the root
+	 */
+	public int prune() {
+		if (nbNodes <= 1) {
+			return root;
+		}
+		ensureWorkArrays();
+		int nbCandidates = 0;
+		for (int node = 0; node < nbNodes; node++) {
+			if (node != root) {
+				stack[nbCandidates++] = simulations[node];
+			}
+		}
+		Arrays.sort(stack, 0, nbCandidates);
+		int nbRemoved = Math.max(1, nbCandidates / 4);
+		int threshold = stack[nbRemoved - 1];
+		// remove all nodes with fewer simulations than threshold and the oldest nodes with exactly threshold
+		int nbTiesToRemove = 0;
+		while (nbTiesToRemove < nbRemoved && stack[nbRemoved - 1 - nbTiesToRemove] == threshold) {
+			nbTiesToRemove++;
+		}
+		int firstKeptTie = 0;
+		for (int node = 0; node < nbNodes && nbTiesToRemove > 0; node++) {
+			if (node != root && simulations[node] == threshold) {
+				nbTiesToRemove--;
+				firstKeptTie = node + 1;
+			}
+		}
+		return compact(root, threshold, firstKeptTie);
+	}
+
+	/**
+	 * makes newRoot the root and removes all nodes (except for newRoot) that are not reachable from it anymore,
+	 * that have fewer than maxRemovedSimulations simulations or that have exactly maxRemovedSimulations
+	 * simulations and a handle smaller than firstKeptTie and compacts the arrays
+	 * @return the new handle of newRoot
+	 */
+	private int compact(int newRoot, int maxRemovedSimulations, int firstKeptTie) {
+		ensureWorkArrays();
+		// mark all reachable nodes and links
+		Arrays.fill(nodeForward, 0, nbNodes, NONE);
+		Arrays.fill(linkForward, 0, nbLinks, NONE);
+		int stackSize = 0;
+		stack[stackSize++] = newRoot;
+		nodeForward[newRoot] = 0;
+		while (stackSize > 0) {
+			int node = stack[--stackSize];
+			for (int link = firstLink[node]; link != NONE; link = linkNext[link]) {
+				int child = linkChild[link];
+				if (child == newRoot || simulations[child] > maxRemovedSimulations
+						|| simulations[child] == maxRemovedSimulations && child >= firstKeptTie) {
+					linkForward[link] = 0;
+					if (nodeForward[child] == NONE) {
+						nodeForward[child] = 0;
+						stack[stackSize++] = child;
+					}
+				}
+			}
+		}
+		// let the lists of links skip removed links, this works in one pass because linkNext[link] < link
+		for (int link = 0; link < nbLinks; link++) {
+			int next = linkNext[link];
+			if (next != NONE && linkForward[next] == NONE) {
+				linkNext[link] = linkNext[next];
+			}
+		}
+		for (int node = 0; node < nbNodes; node++) {
+			if (nodeForward[node] != NONE && firstLink[node] != NONE && linkForward[firstLink[node]] == NONE) {
+				firstLink[node] = linkNext[firstLink[node]];
+			}
+		}
+		// compute new positions, they are never larger than the old ones, so everything can be moved in place
+		int newNbLinks = 0;
+		for (int link = 0; link < nbLinks; link++) {
+			if (linkForward[link] != NONE) {
+				linkForward[link] = newNbLinks++;
+			}
+		}
+		int newNbNodes = 0;
+		for (int node = 0; node < nbNodes; node++) {
+			if (nodeForward[node] != NONE) {
+				nodeForward[node] = newNbNodes++;
+			}
+		}
+		// move links
+		for (int link = 0; link < nbLinks; link++) {
+			int newLink = linkForward[link];
+			if (newLink != NONE) {
+				linkChild[newLink] = nodeForward[linkChild[link]];
+				linkNext[newLink] = (linkNext[link] == NONE ? NONE : linkForward[linkNext[link]]);
+				System.arraycopy(linkMove, link * nbRoles, linkMove, newLink * nbRoles, nbRoles);
+			}
+		}
+		// move nodes and their edges (edges of nodes are stored in the same order as the nodes)
+		int newNbEdges = 0;
+		for (int node = 0; node < nbNodes; node++) {
+			int newNode = nodeForward[node];
+			if (newNode != NONE) {
+				int firstEdge = getFirstEdge(node, 0);
+				int nbNodeEdges = getEndEdge(node, nbRoles - 1) - firstEdge;
+				System.arraycopy(edgeMove, firstEdge, edgeMove, newNbEdges, nbNodeEdges);
+				System.arraycopy(q, firstEdge, q, newNbEdges, nbNodeEdges);
+				System.arraycopy(n, firstEdge, n, newNbEdges, nbNodeEdges);
+				if (withAmaf) {
+					System.arraycopy(qAmaf, firstEdge, qAmaf, newNbEdges, nbNodeEdges);
+					System.arraycopy(nAmaf, firstEdge, nAmaf, newNbEdges, nbNodeEdges);
+				}
+				int delta = firstEdge - newNbEdges;
+				int oldOffsetIdx = node * (nbRoles + 1);
+				int newOffsetIdx = newNode * (nbRoles + 1);
+				for (int i = 0; i <= nbRoles; i++) {
+					edgeOffsets[newOffsetIdx + i] = edgeOffsets[oldOffsetIdx + i] - delta;
+				}
+				newNbEdges += nbNodeEdges;
+
+				states[newNode] = states[node];
+				simulations[newNode] = simulations[node];
+				if (compactStates) {
+					cacheSlot[newNode] = cacheSlot[node];
+				}
+				System.arraycopy(provenGoals, node * nbRoles, provenGoals, newNode * nbRoles, nbRoles);
+				firstLink[newNode] = (firstLink[node] == NONE ? NONE : linkForward[firstLink[node]]);
+				if (node == newRoot || parent[node] == NONE || nodeForward[parent[node]] == NONE) {
+					parent[newNode] = NONE;
+					parentLink[newNode] = NONE;
+				} else {
+					parent[newNode] = nodeForward[parent[node]];
+					parentLink[newNode] = linkForward[parentLink[node]];
+				}
+			}
+		}
+		Arrays.fill(states, newNbNodes, nbNodes, null);
+		// cached states of removed nodes are dropped, the others are kept under the new handles
+		for (int slot = 0; slot < slotNode.length; slot++) {
+			if (slotNode[slot] != NONE) {
+				slotNode[slot] = nodeForward[slotNode[slot]];
+				if (slotNode[slot] == NONE) {
+					slotState[slot] = null;
+					slotReferenced[slot] = false;
+				}
+			}
+		}
+		root = nodeForward[newRoot];
+		nbNodes = newNbNodes;
+		nbEdges = newNbEdges;
+		nbLinks = newNbLinks;
+		return root;
+	}
+
+	private void ensureWorkArrays() {
+		if (nodeForward == null || nodeForward.length < states.length) {
+			nodeForward = new int[states.length];
+			stack = new int[states.length];
+		}
+		if (linkForward == null || linkForward.length < linkChild.length) {
+			linkForward = new int[linkChild.length];
+		}
+	}
+
+	private void ensureNodeCapacity(int capacity) {
+		if (capacity > states.length) {
+			int newCapacity = (int)Math.min(maxNbNodes, 2L * states.length);
+			states = Arrays.copyOf(states, newCapacity);
+			parent = Arrays.copyOf(parent, newCapacity);
+			parentLink = Arrays.copyOf(parentLink, newCapacity);
+			firstLink = Arrays.copyOf(firstLink, newCapacity);
+			simulations = Arrays.copyOf(simulations, newCapacity);
+			if (compactStates) {
+				cacheSlot = Arrays.copyOf(cacheSlot, newCapacity);
+			}
+			provenGoals = Arrays.copyOf(provenGoals, newCapacity * nbRoles);
+			edgeOffsets = Arrays.copyOf(edgeOffsets, newCapacity * (nbRoles + 1));
+		}
+	}
+
+	private void ensureEdgeCapacity(int capacity) {
+		if (capacity > edgeMove.length) {
+			int newCapacity = Math.max(capacity, 2 * edgeMove.length);
+			edgeMove = Arrays.copyOf(edgeMove, newCapacity);
+			q = Arrays.copyOf(q, newCapacity);
+			n = Arrays.copyOf(n, newCapacity);
+			if (withAmaf) {
+				qAmaf = Arrays.copyOf(qAmaf, newCapacity);
+				nAmaf = Arrays.copyOf(nAmaf, newCapacity);
+			}
+		}
+	}
+
+	private void ensureLinkCapacity(int capacity) {
+		if (capacity > linkChild.length) {
+			int newCapacity = 2 * linkChild.length;
+			linkChild = Arrays.copyOf(linkChild, newCapacity);
+			linkNext = Arrays.copyOf(linkNext, newCapacity);
+			linkMove = Arrays.copyOf(linkMove, newCapacity * nbRoles);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.Arrays;
+
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+
+/**
+ * orders the moves in the nodes of an alpha-beta search, such that moves that are likely to cause
+ * a cutoff are searched first:
+ * 1. the hash move (the best move stored in the transposition table for the node)
+ * 2. the killer moves of the ply (the latest moves that caused a cutoff in another node of the same ply)
+ * 3. the history heuristic (moves that caused cutoffs anywhere in the tree, weighted by depth^2)
+ *
+ * Moves are identified by their ordinal in PropNetStructure.getPossibleMoves(roleId), killers and history
+ * are kept separately for each role. Each heuristic can be switched off, with all of them switched off
+ * moves are searched in the order of the propnet.
+ *
+ * Replies (joint moves of several roles) are not sorted as a whole, because there can be many of them.
+ * Instead, the moves of each role are sorted by their scores. The hash reply comes first. It is followed
+ * by the reply that combines the best moves of all roles, and then by the other replies in lexicographic
+ * order of the sorted moves.
+ */
+public class MoveOrdering {
+
+	private static final int KILLERS_PER_PLY = 2;
+	private static final int HASH_MOVE_SCORE = Integer.MAX_VALUE;
+	// killers are tried before all moves with a history score
+	private static final int KILLER_SCORE = 1 << 24;
+	private static final int MAX_HISTORY = KILLER_SCORE - 1;
+
+	private final boolean useHashMove;
+	private final boolean useKillers;
+	private final boolean useHistory;
+	private final int nbRoles;
+	// history[roleId][ordinal]
+	private final int[][] history;
+	// killers[ply][roleId * KILLERS_PER_PLY + i], the most recent killer first
+	private int[][] killers;
+
+	// buffer for the scores of the moves that are sorted
+	private int[] scores;
+	// the order of the replies for each ply (see sortReplies)
+	private ReplyOrder[] replyOrders;
+
+	private static class ReplyOrder {
+		// order[roleId][i] is the index in legals[roleId] of the i-th best move of the role
+		private final int[][] order;
+		private final int[] nbLegals;
+		private int hashReply;
+		// the position of the hash reply among all replies in lexicographic order
+		private int hashPosition;
+
+		public ReplyOrder(int[] maxMoves) {
+			order = new int[maxMoves.length][];
+			for (int roleId = 0; roleId < maxMoves.length; roleId++) {
+				order[roleId] = new int[maxMoves[roleId]];
+			}
+			nbLegals = new int[maxMoves.length];
+		}
+	}
+
+	public MoveOrdering(PropNetStructure structure) {
+		this(structure, true, true, true);
+	}
+
+	public MoveOrdering(PropNetStructure structure, boolean useHashMove, boolean useKillers, boolean useHistory) {
+		this.useHashMove = useHashMove;
+		this.useKillers = useKillers;
+		this.useHistory = useHistory;
+		nbRoles = structure.getRoles().length;
+		history = new int[nbRoles][];
+		int maxMoves = 1;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			history[roleId] = new int[structure.getPossibleMoves(roleId).length];
+			maxMoves = Math.max(maxMoves, history[roleId].length);
+		}
+		killers = new int[0][];
+		scores = new int[maxMoves];
+		replyOrders = new ReplyOrder[0];
+	}
+
+	/**
+	 * to be called before each new search (i.e., for each move of the game):
+	 * forgets the killers and ages the history
+	 */
+	public void newSearch() {
+		for (int[] k : killers) {
+			Arrays.fill(k, -1);
+		}
+		for (int[] h : history) {
+			for (int i = 0; i < h.length; i++) {
+				h[i] >>= 1;
+			}
+		}
+	}
+
+	/**
+	 * sorts the moves of a role in a node
+	 * @param roleId
+	 * @param ply the depth of the node in the search tree
+	 * @param hashMove the ordinal of the hash move or -1
+	 * @param moves ordinals of the legal moves, these are reordered
+	 * @param nbMoves the number of legal moves
+	 */
+	public void sortMoves(int roleId, int ply, int hashMove, int[] moves, int nbMoves) {
+		if (scores.length < nbMoves) {
+			scores = new int[nbMoves];
+		}
+		for (int i = 0; i < nbMoves; i++) {
+			scores[i] = (useHashMove && moves[i] == hashMove ? HASH_MOVE_SCORE : getScore(roleId, ply, moves[i]));
+		}
+		sort(moves, scores, nbMoves);
+	}
+
+	/**
+	 * orders the replies in a node, getReply(ply, i) returns them in this order afterwards.
+	 * Reply i consists of the move legals[r][(i / prod_{r' < r} nbLegals[r']) % nbLegals[r]]
+	 * for each role r with legals[r] != null.
+	 *
+	 * This only sorts the moves of each role, so it takes time proportional to the number of moves
+	 * instead of the number of replies.
+	 * @param ply the depth of the node in the search tree
+	 * @param legals ordinals of the legal moves of each role (null for roles that are not part of the reply),
+	 * these are not changed
+	 * @param nbLegals numbers of legal moves of each role
+	 * @param hashReply the number of the hash reply or -1
+	 */
+	public void sortReplies(int ply, int[][] legals, int[] nbLegals, int hashReply) {
+		ReplyOrder replyOrder = getReplyOrder(ply);
+		if (!useHashMove) {
+			hashReply = -1;
+		}
+		replyOrder.hashReply = hashReply;
+		int hashPosition = 0;
+		int weight = 1;
+		int rest = hashReply;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			if (legals[roleId] == null) {
+				replyOrder.nbLegals[roleId] = 1;
+				continue;
+			}
+			int n = nbLegals[roleId];
+			replyOrder.nbLegals[roleId] = n;
+			int[] order = replyOrder.order[roleId];
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+				scores[i] = getScore(roleId, ply, legals[roleId][i]);
+			}
+			sort(order, scores, n);
+			if (hashReply != -1) {
+				int hashIndex = rest % n;
+				rest /= n;
+				int position = 0;
+				while (order[position] != hashIndex) {
+					position++;
+				}
+				hashPosition += position * weight;
+			}
+			weight *= n;
+		}
+		if (rest != 0) {
+			// the hash reply belongs to another node (Zobrist collision)
+			replyOrder.hashReply = -1;
+			hashPosition = 0;
+		}
+		replyOrder.hashPosition = hashPosition;
+	}
+
+	/**
+	 * @param ply the depth of the node in the search tree
+	 * @param i the position of a reply in the order made by the last call of sortReplies for ply
+	 * @return the number of the i-th reply
+	 */
+	public int getReply(int ply, int i) {
+		ReplyOrder replyOrder = replyOrders[ply];
+		if (replyOrder.hashReply != -1) {
+			if (i == 0) {
+				return replyOrder.hashReply;
+			}
+			// skip the hash reply in its lexicographic position
+			if (i <= replyOrder.hashPosition) {
+				i--;
+			}
+		}
+		int reply = 0;
+		int weight = 1;
+		for (int roleId = 0; roleId < nbRoles; roleId++) {
+			int n = replyOrder.nbLegals[roleId];
+			if (n > 1) {
+				reply += replyOrder.order[roleId][i % n] * weight;
+				i /= n;
+			}
+			weight *= n;
+		}
+		return reply;
+	}
+
+	/**
+	 * to be called when a move caused a cutoff
+	 * @param roleId
+	 * @param ply the depth of the node in the search tree
+	 * @param move the ordinal of the move
+	 * @param depth the remaining search depth of the node
+	 */
+	public void cutoff(int roleId, int ply, int move, int depth) {
+		if (useKillers) {
+			int[] k = getKillers(ply);
+			int first = roleId * KILLERS_PER_PLY;
+			if (k[first] != move) {
+				for (int i = first + KILLERS_PER_PLY - 1; i > first; i--) {
+					k[i] = k[i - 1];
+				}
+				k[first] = move;
+			}
+		}
+		if (useHistory) {
+			int[] h = history[roleId];
+			h[move] += depth * depth;
+			if (h[move] > MAX_HISTORY) {
+				for (int i = 0; i < h.length; i++) {
+					h[i] >>= 1;
+				}
+			}
+		}
+	}
+
+	private int getScore(int roleId, int ply, int move) {
+		if (useKillers && ply < killers.length) {
+			int[] k = killers[ply];
+			for (int i = 0; i < KILLERS_PER_PLY; i++) {
+				if (k[roleId * KILLERS_PER_PLY + i] == move) {
+					return KILLER_SCORE * (KILLERS_PER_PLY - i);
+				}
+			}
+		}
+		return (useHistory ? history[roleId][move] : 0);
+	}
+
+	private ReplyOrder getReplyOrder(int ply) {
+		if (ply >= replyOrders.length) {
+			int oldLength = replyOrders.length;
+			replyOrders = Arrays.copyOf(replyOrders, Math.max(ply + 1, 2 * oldLength));
+			int[] maxMoves = new int[nbRoles];
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				maxMoves[roleId] = history[roleId].length;
+			}
+			for (int i = oldLength; i < replyOrders.length; i++) {
+				replyOrders[i] = new ReplyOrder(maxMoves);
+			}
+		}
+		return replyOrders[ply];
+	}
+
+	private int[] getKillers(int ply) {
+		if (ply >= killers.length) {
+			int oldLength = killers.length;
+			killers = Arrays.copyOf(killers, Math.max(ply + 1, 2 * oldLength));
+			for (int i = oldLength; i < killers.length; i++) {
+				killers[i] = new int[nbRoles * KILLERS_PER_PLY];
+				Arrays.fill(killers[i], -1);
+			}
+		}
+		return killers[ply];
+	}
+
+	/**
+	 * stable insertion sort of values by descending scores
+	 */
+	private static void sort(int[] values, int[] scores, int n) {
+		for (int i = 1; i < n; i++) {
+			int value = values[i];
+			int score = scores[i];
+			int j = i - 1;
+			while (j >= 0 && scores[j] < score) {
+				values[j + 1] = values[j];
+				scores[j + 1] = scores[j];
+				j--;
+			}
+			values[j + 1] = value;
+			scores[j + 1] = score;
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.player.gamer.statemachine.sample.SampleGamer;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import is.ru.cadia.ggp.propnet.CompactState;
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachine;
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.heuristic.Evaluator;
+import is.ru.cadia.ggp.propnet.heuristic.LinearEvaluator;
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
+
+/**
+ * iterative deepening alpha-beta search (same tree as in AlphaBetaGamer) running on several threads
+ *
+ * The threads use "Lazy SMP": all of them search the same root independently, each with its own
+ * state machine (sharing the PropNetStructure), and only communicate through shared lock-free
+ * transposition tables. Threads with an odd index start one iteration deeper and the helper threads
+ * try the moves (apart from the one stored in the transposition table) in a random order, so that they
+ * fill the tables with results the other threads need next.
+ * The move of the thread that finished the deepest iteration is played.
+ */
+public class ParallelAlphaBetaGamer extends SampleGamer {
+
+	private static final int TABLE_SIZE = 1 << 21;
+
+	private final int nbThreads;
+
+	// results of max nodes by the Zobrist hash of the state and of min nodes by the Zobrist hash
+	// of the state combined with the key of our move
+	private LockFreeTranspositionTable maxTable;
+	private LockFreeTranspositionTable minTable;
+	private ExecutorService executor;
+	private Worker[] workers;
+	private volatile boolean stop;
+	private long expandedNodes;
+	private long gameStart;
+
+	private static class TimeOutException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public TimeOutException(String message) {
+			super(message);
+		}
+	}
+
+	public ParallelAlphaBetaGamer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelAlphaBetaGamer(int nbThreads) {
+		super();
+		this.nbThreads = nbThreads;
+	}
+
+	@Override
+	public StateMachine getInitialStateMachine() {
+		// propnets are cached by a hash of the rules, so they don't have to be rebuilt for repeated (scrambled) games
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(PropNetCache.getDefault());
+		// leave at least half of the start clock for the rest of the meta game
+		factory.setOptimizationDeadline(System.currentTimeMillis() + getMatch().getStartClock() * 1000L / 2);
+		return new RecursiveForwardChangePropNetStateMachine(factory);
+	}
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		shutdown();
+		gameStart = System.currentTimeMillis();
+		expandedNodes = 0;
+		maxTable = new LockFreeTranspositionTable(TABLE_SIZE);
+		minTable = new LockFreeTranspositionTable(TABLE_SIZE);
+		stateMachineSelectMove(timeout);
+	}
+
+	@Override
+	public Move stateMachineSelectMove(long timeout)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		long start = System.currentTimeMillis();
+		PropNetBitSetStateMachine machine = (PropNetBitSetStateMachine)getStateMachine();
+		InternalBitSetState state = machine.machineStateToInternalState(getCurrentState());
+		int roleId = machine.getPropNetStructure().getRoleId(getRole());
+		if (workers == null) {
+			setupWorkers(machine, roleId);
+		}
+		maxTable.nextGeneration();
+		minTable.nextGeneration();
+		stop = false;
+
+		CompactState root = machine.compress(state);
+		List<Future<Long>> results = new ArrayList<>(nbThreads);
+		for (Worker worker : workers) {
+			results.add(executor.submit(worker.searchUntil(root, timeout - 500)));
+		}
+		long nodes = 0;
+		try {
+			for (Future<Long> result : results) {
+				nodes += result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		expandedNodes += nodes;
+
+		// play the move of the deepest finished iteration (the first thread wins ties)
+		Worker best = null;
+		for (Worker worker : workers) {
+			if (worker.bestMove != -1 && (best == null || worker.completedDepth > best.completedDepth)) {
+				best = worker;
+			}
+		}
+		Move move;
+		if (best == null) {
+			// not even the first iteration finished, play any legal move
+			move = machine.getRandomMove(state, roleId);
+		} else {
+			move = machine.getPropNetStructure().getPossibleMoves(roleId)[best.bestMove];
+			System.out.println("Parallel alpha-beta (" + nbThreads + " threads) depth: "
+					+ (best.completedDepth == LockFreeTranspositionTable.SOLVED_DEPTH ? "solved" : best.completedDepth)
+					+ ", value: " + best.bestValue + ", expanded nodes: " + nodes);
+		}
+		System.out.println(move);
+		long end = System.currentTimeMillis();
+		notifyObservers(new GamerSelectedMoveEvent(machine.getLegalMoves(state, roleId), move, end - start));
+		return move;
+	}
+
+	@Override
+	public void stateMachineStop() {
+		System.out.println("Number of expanded states (maxnodes): " + expandedNodes);
+		System.out.println("Playing game took " + (System.currentTimeMillis() - gameStart) + " ms");
+		shutdown();
+	}
+
+	@Override
+	public void stateMachineAbort() {
+		shutdown();
+	}
+
+	private void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		workers = null;
+	}
+
+	private void setupWorkers(PropNetBitSetStateMachine machine, int roleId) {
+		executor = Executors.newFixedThreadPool(nbThreads,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("AlphaBetaWorker-%d").build());
+		workers = new Worker[nbThreads];
+		LinearEvaluator<InternalBitSetState> evaluator = LinearEvaluator.create(machine, getMatch().getGame().getRules(), PropNetCache.getDefault());
+		for (int i = 0; i < nbThreads; i++) {
+			PropNetBitSetStateMachine workerMachine = new RecursiveForwardChangePropNetStateMachine(machine.getPropNetStructure());
+			workers[i] = new Worker(i, workerMachine, evaluator.copyFor(workerMachine), roleId);
+		}
+	}
+
+	private class Worker {
+		private final int index;
+		private final PropNetBitSetStateMachine machine;
+		// evaluates non-terminal states at the depth limit
+		private final Evaluator<InternalBitSetState> evaluator;
+		private final int roleId;
+		private final int nbRoles;
+		private final PropNetMove[][] possibleMoves;
+		private final Random random;
+		private long deadline;
+		private long nodes;
+		// set by every call of maxValue/minValue: true if the returned value is proven
+		private boolean solved;
+		private int rootMove;
+
+		// buffers for each ply, so that nodes don't allocate anything (grown as the iterations get deeper):
+		// our legal moves in max nodes, the legal moves of all roles and the joint move in min nodes
+		// and the successor states of min nodes (reused with copyState)
+		private int[][] plyMoves = new int[0][];
+		private int[][][] plyLegals = new int[0][][];
+		private int[][] plyNbLegals = new int[0][];
+		private PropNetMove[][] plyJointMoves = new PropNetMove[0][];
+		private InternalBitSetState[] plyStates = new InternalBitSetState[0];
+
+		// result of the deepest finished iteration
+		private int completedDepth;
+		private int bestMove;
+		private int bestValue;
+
+		public Worker(int index, PropNetBitSetStateMachine machine, Evaluator<InternalBitSetState> evaluator, int roleId) {
+			this.index = index;
+			this.machine = machine;
+			this.evaluator = evaluator;
+			this.roleId = roleId;
+			nbRoles = machine.getPropNetStructure().getRoles().length;
+			possibleMoves = new PropNetMove[nbRoles][];
+			for (int r = 0; r < nbRoles; r++) {
+				possibleMoves[r] = machine.getPropNetStructure().getPossibleMoves(r);
+			}
+			random = new Random(index);
+		}
+
+		public Callable<Long> searchUntil(final CompactState root, final long deadline) {
+			return new Callable<Long>() {
+				@Override
+				public Long call() throws GoalDefinitionException {
+					return search(machine.decompress(root), deadline);
+				}
+			};
+		}
+
+		private long search(InternalBitSetState root, long deadline) throws GoalDefinitionException {
+			this.deadline = deadline;
+			nodes = 0;
+			completedDepth = 0;
+			bestMove = -1;
+			try {
+				for (int depth = 1 + (index & 1); depth < LockFreeTranspositionTable.SOLVED_DEPTH && !stop; depth++) {
+					int value = maxValue(root, depth, -1, 101, 0);
+					completedDepth = depth;
+					bestMove = rootMove;
+					bestValue = value;
+					if (solved) {
+						completedDepth = LockFreeTranspositionTable.SOLVED_DEPTH;
+						// the other threads can't do better than that
+						stop = true;
+					}
+				}
+			} catch (TimeOutException e) {
+			}
+			return nodes;
+		}
+
+		private void checkTime() throws TimeOutException {
+			nodes++;
+			if ((nodes & 0x3FF) == 0 && (stop || System.currentTimeMillis() > deadline)) {
+				throw new TimeOutException("Alpha-beta timed out");
+			}
+		}
+
+		private int maxValue(InternalBitSetState state, int depth, int alpha, int beta, int ply)
+				throws TimeOutException, GoalDefinitionException {
+			checkTime();
+			if (machine.isTerminal(state)) {
+				solved = true;
+				return machine.getGoal(state, roleId);
+			}
+			long key = machine.getZobristHash(state);
+			long entry = maxTable.get(key);
+			int tableMove = -1;
+			if (entry != 0) {
+				int entryDepth = LockFreeTranspositionTable.getDepth(entry);
+				int value = LockFreeTranspositionTable.getValue(entry);
+				int bound = LockFreeTranspositionTable.getBound(entry);
+				// the root has to be searched to know the best move
+				if (ply > 0 && entryDepth >= depth && (bound == LockFreeTranspositionTable.BOUND_EXACT
+						|| (bound == LockFreeTranspositionTable.BOUND_LOWER && value >= beta)
+						|| (bound == LockFreeTranspositionTable.BOUND_UPPER && value <= alpha))) {
+					solved = (entryDepth == LockFreeTranspositionTable.SOLVED_DEPTH);
+					return value;
+				}
+				tableMove = LockFreeTranspositionTable.getMove(entry);
+			}
+			if (depth <= 0) {
+				solved = false;
+				return evaluator.evaluate(state, roleId);
+			}
+
+			ensurePly(ply);
+			int[] moves = plyMoves[ply];
+			int nbMoves = machine.getLegalMoveOrdinals(state, roleId, moves);
+			orderMoves(moves, nbMoves, tableMove);
+			int alphaOrig = alpha;
+			int best = -1;
+			int bestOrdinal = -1;
+			boolean allSolved = true;
+			for (int i = 0; i < nbMoves; i++) {
+				int value = minValue(state, moves[i], depth, alpha, beta, ply);
+				allSolved &= solved;
+				if (value > best) {
+					best = value;
+					bestOrdinal = moves[i];
+				}
+				if (best > alpha) {
+					alpha = best;
+				}
+				if (alpha >= beta) {
+					break;
+				}
+			}
+			int bound = (best <= alphaOrig ? LockFreeTranspositionTable.BOUND_UPPER
+					: best >= beta ? LockFreeTranspositionTable.BOUND_LOWER : LockFreeTranspositionTable.BOUND_EXACT);
+			maxTable.put(key, best, bound, allSolved ? LockFreeTranspositionTable.SOLVED_DEPTH : depth, bestOrdinal);
+			if (ply == 0) {
+				rootMove = bestOrdinal;
+			}
+			solved = allSolved;
+			return best;
+		}
+
+		private int minValue(InternalBitSetState state, int move, int depth, int alpha, int beta, int ply)
+				throws TimeOutException, GoalDefinitionException {
+			PropNetMove ourMove = possibleMoves[roleId][move];
+			long key = machine.getZobristHash(state) ^ PropNetBitSetStateMachine.getZobristKey(ourMove.getInputComponent().id);
+			long entry = minTable.get(key);
+			int tableReply = -1;
+			if (entry != 0) {
+				int entryDepth = LockFreeTranspositionTable.getDepth(entry);
+				int value = LockFreeTranspositionTable.getValue(entry);
+				int bound = LockFreeTranspositionTable.getBound(entry);
+				if (entryDepth >= depth && (bound == LockFreeTranspositionTable.BOUND_EXACT
+						|| (bound == LockFreeTranspositionTable.BOUND_LOWER && value >= beta)
+						|| (bound == LockFreeTranspositionTable.BOUND_UPPER && value <= alpha))) {
+					solved = (entryDepth == LockFreeTranspositionTable.SOLVED_DEPTH);
+					return value;
+				}
+				tableReply = LockFreeTranspositionTable.getMove(entry);
+			}
+
+			// the replies are the joint moves of the other roles, numbered in a mixed radix system
+			int[][] legals = plyLegals[ply];
+			int[] nbLegals = plyNbLegals[ply];
+			int nbReplies = 1;
+			for (int r = 0; r < nbRoles; r++) {
+				if (r != roleId) {
+					nbLegals[r] = machine.getLegalMoveOrdinals(state, r, legals[r]);
+					nbReplies *= nbLegals[r];
+				}
+			}
+			if (tableReply >= nbReplies) {
+				tableReply = -1;
+			}
+			PropNetMove[] jointMove = plyJointMoves[ply];
+			jointMove[roleId] = ourMove;
+			if (plyStates[ply] == null) {
+				plyStates[ply] = state.clone();
+			}
+			InternalBitSetState next = plyStates[ply];
+			int betaOrig = beta;
+			int worst = 101;
+			int worstReply = -1;
+			boolean allSolved = true;
+			// try the reply from the transposition table first
+			for (int i = (tableReply == -1 ? 0 : -1); i < nbReplies; i++) {
+				int reply = (i == -1 ? tableReply : i);
+				if (i >= 0 && reply == tableReply) {
+					continue;
+				}
+				for (int r = 0; r < nbRoles; r++) {
+					if (r != roleId) {
+						jointMove[r] = possibleMoves[r][legals[r][reply % nbLegals[r]]];
+						reply /= nbLegals[r];
+					}
+				}
+				machine.copyState(state, next);
+				machine.getNextState(next, jointMove, false);
+				int value = maxValue(next, depth - 1, alpha, beta, ply + 1);
+				allSolved &= solved;
+				if (value < worst) {
+					worst = value;
+					worstReply = (i == -1 ? tableReply : i);
+				}
+				if (worst < beta) {
+					beta = worst;
+				}
+				if (alpha >= beta) {
+					break;
+				}
+			}
+			int bound = (worst >= betaOrig ? LockFreeTranspositionTable.BOUND_LOWER
+					: worst <= alpha ? LockFreeTranspositionTable.BOUND_UPPER : LockFreeTranspositionTable.BOUND_EXACT);
+			minTable.put(key, worst, bound, allSolved ? LockFreeTranspositionTable.SOLVED_DEPTH : depth, worstReply);
+			solved = allSolved;
+			return worst;
+		}
+
+		/**
+		 * makes sure that the buffers for ply exist
+		 */
+		private void ensurePly(int ply) {
+			if (ply < plyMoves.length) {
+				return;
+			}
+			int oldLength = plyMoves.length;
+			int length = Math.max(ply + 1, 2 * oldLength);
+			plyMoves = Arrays.copyOf(plyMoves, length);
+			plyLegals = Arrays.copyOf(plyLegals, length);
+			plyNbLegals = Arrays.copyOf(plyNbLegals, length);
+			plyJointMoves = Arrays.copyOf(plyJointMoves, length);
+			plyStates = Arrays.copyOf(plyStates, length);
+			for (int i = oldLength; i < length; i++) {
+				plyMoves[i] = new int[possibleMoves[roleId].length];
+				plyLegals[i] = new int[nbRoles][];
+				for (int r = 0; r < nbRoles; r++) {
+					if (r != roleId) {
+						plyLegals[i][r] = new int[possibleMoves[r].length];
+					}
+				}
+				plyNbLegals[i] = new int[nbRoles];
+				plyJointMoves[i] = new PropNetMove[nbRoles];
+			}
+		}
+
+		/**
+		 * moves the move from the transposition table to the front, the helper threads
+		 * shuffle the other moves
+		 */
+		private void orderMoves(int[] moves, int nbMoves, int tableMove) {
+			int first = 0;
+			for (int i = 0; i < nbMoves; i++) {
+				if (moves[i] == tableMove) {
+					moves[i] = moves[0];
+					moves[0] = tableMove;
+					first = 1;
+					break;
+				}
+			}
+			if (index > 0) {
+				for (int i = nbMoves - 1; i > first; i--) {
+					int j = first + random.nextInt(i - first + 1);
+					int m = moves[i];
+					moves[i] = moves[j];
+					moves[j] = m;
+				}
+			}
+		}
+	}
+}
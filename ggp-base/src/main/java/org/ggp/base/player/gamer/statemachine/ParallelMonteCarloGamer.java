@@ -0,0 +1,849 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ggp.base.player.gamer.statemachine.sample.SampleGamer;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachine;
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetCache;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructureFactory;
+
+/**
+ * UCT search (same as in MonteCarloGamer) running on several threads
+ *
+ * Each thread has its own state machine (sharing the PropNetStructure) and buffers.
+ * How the threads share their results depends on the mode:
+ * - ROOT_PARALLEL: each thread builds its own tree, the statistics of the moves in the roots
+ *   of all trees are added up to select the move
+ * - TREE_PARALLEL: all threads search the same ConcurrentMonteCarloTree, using virtual loss
+ *   to spread out over different parts of the tree. When the tree is full, the threads stop
+ *   until the calling thread has made room in the tree.
+ * - LEAF_PARALLEL: the calling thread searches a single MonteCarloTree, but hands the playouts from
+ *   the leaves to the threads. While the results are outstanding, the paths to the leaves count
+ *   virtual losses. Results come back through a lock-free queue and are backed up in batches.
+ *   Several playouts can be run for each leaf, their average is backed up.
+ */
+public abstract class ParallelMonteCarloGamer extends SampleGamer implements SimulationCounter {
+
+	public enum Mode {ROOT_PARALLEL, TREE_PARALLEL, LEAF_PARALLEL}
+
+	private final Mode mode;
+	private final int nbThreads;
+	/**
+	 * number of playouts per leaf in LEAF_PARALLEL mode
+	 */
+	private final int playoutsPerLeaf;
+	/**
+	 * maximal number of leaves whose playouts are outstanding per thread in LEAF_PARALLEL mode
+	 */
+	private final int leavesPerThread = 2;
+	/**
+	 * whether playouts stop and nodes count as terminal once latches decide the outcome (see LatchAnalysis)
+	 */
+	private final boolean earlyPlayoutCutoff;
+
+	private final double C = 50;
+	// memory budget of the search tree in bytes
+	private final long maxTreeMemory = Runtime.getRuntime().maxMemory() / 4;
+
+	private ExecutorService executor;
+	private Worker[] workers;
+	private ConcurrentMonteCarloTree sharedTree;
+	private LeafWorker leafWorker;
+	// tells the workers of runWorkers to stop before the timeout, e.g., because one of them failed
+	private volatile boolean stopWorkers;
+	private int nbRoles;
+	private long simulations;
+
+	protected ParallelMonteCarloGamer(Mode mode) {
+		this(mode, Runtime.getRuntime().availableProcessors());
+	}
+
+	protected ParallelMonteCarloGamer(Mode mode, int nbThreads) {
+		this(mode, nbThreads, 1);
+	}
+
+	protected ParallelMonteCarloGamer(Mode mode, int nbThreads, int playoutsPerLeaf) {
+		this(mode, nbThreads, playoutsPerLeaf, false);
+	}
+
+	protected ParallelMonteCarloGamer(Mode mode, int nbThreads, int playoutsPerLeaf, boolean earlyPlayoutCutoff) {
+		super();
+		this.mode = mode;
+		this.nbThreads = nbThreads;
+		this.playoutsPerLeaf = playoutsPerLeaf;
+		this.earlyPlayoutCutoff = earlyPlayoutCutoff;
+	}
+
+	@Override
+	public StateMachine getInitialStateMachine() {
+		// propnets are cached by a hash of the rules, so they don't have to be rebuilt for repeated (scrambled) games
+		PropNetStructureFactory factory = new GGPBasePropNetStructureFactory();
+		factory.setCache(PropNetCache.getDefault());
+		// leave at least half of the start clock for the rest of the meta game
+		factory.setOptimizationDeadline(System.currentTimeMillis() + getMatch().getStartClock() * 1000L / 2);
+		RecursiveForwardChangePropNetStateMachine machine = new RecursiveForwardChangePropNetStateMachine(factory);
+		machine.setEarlyPlayoutCutoff(earlyPlayoutCutoff);
+		return machine;
+	}
+
+	@Override
+	public long getNbSimulations() {
+		return simulations;
+	}
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		shutdown();
+		simulations = 0;
+	}
+
+	@Override
+	public Move stateMachineSelectMove(long timeout)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		long start = System.currentTimeMillis();
+		long realTimeout = start + (timeout-start)*9/10;
+		PropNetBitSetStateMachine machine = (PropNetBitSetStateMachine)getStateMachine();
+		InternalBitSetState state = machine.machineStateToInternalState(getCurrentState());
+		if (workers == null) {
+			setupWorkers(machine);
+		}
+		int[] lastJointMove = null;
+		List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
+		if (lastMoves != null) {
+			lastJointMove = new int[nbRoles];
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				lastJointMove[roleId] = machine.getMoveOrdinal(roleId, machine.getMoveFromTerm(lastMoves.get(roleId)));
+			}
+		}
+		// We do not always want to start with a new tree after a move has been made
+		if (mode == Mode.TREE_PARALLEL) {
+			int root = sharedTree.getRoot();
+			int child = (lastJointMove == null || root == ConcurrentMonteCarloTree.NONE ? ConcurrentMonteCarloTree.NONE : sharedTree.getChild(root, lastJointMove));
+			if (child != ConcurrentMonteCarloTree.NONE) {
+				sharedTree.setRoot(child);
+			} else if (lastJointMove != null || root == ConcurrentMonteCarloTree.NONE) {
+				sharedTree.clear();
+				sharedTree.addNode(state, machine, workers[0].legalOrdinals);
+			}
+		} else {
+			for (Worker worker : workers) {
+				((RootWorker)worker).advanceRoot(state, lastJointMove);
+			}
+		}
+
+		// Run simulations on all threads until time is running out leaving enough time to return a move
+		int sims = 0;
+		if (mode == Mode.LEAF_PARALLEL) {
+			sims = leafWorker.search(realTimeout);
+		} else if (mode == Mode.TREE_PARALLEL) {
+			boolean canMakeRoom = true;
+			do {
+				// the workers stop when the tree is full, unless there is no way to make room in it
+				sims += runWorkers(realTimeout, canMakeRoom);
+				if (sharedTree.isFull() && canMakeRoom) {
+					canMakeRoom = sharedTree.makeRoom();
+				}
+			} while (System.currentTimeMillis() <= realTimeout && !Thread.currentThread().isInterrupted());
+		} else {
+			sims = runWorkers(realTimeout, false);
+		}
+		simulations += sims;
+		System.out.println("Parallel Monte Carlo (" + mode + ", " + nbThreads + " threads) simulations: " + sims);
+
+		// We choose the move in the root which has the highest Q value
+		int roleId = machine.getPropNetStructure().getRoleId(getRole());
+		PropNetMove[] possibleMoves = machine.getPropNetStructure().getPossibleMoves(roleId);
+		double[] sumQ = new double[possibleMoves.length];
+		int[] sumN = new int[possibleMoves.length];
+		if (mode == Mode.TREE_PARALLEL) {
+			int root = sharedTree.getRoot();
+			for (int edge = sharedTree.getFirstEdge(root, roleId); edge < sharedTree.getEndEdge(root, roleId); edge++) {
+				sumQ[sharedTree.getMove(edge)] = sharedTree.getQ(edge) * sharedTree.getN(edge);
+				sumN[sharedTree.getMove(edge)] = sharedTree.getN(edge);
+			}
+		} else {
+			for (Worker worker : workers) {
+				MonteCarloTree<InternalBitSetState> tree = ((RootWorker)worker).tree;
+				int root = tree.getRoot();
+				for (int edge = tree.getFirstEdge(root, roleId); edge < tree.getEndEdge(root, roleId); edge++) {
+					sumQ[tree.getMove(edge)] += tree.getQ(edge) * tree.getN(edge);
+					sumN[tree.getMove(edge)] += tree.getN(edge);
+				}
+			}
+		}
+		int best = -1;
+		double bestval = -1;
+		for (int ordinal = 0; ordinal < possibleMoves.length; ordinal++) {
+			if (sumN[ordinal] > 0 && bestval < sumQ[ordinal] / sumN[ordinal]) {
+				best = ordinal;
+				bestval = sumQ[ordinal] / sumN[ordinal];
+			}
+		}
+		if (best == -1) {
+			// no simulation finished, play any legal move
+			return machine.getRandomMove(state, roleId);
+		}
+		System.out.println("Monte Carlo Q value: " + bestval);
+		System.out.println("Monte Carlo N value: " + sumN[best]);
+		return possibleMoves[best];
+	}
+
+	/**
+	 * runs searchUntil() of all workers on the threads of the executor
+	 *
+	 * If a worker fails, it stops the other workers (see searchUntil), which are waited for before the exception
+	 * is rethrown, so that no worker is still using its state machine or the shared tree afterwards.
+	 * (Future.cancel would not wait for running workers.)
+	 * @return the number of simulations
+	 */
+	private int runWorkers(long timeout, boolean stopWhenFull) {
+		stopWorkers = false;
+		List<Future<Integer>> results = new ArrayList<>(nbThreads);
+		for (Worker worker : workers) {
+			results.add(executor.submit(worker.searchUntil(timeout, stopWhenFull)));
+		}
+		int sims = 0;
+		Throwable failure = null;
+		for (Future<Integer> result : results) {
+			try {
+				sims += result.get();
+			} catch (InterruptedException e) {
+				// stop the workers, but don't keep this thread waiting
+				stopWorkers = true;
+				Thread.currentThread().interrupt();
+				return sims;
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+		if (failure != null) {
+			throw new RuntimeException(failure);
+		}
+		return sims;
+	}
+
+	@Override
+	public void stateMachineStop() {
+		shutdown();
+	}
+
+	@Override
+	public void stateMachineAbort() {
+		shutdown();
+	}
+
+	private void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		workers = null;
+		sharedTree = null;
+		leafWorker = null;
+	}
+
+	private void setupWorkers(PropNetBitSetStateMachine machine) {
+		nbRoles = machine.getRoles().size();
+		executor = Executors.newFixedThreadPool(nbThreads,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MonteCarloWorker-%d").build());
+		if (mode == Mode.TREE_PARALLEL) {
+			sharedTree = new ConcurrentMonteCarloTree(machine, maxTreeMemory);
+		} else if (mode == Mode.LEAF_PARALLEL) {
+			// the leaf worker searches on this thread, the threads of the executor only run playouts
+			leafWorker = new LeafWorker(newWorkerMachine(machine));
+			workers = new Worker[]{leafWorker};
+			for (int i = 0; i < nbThreads; i++) {
+				executor.execute(leafWorker.new PlayoutWorker(newWorkerMachine(machine)));
+			}
+			return;
+		}
+		workers = new Worker[nbThreads];
+		for (int i = 0; i < nbThreads; i++) {
+			// state machines are not thread safe, but they can share the propnet
+			PropNetBitSetStateMachine workerMachine = newWorkerMachine(machine);
+			if (mode == Mode.TREE_PARALLEL) {
+				workers[i] = new TreeWorker(workerMachine);
+			} else {
+				workers[i] = new RootWorker(workerMachine);
+			}
+		}
+	}
+
+	private PropNetBitSetStateMachine newWorkerMachine(PropNetBitSetStateMachine machine) {
+		PropNetBitSetStateMachine workerMachine = new RecursiveForwardChangePropNetStateMachine(machine.getPropNetStructure());
+		workerMachine.setEarlyPlayoutCutoff(earlyPlayoutCutoff);
+		return workerMachine;
+	}
+
+	/**
+	 * the state of one search thread
+	 */
+	private abstract class Worker {
+		protected final PropNetBitSetStateMachine machine;
+
+		// buffers, so that we don't need to allocate anything during search
+		protected final int[] jointMove;
+		protected final PropNetMove[] propNetJointMove;
+		protected final int[] scores;
+		protected final int[] legalOrdinals;
+
+		public Worker(PropNetBitSetStateMachine machine) {
+			this.machine = machine;
+			jointMove = new int[nbRoles];
+			propNetJointMove = new PropNetMove[nbRoles];
+			scores = new int[nbRoles];
+			int maxNbMoves = 0;
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				maxNbMoves = Math.max(maxNbMoves, machine.getPropNetStructure().getPossibleMoves(roleId).length);
+			}
+			legalOrdinals = new int[maxNbMoves];
+		}
+
+		/**
+		 * @param timeout
+		 * @param stopWhenFull whether to stop before the timeout once the shared tree is full
+		 */
+		public Callable<Integer> searchUntil(final long timeout, final boolean stopWhenFull) {
+			return new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int sims = 0;
+					try {
+						while (!stopWorkers && System.currentTimeMillis() <= timeout && !(stopWhenFull && sharedTree.isFull())) {
+							runIteration();
+							sims++;
+						}
+					} catch (Throwable t) {
+						// stop the other workers right away, runWorkers rethrows t once they are done
+						stopWorkers = true;
+						throw t;
+					}
+					return sims;
+				}
+			};
+		}
+
+		/**
+		 * runs one selection, expansion, simulation and back propagation
+		 */
+		protected abstract void runIteration() throws GoalDefinitionException, MoveDefinitionException;
+
+		protected PropNetMove[] toPropNetMoves(int[] ordinals) {
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				propNetJointMove[roleId] = machine.getPropNetStructure().getPossibleMoves(roleId)[ordinals[roleId]];
+			}
+			return propNetJointMove;
+		}
+
+		protected void getGoals(InternalBitSetState state, int[] goals) throws GoalDefinitionException {
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				goals[roleId] = machine.getGoal(state, roleId);
+			}
+		}
+
+		public double UCT(double q, double n, double sims) {
+			return (sims == 0 || n == 0) ? Double.POSITIVE_INFINITY : q + C * Math.sqrt(Math.log(sims)/n);
+		}
+	}
+
+	/**
+	 * searches its own MonteCarloTree
+	 */
+	private class RootWorker extends Worker {
+		protected final MonteCarloTree<InternalBitSetState> tree;
+
+		public RootWorker(PropNetBitSetStateMachine machine) {
+			this(machine, maxTreeMemory / nbThreads);
+		}
+
+		protected RootWorker(PropNetBitSetStateMachine machine, long maxMemory) {
+			super(machine);
+			tree = new MonteCarloTree<>(machine, maxMemory, false);
+		}
+
+		public void advanceRoot(InternalBitSetState state, int[] lastJointMove) {
+			int root = tree.getRoot();
+			int child = (lastJointMove == null || root == MonteCarloTree.NONE ? MonteCarloTree.NONE : tree.getChild(root, lastJointMove));
+			if (child != MonteCarloTree.NONE) {
+				tree.setRoot(child);
+			} else if (lastJointMove != null || root == MonteCarloTree.NONE) {
+				tree.clear();
+				tree.addNode(state.clone());
+			}
+		}
+
+		@Override
+		protected void runIteration() throws GoalDefinitionException, MoveDefinitionException {
+			if (tree.isFull()) {
+				// make room for new nodes by removing the least visited subtrees
+				tree.prune();
+			}
+			int node = tree.getRoot();
+			while (true) {
+				InternalBitSetState state = tree.getState(node);
+				// If in the selection phase we find a terminal node we propagate the values
+				if (machine.isTerminal(state)) {
+					getGoals(state, scores);
+					propagate(node, scores);
+					return;
+				}
+				// nodes whose outcome is already decided by latches are treated like terminal ones
+				if (machine.getFixedGoals(state, scores)) {
+					propagate(node, scores);
+					return;
+				}
+				selectMoves(node);
+				int child = tree.getChild(node, jointMove);
+				if (child != MonteCarloTree.NONE) {
+					node = child;
+				} else if (tree.isFull()) {
+					// If the tree we have so far is at our limit we will run a simulation from the leaf
+					// and not add anything to our tree
+					machine.playout(state, scores, null);
+					tree.incSimulations(node);
+					propagate(node, scores);
+					return;
+				} else {
+					InternalBitSetState nextState = machine.getNextState(state, toPropNetMoves(jointMove), true);
+					int newNode = tree.addNode(nextState);
+					tree.addChild(node, jointMove, newNode);
+					machine.playout(nextState, scores, null);
+					tree.incSimulations(newNode);
+					propagate(newNode, scores);
+					return;
+				}
+			}
+		}
+
+		protected void selectMoves(int node) {
+			int sims = tree.getSimulations(node);
+			for(int roleId = 0; roleId < nbRoles; roleId++) {
+				int bestMove = MonteCarloTree.NONE;
+				double bestVal = -1;
+				for(int edge = tree.getFirstEdge(node, roleId); edge < tree.getEndEdge(node, roleId); edge++) {
+					double curr = UCT(tree.getQ(edge), tree.getN(edge), sims);
+					if(bestVal < curr) {
+						bestMove = tree.getMove(edge);
+						bestVal = curr;
+					}
+				}
+				jointMove[roleId] = bestMove;
+			}
+		}
+
+		protected void propagate(int node, int[] scores) {
+			int parent = tree.getParent(node);
+			while(parent != MonteCarloTree.NONE) {
+				for(int roleId = 0; roleId < nbRoles; roleId++) {
+					int edge = tree.findEdge(parent, roleId, tree.getParentMove(node, roleId));
+					tree.update(edge, scores[roleId]);
+				}
+				tree.incSimulations(parent);
+				node = parent;
+				parent = tree.getParent(node);
+			}
+		}
+	}
+
+	/**
+	 * searches a MonteCarloTree on the thread calling search() and hands the playouts to PlayoutWorkers
+	 */
+	private class LeafWorker extends RootWorker {
+		private final int maxInFlight = leavesPerThread * nbThreads;
+		private final BlockingQueue<PlayoutJob> pendingJobs = new ArrayBlockingQueue<>(maxInFlight);
+		private final PlayoutJobQueue finishedJobs = new PlayoutJobQueue(new PlayoutJob());
+		// jobs that are neither pending nor finished
+		private final PlayoutJob[] freeJobs = new PlayoutJob[maxInFlight];
+		private int nbFreeJobs;
+		private final double[] averageScores;
+		private volatile Thread searchThread;
+
+		public LeafWorker(PropNetBitSetStateMachine machine) {
+			super(machine, maxTreeMemory);
+			for (int i = 0; i < maxInFlight; i++) {
+				freeJobs[nbFreeJobs++] = new PlayoutJob();
+			}
+			averageScores = new double[nbRoles];
+		}
+
+		/**
+		 * runs iterations until the timeout and waits for all outstanding playouts
+		 * @param timeout
+		 * @return the number of playouts
+		 */
+		public int search(long timeout) throws GoalDefinitionException, MoveDefinitionException {
+			searchThread = Thread.currentThread();
+			int sims = 0;
+			while (System.currentTimeMillis() <= timeout) {
+				sims += backupFinishedJobs(nbFreeJobs == 0);
+				if (nbFreeJobs > 0) {
+					sims += runLeafIteration();
+				}
+			}
+			sims += backupAllJobs();
+			return sims;
+		}
+
+		/**
+		 * runs one selection and expansion and hands the playouts to the PlayoutWorkers
+		 * (or backs up the result right away for terminal nodes)
+		 * @return the number of playouts that were backed up
+		 */
+		private int runLeafIteration() throws GoalDefinitionException, MoveDefinitionException {
+			int sims = 0;
+			if (tree.isFull()) {
+				// node handles change by pruning, so all outstanding results must be backed up before
+				sims += backupAllJobs();
+				tree.prune();
+			}
+			int node = tree.getRoot();
+			while (true) {
+				InternalBitSetState state = tree.getState(node);
+				// If in the selection phase we find a terminal node we propagate the values
+				if (machine.isTerminal(state)) {
+					getGoals(state, scores);
+					propagate(node, scores);
+					return sims + 1;
+				}
+				// nodes whose outcome is already decided by latches are treated like terminal ones
+				if (machine.getFixedGoals(state, scores)) {
+					propagate(node, scores);
+					return sims + 1;
+				}
+				selectMoves(node);
+				int child = tree.getChild(node, jointMove);
+				if (child != MonteCarloTree.NONE) {
+					node = child;
+				} else if (tree.isFull()) {
+					// If the tree we have so far is still at our limit we will run the playouts from the leaf
+					// and not add anything to our tree
+					submit(node, state.clone());
+					return sims;
+				} else {
+					InternalBitSetState nextState = machine.getNextState(state, toPropNetMoves(jointMove), true);
+					int newNode = tree.addNode(nextState);
+					tree.addChild(node, jointMove, newNode);
+					// the tree may keep changing the inputs of nextState, so the playouts need their own copy
+					submit(newNode, nextState.clone());
+					return sims;
+				}
+			}
+		}
+
+		/**
+		 * hands the playouts from state to the PlayoutWorkers and adds virtual losses on the path to node
+		 */
+		private void submit(int node, InternalBitSetState state) {
+			PlayoutJob job = freeJobs[--nbFreeJobs];
+			job.node = node;
+			job.state = state;
+			tree.incSimulations(node);
+			int parent = tree.getParent(node);
+			while(parent != MonteCarloTree.NONE) {
+				for(int roleId = 0; roleId < nbRoles; roleId++) {
+					tree.addVirtualLoss(tree.findEdge(parent, roleId, tree.getParentMove(node, roleId)));
+				}
+				tree.incSimulations(parent);
+				node = parent;
+				parent = tree.getParent(node);
+			}
+			pendingJobs.add(job);
+		}
+
+		/**
+		 * backs up the results of all finished jobs
+		 * @param wait whether to wait until at least one job is finished
+		 * @return the number of playouts that were backed up
+		 */
+		private int backupFinishedJobs(boolean wait) throws GoalDefinitionException, MoveDefinitionException {
+			int sims = 0;
+			PlayoutJob job;
+			while ((job = finishedJobs.poll()) != null || (wait && sims == 0)) {
+				if (job == null) {
+					LockSupport.parkNanos(this, 100000);
+					continue;
+				}
+				if (job.goalException != null || job.moveException != null) {
+					GoalDefinitionException goalException = job.goalException;
+					MoveDefinitionException moveException = job.moveException;
+					freeJob(job);
+					// otherwise the next search would wait forever for the jobs that are still in flight
+					drainJobs();
+					if (goalException != null) {
+						throw goalException;
+					}
+					throw moveException;
+				}
+				backup(job);
+				freeJob(job);
+				sims += playoutsPerLeaf;
+			}
+			return sims;
+		}
+
+		/**
+		 * replaces the virtual losses on the path to the node of the job with the average score of its playouts
+		 */
+		private void backup(PlayoutJob job) {
+			for (int roleId = 0; roleId < nbRoles; roleId++) {
+				averageScores[roleId] = (double)job.scoreSums[roleId] / playoutsPerLeaf;
+			}
+			int node = job.node;
+			int parent = tree.getParent(node);
+			while(parent != MonteCarloTree.NONE) {
+				for(int roleId = 0; roleId < nbRoles; roleId++) {
+					int edge = tree.findEdge(parent, roleId, tree.getParentMove(node, roleId));
+					tree.replaceVirtualLoss(edge, averageScores[roleId]);
+				}
+				node = parent;
+				parent = tree.getParent(node);
+			}
+		}
+
+		private void freeJob(PlayoutJob job) {
+			job.state = null;
+			freeJobs[nbFreeJobs++] = job;
+		}
+
+		/**
+		 * waits for all jobs in flight and backs up the results of those without exceptions
+		 */
+		private void drainJobs() {
+			while (nbFreeJobs < maxInFlight) {
+				PlayoutJob job = finishedJobs.poll();
+				if (job == null) {
+					LockSupport.parkNanos(this, 100000);
+					continue;
+				}
+				if (job.goalException == null && job.moveException == null) {
+					backup(job);
+				}
+				freeJob(job);
+			}
+		}
+
+		private int backupAllJobs() throws GoalDefinitionException, MoveDefinitionException {
+			int sims = 0;
+			while (nbFreeJobs < maxInFlight) {
+				sims += backupFinishedJobs(true);
+			}
+			return sims;
+		}
+
+		/**
+		 * runs the playouts of pending jobs
+		 */
+		private class PlayoutWorker implements Runnable {
+			private final PropNetBitSetStateMachine playoutMachine;
+			private final int[] goals = new int[nbRoles];
+
+			public PlayoutWorker(PropNetBitSetStateMachine playoutMachine) {
+				this.playoutMachine = playoutMachine;
+			}
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						PlayoutJob job = pendingJobs.take();
+						Arrays.fill(job.scoreSums, 0);
+						job.goalException = null;
+						job.moveException = null;
+						try {
+							for (int i = 0; i < playoutsPerLeaf; i++) {
+								playoutMachine.playout(job.state, goals, null);
+								for (int roleId = 0; roleId < nbRoles; roleId++) {
+									job.scoreSums[roleId] += goals[roleId];
+								}
+							}
+						} catch (GoalDefinitionException e) {
+							job.goalException = e;
+						} catch (MoveDefinitionException e) {
+							job.moveException = e;
+						}
+						finishedJobs.offer(job);
+						LockSupport.unpark(searchThread);
+					}
+				} catch (InterruptedException e) {
+					// the gamer was stopped
+				}
+			}
+		}
+	}
+
+	/**
+	 * playouts from the state of a leaf of the tree and their results
+	 */
+	private class PlayoutJob {
+		private int node;
+		private InternalBitSetState state;
+		private final int[] scoreSums = new int[nbRoles];
+		private GoalDefinitionException goalException;
+		private MoveDefinitionException moveException;
+		// link in PlayoutJobQueue
+		private volatile PlayoutJob next;
+	}
+
+	/**
+	 * lock-free queue of PlayoutJobs for many producers and a single consumer
+	 * (intrusive version of Dmitry Vyukov's MPSC queue, so offering a job does not allocate anything)
+	 */
+	private static final class PlayoutJobQueue {
+		// producers append behind head, the consumer removes at tail
+		private final AtomicReference<PlayoutJob> head;
+		private PlayoutJob tail;
+		private final PlayoutJob stub;
+
+		public PlayoutJobQueue(PlayoutJob stub) {
+			this.stub = stub;
+			head = new AtomicReference<>(stub);
+			tail = stub;
+		}
+
+		/**
+		 * may be called by any thread
+		 */
+		public void offer(PlayoutJob job) {
+			job.next = null;
+			PlayoutJob previous = head.getAndSet(job);
+			previous.next = job;
+		}
+
+		/**
+		 * must only be called by the consumer thread
+		 * @return the oldest job in the queue or null, if the queue is empty (or the job is not completely offered yet)
+		 */
+		public PlayoutJob poll() {
+			PlayoutJob first = tail;
+			PlayoutJob next = first.next;
+			if (first == stub) {
+				if (next == null) {
+					return null;
+				}
+				tail = next;
+				first = next;
+				next = next.next;
+			}
+			if (next != null) {
+				tail = next;
+				return first;
+			}
+			if (first != head.get()) {
+				return null;
+			}
+			offer(stub);
+			next = first.next;
+			if (next != null) {
+				tail = next;
+				return first;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * searches the shared ConcurrentMonteCarloTree
+	 */
+	private class TreeWorker extends Worker {
+		// edges selected on the path from the root, nbRoles per node
+		private int[] pathEdges;
+		private int pathLength;
+
+		public TreeWorker(PropNetBitSetStateMachine machine) {
+			super(machine);
+			pathEdges = new int[nbRoles * 64];
+		}
+
+		@Override
+		protected void runIteration() throws GoalDefinitionException, MoveDefinitionException {
+			ConcurrentMonteCarloTree tree = sharedTree;
+			int node = tree.getRoot();
+			pathLength = 0;
+			while (true) {
+				InternalBitSetState state = tree.getState(node);
+				// If in the selection phase we find a terminal node we propagate the values
+				if (machine.isTerminal(state)) {
+					getGoals(state, scores);
+					break;
+				}
+				// nodes whose outcome is already decided by latches are treated like terminal ones
+				if (machine.getFixedGoals(state, scores)) {
+					break;
+				}
+				selectMoves(tree, node);
+				int child = tree.getChild(node, jointMove);
+				if (child != ConcurrentMonteCarloTree.NONE) {
+					node = child;
+					continue;
+				}
+				// Nodes in the tree are shared with the other threads, so we must not change their states.
+				InternalBitSetState nextState = machine.getNextState(state.clone(), toPropNetMoves(jointMove), false);
+				int newNode = tree.addNode(nextState, machine, legalOrdinals);
+				if (newNode != ConcurrentMonteCarloTree.NONE) {
+					child = tree.addChild(node, jointMove, newNode);
+					if (child != ConcurrentMonteCarloTree.NONE) {
+						tree.addVirtualLoss(child);
+					}
+				}
+				machine.playout(nextState, scores, null);
+				break;
+			}
+			for (int i = 0; i < pathLength; i++) {
+				for (int roleId = 0; roleId < nbRoles; roleId++) {
+					tree.addScore(pathEdges[i * nbRoles + roleId], scores[roleId]);
+				}
+			}
+		}
+
+		// Selects the best move for each role from the UCT values, stores it in jointMove
+		// and counts the visit of the node and the selected edges right away
+		private void selectMoves(ConcurrentMonteCarloTree tree, int node) {
+			if ((pathLength + 1) * nbRoles > pathEdges.length) {
+				pathEdges = Arrays.copyOf(pathEdges, pathEdges.length * 2);
+			}
+			int sims = tree.getSimulations(node);
+			for(int roleId = 0; roleId < nbRoles; roleId++) {
+				int bestEdge = ConcurrentMonteCarloTree.NONE;
+				double bestVal = -1;
+				for(int edge = tree.getFirstEdge(node, roleId); edge < tree.getEndEdge(node, roleId); edge++) {
+					double curr = UCT(tree.getQ(edge), tree.getN(edge), sims);
+					if(bestVal < curr) {
+						bestEdge = edge;
+						bestVal = curr;
+					}
+				}
+				jointMove[roleId] = tree.getMove(bestEdge);
+				tree.addVirtualEdgeLoss(bestEdge);
+				pathEdges[pathLength * nbRoles + roleId] = bestEdge;
+			}
+			tree.addVirtualLoss(node);
+			pathLength++;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package org.ggp.base.player.gamer.statemachine;
+
+/**
+ * paranoid search: the other roles form a coalition against us, simultaneous moves are solved as matrix games
+ */
+public class ParanoidSearchGamer extends JointMoveSearchGamer {
+
+	public ParanoidSearchGamer() {
+		super(Mode.PARANOID);
+	}
+
+}
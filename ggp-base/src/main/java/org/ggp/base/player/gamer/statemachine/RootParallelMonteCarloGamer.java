@@ -0,0 +1,12 @@
+package org.ggp.base.player.gamer.statemachine;
+
+/**
+ * root parallel UCT: every thread searches its own tree
+ */
+public class RootParallelMonteCarloGamer extends ParallelMonteCarloGamer {
+
+	public RootParallelMonteCarloGamer() {
+		super(Mode.ROOT_PARALLEL);
+	}
+
+}
@@ -0,0 +1,14 @@
+package org.ggp.base.player.gamer.statemachine;
+
+/**
+ * implemented by the Monte Carlo gamers, so that the number of simulations they run
+ * (e.g., per second) can be compared
+ */
+public interface SimulationCounter {
+
+	/**
+	 * @return the number of simulations run since the start of the current match
+	 */
+	public long getNbSimulations();
+
+}
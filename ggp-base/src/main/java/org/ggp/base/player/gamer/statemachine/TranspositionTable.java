@@ -0,0 +1,182 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.Arrays;
+
+/**
+ * fixed-capacity hash table from 64 bit keys (e.g., Zobrist hashes of states) to values
+ *
+ * The table uses open addressing: a key can only be stored in one small bucket of consecutive slots.
+ * If that bucket is full, the replacement policy decides which entry (if any) is overwritten,
+ * so entries may get lost, but the table never grows.
+ *
+ * Keys are compared completely, so a lookup never returns the value of a different key.
+ * Values must not be null.
+ */
+public class TranspositionTable<V> {
+
+	public enum ReplacementPolicy {
+		/**
+		 * a new entry replaces an old one in a full bucket
+		 */
+		ALWAYS_REPLACE,
+		/**
+		 * a new entry replaces the old entry with the lowest depth in a full bucket,
+		 * unless its own depth is lower than that
+		 */
+		DEPTH_PREFERRED,
+		/**
+		 * buckets of two slots: one keeps the entry with the highest depth, the other one the most recent entry
+		 */
+		TWO_TIER
+	}
+
+	private static final int BUCKET_SIZE = 4;
+
+	private final ReplacementPolicy policy;
+	private final int bucketSize;
+	private final int bucketMask;
+	private final long[] keys;
+	private final int[] depths;
+	private final Object[] values;
+	private int size;
+
+	/**
+	 * @param capacity the minimal number of entries of the table (rounded up to a power of two)
+	 * @param policy
+	 */
+	public TranspositionTable(int capacity, ReplacementPolicy policy) {
+		this.policy = policy;
+		bucketSize = (policy == ReplacementPolicy.TWO_TIER ? 2 : BUCKET_SIZE);
+		int nbSlots = Integer.highestOneBit(Math.max(capacity, bucketSize) - 1) << 1;
+		bucketMask = (nbSlots - 1) & ~(bucketSize - 1);
+		keys = new long[nbSlots];
+		depths = new int[nbSlots];
+		values = new Object[nbSlots];
+		size = 0;
+	}
+
+	private int getBucket(long key) {
+		return (int)(key ^ (key >>> 32)) & bucketMask;
+	}
+
+	/**
+	 * @param key
+	 * @return the slot containing key or -1 if there is none
+	 */
+	private int find(long key) {
+		int bucket = getBucket(key);
+		for (int slot = bucket; slot < bucket + bucketSize; slot++) {
+			if (keys[slot] == key && values[slot] != null) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param key
+	 * @return the value stored for key or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = find(key);
+		return slot == -1 ? null : (V)values[slot];
+	}
+
+	/**
+	 * @param key
+	 * @return the depth stored for key or -1 if there is no entry for key
+	 */
+	public int getDepth(long key) {
+		int slot = find(key);
+		return slot == -1 ? -1 : depths[slot];
+	}
+
+	/**
+	 * stores value for key, replacing the previous value for key (if there is one)
+	 *
+	 * If the bucket of key is full, the replacement policy decides which entry is overwritten.
+	 * With DEPTH_PREFERRED, the entry may not be stored at all.
+	 * @param key
+	 * @param value
+	 * @param depth the depth of the search that computed value (or any other measure of importance of the entry)
+	 */
+	public void put(long key, V value, int depth) {
+		int slot = find(key);
+		if (slot == -1) {
+			slot = getReplacedSlot(key, depth);
+			if (slot == -1) {
+				return;
+			}
+			if (values[slot] == null) {
+				size++;
+			}
+		}
+		keys[slot] = key;
+		depths[slot] = depth;
+		values[slot] = value;
+	}
+
+	/**
+	 * @return the slot where a new entry for key should be stored or -1 if it should not be stored
+	 */
+	private int getReplacedSlot(long key, int depth) {
+		int bucket = getBucket(key);
+		switch (policy) {
+		case TWO_TIER:
+			if (values[bucket] == null) {
+				return bucket;
+			}
+			if (depth >= depths[bucket]) {
+				// the deepest entry so far becomes the most recent one
+				if (values[bucket + 1] == null) {
+					size++;
+				}
+				keys[bucket + 1] = keys[bucket];
+				depths[bucket + 1] = depths[bucket];
+				values[bucket + 1] = values[bucket];
+				return bucket;
+			}
+			return bucket + 1;
+		case DEPTH_PREFERRED:
+			int shallowest = bucket;
+			for (int slot = bucket; slot < bucket + bucketSize; slot++) {
+				if (values[slot] == null) {
+					return slot;
+				}
+				if (depths[slot] < depths[shallowest]) {
+					shallowest = slot;
+				}
+			}
+			return depth >= depths[shallowest] ? shallowest : -1;
+		case ALWAYS_REPLACE:
+		default:
+			for (int slot = bucket; slot < bucket + bucketSize; slot++) {
+				if (values[slot] == null) {
+					return slot;
+				}
+			}
+			// use bits of the key that did not determine the bucket to pick the victim
+			return bucket + (int)(key >>> 60) % bucketSize;
+		}
+	}
+
+	/**
+	 * removes all entries
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return the number of entries in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return keys.length;
+	}
+}
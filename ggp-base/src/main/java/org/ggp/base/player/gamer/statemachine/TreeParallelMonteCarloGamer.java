@@ -0,0 +1,12 @@
+package org.ggp.base.player.gamer.statemachine;
+
+/**
+ * tree parallel UCT: all threads search the same tree
+ */
+public class TreeParallelMonteCarloGamer extends ParallelMonteCarloGamer {
+
+	public TreeParallelMonteCarloGamer() {
+		super(Mode.TREE_PARALLEL);
+	}
+
+}
@@ -12,6 +12,12 @@ import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.ggp.base.util.Pair;
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
@@ -56,6 +62,7 @@ import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.propnet.architecture.components.Transition;
 import org.ggp.base.util.statemachine.Role;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -108,6 +115,50 @@ public class OptimizingPropNetFactory {
     }
 
     public static PropNet create(List<Gdl> description, boolean verbose) throws InterruptedException {
+        return create(description, verbose, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a PropNet for the game with the given description, grounding
+     * sentence forms that do not depend on each other concurrently on
+     * nbThreads threads. The resulting PropNet has the same components and
+     * links regardless of the number of threads.
+     *
+     * @param nbThreads the number of threads to use, 1 to ground all sentence
+     * forms sequentially
+     * @throws InterruptedException if the thread is interrupted during
+     * PropNet creation.
+     */
+    public static PropNet create(List<Gdl> description, boolean verbose, int nbThreads) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        List<Role> roles = Role.computeRoles(description);
+        Set<Component> componentSet = createComponents(description, verbose, nbThreads);
+        if(verbose)
+            System.out.println("Initializing propnet object...");
+        PropNet propnet = new PropNet(roles, componentSet);
+        if(verbose) {
+            System.out.println("Done setting up propnet; took " + (System.currentTimeMillis() - startTime) + "ms, has " + componentSet.size() + " components and " + propnet.getNumLinks() + " links");
+            System.out.println("Propnet has " +propnet.getNumAnds()+" ands; "+propnet.getNumOrs()+" ors; "+propnet.getNumNots()+" nots");
+        }
+        //System.out.println(propnet);
+        return propnet;
+    }
+
+    /**
+     * Creates the components of a PropNet for the game with the given
+     * description, without building the PropNet object and its indices.
+     * This is meant for callers that turn the components into a
+     * representation of their own right away.
+     *
+     * The initial state is connected to a proposition named INIT, base
+     * propositions are the outputs of transitions and input propositions
+     * are the "does" propositions, just like in the PropNet.
+     *
+     * @see #create(List, boolean, int)
+     * @throws InterruptedException if the thread is interrupted during
+     * PropNet creation.
+     */
+    public static Set<Component> createComponents(List<Gdl> description, boolean verbose, int nbThreads) throws InterruptedException {
         System.out.println("Building propnet...");
 
         long startTime = System.currentTimeMillis();
@@ -158,60 +209,88 @@ public class OptimizingPropNetFactory {
         if(verbose)
             System.out.println("done");
 
-        List<Role> roles = Role.computeRoles(description);
         Map<GdlSentence, Component> components = new HashMap<GdlSentence, Component>();
         Map<GdlSentence, Component> negations = new HashMap<GdlSentence, Component>();
         Constant trueComponent = new Constant(true);
         Constant falseComponent = new Constant(false);
         Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
         Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-        for(SentenceForm form : topologicalOrdering) {
-            ConcurrencyUtils.checkForInterruption();
+        ForkJoinPool pool = (nbThreads > 1 ? new ForkJoinPool(nbThreads) : null);
+        try {
+            int batchStart = 0;
+            while(batchStart < topologicalOrdering.size()) {
+                //Sentence forms in the same batch do not depend on each other, so the
+                //non-constant ones can be grounded concurrently. They are still added
+                //to the propnet one after the other in topological order.
+                int batchEnd = getEndOfBatch(topologicalOrdering, batchStart, dependencyGraph, constantChecker, usingBase, usingInput);
+                List<SentenceForm> batch = topologicalOrdering.subList(batchStart, batchEnd);
+                batchStart = batchEnd;
+                Map<SentenceForm, FormGrounding> groundings = Collections.emptyMap();
+                if(pool != null) {
+                    groundings = groundConcurrently(batch, pool, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues);
+                }
+                for(SentenceForm form : batch) {
+                    ConcurrencyUtils.checkForInterruption();
 
-            if(verbose) {
-                System.out.print("Adding sentence form " + form);
-                System.out.flush();
-            }
-            if(constantChecker.isConstantForm(form)) {
-                if(verbose)
-                    System.out.println(" (constant)");
-                //Only add it if it's important
-                if(form.getName().equals(GdlPool.LEGAL)
-                        || form.getName().equals(GdlPool.GOAL)
-                        || form.getName().equals(GdlPool.INIT)
-                        || form.getName().equals(GdlPool.NEXT)
-                        || form.getName().equals(GdlPool.TERMINAL)) {
-                    //Add it
-                    for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
-                        Proposition trueProp = new Proposition(trueSentence);
-                        trueProp.addInput(trueComponent);
-                        trueComponent.addOutput(trueProp);
-                        components.put(trueSentence, trueComponent);
+                    if(verbose) {
+                        System.out.print("Adding sentence form " + form);
+                        System.out.flush();
                     }
-                }
+                    if(constantChecker.isConstantForm(form)) {
+                        if(verbose)
+                            System.out.println(" (constant)");
+                        //Only add it if it's important
+                        if(form.getName().equals(GdlPool.LEGAL)
+                                || form.getName().equals(GdlPool.GOAL)
+                                || form.getName().equals(GdlPool.INIT)
+                                || form.getName().equals(GdlPool.NEXT)
+                                || form.getName().equals(GdlPool.TERMINAL)) {
+                            //Add it
+                            for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
+                                Proposition trueProp = new Proposition(trueSentence);
+                                trueProp.addInput(trueComponent);
+                                trueComponent.addOutput(trueProp);
+                                components.put(trueSentence, trueComponent);
+                            }
+                        }
 
-                if(verbose)
-                    System.out.println("Checking whether " + form + " is a functional constant...");
-                addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
-                addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+                        if(verbose)
+                            System.out.println("Checking whether " + form + " is a functional constant...");
+                        addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
+                        addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
 
-                continue;
+                        continue;
+                    }
+                    if(verbose)
+                        System.out.println();
+                    //TODO: Adjust "recursive forms" appropriately
+                    //Add a temporary sentence form thingy? ...
+                    Map<GdlSentence, Component> temporaryComponents;
+                    Map<GdlSentence, Component> temporaryNegations;
+                    FormGrounding grounding = groundings.get(form);
+                    if(grounding != null) {
+                        //Already grounded together with the rest of the batch
+                        grounding.mergeInto(components, negations);
+                        temporaryComponents = grounding.temporaryComponents;
+                        temporaryNegations = grounding.temporaryNegations;
+                    } else {
+                        temporaryComponents = new HashMap<GdlSentence, Component>();
+                        temporaryNegations = new HashMap<GdlSentence, Component>();
+                        addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues, Linker.DIRECT, null);
+                    }
+                    //TODO: Pass these over groups of multiple sentence forms
+                    if(verbose && !temporaryComponents.isEmpty())
+                        System.out.println("Processing temporary components...");
+                    processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
+                    addFormToCompletedValues(form, completedSentenceFormValues, components);
+                    //if(verbose)
+                    //TODO: Add this, but with the correct total number of components (not just Propositions)
+                    //System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+                }
             }
-            if(verbose)
-                System.out.println();
-            //TODO: Adjust "recursive forms" appropriately
-            //Add a temporary sentence form thingy? ...
-            Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-            Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-            addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
-            //TODO: Pass these over groups of multiple sentence forms
-            if(verbose && !temporaryComponents.isEmpty())
-                System.out.println("Processing temporary components...");
-            processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-            addFormToCompletedValues(form, completedSentenceFormValues, components);
-            //if(verbose)
-            //TODO: Add this, but with the correct total number of components (not just Propositions)
-            //System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+        } finally {
+            if(pool != null)
+                pool.shutdownNow();
         }
 
         // here we have all components, but they are not all correctly connected yet
@@ -237,20 +316,167 @@ public class OptimizingPropNetFactory {
         negations = null;
         completeComponentSet(componentSet);
         ConcurrencyUtils.checkForInterruption();
-        if(verbose)
-            System.out.println("Initializing propnet object...");
         //Make it look the same as the PropNetFactory results, until we decide
         //how we want it to look
         normalizePropositions(componentSet);
-        PropNet propnet = new PropNet(roles, componentSet);
-        if(verbose) {
-            System.out.println("Done setting up propnet; took " + (System.currentTimeMillis() - startTime) + "ms, has " + componentSet.size() + " components and " + propnet.getNumLinks() + " links");
-            System.out.println("Propnet has " +propnet.getNumAnds()+" ands; "+propnet.getNumOrs()+" ors; "+propnet.getNumNots()+" nots");
+        return componentSet;
+    }
+
+
+    /**
+     * Grounds the non-constant sentence forms of the batch concurrently,
+     * unless there are fewer than two of them. The components of each form
+     * are kept apart from the shared maps until they are merged in (see
+     * FormGrounding).
+     */
+    private static Map<SentenceForm, FormGrounding> groundConcurrently(List<SentenceForm> batch, ForkJoinPool pool,
+            final SentenceDomainModel model,
+            final Map<GdlSentence, Component> components,
+            final Map<GdlSentence, Component> negations,
+            final Constant trueComponent, final Constant falseComponent,
+            final boolean usingBase, final boolean usingInput,
+            final Map<SentenceForm, FunctionInfo> functionInfoMap, final ConstantChecker constantChecker,
+            final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
+        List<SentenceForm> forms = new ArrayList<SentenceForm>();
+        for(SentenceForm form : batch) {
+            if(!constantChecker.isConstantForm(form))
+                forms.add(form);
+        }
+        if(forms.size() < 2)
+            return Collections.emptyMap();
+
+        final ConcurrentMap<Component, Not> batchNegations = new ConcurrentHashMap<Component, Not>();
+        List<ForkJoinTask<FormGrounding>> tasks = new ArrayList<ForkJoinTask<FormGrounding>>(forms.size());
+        for(final SentenceForm form : forms) {
+            tasks.add(pool.submit(new Callable<FormGrounding>() {
+                @Override
+                public FormGrounding call() throws InterruptedException {
+                    FormGrounding grounding = new FormGrounding(components, negations);
+                    addSentenceForm(form, model, grounding.components, grounding.negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), grounding.temporaryComponents, grounding.temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues, grounding.linker, batchNegations);
+                    return grounding;
+                }
+            }));
+        }
+        Map<SentenceForm, FormGrounding> groundings = new HashMap<SentenceForm, FormGrounding>();
+        for(int i = 0; i < forms.size(); i++) {
+            try {
+                groundings.put(forms.get(i), tasks.get(i).get());
+            } catch(ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        return groundings;
+    }
+
+    /**
+     * The components of a sentence form that was grounded concurrently with
+     * other sentence forms. New components are put into maps of their own that
+     * fall back to the shared maps for lookups, and changes to the outputs of
+     * components that existed before are recorded by the linker instead of being
+     * applied right away. That way the shared components stay untouched
+     * until the grounding is merged into them.
+     */
+    private static class FormGrounding {
+        private final Map<GdlSentence, Component> components;
+        private final Map<GdlSentence, Component> negations;
+        private final Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+        private final Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+        private final Linker linker = new Linker();
+
+        public FormGrounding(Map<GdlSentence, Component> sharedComponents, Map<GdlSentence, Component> sharedNegations) {
+            this.components = new OverlayMap<GdlSentence, Component>(sharedComponents);
+            this.negations = new OverlayMap<GdlSentence, Component>(sharedNegations);
+        }
+
+        public void mergeInto(Map<GdlSentence, Component> sharedComponents, Map<GdlSentence, Component> sharedNegations) {
+            sharedComponents.putAll(components);
+            sharedNegations.putAll(negations);
+            linker.applyDeferred();
+        }
+    }
+
+    /**
+     * A map that contains its own entries, but also finds those of an
+     * underlying map that it does not change.
+     */
+    private static class OverlayMap<K, V> extends HashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+        private final Map<K, V> underlying;
+
+        public OverlayMap(Map<K, V> underlying) {
+            this.underlying = underlying;
+        }
+
+        @Override
+        public V get(Object key) {
+            V value = super.get(key);
+            if(value == null)
+                value = underlying.get(key);
+            return value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return super.containsKey(key) || underlying.containsKey(key);
         }
-        //System.out.println(propnet);
-        return propnet;
     }
 
+    /**
+     * Connects components while sentence forms are added. Inputs are always
+     * added to components that were just created, so only the outputs of the
+     * source components need to be deferred when grounding concurrently.
+     */
+    private static class Linker {
+        public static final Linker DIRECT = new Linker(false);
+
+        private final boolean deferred;
+        private final List<Component> sources = new ArrayList<Component>();
+        private final List<Component> targets = new ArrayList<Component>();
+        private final List<Boolean> added = new ArrayList<Boolean>();
+
+        public Linker() {
+            this(true);
+        }
+
+        private Linker(boolean deferred) {
+            this.deferred = deferred;
+        }
+
+        public void link(Component source, Component target) {
+            target.addInput(source);
+            if(deferred)
+                record(source, target, true);
+            else
+                source.addOutput(target);
+        }
+
+        public void unlink(Component source, Component target) {
+            target.removeInput(source);
+            if(deferred)
+                record(source, target, false);
+            else
+                source.removeOutput(target);
+        }
+
+        private void record(Component source, Component target, boolean add) {
+            sources.add(source);
+            targets.add(target);
+            added.add(add);
+        }
+
+        public void applyDeferred() {
+            for(int i = 0; i < sources.size(); i++) {
+                if(added.get(i))
+                    sources.get(i).addOutput(targets.get(i));
+                else
+                    sources.get(i).removeOutput(targets.get(i));
+            }
+            sources.clear();
+            targets.clear();
+            added.clear();
+        }
+    }
 
     private static void removeUselessBasePropositions(
             Map<GdlSentence, Component> components, Map<GdlSentence, Component> negations, Constant trueComponent,
@@ -725,7 +951,7 @@ public class OptimizingPropNetFactory {
                         List<Component> orInputs = new ArrayList<Component>(2);
                         orInputs.add(input);
                         orInputs.add(initProposition);
-                        orify(orInputs, transition, falseComponent);
+                        orify(orInputs, transition, falseComponent, Linker.DIRECT);
                     }
                 }
             }
@@ -736,7 +962,7 @@ public class OptimizingPropNetFactory {
      * Adds an or gate connecting the inputs to produce the output.
      * Handles special optimization cases like a true/false input.
      */
-    private static void orify(Collection<Component> inputs, Component output, Constant falseProp) {
+    private static void orify(Collection<Component> inputs, Component output, Constant falseProp, Linker linker) {
         //TODO: Look for already-existing ors with the same inputs?
         //Or can this be handled with a GDL transformation?
 
@@ -744,8 +970,7 @@ public class OptimizingPropNetFactory {
         for(Component in : inputs) {
             if(in instanceof Constant && in.getValue()) {
                 //True constant: connect that to the component, done
-                in.addOutput(output);
-                output.addInput(in);
+                linker.link(in, output);
                 return;
             }
         }
@@ -758,28 +983,23 @@ public class OptimizingPropNetFactory {
         Or or = new Or();
         for(Component in : inputs) {
             if(!(in instanceof Constant)) {
-                in.addOutput(or);
-                or.addInput(in);
+                linker.link(in, or);
             }
         }
         //What if they're all false? (Or inputs is empty?) Then no inputs at this point...
         if(or.getInputs().isEmpty()) {
             //Hook up to "false"
-            falseProp.addOutput(output);
-            output.addInput(falseProp);
+            linker.link(falseProp, output);
             return;
         }
         //If there's just one, on the other hand, don't use the or gate
         if(or.getInputs().size() == 1) {
             Component in = or.getSingleInput();
-            in.removeOutput(or);
-            or.removeInput(in);
-            in.addOutput(output);
-            output.addInput(in);
+            linker.unlink(in, or);
+            linker.link(in, output);
             return;
         }
-        or.addOutput(output);
-        output.addInput(or);
+        linker.link(or, output);
     }
 
     //TODO: This code is currently used by multiple classes, so perhaps it should be
@@ -830,6 +1050,42 @@ public class OptimizingPropNetFactory {
         return ordering;
     }
 
+    /**
+     * Returns the end (exclusive) of the batch of sentence forms that starts
+     * at the given index of the topological ordering. No form in a batch
+     * depends on another form of the same batch. A recursive form always ends
+     * a batch, because processing its temporary components may change
+     * components that the following forms are built from.
+     */
+    private static int getEndOfBatch(List<SentenceForm> ordering, int start,
+            Multimap<SentenceForm, SentenceForm> dependencyGraph, ConstantChecker constantChecker,
+            boolean usingBase, boolean usingInput) {
+        Set<SentenceForm> batch = new HashSet<SentenceForm>();
+        int end = start;
+        while(end < ordering.size()) {
+            SentenceForm form = ordering.get(end);
+            for(SentenceForm dependency : dependencyGraph.get(form)) {
+                if(!dependency.equals(form) && batch.contains(dependency)) {
+                    return end;
+                }
+            }
+            if(usingBase && (form.getName().equals(GdlPool.TRUE) || form.getName().equals(GdlPool.NEXT) || form.getName().equals(GdlPool.INIT))
+                    && batch.contains(form.withName(GdlPool.BASE))) {
+                return end;
+            }
+            if(usingInput && (form.getName().equals(GdlPool.DOES) || form.getName().equals(GdlPool.LEGAL))
+                    && batch.contains(form.withName(GdlPool.INPUT))) {
+                return end;
+            }
+            batch.add(form);
+            end++;
+            if(!constantChecker.isConstantForm(form) && dependencyGraph.get(form).contains(form)) {
+                return end;
+            }
+        }
+        return end;
+    }
+
     private static void addSentenceForm(SentenceForm form, SentenceDomainModel model,
             Map<GdlSentence, Component> components,
             Map<GdlSentence, Component> negations,
@@ -838,7 +1094,8 @@ public class OptimizingPropNetFactory {
             Set<SentenceForm> recursionForms,
             Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
             Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
-            Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
+            Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+            Linker linker, ConcurrentMap<Component, Not> batchNegations) throws InterruptedException {
         //This is the meat of it (along with the entire Assignments class).
         //We need to enumerate the possible propositions in the sentence form...
         //We also need to hook up the sentence form to the inputs that can make it true.
@@ -856,8 +1113,7 @@ public class OptimizingPropNetFactory {
                     || alwaysTrueSentence.getName().equals(GdlPool.GOAL)) {
                 Proposition prop = new Proposition(alwaysTrueSentence);
                 //Attach to true
-                trueComponent.addOutput(prop);
-                prop.addInput(trueComponent);
+                linker.link(trueComponent, prop);
                 //Still want the same components;
                 //we just don't want this to be anonymized
             }
@@ -995,8 +1251,7 @@ public class OptimizingPropNetFactory {
                             //So we add the "not" gate and set it in temporaryNegations
                             Not not = new Not();
                             //Add positive as input
-                            not.addInput(positive);
-                            positive.addOutput(not);
+                            linker.link(positive, not);
                             temporaryNegations.put(transformed, not);
                             conj = not;
                         }
@@ -1014,7 +1269,7 @@ public class OptimizingPropNetFactory {
 
                             //Check if we're sharing a component with another sentence with a negation
                             //(i.e. look for "nots" in our outputs and use those instead)
-                            Not existingNotOutput = getNotOutput(positive);
+                            Not existingNotOutput = getNotOutput(positive, batchNegations);
                             if(existingNotOutput != null) {
                                 componentsToConnect.add(existingNotOutput);
                                 negations.put(transformed, existingNotOutput);
@@ -1022,8 +1277,16 @@ public class OptimizingPropNetFactory {
                             }
 
                             Not not = new Not();
-                            not.addInput(positive);
-                            positive.addOutput(not);
+                            if(batchNegations != null) {
+                                //Another sentence form of the batch may be adding a "not" for the same component
+                                existingNotOutput = batchNegations.putIfAbsent(positive, not);
+                                if(existingNotOutput != null) {
+                                    componentsToConnect.add(existingNotOutput);
+                                    negations.put(transformed, existingNotOutput);
+                                    continue; //to the next conjunct
+                                }
+                            }
+                            linker.link(positive, not);
                             negations.put(transformed, not);
                             conj = not;
                         }
@@ -1038,7 +1301,7 @@ public class OptimizingPropNetFactory {
                     //Connect all the components
                     Proposition andComponent = new Proposition(TEMP);
 
-                    andify(componentsToConnect, andComponent, trueComponent);
+                    andify(componentsToConnect, andComponent, trueComponent, linker);
                     if(!isThisConstant(andComponent, falseComponent)) {
                         if(!inputsToOr.containsKey(sentence))
                             inputsToOr.put(sentence, new HashSet<Component>());
@@ -1065,13 +1328,12 @@ public class OptimizingPropNetFactory {
                     realInputs.add(input);
                 } else {
                     realInputs.add(input.getSingleInput());
-                    input.getSingleInput().removeOutput(input);
-                    input.removeAllInputs();
+                    linker.unlink(input.getSingleInput(), input);
                 }
             }
 
             Proposition prop = new Proposition(sentence);
-            orify(realInputs, prop, falseComponent);
+            orify(realInputs, prop, falseComponent, linker);
             components.put(sentence, prop);
         }
 
@@ -1115,12 +1377,15 @@ public class OptimizingPropNetFactory {
     }
 
 
-    private static Not getNotOutput(Component positive) {
+    private static Not getNotOutput(Component positive, ConcurrentMap<Component, Not> batchNegations) {
         for(Component c : positive.getOutputs()) {
             if(c instanceof Not) {
                 return (Not) c;
             }
         }
+        if(batchNegations != null) {
+            return batchNegations.get(positive);
+        }
         return null;
     }
 
@@ -1130,13 +1395,12 @@ public class OptimizingPropNetFactory {
     }
 
 
-    private static void andify(List<Component> inputs, Component output, Constant trueProp) {
+    private static void andify(List<Component> inputs, Component output, Constant trueProp, Linker linker) {
         //Special case: If the inputs include false, connect false to thisComponent
         for(Component c : inputs) {
             if(c instanceof Constant && !c.getValue()) {
                 //Connect false (c) to the output
-                output.addInput(c);
-                c.addOutput(output);
+                linker.link(c, output);
                 return;
             }
         }
@@ -1145,28 +1409,23 @@ public class OptimizingPropNetFactory {
         And and = new And();
         for(Component in : inputs) {
             if(!(in instanceof Constant)) {
-                in.addOutput(and);
-                and.addInput(in);
+                linker.link(in, and);
             }
         }
         //What if they're all true? (Or inputs is empty?) Then no inputs at this point...
         if(and.getInputs().isEmpty()) {
             //Hook up to "true"
-            trueProp.addOutput(output);
-            output.addInput(trueProp);
+            linker.link(trueProp, output);
             return;
         }
         //If there's just one, on the other hand, don't use the and gate
         if(and.getInputs().size() == 1) {
             Component in = and.getSingleInput();
-            in.removeOutput(and);
-            and.removeInput(in);
-            in.addOutput(output);
-            output.addInput(in);
+            linker.unlink(in, and);
+            linker.link(in, output);
             return;
         }
-        and.addOutput(output);
-        output.addInput(and);
+        linker.link(and, output);
     }
 
     /**
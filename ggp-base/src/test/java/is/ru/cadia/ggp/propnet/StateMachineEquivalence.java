@@ -0,0 +1,52 @@
+package is.ru.cadia.ggp.propnet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.junit.Assert;
+
+/**
+ * Compares two state machines for the same game along random playouts: in every
+ * state both machines have to agree on terminal status, goals, legal moves and
+ * the next state for a random joint move.
+ */
+public final class StateMachineEquivalence extends Assert {
+    private StateMachineEquivalence() {
+    }
+
+    public static void assertEquivalent(StateMachine expected, StateMachine actual, int nbPlayouts, Random random) throws Exception {
+        List<Role> roles = expected.getRoles();
+        assertEquals(roles, actual.getRoles());
+        assertEquals(expected.getInitialState(), actual.getInitialState());
+        for (int playout = 0; playout < nbPlayouts; playout++) {
+            MachineState expectedState = expected.getInitialState();
+            MachineState actualState = actual.getInitialState();
+            int depth = 0;
+            while (true) {
+                String where = "playout " + playout + ", depth " + depth + ", state " + expectedState;
+                assertEquals(where, expectedState, actualState);
+                boolean terminal = expected.isTerminal(expectedState);
+                assertEquals(where, terminal, actual.isTerminal(actualState));
+                if (terminal) {
+                    assertEquals(where, expected.getGoals(expectedState), actual.getGoals(actualState));
+                    break;
+                }
+                List<Move> jointMove = new ArrayList<Move>(roles.size());
+                for (Role role : roles) {
+                    List<Move> legals = expected.getLegalMoves(expectedState, role);
+                    assertEquals(where + ", role " + role, new HashSet<Move>(legals), new HashSet<Move>(actual.getLegalMoves(actualState, role)));
+                    jointMove.add(legals.get(random.nextInt(legals.size())));
+                }
+                expectedState = expected.getNextState(expectedState, jointMove);
+                actualState = actual.getNextState(actualState, jointMove);
+                depth++;
+            }
+        }
+    }
+}
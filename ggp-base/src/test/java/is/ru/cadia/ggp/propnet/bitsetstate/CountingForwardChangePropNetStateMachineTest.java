@@ -0,0 +1,47 @@
+package is.ru.cadia.ggp.propnet.bitsetstate;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import is.ru.cadia.ggp.propnet.StateMachineEquivalence;
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+
+/**
+ * Unit tests for the CountingForwardChangePropNetStateMachine, which has to compute
+ * the same legal moves, next states, terminal status and goals as the prover along
+ * random playouts.
+ */
+public class CountingForwardChangePropNetStateMachineTest extends Assert {
+
+    private void runComparison(String gameKey) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        ProverStateMachine prover = new ProverStateMachine();
+        prover.initialize(rules);
+        CountingForwardChangePropNetStateMachine counting = new CountingForwardChangePropNetStateMachine(new GGPBasePropNetStructureFactory());
+        counting.initialize(rules);
+        StateMachineEquivalence.assertEquivalent(prover, counting, 50, new Random(42));
+    }
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        runComparison("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        runComparison("connectFour");
+    }
+
+    @Test
+    public void testReachability() throws Exception {
+        // the recursive reach relation makes the propnet cyclic
+        assertTrue(new GGPBasePropNetStructureFactory().create(new TestGameRepository().getGame("reachability").getRules()).isCylic());
+        runComparison("reachability");
+    }
+}
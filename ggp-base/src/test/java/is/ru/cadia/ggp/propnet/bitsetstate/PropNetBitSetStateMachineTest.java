@@ -0,0 +1,142 @@
+package is.ru.cadia.ggp.propnet.bitsetstate;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.junit.Assert;
+import org.junit.Test;
+
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+
+/**
+ * Unit tests for resetTo and differential playouts of the PropNetBitSetStateMachines: the
+ * reused state has to be equal to a copy of the start state and seeded playouts have to end
+ * like playouts from a copy.
+ */
+public class PropNetBitSetStateMachineTest extends Assert {
+
+    private interface MachineFactory {
+        PropNetBitSetStateMachine create(PropNetStructure structure);
+    }
+
+    private static final MachineFactory RECURSIVE = new MachineFactory() {
+        @Override
+        public PropNetBitSetStateMachine create(PropNetStructure structure) {
+            return new RecursiveForwardChangePropNetStateMachine(structure);
+        }
+    };
+
+    private static final MachineFactory FORWARD = new MachineFactory() {
+        @Override
+        public PropNetBitSetStateMachine create(PropNetStructure structure) {
+            return new ForwardChangePropNetStateMachine(structure);
+        }
+    };
+
+    private static final MachineFactory BACKWARD = new MachineFactory() {
+        @Override
+        public PropNetBitSetStateMachine create(PropNetStructure structure) {
+            return new BackwardPropNetStateMachine(structure);
+        }
+    };
+
+    private static final MachineFactory COUNTING = new MachineFactory() {
+        @Override
+        public PropNetBitSetStateMachine create(PropNetStructure structure) {
+            return new CountingForwardChangePropNetStateMachine(structure);
+        }
+    };
+
+    /**
+     * plays random games with a copying machine and checks in every state s that resetTo(s) of a second
+     * machine gives a state equal to s.clone() and that seeded playouts from s end the same way
+     * with and without differential playouts
+     * @param eager whether the machine keeps the values of all components up-to-date, otherwise only
+     * the values of base propositions and inputs are compared
+     */
+    private void runComparison(String gameKey, MachineFactory factory, boolean eager) throws Exception {
+        PropNetStructure structure = new GGPBasePropNetStructureFactory().create(new TestGameRepository().getGame(gameKey).getRules());
+        PropNetBitSetStateMachine copying = factory.create(structure);
+        PropNetBitSetStateMachine differential = factory.create(structure);
+        differential.setDifferentialPlayouts(true);
+        BitSet basesAndInputs = new BitSet();
+        basesAndInputs.set(0, structure.getNbBasePropositions());
+        int nbRoles = structure.getRoles().length;
+        for (int roleId = 0; roleId < nbRoles; roleId++) {
+            for (PropNetMove move : structure.getPossibleMoves(roleId)) {
+                basesAndInputs.set(move.getInputComponent().id);
+            }
+        }
+        int[] expectedGoals = new int[nbRoles];
+        int[] goals = new int[nbRoles];
+        int[] expectedDepth = new int[1];
+        int[] depth = new int[1];
+        Random random = new Random(42);
+        for (int game = 0; game < 20; game++) {
+            InternalBitSetState state = copying.getInternalInitialState();
+            while (true) {
+                InternalBitSetState expected = state.clone();
+                InternalBitSetState reused = differential.resetTo(state);
+                assertEquals(state, expected);
+                assertEquals(expected.getZobristHash(), reused.getZobristHash());
+                if (eager) {
+                    assertEquals(expected, reused);
+                } else {
+                    BitSet expectedBits = (BitSet)expected.clone();
+                    expectedBits.and(basesAndInputs);
+                    BitSet bits = (BitSet)reused.clone();
+                    bits.and(basesAndInputs);
+                    assertEquals(expectedBits, bits);
+                }
+                if (expected instanceof CountingBitSetState) {
+                    assertArrayEquals(((CountingBitSetState)expected).nbTrueInputs, ((CountingBitSetState)reused).nbTrueInputs);
+                }
+                boolean terminal = copying.isTerminal(expected);
+                assertEquals(terminal, differential.isTerminal(reused));
+                if (terminal) {
+                    break;
+                }
+                for (int roleId = 0; roleId < nbRoles; roleId++) {
+                    assertEquals(copying.getLegalMoves(expected, roleId), differential.getLegalMoves(reused, roleId));
+                }
+                long seed = random.nextLong();
+                copying.setRandomSeed(seed);
+                copying.playout(state, expectedGoals, expectedDepth);
+                differential.setRandomSeed(seed);
+                differential.playout(state, goals, depth);
+                assertArrayEquals(expectedGoals, goals);
+                assertEquals(expectedDepth[0], depth[0]);
+                copying.setRandomSeed(random.nextLong());
+                state = copying.getNextState(state, copying.getRandomJointMove(state), true);
+            }
+        }
+    }
+
+    @Test
+    public void testRecursiveForwardChange() throws Exception {
+        runComparison("ticTacToe", RECURSIVE, true);
+        runComparison("connectFour", RECURSIVE, true);
+    }
+
+    @Test
+    public void testForwardChange() throws Exception {
+        runComparison("ticTacToe", FORWARD, false);
+        runComparison("connectFour", FORWARD, false);
+    }
+
+    @Test
+    public void testBackward() throws Exception {
+        runComparison("ticTacToe", BACKWARD, false);
+        runComparison("connectFour", BACKWARD, false);
+    }
+
+    @Test
+    public void testCountingForwardChange() throws Exception {
+        runComparison("ticTacToe", COUNTING, true);
+        runComparison("connectFour", COUNTING, true);
+        runComparison("reachability", COUNTING, true);
+    }
+}
@@ -0,0 +1,40 @@
+package is.ru.cadia.ggp.propnet.compiled;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import is.ru.cadia.ggp.propnet.StateMachineEquivalence;
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+
+/**
+ * Unit tests for the CompiledPropNetStateMachine, which has to compute the
+ * same legal moves, next states, terminal status and goals as the interpreted
+ * propnet state machines.
+ */
+public class CompiledPropNetStateMachineTest extends Assert {
+
+    private void runComparison(String gameKey) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        PropNetStructure structure = new GGPBasePropNetStructureFactory().create(rules);
+        RecursiveForwardChangePropNetStateMachine interpreted = new RecursiveForwardChangePropNetStateMachine(structure);
+        CompiledPropNetStateMachine compiled = new CompiledPropNetStateMachine(structure, PropNetCompiler.compile(structure));
+        StateMachineEquivalence.assertEquivalent(interpreted, compiled, 100, new Random(42));
+    }
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        runComparison("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        runComparison("connectFour");
+    }
+}
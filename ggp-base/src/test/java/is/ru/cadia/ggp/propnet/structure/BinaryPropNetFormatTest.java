@@ -0,0 +1,96 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import is.ru.cadia.ggp.propnet.PropNetMove;
+import is.ru.cadia.ggp.propnet.StateMachineEquivalence;
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.structure.components.BaseProposition;
+import is.ru.cadia.ggp.propnet.structure.components.StaticComponent;
+
+/**
+ * Unit tests for BinaryPropNetFormat: a structure that is written to a file
+ * and read back must be the same as the original one.
+ */
+public class BinaryPropNetFormatTest extends Assert {
+
+    private void runRoundTrip(String gameKey) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        PropNetStructure original = new GGPBasePropNetStructureFactory().create(rules);
+        File file = File.createTempFile(gameKey, ".propnet");
+        PropNetStructure copy;
+        try {
+            BinaryPropNetFormat.write(original, file);
+            assertTrue(BinaryPropNetFormat.isBinaryPropNetFile(file));
+            copy = BinaryPropNetFormat.read(file);
+        } finally {
+            file.delete();
+        }
+
+        assertEquals(original.getNbComponents(), copy.getNbComponents());
+        assertEquals(original.isCylic(), copy.isCylic());
+        for (int id = 0; id < original.getNbComponents(); id++) {
+            StaticComponent c = original.getComponent(id);
+            StaticComponent d = copy.getComponent(id);
+            assertEquals(c.id, d.id);
+            assertEquals(c.type, d.type);
+            assertEquals(c.isCyclic, d.isCyclic);
+            assertArrayEquals(c.inputs, d.inputs);
+            assertArrayEquals(c.outputs, d.outputs);
+        }
+        assertArrayEquals(original.getComponentTypes(), copy.getComponentTypes());
+        assertArrayEquals(original.getInputOffsets(), copy.getInputOffsets());
+        assertArrayEquals(original.getInputSources(), copy.getInputSources());
+        assertArrayEquals(original.getOutputOffsets(), copy.getOutputOffsets());
+        assertArrayEquals(original.getOutputTargets(), copy.getOutputTargets());
+        assertEquals(original.getCyclicComponents(), copy.getCyclicComponents());
+
+        assertEquals(original.getNbBasePropositions(), copy.getNbBasePropositions());
+        for (int id = 0; id < original.getNbBasePropositions(); id++) {
+            BaseProposition p = original.getBasePropositions()[id];
+            BaseProposition q = copy.getBasePropositions()[id];
+            assertArrayEquals(p.sentences, q.sentences);
+            assertEquals(p.initialValue, q.initialValue);
+            assertEquals(p.nextComponent.id, q.nextComponent.id);
+            assertSame(q, copy.getBaseProposition(p.sentences[0]));
+        }
+
+        assertArrayEquals(original.getRoles(), copy.getRoles());
+        for (int rid = 0; rid < original.getRoles().length; rid++) {
+            PropNetMove[] moves = original.getPossibleMoves(rid);
+            PropNetMove[] copiedMoves = copy.getPossibleMoves(rid);
+            assertEquals(moves.length, copiedMoves.length);
+            for (int i = 0; i < moves.length; i++) {
+                assertEquals(moves[i].getContents(), copiedMoves[i].getContents());
+                assertEquals(moves[i].getInputComponent().id, copiedMoves[i].getInputComponent().id);
+                assertEquals(moves[i].getLegalComponent().id, copiedMoves[i].getLegalComponent().id);
+            }
+            assertArrayEquals(original.getGoalValues(rid), copy.getGoalValues(rid));
+            assertEquals(original.getGoalPropositions(rid).length, copy.getGoalPropositions(rid).length);
+            for (int i = 0; i < original.getGoalPropositions(rid).length; i++) {
+                assertEquals(original.getGoalPropositions(rid)[i].id, copy.getGoalPropositions(rid)[i].id);
+            }
+        }
+        assertEquals(original.getTerminalProposition().id, copy.getTerminalProposition().id);
+
+        StateMachineEquivalence.assertEquivalent(new RecursiveForwardChangePropNetStateMachine(original),
+                new RecursiveForwardChangePropNetStateMachine(copy), 20, new Random(42));
+    }
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        runRoundTrip("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        runRoundTrip("connectFour");
+    }
+}
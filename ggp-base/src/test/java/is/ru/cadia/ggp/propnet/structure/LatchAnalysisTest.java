@@ -0,0 +1,101 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import java.util.BitSet;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.junit.Assert;
+import org.junit.Test;
+
+import is.ru.cadia.ggp.propnet.bitsetstate.InternalBitSetState;
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+
+/**
+ * Unit tests for LatchAnalysis: the latches of the latches game have to be found and
+ * whenever getFixedGoals decides the goals of a state, every playout from that state
+ * has to end with these goals.
+ */
+public class LatchAnalysisTest extends Assert {
+
+    private static PropNetStructure create(String gameKey) throws Exception {
+        return new GGPBasePropNetStructureFactory().create(new TestGameRepository().getGame(gameKey).getRules());
+    }
+
+    private static int getId(PropNetStructure structure, String sentence) throws Exception {
+        return structure.getBaseProposition((GdlSentence)GdlFactory.create(sentence)).id;
+    }
+
+    @Test
+    public void testLatches() throws Exception {
+        PropNetStructure structure = create("latches");
+        LatchAnalysis analysis = structure.getLatchAnalysis();
+        assertNotNull(analysis);
+        assertTrue(analysis.canDecideGoals());
+        BitSet positive = analysis.getPositiveLatches();
+        BitSet negative = analysis.getNegativeLatches();
+        for (int x = 1; x <= 5; x++) {
+            int id = getId(structure, "( true ( marked " + x + " ) )");
+            assertTrue(positive.get(id));
+            assertFalse(negative.get(id));
+        }
+        int alive = getId(structure, "( true alive )");
+        assertFalse(positive.get(alive));
+        assertTrue(negative.get(alive));
+        for (int n = 1; n <= 20; n++) {
+            int step = getId(structure, "( true ( step " + n + " ) )");
+            assertFalse(positive.get(step));
+            assertFalse(negative.get(step));
+        }
+    }
+
+    @Test
+    public void testFixedGoals() throws Exception {
+        assertTrue(runFixedGoalsComparison("latches") > 0);
+        // latches change every move, but never decide the game
+        assertEquals(0, runFixedGoalsComparison("ticTacToe"));
+    }
+
+    /**
+     * plays random games and checks in every state, whose goals are fixed according to getFixedGoals,
+     * that playouts from the state (without the cutoff) end with these goals
+     * @return the number of states with fixed goals
+     */
+    private int runFixedGoalsComparison(String gameKey) throws Exception {
+        PropNetStructure structure = create(gameKey);
+        RecursiveForwardChangePropNetStateMachine machine = new RecursiveForwardChangePropNetStateMachine(structure);
+        RecursiveForwardChangePropNetStateMachine cutoffMachine = new RecursiveForwardChangePropNetStateMachine(structure);
+        cutoffMachine.setEarlyPlayoutCutoff(true);
+        int nbRoles = structure.getRoles().length;
+        int[] fixedGoals = new int[nbRoles];
+        int[] goals = new int[nbRoles];
+        int nbFixed = 0;
+        for (int game = 0; game < 100; game++) {
+            InternalBitSetState state = machine.getInternalInitialState();
+            // the goals that were first found to be fixed in this game
+            int[] gameGoals = null;
+            while (!machine.isTerminal(state)) {
+                if (cutoffMachine.getFixedGoals(state, fixedGoals)) {
+                    nbFixed++;
+                    if (gameGoals == null) {
+                        gameGoals = fixedGoals.clone();
+                    }
+                    assertArrayEquals(gameGoals, fixedGoals);
+                    for (int i = 0; i < 5; i++) {
+                        machine.playout(state, goals, null);
+                        assertArrayEquals(fixedGoals, goals);
+                    }
+                    cutoffMachine.playout(state, goals, null);
+                    assertArrayEquals(fixedGoals, goals);
+                }
+                state = machine.getNextState(state, machine.getRandomJointMove(state), true);
+            }
+            if (gameGoals != null) {
+                for (int roleId = 0; roleId < nbRoles; roleId++) {
+                    assertEquals(gameGoals[roleId], machine.getGoal(state, roleId));
+                }
+            }
+        }
+        return nbFixed;
+    }
+}
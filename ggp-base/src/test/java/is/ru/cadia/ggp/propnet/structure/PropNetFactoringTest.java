@@ -0,0 +1,104 @@
+package is.ru.cadia.ggp.propnet.structure;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.junit.Assert;
+import org.junit.Test;
+
+import is.ru.cadia.ggp.propnet.bitsetstate.RecursiveForwardChangePropNetStateMachine;
+import is.ru.cadia.ggp.propnet.structure.PropNetFactoring.Factor;
+
+/**
+ * Unit tests for PropNetFactoring: the boards of double tictactoe are linked
+ * only by the control, so they have to end up in factors of their own, and
+ * playing in the sub-structure of a factor has to give the same results as
+ * playing the moves of the factor in the whole game.
+ */
+public class PropNetFactoringTest extends Assert {
+
+    private static PropNetStructure create(String gameKey) throws Exception {
+        return new GGPBasePropNetStructureFactory().create(new TestGameRepository().getGame(gameKey).getRules());
+    }
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        PropNetFactoring factoring = PropNetFactoring.compute(create("ticTacToe"));
+        assertFalse(factoring.isFactored());
+        assertEquals(1, factoring.getFactors().size());
+    }
+
+    @Test
+    public void testDoubleTicTacToe() throws Exception {
+        PropNetStructure structure = create("doubleTicTacToe");
+        PropNetFactoring factoring = PropNetFactoring.compute(structure);
+        assertEquals(2, factoring.getFactors().size());
+        // control xplayer and control oplayer
+        assertEquals(2, factoring.getSharedBases().cardinality());
+        // noop
+        assertFalse(factoring.getSharedInputs().isEmpty());
+        for (Factor factor : factoring.getFactors()) {
+            assertTrue(factor.isRelevant());
+            // 9 cells with 3 values each
+            assertEquals(27, factor.getBases().cardinality());
+            assertEquals(18, factor.getInputs().cardinality());
+            runSubStructureComparison(structure, factoring, factor, 20, new Random(42));
+        }
+    }
+
+    /**
+     * plays random playouts in the whole game with moves that are legal in the sub-structure of the factor
+     * and checks that the sub-structure agrees on the fluents of the factor, terminal status and goals
+     */
+    private static void runSubStructureComparison(PropNetStructure structure, PropNetFactoring factoring, Factor factor,
+            int nbPlayouts, Random random) throws Exception {
+        RecursiveForwardChangePropNetStateMachine game = new RecursiveForwardChangePropNetStateMachine(structure);
+        RecursiveForwardChangePropNetStateMachine subGame = new RecursiveForwardChangePropNetStateMachine(factoring.makeSubStructure(factor, null));
+        Set<GdlSentence> fluents = new HashSet<GdlSentence>();
+        for (int id = factor.getBases().nextSetBit(0); id != -1; id = factor.getBases().nextSetBit(id + 1)) {
+            fluents.add(structure.getBasePropositions()[id].sentences[0]);
+        }
+        for (int playout = 0; playout < nbPlayouts; playout++) {
+            MachineState state = game.getInitialState();
+            MachineState subState = subGame.getInitialState();
+            while (true) {
+                assertEquals(getFluents(state, fluents), getFluents(subState, fluents));
+                assertEquals(game.isTerminal(state), subGame.isTerminal(subState));
+                if (game.isTerminal(state)) {
+                    assertEquals(game.getGoals(state), subGame.getGoals(subState));
+                    break;
+                }
+                // moves have to be mapped between the structures by their contents
+                List<Move> jointMove = new ArrayList<Move>();
+                List<Move> subJointMove = new ArrayList<Move>();
+                for (Role role : game.getRoles()) {
+                    Set<Move> legals = new HashSet<Move>();
+                    for (Move move : game.getLegalMoves(state, role)) {
+                        legals.add(new Move(move.getContents()));
+                    }
+                    List<Move> subLegals = subGame.getLegalMoves(subState, role);
+                    Move subMove = subLegals.get(random.nextInt(subLegals.size()));
+                    assertTrue(legals.contains(new Move(subMove.getContents())));
+                    jointMove.add(new Move(subMove.getContents()));
+                    subJointMove.add(subMove);
+                }
+                state = game.getNextState(state, jointMove);
+                subState = subGame.getNextState(subState, subJointMove);
+            }
+        }
+    }
+
+    private static Set<GdlSentence> getFluents(MachineState state, Set<GdlSentence> fluents) {
+        Set<GdlSentence> result = new HashSet<GdlSentence>(state.getContents());
+        result.retainAll(fluents);
+        return result;
+    }
+}
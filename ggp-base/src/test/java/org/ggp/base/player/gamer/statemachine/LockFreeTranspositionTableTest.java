@@ -0,0 +1,152 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for the LockFreeTranspositionTable: entries have to be stored and replaced
+ * as documented and entries that don't belong to the key (e.g., because they were torn
+ * by concurrent writes) must never be returned.
+ */
+public class LockFreeTranspositionTableTest extends Assert {
+
+    // with a capacity of 16, keys that only differ in bits 4 and above (of the low 32 bits) share a bucket
+    private static final int CAPACITY = 16;
+    private static final long K1 = 2;
+    private static final long K2 = 2 + 16;
+    private static final long K3 = 2 + 32;
+    private static final long K4 = 2 + 48;
+
+    @Test
+    public void testPutAndGet() {
+        LockFreeTranspositionTable table = new LockFreeTranspositionTable(CAPACITY);
+        assertEquals(0, table.get(K1));
+        table.put(K1, 255, LockFreeTranspositionTable.BOUND_LOWER, LockFreeTranspositionTable.SOLVED_DEPTH, LockFreeTranspositionTable.MAX_MOVE);
+        long data = table.get(K1);
+        assertEquals(255, LockFreeTranspositionTable.getValue(data));
+        assertEquals(LockFreeTranspositionTable.BOUND_LOWER, LockFreeTranspositionTable.getBound(data));
+        assertEquals(LockFreeTranspositionTable.SOLVED_DEPTH, LockFreeTranspositionTable.getDepth(data));
+        assertEquals(LockFreeTranspositionTable.MAX_MOVE, LockFreeTranspositionTable.getMove(data));
+        assertEquals(0, table.get(K2));
+
+        // a new entry for the same key replaces the old one
+        table.put(K1, 0, LockFreeTranspositionTable.BOUND_EXACT, 0, -1);
+        data = table.get(K1);
+        assertEquals(0, LockFreeTranspositionTable.getValue(data));
+        assertEquals(LockFreeTranspositionTable.BOUND_EXACT, LockFreeTranspositionTable.getBound(data));
+        assertEquals(0, LockFreeTranspositionTable.getDepth(data));
+        assertEquals(-1, LockFreeTranspositionTable.getMove(data));
+
+        // moves that don't fit are not stored
+        table.put(K1, 50, LockFreeTranspositionTable.BOUND_UPPER, 3, LockFreeTranspositionTable.MAX_MOVE + 1);
+        assertEquals(-1, LockFreeTranspositionTable.getMove(table.get(K1)));
+
+        table.clear();
+        assertEquals(0, table.get(K1));
+    }
+
+    @Test
+    public void testReplacement() {
+        LockFreeTranspositionTable table = new LockFreeTranspositionTable(CAPACITY);
+        table.put(K1, 1, LockFreeTranspositionTable.BOUND_EXACT, 5, -1);
+        // shallower entries go to the always-replace slot
+        table.put(K2, 2, LockFreeTranspositionTable.BOUND_EXACT, 3, -1);
+        assertEquals(1, LockFreeTranspositionTable.getValue(table.get(K1)));
+        assertEquals(2, LockFreeTranspositionTable.getValue(table.get(K2)));
+        table.put(K3, 3, LockFreeTranspositionTable.BOUND_EXACT, 4, -1);
+        assertEquals(1, LockFreeTranspositionTable.getValue(table.get(K1)));
+        assertEquals(0, table.get(K2));
+        assertEquals(3, LockFreeTranspositionTable.getValue(table.get(K3)));
+        // deeper entries replace the depth-preferred slot
+        table.put(K4, 4, LockFreeTranspositionTable.BOUND_EXACT, 6, -1);
+        assertEquals(0, table.get(K1));
+        assertEquals(3, LockFreeTranspositionTable.getValue(table.get(K3)));
+        assertEquals(4, LockFreeTranspositionTable.getValue(table.get(K4)));
+        // a key that moves to the depth-preferred slot doesn't leave a stale copy in the other slot
+        table.nextGeneration();
+        table.put(K3, 5, LockFreeTranspositionTable.BOUND_EXACT, 1, -1);
+        assertEquals(0, table.get(K4));
+        assertEquals(5, LockFreeTranspositionTable.getValue(table.get(K3)));
+        table.put(K1, 6, LockFreeTranspositionTable.BOUND_EXACT, 0, -1);
+        assertEquals(5, LockFreeTranspositionTable.getValue(table.get(K3)));
+        assertEquals(6, LockFreeTranspositionTable.getValue(table.get(K1)));
+        // entries of older searches are replaced first, even by shallower ones
+        table.nextGeneration();
+        table.put(K2, 7, LockFreeTranspositionTable.BOUND_EXACT, 0, -1);
+        assertEquals(0, table.get(K3));
+        assertEquals(6, LockFreeTranspositionTable.getValue(table.get(K1)));
+        assertEquals(7, LockFreeTranspositionTable.getValue(table.get(K2)));
+    }
+
+    @Test
+    public void testTornEntry() throws Exception {
+        LockFreeTranspositionTable table = new LockFreeTranspositionTable(CAPACITY);
+        table.put(K1, 10, LockFreeTranspositionTable.BOUND_EXACT, 5, 1);
+        table.put(K2, 20, LockFreeTranspositionTable.BOUND_EXACT, 3, 2);
+        Field field = LockFreeTranspositionTable.class.getDeclaredField("table");
+        field.setAccessible(true);
+        AtomicLongArray array = (AtomicLongArray)field.get(table);
+        // both entries are in the same bucket, at 2 * slot and 2 * slot + 2
+        int slot = 2 * (int)K1;
+        long data1 = array.get(slot + 1);
+        long data2 = array.get(slot + 3);
+        assertEquals(K1, array.get(slot) ^ data1);
+        assertEquals(K2, array.get(slot + 2) ^ data2);
+        // simulate a write of K2 that was interrupted after its first half
+        array.set(slot, K2 ^ data2);
+        assertEquals(0, table.get(K1));
+        // and one that was interrupted after its second half
+        array.set(slot, K1 ^ data1);
+        array.set(slot + 1, data2);
+        assertEquals(0, table.get(K1));
+        assertEquals(data2, table.get(K2));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final LockFreeTranspositionTable table = new LockFreeTranspositionTable(1 << 10);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 200000 && error.get() == null; i++) {
+                        // few keys, so that the threads write to the same buckets all the time
+                        long key = random.nextInt(1 << 12) * 0x9E3779B97F4A7C15L;
+                        if (random.nextBoolean()) {
+                            table.put(key, getValue(key), LockFreeTranspositionTable.BOUND_EXACT, getDepth(key), -1);
+                        } else {
+                            long data = table.get(key);
+                            if (data != 0 && (LockFreeTranspositionTable.getValue(data) != getValue(key)
+                                    || LockFreeTranspositionTable.getDepth(data) != getDepth(key))) {
+                                error.set("wrong entry for key " + key);
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+    }
+
+    // the entries of the concurrent test are a function of the key
+    private static int getValue(long key) {
+        return (int)(key >>> 40) & 0xFF;
+    }
+
+    private static int getDepth(long key) {
+        return (int)(key >>> 20) & 0xFFFF;
+    }
+}
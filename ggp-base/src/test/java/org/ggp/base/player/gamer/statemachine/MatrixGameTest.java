@@ -0,0 +1,94 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for MatrixGame.solve, which has to find the value and optimal
+ * mixed strategies of small zero-sum matrix games with known solutions.
+ */
+public class MatrixGameTest extends Assert {
+
+    private static final double DELTA = 1e-6;
+
+    private static double solve(double[][] payoff, double[] rowStrategy, double[] colStrategy) {
+        return MatrixGame.solve(payoff, payoff.length, payoff[0].length, rowStrategy, colStrategy);
+    }
+
+    private static void assertDistribution(double[] strategy) {
+        double sum = 0;
+        for (double p : strategy) {
+            assertTrue(p >= -DELTA);
+            sum += p;
+        }
+        assertEquals(1, sum, DELTA);
+    }
+
+    @Test
+    public void testMatchingPennies() {
+        double[] x = new double[2];
+        double[] y = new double[2];
+        assertEquals(50, solve(new double[][] {{100, 0}, {0, 100}}, x, y), DELTA);
+        assertArrayEquals(new double[] {0.5, 0.5}, x, DELTA);
+        assertArrayEquals(new double[] {0.5, 0.5}, y, DELTA);
+    }
+
+    @Test
+    public void testAsymmetricPennies() {
+        double[] x = new double[2];
+        double[] y = new double[2];
+        assertEquals(100.0 / 3, solve(new double[][] {{100, 0}, {0, 50}}, x, y), DELTA);
+        assertArrayEquals(new double[] {1.0 / 3, 2.0 / 3}, x, DELTA);
+        assertArrayEquals(new double[] {1.0 / 3, 2.0 / 3}, y, DELTA);
+    }
+
+    @Test
+    public void testRockPaperScissors() {
+        double[] x = new double[3];
+        double[] y = new double[3];
+        double[][] payoff = {{0, -1, 1}, {1, 0, -1}, {-1, 1, 0}};
+        assertEquals(0, solve(payoff, x, y), DELTA);
+        assertArrayEquals(new double[] {1.0 / 3, 1.0 / 3, 1.0 / 3}, x, DELTA);
+        assertArrayEquals(new double[] {1.0 / 3, 1.0 / 3, 1.0 / 3}, y, DELTA);
+    }
+
+    @Test
+    public void testDominatedRowsAndColumns() {
+        double[] x = new double[3];
+        double[] y = new double[3];
+        // the last row is dominated by a mix of the first two, the last column by the first one
+        double[][] payoff = {{100, 0, 100}, {0, 100, 100}, {40, 40, 40}};
+        assertEquals(50, solve(payoff, x, y), DELTA);
+        assertArrayEquals(new double[] {0.5, 0.5, 0}, x, DELTA);
+        assertEquals(0, y[2], DELTA);
+        assertDistribution(y);
+        // a saddle point: the first row dominates the second, and the column player picks the lower entry
+        x = new double[2];
+        y = new double[2];
+        assertEquals(60, solve(new double[][] {{80, 60}, {70, 50}}, x, y), DELTA);
+        assertArrayEquals(new double[] {1, 0}, x, DELTA);
+        assertArrayEquals(new double[] {0, 1}, y, DELTA);
+    }
+
+    @Test
+    public void testConstantMatrix() {
+        double[] x = new double[3];
+        double[] y = new double[2];
+        assertEquals(42, solve(new double[][] {{42, 42}, {42, 42}, {42, 42}}, x, y), DELTA);
+        assertDistribution(x);
+        assertDistribution(y);
+    }
+
+    @Test
+    public void testSubmatrix() {
+        // only the first nbRows rows and nbCols columns are used
+        double[] x = new double[3];
+        double[] y = new double[3];
+        double[][] payoff = {{100, 0, -50}, {0, 100, -50}, {-50, -50, -50}};
+        assertEquals(50, MatrixGame.solve(payoff, 2, 2, x, y), DELTA);
+        assertEquals(0.5, x[0], DELTA);
+        assertEquals(0.5, x[1], DELTA);
+        assertEquals(0.5, y[0], DELTA);
+        assertEquals(0.5, y[1], DELTA);
+    }
+}
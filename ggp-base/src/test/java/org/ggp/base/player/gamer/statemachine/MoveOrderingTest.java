@@ -0,0 +1,92 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.game.Game;
+import org.junit.Assert;
+import org.junit.Test;
+
+import is.ru.cadia.ggp.propnet.structure.GGPBasePropNetStructureFactory;
+import is.ru.cadia.ggp.propnet.structure.PropNetStructure;
+
+/**
+ * Unit tests for the order of replies in MoveOrdering: the hash reply has to come first,
+ * then the reply made of the best move of each role, and every reply exactly once.
+ */
+public class MoveOrderingTest extends Assert {
+
+    // role a has 2 moves, b 3 and c 4
+    private static final String RULES = "(role a) (role b) (role c) "
+            + "(index 1) (index 2) (index 3) (index 4) (init (round 0)) "
+            + "(<= (legal a (m ?x)) (index ?x) (distinct ?x 3) (distinct ?x 4)) "
+            + "(<= (legal b (m ?x)) (index ?x) (distinct ?x 4)) "
+            + "(<= (legal c (m ?x)) (index ?x)) "
+            + "(<= (next (chose ?r ?x)) (does ?r (m ?x))) (<= (next (round 1)) (true (round 0))) "
+            + "(<= terminal (true (round 1))) (<= (goal ?r 50) (role ?r))";
+
+    // the replies of role a's opponents: all moves of b and three of the four moves of c
+    private static final int[][] LEGALS = {null, {0, 1, 2}, {3, 1, 0}};
+    private static final int[] NB_LEGALS = {2, 3, 3};
+    private static final int NB_REPLIES = 9;
+
+    private static MoveOrdering createMoveOrdering(boolean useHashMove) throws Exception {
+        PropNetStructure structure = new GGPBasePropNetStructureFactory().create(
+                Game.createEphemeralGame(Game.preprocessRulesheet(RULES)).getRules());
+        assertEquals(4, structure.getPossibleMoves(2).length);
+        MoveOrdering moveOrdering = new MoveOrdering(structure, useHashMove, false, true);
+        // best moves: ordinal 2 of b (index 2 in LEGALS) and ordinal 1 of c (index 1), then ordinal 0 of c (index 2)
+        moveOrdering.cutoff(1, 0, 2, 3);
+        moveOrdering.cutoff(2, 0, 1, 2);
+        moveOrdering.cutoff(2, 0, 0, 1);
+        return moveOrdering;
+    }
+
+    /**
+     * @return the number of the reply with the given indices in LEGALS
+     */
+    private static int getReply(int indexB, int indexC) {
+        return indexB + NB_LEGALS[1] * indexC;
+    }
+
+    private static int[] getReplies(MoveOrdering moveOrdering, int hashReply) {
+        moveOrdering.sortReplies(0, LEGALS, NB_LEGALS, hashReply);
+        int[] replies = new int[NB_REPLIES];
+        Set<Integer> distinct = new HashSet<Integer>();
+        for (int i = 0; i < NB_REPLIES; i++) {
+            replies[i] = moveOrdering.getReply(0, i);
+            assertTrue(replies[i] >= 0 && replies[i] < NB_REPLIES);
+            distinct.add(replies[i]);
+        }
+        assertEquals(NB_REPLIES, distinct.size());
+        return replies;
+    }
+
+    @Test
+    public void testBestRepliesFirst() throws Exception {
+        MoveOrdering moveOrdering = createMoveOrdering(true);
+        int[] replies = getReplies(moveOrdering, -1);
+        assertEquals(getReply(2, 1), replies[0]);
+        assertEquals(getReply(0, 1), replies[1]);
+        assertEquals(getReply(2, 2), replies[3]);
+        assertEquals(getReply(1, 0), replies[8]);
+    }
+
+    @Test
+    public void testHashReply() throws Exception {
+        MoveOrdering moveOrdering = createMoveOrdering(true);
+        int[] replies = getReplies(moveOrdering, getReply(1, 2));
+        assertEquals(getReply(1, 2), replies[0]);
+        assertEquals(getReply(2, 1), replies[1]);
+        // the hash reply is the best reply
+        replies = getReplies(moveOrdering, getReply(2, 1));
+        assertEquals(getReply(2, 1), replies[0]);
+        assertEquals(getReply(0, 1), replies[1]);
+        // a hash reply that doesn't exist in the node is ignored
+        replies = getReplies(moveOrdering, NB_REPLIES);
+        assertEquals(getReply(2, 1), replies[0]);
+        // and so is the hash reply if the hash move is switched off
+        replies = getReplies(createMoveOrdering(false), getReply(1, 2));
+        assertEquals(getReply(2, 1), replies[0]);
+    }
+}
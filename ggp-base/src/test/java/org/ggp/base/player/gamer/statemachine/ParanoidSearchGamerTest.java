@@ -0,0 +1,59 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ggp.base.player.gamer.Gamer;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.match.Match;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for the ParanoidSearchGamer, which has to solve the simultaneous move
+ * game asymmetricPennies and play the moves of its mixed equilibrium strategy,
+ * but never the dominated safe move.
+ */
+public class ParanoidSearchGamerTest extends Assert {
+
+    private static final int NB_MOVES = 60;
+
+    /**
+     * @return how often each move was selected in the initial state in NB_MOVES calls of selectMove
+     */
+    private Map<String, Integer> countMoves(String roleName) throws Exception {
+        Gamer gamer = new ParanoidSearchGamer();
+        Match match = new Match("", -1, 10, 10, new TestGameRepository().getGame("asymmetricPennies"), "");
+        gamer.setMatch(match);
+        gamer.setRoleName(GdlPool.getConstant(roleName));
+        gamer.metaGame(System.currentTimeMillis() + 10000);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < NB_MOVES; i++) {
+            // no moves are added to the match, so every call searches the initial state
+            GdlTerm move = gamer.selectMove(System.currentTimeMillis() + 10000);
+            Integer count = counts.get(move.toString());
+            counts.put(move.toString(), (count == null ? 0 : count) + 1);
+        }
+        return counts;
+    }
+
+    @Test
+    public void testRowPlayer() throws Exception {
+        Map<String, Integer> counts = countMoves("a");
+        assertFalse(counts.containsKey("safe"));
+        // heads and tails are played with probabilities 1/3 and 2/3
+        assertTrue(counts.containsKey("( play heads )"));
+        assertTrue(counts.containsKey("( play tails )"));
+        assertEquals(2, counts.size());
+    }
+
+    @Test
+    public void testColumnPlayer() throws Exception {
+        Map<String, Integer> counts = countMoves("b");
+        assertTrue(counts.containsKey("( play heads )"));
+        assertTrue(counts.containsKey("( play tails )"));
+        assertEquals(2, counts.size());
+    }
+}
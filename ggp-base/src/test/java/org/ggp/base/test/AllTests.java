@@ -4,6 +4,10 @@ import org.ggp.base.apps.logging.LogSummarizerTest;
 import org.ggp.base.apps.tiltyard.TiltyardRequestFarmTest;
 import org.ggp.base.player.gamer.clojure.ClojureGamerTest;
 import org.ggp.base.player.gamer.python.PythonGamerTest;
+import org.ggp.base.player.gamer.statemachine.LockFreeTranspositionTableTest;
+import org.ggp.base.player.gamer.statemachine.MatrixGameTest;
+import org.ggp.base.player.gamer.statemachine.MoveOrderingTest;
+import org.ggp.base.player.gamer.statemachine.ParanoidSearchGamerTest;
 import org.ggp.base.util.crypto.BaseCryptographyTest;
 import org.ggp.base.util.crypto.BaseHashingTest;
 import org.ggp.base.util.crypto.CanonicalJSONTest;
@@ -11,22 +15,35 @@ import org.ggp.base.util.crypto.SignableJSONTest;
 import org.ggp.base.util.game.GameParsingTest;
 import org.ggp.base.util.gdl.model.DependencyGraphsTest;
 import org.ggp.base.util.gdl.model.SimpleSentenceFormTest;
+import org.ggp.base.util.gdl.scrambler.CanonicalRulesTest;
 import org.ggp.base.util.gdl.scrambler.GdlRendererTest;
 import org.ggp.base.util.gdl.scrambler.GdlScramblerTest;
 import org.ggp.base.util.gdl.transforms.GdlCleanerTest;
 import org.ggp.base.util.http.HttpTest;
 import org.ggp.base.util.presence.InfoResponseTest;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactoryTest;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachineTest;
 import org.ggp.base.validator.StaticValidationTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import is.ru.cadia.ggp.propnet.bitsetstate.CountingForwardChangePropNetStateMachineTest;
+import is.ru.cadia.ggp.propnet.bitsetstate.PropNetBitSetStateMachineTest;
+import is.ru.cadia.ggp.propnet.compiled.CompiledPropNetStateMachineTest;
+import is.ru.cadia.ggp.propnet.structure.BinaryPropNetFormatTest;
+import is.ru.cadia.ggp.propnet.structure.LatchAnalysisTest;
+import is.ru.cadia.ggp.propnet.structure.PropNetFactoringTest;
+
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     BaseCryptographyTest.class,
     BaseHashingTest.class,
+    BinaryPropNetFormatTest.class,
+    CanonicalRulesTest.class,
     CanonicalJSONTest.class,
     ClojureGamerTest.class,
+    CompiledPropNetStateMachineTest.class,
+    CountingForwardChangePropNetStateMachineTest.class,
     DependencyGraphsTest.class,
     GameParsingTest.class,
     GdlCleanerTest.class,
@@ -34,8 +51,16 @@ import org.junit.runners.Suite;
     GdlScramblerTest.class,
     HttpTest.class,
     InfoResponseTest.class,
+    LatchAnalysisTest.class,
+    LockFreeTranspositionTableTest.class,
     LogSummarizerTest.class,
+    MatrixGameTest.class,
+    MoveOrderingTest.class,
     NoTabsInRulesheetsTest.class,
+    OptimizingPropNetFactoryTest.class,
+    ParanoidSearchGamerTest.class,
+    PropNetBitSetStateMachineTest.class,
+    PropNetFactoringTest.class,
     ProverStateMachineTest.class,
     PythonGamerTest.class,
     SignableJSONTest.class,
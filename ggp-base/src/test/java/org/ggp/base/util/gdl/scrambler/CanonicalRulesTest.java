@@ -0,0 +1,67 @@
+package org.ggp.base.util.gdl.scrambler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.ggp.base.util.game.GameRepository;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.factory.exceptions.GdlFormatException;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import is.ru.cadia.ggp.propnet.structure.CanonicalRules;
+
+/**
+ * Unit tests for CanonicalRules, which is used to recognize scrambled
+ * versions of the same game (e.g., for caching propnets).
+ */
+public class CanonicalRulesTest extends Assert {
+    @Test
+    public void testTicTacToe() throws GdlFormatException, SymbolFormatException {
+        runScrambledHashTest("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFour() throws GdlFormatException, SymbolFormatException {
+        runScrambledHashTest("connectFour");
+    }
+
+    @Test
+    public void testDifferentGames() {
+        GameRepository repo = new TestGameRepository();
+        String ticTacToeHash = CanonicalRules.compute(repo.getGame("ticTacToe").getRules()).getHash();
+        String connectFourHash = CanonicalRules.compute(repo.getGame("connectFour").getRules()).getHash();
+        assertNotEquals(ticTacToeHash, connectFourHash);
+    }
+
+    /**
+     * A scrambled game must get the same hash as the original and every constant
+     * must get the same canonical name as the constant it was scrambled from.
+     */
+    private void runScrambledHashTest(String gameKey) throws GdlFormatException, SymbolFormatException {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        for (int seed = 0; seed < 3; seed++) {
+            GdlScrambler scrambler = new MappingGdlScrambler(new Random(seed));
+            List<Gdl> scrambledRules = new ArrayList<Gdl>();
+            for (Gdl rule : rules) {
+                scrambledRules.add(GdlFactory.create(scrambler.scramble(rule)));
+            }
+            assertNotEquals(gameKey, rules.toString(), scrambledRules.toString());
+
+            CanonicalRules canonical = CanonicalRules.compute(rules);
+            CanonicalRules scrambledCanonical = CanonicalRules.compute(scrambledRules);
+            assertEquals(gameKey, canonical.getHash(), scrambledCanonical.getHash());
+            for (Map.Entry<GdlConstant, GdlConstant> entry : canonical.getToCanonical().entrySet()) {
+                GdlConstant scrambledConstant = GdlPool.getConstant(scrambler.scramble(entry.getKey()));
+                assertEquals(gameKey, entry.getValue(), scrambledCanonical.getToCanonical().get(scrambledConstant));
+            }
+        }
+    }
+}
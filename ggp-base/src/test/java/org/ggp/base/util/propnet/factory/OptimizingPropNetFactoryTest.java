@@ -0,0 +1,84 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for the OptimizingPropNetFactory: grounding sentence forms
+ * concurrently must give the same propnet as grounding them sequentially.
+ */
+public class OptimizingPropNetFactoryTest extends Assert {
+
+    // how deep the inputs of a component are followed to describe it
+    private static final int SIGNATURE_DEPTH = 4;
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        runComparison("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        runComparison("connectFour");
+    }
+
+    private void runComparison(String gameKey) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        PropNet sequential = OptimizingPropNetFactory.create(rules, false, 1);
+        PropNet parallel = OptimizingPropNetFactory.create(rules, false, 4);
+        assertEquals(gameKey, sequential.getComponents().size(), parallel.getComponents().size());
+        assertEquals(gameKey, sequential.getNumLinks(), parallel.getNumLinks());
+        assertEquals(gameKey, sequential.getNumAnds(), parallel.getNumAnds());
+        assertEquals(gameKey, sequential.getNumOrs(), parallel.getNumOrs());
+        assertEquals(gameKey, sequential.getNumNots(), parallel.getNumNots());
+        assertEquals(gameKey, getSignatures(sequential), getSignatures(parallel));
+    }
+
+    /**
+     * @return the sorted list of signatures of all components, where the signature of a component
+     * describes the subgraph of its inputs up to SIGNATURE_DEPTH
+     */
+    private static List<String> getSignatures(PropNet propNet) {
+        Map<Component, String> memo = new HashMap<Component, String>();
+        List<String> signatures = new ArrayList<String>();
+        for (Component c : propNet.getComponents()) {
+            signatures.add(getSignature(c, SIGNATURE_DEPTH, memo));
+        }
+        Collections.sort(signatures);
+        return signatures;
+    }
+
+    private static String getSignature(Component c, int depth, Map<Component, String> memo) {
+        if (depth == SIGNATURE_DEPTH && memo.containsKey(c)) {
+            return memo.get(c);
+        }
+        StringBuilder sb = new StringBuilder(c.getClass().getSimpleName());
+        if (c instanceof Proposition) {
+            sb.append(' ').append(((Proposition)c).getName());
+        }
+        if (depth > 0) {
+            List<String> inputs = new ArrayList<String>();
+            for (Component input : c.getInputs()) {
+                inputs.add(getSignature(input, depth - 1, memo));
+            }
+            Collections.sort(inputs);
+            sb.append(inputs);
+        }
+        String signature = sb.toString();
+        if (depth == SIGNATURE_DEPTH) {
+            memo.put(c, signature);
+        }
+        return signature;
+    }
+}